@@ -44,6 +44,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -87,6 +88,12 @@ public class LavaCompiler extends Resolver implements Compiler {
 	public ArrayList<CompileUnit> parsables = new ArrayList<>();
 	public boolean structOnly;
 
+	public static final int PHASE_PARSE = 0, PHASE_RESOLVE = 1, PHASE_LOWER = 2, PHASE_WRITE = 3;
+	/**
+	 * 最近一次{@link #compile(List)}每个阶段的耗时(纳秒)，下标是PHASE_*
+	 */
+	public final long[] phaseTime = new long[4];
+
 	/**
 	 * 编译输入的源文件并返回生成的类定义。
 	 * 编译过程分为多个阶段：语法解析、名称解析、类型解析、方法解析、注解处理和代码生成。
@@ -100,6 +107,8 @@ public class LavaCompiler extends Resolver implements Compiler {
 	@SuppressWarnings("unchecked")
 	public @Nullable List<? extends ClassNode> compile(@MayMutate List<? extends CompileUnit> files) {
 		if (hasError) throw new IllegalStateException("hasError is true before compilation.");
+		Arrays.fill(phaseTime, 0);
+		long time = System.nanoTime();
 		try {
 			if (CompileContext.get() == null) CompileContext.set(createContext());
 
@@ -113,6 +122,7 @@ public class LavaCompiler extends Resolver implements Compiler {
 				}
 			}
 			if (hasError()) return null;
+			time = phaseEnd(PHASE_PARSE, time);
 			var units = parsables;
 			for (int i = 0; i < units.size(); i++) {
 				units.get(i).S2p1resolveInheritance();
@@ -135,6 +145,7 @@ public class LavaCompiler extends Resolver implements Compiler {
 				}
 			}
 			if (hasError()) return null;
+			time = phaseEnd(PHASE_RESOLVE, time);
 			if (!structOnly) {
 				for (int i = 0; i < units.size(); i++) {
 					try {
@@ -145,9 +156,11 @@ public class LavaCompiler extends Resolver implements Compiler {
 					}
 				}
 				if (hasError()) return null;
+				time = phaseEnd(PHASE_LOWER, time);
 				for (int i = 0; i < units.size(); i++) {
 					units.get(i).S5serialize();
 				}
+				phaseEnd(PHASE_WRITE, time);
 			}
 			units.addAll((Collection<? extends CompileUnit>) Helpers.cast(getGeneratedClasses()));
 			return units;
@@ -157,6 +170,12 @@ public class LavaCompiler extends Resolver implements Compiler {
 		}
 	}
 
+	private long phaseEnd(int phase, long start) {
+		long time = System.nanoTime();
+		phaseTime[phase] = time - start;
+		return time;
+	}
+
 	private final ArrayList<CompileContext> parallelContexts = new ArrayList<>();
 	public synchronized void releaseContext(CompileContext ctx) {parallelContexts.add(ctx);}
 	public synchronized CompileContext retainContext() {
@@ -283,6 +302,18 @@ public class LavaCompiler extends Resolver implements Compiler {
 		generated.module = null;
 	}
 
+	/**
+	 * 让类名由library提供，同时丢弃它之前解析出的{@link ClassNode}和缓存，用于增量编译
+	 * @param library 为null时移除这个类
+	 */
+	public void replaceClass(String name, @Nullable Library library) {
+		synchronized (libraryByName) {
+			var prev = library == null ? libraryByName.remove(name) : libraryByName.put(name, library);
+			if (prev instanceof ClassNode node) extraInfos.removeKey(node);
+		}
+		shortNameIndex = Collections.emptyMap();
+	}
+
 	// synchronized in CompileContext#addCompileUnit
 	public void addCompileUnit(CompileUnit unit) {
 		var existing = compileUnits.putIfAbsent(unit.name(), unit);
@@ -0,0 +1,366 @@
+package roj.compiler;
+
+import roj.archive.zip.ZipEntry;
+import roj.archive.zip.ZipPacker;
+import roj.asm.AsmCache;
+import roj.asm.ClassNode;
+import roj.asm.Member;
+import roj.asm.Opcodes;
+import roj.asm.attr.Attribute;
+import roj.asm.cp.Constant;
+import roj.asm.cp.CstClass;
+import roj.asm.type.Signature;
+import roj.collect.ArrayList;
+import roj.collect.HashMap;
+import roj.collect.HashSet;
+import roj.compiler.diagnostic.Diagnostic;
+import roj.compiler.diagnostic.Kind;
+import roj.compiler.library.Library;
+import roj.io.IOUtil;
+import roj.text.CharList;
+import roj.text.TextReader;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 常驻的增量编译服务.
+ * 编译器、类库和已经解析过的类库中的类在请求之间保留，每次请求只重新编译修改过的文件，
+ * 以及公开API发生变化的类的引用者（可能要多轮）
+ * <p>
+ * 协议: 客户端连接本机端口后发送一行命令，服务端返回若干行结果后关闭连接
+ * <ul>
+ *   <li>compile: 扫描源文件并增量编译，返回是否成功、各阶段耗时和诊断信息</li>
+ *   <li>rebuild: 重新编译所有文件</li>
+ *   <li>stop: 退出</li>
+ * </ul>
+ * 注意: 只通过常量池中的类引用查找依赖，被内联的常量不会触发引用者重新编译
+ *
+ * @author Roj234
+ * @since 2026/10/18 21:30
+ */
+final class LavaDaemon implements Library {
+	// 没有重写equals，按引用比较
+	private static final class Source {
+		final File file;
+		long lastModified, length;
+		List<String> classes = Collections.emptyList();
+		Set<String> references = Collections.emptySet();
+
+		Source(File file) {this.file = file;}
+	}
+
+	private final LavaCompiler compiler;
+	private final List<File> sourcePaths;
+	private final Charset charset;
+	private final File output;
+
+	private final HashMap<String, Source> sources = new HashMap<>();
+	/** 类名 => 编译后的字节 */
+	private final HashMap<String, byte[]> classes = new HashMap<>();
+	/** 类名 => 它的API，用于判断引用者是否需要重新编译 */
+	private final HashMap<String, Object> structures = new HashMap<>();
+	/** 类名 => 引用了它的源文件 */
+	private final HashMap<String, Set<Source>> dependents = new HashMap<>();
+
+	private final CharList messages = new CharList();
+
+	LavaDaemon(LavaCompiler compiler, List<File> sourcePaths, Charset charset, File output) {
+		this.compiler = compiler;
+		this.sourcePaths = sourcePaths;
+		this.charset = charset;
+		this.output = output;
+		compiler.reporter = this::report;
+	}
+
+	@Override public ClassNode get(CharSequence name) {
+		byte[] data = classes.get(name);
+		return data == null ? null : ClassNode.parseSkeleton(data);
+	}
+
+	private Boolean report(Diagnostic diag) {
+		if (diag.getFile() != null) {
+			messages.append(diag.getFile()).append(':');
+			if (diag.getLineNumber() > 0) messages.append(diag.getLineNumber()).append(':');
+			messages.append(' ');
+		}
+		messages.append(diag.getKind().name()).append(": ").append(diag.getMessage(Locale.CHINA)).append('\n');
+		return diag.getKind().ordinal() >= Kind.ERROR.ordinal();
+	}
+
+	public void serve(int port) throws IOException {
+		try (var server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress())) {
+			System.out.println("Lava编译服务已启动: "+server.getLocalSocketAddress());
+			while (true) {
+				try (Socket socket = server.accept()) {
+					var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					var out = socket.getOutputStream();
+
+					String command = in.readLine();
+					String response;
+					if (command == null) continue;
+					switch (command.trim()) {
+						case "compile" -> response = compile(false);
+						case "rebuild" -> response = compile(true);
+						case "stop" -> {
+							out.write("stopped\n".getBytes(StandardCharsets.UTF_8));
+							return;
+						}
+						default -> response = "未知的命令 "+command+"\n";
+					}
+					out.write(response.getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public synchronized String compile(boolean rebuild) {
+		messages.clear();
+		long[] time = new long[4];
+
+		if (rebuild) {
+			for (var source : sources.values()) source.lastModified = 0;
+		}
+
+		// 扫描修改和删除的文件
+		Set<Source> pending = new HashSet<>();
+		var alive = new HashSet<String>();
+		for (var path : sourcePaths) {
+			List<File> files = path.isDirectory() ? IOUtil.listFiles(path, (name, attr) -> IOUtil.getExtension(name).endsWith("ava")) : Collections.singletonList(path);
+			for (var file : files) {
+				var key = file.getAbsolutePath();
+				alive.add(key);
+
+				var source = sources.computeIfAbsent(key, k -> new Source(file));
+				if (source.lastModified != file.lastModified() || source.length != file.length()) pending.add(source);
+			}
+		}
+		for (var itr = sources.values().iterator(); itr.hasNext(); ) {
+			var source = itr.next();
+			if (!alive.contains(source.file.getAbsolutePath())) {
+				itr.remove();
+				pending.addAll(removeOutput(source, true));
+			}
+		}
+
+		int fileCount = 0, rounds = 0;
+		boolean ok = true;
+		while (!pending.isEmpty()) {
+			rounds++;
+			fileCount += pending.size();
+
+			var next = build(pending, time);
+			if (next == null) {ok = false;break;}
+
+			// 同一轮编译的文件已经看到了新的结构；之前几轮编译的文件还是按旧结构编译的，需要重新编译
+			next.removeAll(pending);
+			pending = next;
+		}
+
+		if (ok && fileCount > 0) {
+			long start = System.nanoTime();
+			try {
+				writeJar();
+			} catch (IOException e) {
+				ok = false;
+				messages.append("无法写入").append(output).append(": ").append(e).append('\n');
+			}
+			time[LavaCompiler.PHASE_WRITE] += System.nanoTime() - start;
+		}
+
+		var sb = new CharList().append(ok ? "ok" : "failed").append('\n')
+			.append("compiled ").append(fileCount).append(" files in ").append(rounds).append(" rounds\n")
+			.append("parse ").append(time[LavaCompiler.PHASE_PARSE] / 1000000)
+			.append("ms resolve ").append(time[LavaCompiler.PHASE_RESOLVE] / 1000000)
+			.append("ms lower ").append(time[LavaCompiler.PHASE_LOWER] / 1000000)
+			.append("ms write ").append(time[LavaCompiler.PHASE_WRITE] / 1000000).append("ms\n")
+			.append(messages);
+		return sb.toStringAndFree();
+	}
+
+	/**
+	 * 编译一轮
+	 * @return 需要在下一轮编译的引用者，失败时返回null
+	 */
+	private Set<Source> build(Set<Source> files, long[] time) {
+		var units = new ArrayList<CompileUnit>(files.size());
+		var owners = new HashMap<Object, Source>();
+
+		// 暂时移出，失败时恢复
+		var backup = new HashMap<Source, List<String>>();
+		var oldStructures = new HashMap<String, Object>();
+		for (var source : files) {
+			backup.put(source, source.classes);
+			for (String name : source.classes) oldStructures.put(name, structures.get(name));
+			removeOutput(source, false);
+
+			String code;
+			try (var r = TextReader.from(source.file, charset)) {
+				code = IOUtil.read(r);
+			} catch (IOException e) {
+				messages.append("无法读取源文件").append(source.file).append(": ").append(e).append('\n');
+				restore(backup);
+				return null;
+			}
+
+			var unit = new LavaCompileUnit(source.file.getName(), code);
+			units.add(unit);
+			// 同一个文件中的所有类(包括内部类和匿名类)共享同一个ImportList
+			owners.put(unit.getImportList(), source);
+		}
+
+		List<? extends ClassNode> result;
+		try {
+			result = compiler.compile(units);
+		} catch (Exception e) {
+			var sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			messages.append("发生了意料之外的编译器内部错误\n").append(sw);
+			result = null;
+		}
+
+		for (int i = 0; i < time.length; i++) time[i] += compiler.phaseTime[i];
+
+		if (result == null) {
+			compiler.hasError = false;
+			compiler.parsables.clear();
+			restore(backup);
+			return null;
+		}
+
+		for (var source : files) {
+			source.lastModified = source.file.lastModified();
+			source.length = source.file.length();
+			source.classes = new ArrayList<>();
+			source.references = new HashSet<>();
+		}
+
+		var next = new HashSet<Source>();
+		for (int i = 0; i < result.size(); i++) {
+			var data = result.get(i);
+			var name = data.name();
+
+			Source owner = data instanceof CompileUnit unit ? owners.get(unit.getImportList()) : null;
+			if (owner == null) {
+				// 插件生成的类，归属于外部类所在的文件
+				int j = name.indexOf('$');
+				String outer = j < 0 ? name : name.substring(0, j);
+				for (var source : files) {
+					if (source.classes.contains(outer)) {owner = source;break;}
+				}
+				if (owner == null) owner = files.iterator().next();
+			}
+
+			owner.classes.add(name);
+			for (Constant c : data.cp.constants()) {
+				if (c instanceof CstClass ref) {
+					String str = ref.value().str();
+					if (!str.equals(name) && !str.startsWith("java/")) owner.references.add(str);
+				}
+			}
+
+			classes.put(name, AsmCache.toByteArray(data));
+
+			var structure = createStem(data);
+			if (!structure.equals(oldStructures.remove(name))) next.addAll(dependents.getOrDefault(name, Collections.emptySet()));
+			structures.put(name, structure);
+		}
+		compiler.parsables.clear();
+
+		// 被删除的类
+		for (var name : oldStructures.keySet()) {
+			classes.remove(name);
+			structures.remove(name);
+			next.addAll(dependents.getOrDefault(name, Collections.emptySet()));
+		}
+
+		for (var source : files) {
+			for (String name : source.classes) compiler.replaceClass(name, this);
+			for (String ref : source.references) dependents.computeIfAbsent(ref, k -> new HashSet<>()).add(source);
+		}
+		// 其它类的缓存可能依赖于修改过的类
+		for (String name : classes.keySet()) compiler.replaceClass(name, this);
+
+		return next;
+	}
+
+	private void restore(Map<Source, List<String>> backup) {
+		for (var entry : backup.entrySet()) {
+			var source = entry.getKey();
+			source.classes = entry.getValue();
+			// 下次请求时重试
+			source.lastModified = 0;
+			for (String name : source.classes) {
+				if (classes.containsKey(name)) compiler.replaceClass(name, this);
+			}
+		}
+	}
+
+	/**
+	 * 从编译器中移除这个文件生成的类
+	 * @param delete 文件已被删除，同时删除输出
+	 * @return 引用了这些类的文件
+	 */
+	private Set<Source> removeOutput(Source source, boolean delete) {
+		var affected = new HashSet<Source>();
+		for (String name : source.classes) {
+			compiler.replaceClass(name, null);
+			if (delete) {
+				classes.remove(name);
+				structures.remove(name);
+				affected.addAll(dependents.getOrDefault(name, Collections.emptySet()));
+			}
+		}
+		for (String ref : source.references) {
+			var set = dependents.get(ref);
+			if (set != null) set.remove(source);
+		}
+		if (delete) {
+			affected.remove(source);
+			source.classes = Collections.emptyList();
+		}
+		source.references = Collections.emptySet();
+		return affected;
+	}
+
+	private static Object createStem(ClassNode node) {
+		List<Object> members = new ArrayList<>();
+		fill(node, members, node.methods);
+		fill(node, members, node.fields);
+		members.sort(null);
+
+		members.add(node.modifier);
+		members.add(String.valueOf(node.parent()));
+		members.addAll(node.interfaces());
+		return members;
+	}
+	private static void fill(ClassNode node, List<Object> members, List<? extends Member> list) {
+		for (Member member : list) {
+			// 包私有成员也会被同一个包中的类使用
+			if ((member.modifier()&Opcodes.ACC_PRIVATE) != 0) continue;
+
+			Signature signature = member.getAttribute(node, Attribute.SIGNATURE);
+			members.add(member.modifier()+" "+member.name()+" "+(signature != null ? signature.toDesc() : member.rawDesc()));
+		}
+	}
+
+	private void writeJar() throws IOException {
+		var names = new ArrayList<>(classes.keySet());
+		names.sort(null);
+
+		try (var zfw = new ZipPacker(output)) {
+			for (var name : names) {
+				zfw.beginEntry(new ZipEntry(name.concat(".class")));
+				zfw.write(classes.get(name));
+			}
+			zfw.setComment("lavac "+Lavac.VERSION);
+		}
+	}
+}
@@ -52,6 +52,7 @@ public final class Lavac extends LavaCompiler {
 
 		int maxWarn = 100, maxError = 100, warnOps = 0;
 		int debugOps = 15;
+		int daemonPort = -1;
 
 		var lookup = MethodHandles.lookup();
 		var compiler = new Lavac();
@@ -93,6 +94,7 @@ public final class Lavac extends LavaCompiler {
 				case "-cache" -> System.setProperty("roj.compiler.symbolCache", args[++i]);
 				case "-cp", "-classpath" -> cp = args[++i];
 				case "-d" -> bin = args[++i];
+				case "-daemon" -> daemonPort = Integer.parseInt(args[++i]);
 				case "-g" -> {
 					loop1:
 					for (var name : TextUtil.split(args[++i], ',')) {
@@ -156,8 +158,12 @@ public final class Lavac extends LavaCompiler {
 		}
 		CompileContext.set(null);
 
-		while (i < args.length) compiler.addSource(new File(args[i++]));
-		if (compiler.allFiles.isEmpty()) {
+		var sourcePaths = new ArrayList<File>();
+		while (i < args.length) sourcePaths.add(new File(args[i++]));
+		if (daemonPort < 0) {
+			for (File path : sourcePaths) compiler.addSource(path);
+		}
+		if (daemonPort < 0 ? compiler.allFiles.isEmpty() : sourcePaths.isEmpty()) {
 			System.err.println("错误：没有源文件");
 			return;
 		}
@@ -177,6 +183,11 @@ public final class Lavac extends LavaCompiler {
 
 		File dst = bin == null ? new File("output.jar") : new File(bin);
 
+		if (daemonPort >= 0) {
+			new LavaDaemon(compiler, sourcePaths, compiler.charset, dst).serve(daemonPort);
+			return;
+		}
+
 		boolean ok = compiler.compile(dst);
 		reporter.summary();
 
@@ -222,6 +233,7 @@ public final class Lavac extends LavaCompiler {
 				  -classpath/-cp <目录>      指定查找用户类文件的位置
 				  -module                    使用模块编译模式，在上述文件夹中查找模块 (未实现)
 				  -d <路径>                  指定放置编译的类文件的位置 (注意：lavac直接生成单个jar包，以避免生成大量小文件)
+				  -daemon <端口>             常驻后台，在本机端口上接受compile/rebuild/stop命令并增量编译
 
 				  -encoding <编码>           指定源文件使用的字符编码
 				  -g                         选择生成哪些调试信息
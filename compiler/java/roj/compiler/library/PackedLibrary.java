@@ -1,68 +1,117 @@
 package roj.compiler.library;
 
-import roj.archive.zip.ZipEntry;
-import roj.archive.zip.ZipFile;
-import roj.archive.zip.ZipPacker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import roj.asm.ClassNode;
 import roj.asm.cp.ConstantPool;
 import roj.collect.ArrayList;
 import roj.collect.ToIntMap;
-import roj.io.IOUtil;
-import roj.io.XDataInput;
-import roj.io.XDataInputStream;
 import roj.util.ByteList;
 import roj.util.DynByteBuf;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
+ * 预处理过的符号表.
+ * 缓存文件整个以只读方式映射到内存，类名通过文件里的哈希索引查找，{@link ClassNode}和常量池都在第一次用到时才解码.
+ * 写入时先写临时文件再重命名，所以可以被同时运行的多个编译器进程共享（它们共享操作系统的页缓存）
+ *
+ * <pre>
+ * 文件: "LAVASYM5" moduleCount:u4 moduleOffset:u4[moduleCount]
+ * 模块: nameLength:u2 name:utf8 classCount:u4 bucketCount:u4 poolCount:u4
+ *      pool:(offset:u4 length:u4)[poolCount]
+ *      bucket:(entry+1):u4[bucketCount]
+ *      entry:(hash:u4 nameOffset:u4 nameLength:u4 dataOffset:u4 dataLength:u4 pool:u4)[classCount]
+ * 所有offset都是相对于文件开头的
+ * </pre>
+ *
  * @author Roj234
  * @since 2024/10/10 1:01
  */
 public final class PackedLibrary implements Library {
-	public static List<Library> loadCache(File symTable) throws IOException {
-		List<Library> output = new ArrayList<>();
-		var zf = new ZipFile(symTable);
+	private static final long MAGIC = 0x4C41564153594D35L; // LAVASYM5
+	private static final int ENTRY_SIZE = 24;
 
-		for (ZipEntry entry : zf.entries()) {
-			if (!entry.getName().endsWith("/v")) {
-				try (var in = XDataInputStream.wrap(zf.getInputStream(entry))) {
-					output.add(new PackedLibrary(in, zf, entry.getName()));
-				} catch (Exception e) {
-					IOUtil.closeSilently(zf);
-					throw e;
-				}
-			}
+	public static List<Library> loadCache(File symTable) throws IOException {
+		ByteBuffer map;
+		try (var ch = FileChannel.open(symTable.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("符号表过大: "+size);
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
 		}
 
+		if (map.capacity() < 12 || map.getLong(0) != MAGIC) throw new IOException("不支持的符号表格式，请重新生成"+symTable);
+
+		int count = map.getInt(8);
+		List<Library> output = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			output.add(new PackedLibrary(map, map.getInt(12 + i*4)));
+		}
 		return output;
 	}
-	public static void saveCache(File symCache, List<PackedLibrary> caches) throws IOException {
-		try (var tmp = new ZipPacker(symCache);
-			 var ob = new ByteList.ToStream(tmp)) {
-			for (var cache : caches) {
-				tmp.beginEntry(new ZipEntry(cache.module));
-				cache.serializeK(ob);
-				ob.flush();
-
-				tmp.beginEntry(new ZipEntry(cache.module+"/v"));
-				cache.serializeV(ob);
-				ob.flush();
+	/**
+	 * @return 旧文件仍被映射(Windows上可能是其它进程，也可能是本进程还没被GC的映射)而无法替换时返回false，这时保留旧文件
+	 */
+	public static boolean saveCache(File symCache, List<PackedLibrary> caches) throws IOException {
+		var buf = new ByteList();
+		try {
+			buf.putLong(MAGIC).putInt(caches.size());
+			int offsetTable = buf.wIndex();
+			buf.wIndex(offsetTable + caches.size() * 4);
+
+			for (int i = 0; i < caches.size(); i++) {
+				buf.setInt(offsetTable + i*4, buf.wIndex());
+				caches.get(i).serialize(buf);
 			}
 
+			// POSIX下正在使用旧文件的进程会继续看到旧的映射，Windows下不能替换被映射的文件
+			var tmp = new File(symCache.getAbsolutePath()+".tmp"+ProcessHandle.current().pid());
+			try {
+				try (var out = Files.newOutputStream(tmp.toPath())) {
+					buf.writeToStream(out);
+				}
+				try {
+					Files.move(tmp.toPath(), symCache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AccessDeniedException e) {
+					return false;
+				}
+				return true;
+			} finally {
+				tmp.delete();
+			}
+		} finally {
+			buf.release();
 		}
 	}
 
 	private final String module;
-	private final ToIntMap<String> table = new ToIntMap<>();
+
+	// 构建
+	private ToIntMap<String> table;
 	private ArrayList<ConstantPool> pool;
 	private DynByteBuf data;
 
+	// 映射
+	private ByteBuffer map;
+	private int classCount, bucketMask, poolTable, bucketTable, entryTable;
+	private ConstantPool[] pools;
+
 	public PackedLibrary(String module) {
 		this.module = module;
+		this.table = new ToIntMap<>();
 		this.pool = ArrayList.asModifiableList(new ConstantPool());
 		this.data = new ByteList();
 	}
@@ -80,70 +129,172 @@ public final class PackedLibrary implements Library {
 		data.getBytesNoCp(this.data.putInt(data.version), pool.getLast());
 	}
 
-	public void serializeK(DynByteBuf buf) {
-		buf.putAscii("LAVASYM4").putVUIUTF(module).putVUInt(table.size());
-		for (var entry : table.selfEntrySet()) {
-			buf.putVUIUTF(entry.getKey()).putVUInt(entry.value);
-		}
-	}
-	public void serializeV(DynByteBuf buf) {
-		buf.putVUInt(pool.size());
+	private void serialize(DynByteBuf buf) {
+		if (table == null) throw new IllegalStateException("只有新建的符号表才能保存");
+
+		byte[] moduleName = module.getBytes(StandardCharsets.UTF_8);
+		int count = table.size();
+		int buckets = Math.max(2, Integer.highestOneBit(count) << 2);
+
+		buf.putShort(moduleName.length).put(moduleName).putInt(count).putInt(buckets).putInt(pool.size());
+		int poolTable = buf.wIndex();
+		int bucketTable = poolTable + pool.size() * 8;
+		int entryTable = bucketTable + buckets * 4;
+		buf.wIndex(entryTable + count * ENTRY_SIZE);
+		for (int i = bucketTable; i < entryTable; i += 4) buf.setInt(i, 0);
+
 		for (int i = 0; i < pool.size(); i++) {
+			int offset = buf.wIndex();
 			pool.get(i).write(buf, false);
+			buf.setInt(poolTable + i*8, offset).setInt(poolTable + i*8 + 4, buf.wIndex() - offset);
 		}
+
+		// 类数据的长度由下一个类的起始位置决定
+		var entries = new ArrayList<>(table.selfEntrySet());
+		entries.sort((a, b) -> Integer.compare(a.value & 0xFFFFFF, b.value & 0xFFFFFF));
+
+		int dataBase = buf.wIndex();
 		buf.put(data);
-	}
 
-	public PackedLibrary(XDataInput buf, ZipFile zf, String module) throws IOException {
-		if (!buf.readAscii(8).equals("LAVASYM4")) throw new IllegalStateException("Magic number error");
-		this.module = module;
+		for (int i = 0; i < entries.size(); i++) {
+			var entry = entries.get(i);
+			int offset = entry.value & 0xFFFFFF;
+			int end = i+1 < entries.size() ? entries.get(i+1).value & 0xFFFFFF : data.wIndex();
 
-		var len = buf.readVUInt();
-		table.ensureCapacity(len);
-		for (int i = 0; i < len; i++) {
-			table.putInt(buf.readVUIUTF(), buf.readVUInt());
-		}
+			int nameOffset = buf.wIndex();
+			byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			buf.put(name);
+
+			int hash = hash(entry.getKey());
+			int slot = hash & (buckets-1);
+			while (buf.getInt(bucketTable + slot*4) != 0) slot = (slot+1) & (buckets-1);
+			buf.setInt(bucketTable + slot*4, i+1);
 
-		this.zf = zf;
-		this.ze = zf.getEntry(module+"/v");
+			int pos = entryTable + i*ENTRY_SIZE;
+			buf.setInt(pos, hash).setInt(pos+4, nameOffset).setInt(pos+8, name.length)
+			   .setInt(pos+12, dataBase + offset).setInt(pos+16, end - offset).setInt(pos+20, entry.value >>> 24);
+		}
 	}
 
-	private ZipFile zf;
-	private ZipEntry ze;
-	private void readV() {
-		try {
-			var buf = zf.get(ze, IOUtil.getSharedByteBuf());
+	private PackedLibrary(ByteBuffer map, int offset) {
+		int len = map.getShort(offset) & 0xFFFF;
+		byte[] name = new byte[len];
+		map.get(offset+2, name);
+		this.module = new String(name, StandardCharsets.UTF_8);
+		offset += 2 + len;
+
+		this.map = map;
+		this.classCount = map.getInt(offset);
+		this.bucketMask = map.getInt(offset+4) - 1;
+		this.pools = new ConstantPool[map.getInt(offset+8)];
+		this.poolTable = offset + 12;
+		this.bucketTable = poolTable + pools.length * 8;
+		this.entryTable = bucketTable + (bucketMask+1) * 4;
+	}
 
-			var len = buf.readVUInt();
+	private static int hash(CharSequence name) {
+		// 和String#hashCode相同，不依赖于JVM实现
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) h = 31*h + name.charAt(i);
+		return h ^ (h >>> 16);
+	}
 
-			pool = new ArrayList<>(len);
-			for (int i = 0; i < len; i++) {
-				var p = new ConstantPool();
-				p.read(buf, ConstantPool.CHAR_STRING);
-				pool.add(p);
+	private boolean nameEquals(int entry, CharSequence name) {
+		int offset = map.getInt(entry+4), len = map.getInt(entry+8);
+		if (len < name.length()) return false;
+		if (len == name.length()) {
+			int i = 0;
+			for (; i < len; i++) {
+				byte b = map.get(offset+i);
+				if (b < 0) break;
+				if (b != name.charAt(i)) return false;
 			}
-
-			data = new ByteList(buf.toByteArray());
-		} catch (Exception e) {
-			throw new IllegalStateException("无法读取ValueCache", e);
+			if (i == len) return true;
 		}
-		zf = null;
-		ze = null;
+		return getName(entry).contentEquals(name);
+	}
+	private String getName(int entry) {
+		byte[] name = new byte[map.getInt(entry+8)];
+		map.get(map.getInt(entry+4), name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	private ConstantPool getPool(int i) {
+		// 常量池很少，解码一次之后加锁的开销可以忽略
+		synchronized (pools) {
+			var cp = pools[i];
+			if (cp == null) {
+				var buf = new ByteList(map.getInt(poolTable + i*8 + 4));
+				try {
+					map.get(map.getInt(poolTable + i*8), buf.list, 0, buf.list.length);
+					buf.wIndex(buf.list.length);
 
+					cp = new ConstantPool();
+					cp.read(buf, ConstantPool.CHAR_STRING);
+				} catch (Exception e) {
+					throw new IllegalStateException("无法读取常量池#"+i+" of "+module, e);
+				}
+				pools[i] = cp;
+			}
+			return cp;
+		}
 	}
 
 	@Override public String moduleName() {return module;}
-	@Override public Collection<String> indexedContent() {return table.keySet();}
+	@Override public Collection<String> indexedContent() {
+		if (table != null) return table.keySet();
+		return new AbstractCollection<>() {
+			@Override public int size() {return classCount;}
+			@Override public boolean isEmpty() {return classCount == 0;}
+			@NotNull @Override public Iterator<String> iterator() {
+				return new Iterator<>() {
+					int i;
+					@Override public boolean hasNext() {return i < classCount;}
+					@Override public String next() {
+						if (i >= classCount) throw new NoSuchElementException();
+						return getName(entryTable + ENTRY_SIZE * i++);
+					}
+				};
+			}
+		};
+	}
 	@Override
-	public ClassNode get(CharSequence name) {
-		int offset = table.getOrDefault(name, -1);
-		if (offset < 0) return null;
+	public @Nullable ClassNode get(CharSequence name) {
+		if (table != null) {
+			int offset = table.getOrDefault(name, -1);
+			if (offset < 0) return null;
+
+			var cp = pool.get(offset >>> 24);
+			offset &= 0xFFFFFF;
+
+			var slice = data.slice(offset, data.wIndex() - offset);
+			return ClassNode.parseSkeletonWith(slice, slice.readInt(), cp);
+		}
 
-		if (pool == null) readV();
-		var cp = pool.get(offset >>> 24);
-		offset &= 0xFFFFFF;
+		var map = this.map;
+		if (map == null) return null;
 
-		var slice = data.slice(offset, data.wIndex() - offset);
-		return ClassNode.parseSkeletonWith(slice, slice.readInt(), cp);
+		int hash = hash(name);
+		int slot = hash & bucketMask;
+		while (true) {
+			int id = map.getInt(bucketTable + slot*4);
+			if (id == 0) return null;
+
+			int entry = entryTable + (id-1) * ENTRY_SIZE;
+			if (map.getInt(entry) == hash && nameEquals(entry, name)) {
+				var cp = getPool(map.getInt(entry+20));
+
+				// 复制出来，解析出的ClassNode不会引用映射的内存
+				byte[] bytes = new byte[map.getInt(entry+16)];
+				map.get(map.getInt(entry+12), bytes);
+
+				var buf = DynByteBuf.wrap(bytes);
+				return ClassNode.parseSkeletonWith(buf, buf.readInt(), cp);
+			}
+			slot = (slot+1) & bucketMask;
+		}
 	}
-}
\ No newline at end of file
+
+	// 映射由GC释放，这里只断开引用，所以之后的saveCache在Windows上仍可能无法替换文件
+	@Override public void close() {map = null;}
+}
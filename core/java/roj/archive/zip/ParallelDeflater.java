@@ -0,0 +1,227 @@
+package roj.archive.zip;
+
+import org.jetbrains.annotations.Nullable;
+import roj.collect.ArrayList;
+import roj.collect.RingBuffer;
+import roj.concurrent.Executor;
+import roj.crypt.CRC32;
+import roj.io.BufferPool;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * {@link ZipPacker}和{@link ZipEditor}共用的并行DEFLATE压缩.
+ * 每个项目在线程池中由独立的Deflater一次压缩到池化的缓冲区，再按提交顺序通过{@link ZipEntryWriter#writeCompressed}写出.
+ * 压缩级别和调用模式与顺序压缩相同，所以输出逐字节相同.
+ * <p>
+ * 没有把大文件再切成独立的块：那样输出就和顺序压缩不同了.
+ * 级别0(不压缩)的存储块大小取决于输出缓冲区，也不能保证相同，所以不并行.
+ *
+ * @author Roj234
+ * @since 2026/10/18 17:10
+ */
+final class ParallelDeflater {
+	private final ZipEntryWriter writer;
+	private final Executor executor;
+	private final long memoryLimit;
+	private final Consumer<ZipEntry> onWritten;
+	private final BiConsumer<ZipEntry, Throwable> onFailed;
+
+	private final RingBuffer<Job> jobs = RingBuffer.unbounded();
+	private long memoryUsed;
+
+	// 空闲的Deflater，数量不超过同时运行的任务数，在discard时end()
+	private final ArrayList<Deflater> idleDeflaters = new ArrayList<>();
+	private int idleLevel;
+
+	/**
+	 * @param memoryLimit 等待写出的项目占用的内存(复制的输入和压缩后的数据)上限，超过时先写出最早的项目
+	 * @param onWritten 项目写出后调用，此时offset和compressedSize已经确定
+	 * @param onFailed 不为null时，压缩或写出失败的项目被跳过(输出回退到它开始之前)并交给它，否则抛出异常
+	 */
+	ParallelDeflater(ZipEntryWriter writer, Executor executor, long memoryLimit, @Nullable Consumer<ZipEntry> onWritten, @Nullable BiConsumer<ZipEntry, Throwable> onFailed) {
+		this.writer = writer;
+		this.executor = executor;
+		this.memoryLimit = memoryLimit;
+		this.onWritten = onWritten;
+		this.onFailed = onFailed;
+	}
+
+	boolean accepts(ZipEntry entry) {
+		int level = writer.getCompressionLevel();
+		return entry.getMethod() == ZipEntry.DEFLATED && entry.getEncryptMethod() == ZipEntry.ENC_NONE && level != Deflater.NO_COMPRESSION;
+	}
+
+	/**
+	 * @param copy 是否复制data，调用者在返回后可能修改它时需要
+	 */
+	void submit(ZipEntry entry, DynByteBuf data, boolean copy) throws IOException {
+		int len = data.readableBytes();
+		long cost = (copy ? len : 0) + bound(len);
+		while (!jobs.isEmpty() && memoryUsed + cost > memoryLimit) writeNext();
+
+		if (copy) {
+			var tmp = BufferPool.buffer(false, len);
+			tmp.put(data, data.rIndex, len);
+			data = tmp;
+		}
+
+		entry.size = len;
+		var job = new Job(entry, data, copy, writer.getCompressionLevel(), cost);
+		job.result = executor.submit(job);
+		jobs.addLast(job);
+		memoryUsed += cost;
+	}
+
+	/**
+	 * 等待并写出全部项目
+	 */
+	void flush() throws IOException {
+		while (!jobs.isEmpty()) writeNext();
+	}
+
+	/**
+	 * 丢弃还没写出的项目并释放它们的缓冲区，正在压缩的项目会等它完成；然后释放所有Deflater.
+	 * 在不再使用时必须调用
+	 */
+	void discard() {
+		Job job;
+		while ((job = jobs.peekFirst()) != null) {
+			try {
+				job.result.get().release();
+			} catch (InterruptedException e) {
+				// 任务可能还在读输入，不能释放
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException ignored) {}
+
+			jobs.removeFirst();
+			memoryUsed -= job.cost;
+			if (job.owned) job.in.release();
+		}
+
+		synchronized (idleDeflaters) {
+			for (int i = 0; i < idleDeflaters.size(); i++) idleDeflaters.get(i).end();
+			idleDeflaters.clear();
+		}
+	}
+
+	private Deflater acquireDeflater(int level) {
+		synchronized (idleDeflaters) {
+			if (level != idleLevel) {
+				for (int i = 0; i < idleDeflaters.size(); i++) idleDeflaters.get(i).end();
+				idleDeflaters.clear();
+				idleLevel = level;
+			} else if (!idleDeflaters.isEmpty()) {
+				return idleDeflaters.pop();
+			}
+		}
+		return new Deflater(level, true);
+	}
+	private void releaseDeflater(Deflater def, int level) {
+		def.reset();
+		synchronized (idleDeflaters) {
+			if (level == idleLevel) {
+				idleDeflaters.add(def);
+				return;
+			}
+		}
+		def.end();
+	}
+
+	private void writeNext() throws IOException {
+		var job = jobs.peekFirst();
+
+		DynByteBuf out;
+		try {
+			out = job.result.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			jobs.removeFirst();
+			memoryUsed -= job.cost;
+			if (job.owned) job.in.release();
+
+			if (onFailed == null) throw new IOException("无法压缩"+job.entry.name, e.getCause());
+			onFailed.accept(job.entry, e.getCause());
+			return;
+		}
+
+		jobs.removeFirst();
+		memoryUsed -= job.cost;
+		if (job.owned) job.in.release();
+
+		long pos = writer.rawOut.position();
+		try {
+			writer.writeCompressed(job.entry, out);
+		} catch (Throwable e) {
+			if (onFailed == null) throw e;
+
+			// 跳过失败的Entry
+			writer.entry = null;
+			writer.rawOut.seek(pos);
+			onFailed.accept(job.entry, e);
+			return;
+		} finally {
+			out.release();
+		}
+		if (onWritten != null) onWritten.accept(job.entry);
+	}
+
+	// zlib的compressBound
+	private static long bound(int len) {return (long) len + (len >>> 12) + (len >>> 14) + (len >>> 25) + 13;}
+
+	private final class Job implements Callable<DynByteBuf> {
+		final ZipEntry entry;
+		final DynByteBuf in;
+		final boolean owned;
+		final int level;
+		final long cost;
+		Future<DynByteBuf> result;
+
+		Job(ZipEntry entry, DynByteBuf in, boolean owned, int level, long cost) {
+			this.entry = entry;
+			this.in = in;
+			this.owned = owned;
+			this.level = level;
+			this.cost = cost;
+		}
+
+		@Override
+		public DynByteBuf call() {
+			var in = this.in;
+			entry.crc32 = CRC32.crc32(in);
+
+			var def = acquireDeflater(level);
+
+			if (in.hasArray()) def.setInput(in.array(), in.relativeArrayOffset(), in.readableBytes());
+			else def.setInput(in.nioBuffer());
+			def.finish();
+
+			var out = BufferPool.buffer(false, (int) Math.min(bound(in.readableBytes()), Integer.MAX_VALUE - 16));
+			try {
+				while (!def.finished()) {
+					if (out.unsafeWritableBytes() == 0) out = BufferPool.localPool().expand(out, 4096);
+
+					int w = out.wIndex();
+					w += def.deflate(out.array(), out.arrayOffset()+w, out.unsafeWritableBytes());
+					out.wIndex(w);
+				}
+			} catch (Throwable e) {
+				out.release();
+				throw e;
+			} finally {
+				releaseDeflater(def, level);
+			}
+			return out;
+		}
+	}
+}
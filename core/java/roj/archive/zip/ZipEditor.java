@@ -1,10 +1,12 @@
 package roj.archive.zip;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import roj.archive.ArchiveUtils;
 import roj.collect.ArrayList;
 import roj.collect.FindSet;
 import roj.collect.LinkedOpenHashKVSet;
+import roj.concurrent.Executor;
 import roj.crypt.CRC32;
 import roj.io.IOUtil;
 import roj.io.source.BufferedSource;
@@ -14,6 +16,7 @@ import roj.util.ArrayCache;
 import roj.util.ByteList;
 import roj.util.DynByteBuf;
 import roj.util.FastFailException;
+import roj.util.Pair;
 import roj.util.function.ExceptionalSupplier;
 
 import java.io.File;
@@ -106,8 +109,13 @@ public final class ZipEditor extends ZipFile {
 	}
 
 	public void save() throws IOException { save(Deflater.DEFAULT_COMPRESSION); }
+	public void save(int level) throws IOException { save(level, null, 0); }
+	/**
+	 * @param executor 不为null时在其中并行压缩数据为{@link DynByteBuf}的未加密DEFLATE项目，结果和顺序压缩相同
+	 * @param memoryLimit 并行时等待写出的压缩数据占用的内存上限(字节)
+	 */
 	@SuppressWarnings("unchecked")
-	public void save(int level) throws IOException {
+	public void save(int level, @Nullable Executor executor, long memoryLimit) throws IOException {
 		if (pendingUpdates.isEmpty()) return;
 
 		removeStaleEntryAndDoRename();
@@ -119,70 +127,88 @@ public final class ZipEditor extends ZipFile {
 		int modTime = ZipEntry.java2DosTime(precisionModTime);
 
 		var impl = new ZipEntryWriter(r.isBuffered() ? r : BufferedSource.wrap(r), buf, level);
+		// 并行压缩失败的项目和顺序压缩一样被跳过，最后一并抛出
+		var parallelFailures = new ArrayList<Pair<ZipEntry, Throwable>>();
+		var parallel = executor == null ? null : new ParallelDeflater(impl, executor, memoryLimit, null, (entry, ex) -> parallelFailures.add(new Pair<>(entry, ex)));
+
+		try {
+			// write LOCs
+			entries.ensureCapacity(entries.size() + pendingUpdates.size());
+			for (ZipUpdate mod : pendingUpdates) {
+				ZipEntry entry = mod.entry;
+				entries.add(entry);
+				if (namedEntries != null)
+					namedEntries.add(entry);
+
+				entry.setEncryptMethod(mod.getEncryptMethod());
+				entry.method = (char) mod.getMethod();
+
+				long overrideTime = mod.modificationTime;
+				if (overrideTime != -1L) {
+					if (overrideTime == 0) {
+						entry.pModTime = precisionModTime;
+						entry.modTime = modTime;
+					} else {
+						entry.pModTime = overrideTime;
+						entry.modTime = ZipEntry.java2DosTime(overrideTime);
+					}
+				}
+
+				Object data = mod.data;
+				if (data instanceof ExceptionalSupplier) {
+					try {
+						data = ((ExceptionalSupplier<?, IOException>) data).get();
+					} catch (Exception ex) {
+						dataExceptions = SUPPRESS(dataExceptions, entry, ex);
+						continue;
+					}
+				}
+
+				if (parallel != null) {
+					if (data instanceof DynByteBuf b && parallel.accepts(entry)) {
+						parallel.submit(entry, b, false);
+						continue;
+					}
+					parallel.flush();
+				}
 
-		// write LOCs
-		entries.ensureCapacity(entries.size() + pendingUpdates.size());
-		for (ZipUpdate mod : pendingUpdates) {
-			ZipEntry entry = mod.entry;
-			entries.add(entry);
-			if (namedEntries != null)
-				namedEntries.add(entry);
-
-			entry.setEncryptMethod(mod.getEncryptMethod());
-			entry.method = (char) mod.getMethod();
-
-			long overrideTime = mod.modificationTime;
-			if (overrideTime != -1L) {
-				if (overrideTime == 0) {
-					entry.pModTime = precisionModTime;
-					entry.modTime = modTime;
+				InputStream in;
+				boolean useZip64 = mod.isZip64();
+				if (data instanceof DynByteBuf b) {
+					useZip64 = false;
+					in = null;
+					entry.size = b.readableBytes();
+					entry.crc32 = CRC32.crc32(b);
 				} else {
-					entry.pModTime = overrideTime;
-					entry.modTime = ZipEntry.java2DosTime(overrideTime);
+					in = (InputStream) data;
+					if (in.available() == Integer.MAX_VALUE) useZip64 = true;
 				}
-			}
 
-			Object data = mod.data;
-			if (data instanceof ExceptionalSupplier) {
+				long pos = impl.rawOut.position();
 				try {
-					data = ((ExceptionalSupplier<?, IOException>) data).get();
-				} catch (Exception ex) {
+					impl.beginEntry(entry, in != null, useZip64, mod.password);
+					if (in != null) {
+						IOUtil.copyStream(in, impl);
+					} else {
+						impl.write((DynByteBuf) data, true);
+					}
+					impl.closeEntry();
+				} catch (Throwable ex) {
+					// 跳过失败的Entry
+					impl.entry = null;
+					impl.rawOut.seek(pos);
+
 					dataExceptions = SUPPRESS(dataExceptions, entry, ex);
-					continue;
+				} finally {
+					IOUtil.closeSilently(in);
 				}
 			}
 
-			InputStream in;
-			boolean useZip64 = mod.isZip64();
-			if (data instanceof DynByteBuf b) {
-				useZip64 = false;
-				in = null;
-				entry.size = b.readableBytes();
-				entry.crc32 = CRC32.crc32(b);
-			} else {
-				in = (InputStream) data;
-				if (in.available() == Integer.MAX_VALUE) useZip64 = true;
-			}
-
-			long pos = impl.rawOut.position();
-			try {
-				impl.beginEntry(entry, in != null, useZip64, mod.password);
-				if (in != null) {
-					IOUtil.copyStream(in, impl);
-				} else {
-					impl.write((DynByteBuf) data, true);
-				}
-				impl.closeEntry();
-			} catch (Throwable ex) {
-				// 跳过失败的Entry
-				impl.entry = null;
-				impl.rawOut.seek(pos);
-
-				dataExceptions = SUPPRESS(dataExceptions, entry, ex);
-			} finally {
-				IOUtil.closeSilently(in);
-			}
+			if (parallel != null) parallel.flush();
+		} finally {
+			if (parallel != null) parallel.discard();
 		}
+		for (var failure : parallelFailures) dataExceptions = SUPPRESS(dataExceptions, failure.getKey(), failure.getValue());
 
 		impl.rawOut.close();
 		writeCENandEND(buf, r);
@@ -70,6 +70,7 @@ final class ZipEntryWriter extends MBOutputStream {
 	public void setCompressionLevel(int compressionLevel) {
 		this.compressionLevel = compressionLevel;
 	}
+	public int getCompressionLevel() {return compressionLevel;}
 
 	private Deflater getDeflater() {
 		if (def == null) def = new Deflater(compressionLevel, true);
@@ -191,6 +192,25 @@ final class ZipEntryWriter extends MBOutputStream {
 		this.out = out;
 	}
 
+	/**
+	 * 写出已经压缩好的项目，entry的size和crc32必须已知
+	 * 结果和使用{@link #beginEntry}并在{@link #closeEntry}时更新LOC相同
+	 */
+	public void writeCompressed(ZipEntry entry, DynByteBuf data) throws IOException {
+		if (this.entry != null) throw new IllegalStateException();
+
+		if (entry.nameBytes == null) {
+			entry.flags |= GP_UFS;
+			entry.nameBytes = IOUtil.encodeUTF8(entry.name);
+		}
+		entry.compressedSize = data.readableBytes();
+
+		long pos = rawOut.position();
+		writeLOC(rawOut, buf, entry);
+		entry.offset = pos + buf.wIndex();
+		rawOut.write(data);
+	}
+
 	@SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
 	static InputStream getInputStream(
 			InputStream in,
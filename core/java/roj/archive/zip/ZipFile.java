@@ -6,6 +6,7 @@ import roj.collect.ArrayList;
 import roj.collect.XashMap;
 import roj.io.IOUtil;
 import roj.io.XDataInputStream;
+import roj.io.source.MappedSource;
 import roj.io.source.Source;
 import roj.io.source.SourceInputStream;
 import roj.optimizer.FastVarHandle;
@@ -78,6 +79,11 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 		FLAG_ReadCENOnly = 2,
 		FLAG_RemoveEXT   = 4,
 		FLAG_JAR         = 8,
+		/**
+		 * 使用{@link MappedSource}只读映射文件，任意多个线程读取项目时不会竞争同一个Source，也不需要额外的文件句柄.
+		 * 不支持分卷，并且{@link #FLAG_RemoveEXT}不会修改文件
+		 */
+		FLAG_MemoryMapped = 16,
 
 		FLAG_SaveInUTF   = 64,
 		FLAG_HasError = 128;
@@ -97,7 +103,7 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 		this.flags = (byte) flag;
 		this.cs = charset;
 
-		r = ArchiveUtils.tryOpenSplitArchive(file, (flag & FLAG_RemoveEXT) == 0);
+		r = (flag & FLAG_MemoryMapped) != 0 ? new MappedSource(file) : ArchiveUtils.tryOpenSplitArchive(file, (flag & FLAG_RemoveEXT) == 0);
 		r.seek(offset);
 
 		reload();
@@ -532,13 +538,19 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 	}
 
 	Source openEntry(ZipEntry entry) throws IOException {
-		Source src = (Source) CACHE.getAndSet(this, null);
-		if (src == null) src = r.copy();
+		Source src;
+		// 映射的副本只是一个读取位置，不需要缓存
+		if (r instanceof MappedSource) src = r.copy();
+		else {
+			src = (Source) CACHE.getAndSet(this, null);
+			if (src == null) src = r.copy();
+		}
 
 		validateEntry(src, entry);
 		return src;
 	}
 	void closeEntry(Source source) {
+		if (source instanceof MappedSource) return;
 		if (!CACHE.compareAndSet(this, null, source)) {
 			IOUtil.closeSilently(source);
 		}
@@ -550,7 +562,17 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 	}
 
 	final void validateEntry(Source r, ZipEntry entry) throws IOException {
-		if ((entry.flags & ZipEntry.MZ_BACKWARD) == 0) return;
+		if ((entry.flags & ZipEntry.MZ_BACKWARD) == 0) {
+			VarHandle.acquireFence();
+			return;
+		}
+
+		// 每个项目只需要验证一次，之后的读取不加锁
+		synchronized (entry) {
+			if ((entry.flags & ZipEntry.MZ_BACKWARD) != 0) validateEntry0(r, entry);
+		}
+	}
+	private void validateEntry0(Source r, ZipEntry entry) throws IOException {
 		if ((entry.flags & ZipEntry.MZ_Error) != 0 && (flags & FLAG_Verify) != 0) throw new ZipException(entry+"已损坏");
 
 		int extraLen;
@@ -611,7 +633,7 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 		}
 
 		if ((entry.flags & 8) != 0) {
-			if ((this.flags & FLAG_RemoveEXT) != 0) {
+			if ((this.flags & FLAG_RemoveEXT) != 0 && this.r.isWritable()) {
 				if (entry.compressedSize < U32_MAX && entry.size < U32_MAX) {
 					fixEntrySize(entry, (int) entry.compressedSize, (int) entry.size);
 				}
@@ -621,9 +643,11 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 			skipEXT(entry, r.asDataInput());
 		}
 
-		entry.flags ^= ZipEntry.MZ_BACKWARD;
 		entry.extraLenOfLOC = (char) extraLen;
 		entry.offset += extraLen;
+		// 和validateEntry开头的acquireFence配对，保证其它线程看到标志被清除时也能看到新的offset
+		VarHandle.releaseFence();
+		entry.flags ^= ZipEntry.MZ_BACKWARD;
 	}
 	// endregion
 
@@ -642,7 +666,9 @@ public sealed class ZipFile implements ArchiveFile<ZipEntry> permits ZipEditor {
 
 		Source src = openEntry(entry);
 		src.seek(entry.offset);
-		return new SourceInputStream.Shared(src, entry.compressedSize, this, CACHE);
+		return src instanceof MappedSource
+			? new SourceInputStream(src, entry.compressedSize)
+			: new SourceInputStream.Shared(src, entry.compressedSize, this, CACHE);
 	}
 
 	public final byte[] get(String entry) throws IOException {
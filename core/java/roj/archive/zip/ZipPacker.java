@@ -2,7 +2,9 @@ package roj.archive.zip;
 
 import org.intellij.lang.annotations.MagicConstant;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import roj.archive.ArchivePacker;
+import roj.concurrent.Executor;
 import roj.crypt.CRC32;
 import roj.io.MBOutputStream;
 import roj.io.source.CompositeSource;
@@ -32,6 +34,7 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 	private final ByteList CENs = new ByteList(), buf = new ByteList();
 
 	private final ZipEntryWriter impl;
+	private ParallelDeflater parallel;
 	private byte[] password;
 
 	private boolean finished;
@@ -48,6 +51,22 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 
 	public void setCompressionLevel(int compression) {impl.setCompressionLevel(compression);}
 
+	/**
+	 * 在executor中并行压缩通过{@link #write(ZipEntry, DynByteBuf)}写入的未加密DEFLATE项目，按写入顺序输出，结果和顺序压缩相同
+	 * @param executor 为null时关闭并行
+	 * @param memoryLimit 等待写出的项目占用的内存上限(字节)，超过时等待最早的项目写出
+	 */
+	public void setParallel(@Nullable Executor executor, long memoryLimit) throws IOException {
+		if (parallel != null) {
+			parallel.flush();
+			parallel.discard();
+		}
+		parallel = executor == null ? null : new ParallelDeflater(impl, executor, memoryLimit, entry -> {
+			writeCEN(CENs, entry, 0);
+			entryCount++;
+		}, null);
+	}
+
 	public void setPassword(byte[] password) {this.password = password;}
 
 	public void setComment(String comment) { this.comment = comment.getBytes(StandardCharsets.UTF_8); }
@@ -74,6 +93,14 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 		// 内存缓冲区的大小不可能超过2GB，更不用说4GB了
 		if (impl.entry != null) closeEntry();
 
+		if (parallel != null) {
+			if (parallel.accepts(entry)) {
+				parallel.submit(entry, data, true);
+				return;
+			}
+			parallel.flush();
+		}
+
 		entry.crc32 = CRC32.crc32(data);
 		entry.size = data.readableBytes();
 		impl.beginEntry(entry, false, false, password);
@@ -86,6 +113,7 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 	public void copy(ZipFile owner, ZipEntry entry) throws IOException {copy(owner, entry, false);}
 	public void copy(ZipFile owner, ZipEntry entry, boolean headerChanged) throws IOException {
 		if (impl.entry != null) closeEntry();
+		if (parallel != null) parallel.flush();
 
 		var rawOut = impl.rawOut;
 
@@ -121,6 +149,7 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 	public void beginEntry(ZipEntry entry) throws IOException {beginEntry(entry, false, null);}
 	public void beginEntry(ZipEntry entry, boolean useZip64, byte[] password) throws IOException {
 		if (impl.entry != null) closeEntry();
+		if (parallel != null) parallel.flush();
 
 		if (password == null) password = this.password;
 		impl.beginEntry(entry, true, useZip64, password);
@@ -147,6 +176,14 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 		}
 
 		closeEntry();
+		if (parallel != null) {
+			try {
+				parallel.flush();
+			} finally {
+				// 失败时还有项目在队列中，释放它们的缓冲区
+				parallel.discard();
+			}
+		}
 		impl.finish();
 
 		Source rawOut = impl.rawOut;
@@ -172,6 +209,7 @@ public class ZipPacker extends MBOutputStream implements ArchivePacker<ZipFile,
 		try {
 			finish();
 		} finally {
+			if (parallel != null) parallel.discard();
 			impl.rawOut.close();
 		}
 	}
@@ -38,6 +38,8 @@ import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -210,9 +212,22 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 	private final List<TinyArchive> archives = new ArrayList<>();
 	private final List<ProtectionDomain> locations = new ArrayList<>();
 	private final List<JarVerifier> verifiers = new ArrayList<>();
+	// 目录 => 含有这个目录下文件的archives的下标
+	private final HashMap<String, int[]> packageIndex = new HashMap<>();
+	private static final int[] NO_ARCHIVE = new int[0];
 
 	private INameTransformer nameTransformer;
 	private final List<Transformer> transformers = new ArrayList<>();
+	private final List<AtomicLong> transformTime = new ArrayList<>();
+
+	private final AtomicInteger loadCount = new AtomicInteger(), transformCount = new AtomicInteger(), cacheHits = new AtomicInteger();
+
+	/**
+	 * 设置系统属性roj.asmx.launcher.classCache为一个目录来启用转换结果缓存
+	 */
+	private final TransformCache cache;
+	private final List<String> cacheKeys = new ArrayList<>();
+	private volatile byte[] cacheFingerprint;
 
 	private final TrieTreeSet transformExcept = new TrieTreeSet();
 	private final TrieTreeSet loadExcept = new TrieTreeSet();
@@ -220,11 +235,16 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 		transformExcept.addAll(Arrays.asList("roj.asm.", "roj.asmx.launcher.", "roj.reflect."));
 		loadExcept.addAll(Arrays.asList("java.", "javax.", "roj.asmx.launcher.boot."));
 		new Context(null);
+
+		String cacheDir = System.getProperty("roj.asmx.launcher.classCache");
+		cache = cacheDir == null ? null : new TransformCache(new File(cacheDir));
 	}
 
 	public void registerTransformer(Transformer tr) {
 		if (transformers.contains(tr)) throw new IllegalArgumentException("Transformer already exist: "+tr);
+		transformTime.add(new AtomicLong());
 		transformers.add(tr);
+		cacheFingerprint = null;
 		if (tr instanceof INameTransformer) {
 			if (nameTransformer == null) {
 				nameTransformer = (INameTransformer) tr;
@@ -303,7 +323,7 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 			name/*File Name*/ = newName.replace('.', '/').concat(".class");
 
 			found: {
-				for (int i = 0; i < locations.size(); i++) {
+				for (int i : archivesOf(name)) {
 					var za = archives.get(i);
 					if (za.get(name, buf)) {
 						pd = locations.get(i);
@@ -323,9 +343,13 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 				pd = Loader.class.getProtectionDomain();
 			}
 
-			if (!transformExcept.strStartsWithThis(newName))
-				transform(name, newName.replace('.', '/'), buf);
-			return MAIN.defineClassA(newName, buf.list, 0, buf.wIndex(), pd);
+			if (!transformExcept.strStartsWithThis(newName)) {
+				if (cache != null) transformCached(name, newName.replace('.', '/'), buf);
+				else transform(name, newName.replace('.', '/'), buf);
+			}
+			var clazz = MAIN.defineClassA(newName, buf.list, 0, buf.wIndex(), pd);
+			loadCount.getAndIncrement();
+			return clazz;
 		} catch (ClassNotFoundException e) {
 			throw e;
 		} catch (Throwable e) {
@@ -336,7 +360,12 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 		}
 	}
 
-	public final void transform(String name, String transformedName, ByteList list) {
+	public final void transform(String name, String transformedName, ByteList list) {transform0(name, transformedName, list);}
+
+	/**
+	 * @return 转换器是否修改了这个类，因为循环依赖而没有转换时返回null
+	 */
+	private Boolean transform0(String name, String transformedName, ByteList list) {
 		Context ctx = new Context(name, list);
 		boolean changed = false;
 
@@ -344,11 +373,13 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 		var reentrant = IS_TRANSFORMING.get();
 		if (reentrant[0] > 0) {
 			LOGGER.warn("类转换器可能循环依赖{}", transformedName);
-			return;
+			return null;
 		}
 		reentrant[0]++;
+		transformCount.getAndIncrement();
 
 		for (int i = 0; i < ts.size(); i++) {
+			long time = System.nanoTime();
 			try {
 				changed |= ts.get(i).transform(transformedName, ctx);
 			} catch (Throwable e) {
@@ -362,6 +393,7 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 				}
 				Helpers.athrow(e);
 			}
+			if (i < transformTime.size()) transformTime.get(i).getAndAdd(System.nanoTime() - time);
 		}
 		reentrant[0]--;
 		if (changed) {
@@ -372,6 +404,76 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 				list.put(b);
 			}
 		}
+		return changed;
+	}
+
+	//region 转换缓存
+	/**
+	 * 添加转换缓存的键，在转换器的结果依赖于类文件以外的配置时使用.
+	 * 转换器的类文件和classpath上所有文件的大小和修改时间已经是键的一部分
+	 */
+	public void addCacheKey(String key) {
+		cacheKeys.add(key);
+		cacheFingerprint = null;
+	}
+
+	private void transformCached(String name, String transformedName, ByteList buf) {
+		if (transformers.isEmpty()) return;
+
+		var key = cache.key(transformedName, buf, getCacheFingerprint());
+		var data = cache.get(key);
+		if (data != null) {
+			cacheHits.getAndIncrement();
+			if (data.length > 0) {
+				buf.clear();
+				buf.put(data);
+			}
+			return;
+		}
+
+		var changed = transform0(name, transformedName, buf);
+		if (changed != null) cache.put(key, changed ? buf : null);
+	}
+
+	private byte[] getCacheFingerprint() {
+		var fp = cacheFingerprint;
+		if (fp != null) return fp;
+
+		var md = TransformCache.sha1();
+		var tmp = new ByteList();
+		for (var archive : archives) {
+			tmp.putUTF(archive.file.getAbsolutePath()).putLong(archive.file.length()).putLong(archive.file.lastModified());
+		}
+		for (var key : cacheKeys) tmp.putUTF(key);
+		for (var tr : transformers) {
+			// 转换器的类文件代表它的版本
+			String className = tr.getClass().getName();
+			int lambda = className.indexOf("$$Lambda");
+			if (lambda >= 0) className = className.substring(0, lambda);
+			tmp.putUTF(className);
+
+			var loader = tr.getClass().getClassLoader();
+			String file = className.replace('.', '/').concat(".class");
+			try (var in = loader == null ? ClassLoader.getSystemResourceAsStream(file) : loader.getResourceAsStream(file)) {
+				if (in != null) tmp.readStreamFully(in, false);
+			} catch (IOException ignored) {}
+		}
+		md.update(tmp.list, 0, tmp.wIndex());
+		tmp.release();
+
+		return cacheFingerprint = md.digest();
+	}
+	//endregion
+
+	public String getStatistics() {
+		var sb = new StringBuilder()
+			.append("加载了").append(loadCount.get()).append("个类, 转换了").append(transformCount.get())
+			.append("个, 缓存命中").append(cacheHits.get()).append("个");
+		for (int i = 0; i < transformers.size() && i < transformTime.size(); i++) {
+			sb.append("\n  ").append(transformers.get(i).getClass().getName()).append(": ")
+			  .append(transformTime.get(i).get() / 1000000).append("ms");
+		}
+		return sb.toString();
 	}
 
 	private int manifestIndex;
@@ -394,7 +496,7 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 	}
 
 	public boolean hasResource(String name) {
-		for (int i = 0; i < archives.size(); i++) {
+		for (int i : archivesOf(name)) {
 			var zf = archives.get(i);
 			try {
 				if (zf.get(name, null)) return true;
@@ -408,7 +510,7 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 
 	@Nullable
 	public InputStream getResource(String name) {
-		for (int i = 0; i < archives.size(); i++) {
+		for (int i : archivesOf(name)) {
 			var zf = archives.get(i);
 			InputStream in = null;
 			try {
@@ -429,10 +531,32 @@ public class Loader implements ExceptionalFunction<String, Class<?>, ClassNotFou
 	public List<Transformer> getTransformers() {return transformers;}
 	public void addTransformerExclusion(String toExclude) {transformExcept.add(toExclude);}
 
+	private int[] archivesOf(String name) {
+		int slash = name.lastIndexOf('/');
+		var index = packageIndex.get(slash < 0 ? "" : name.substring(0, slash));
+		return index == null ? NO_ARCHIVE : index;
+	}
+
 	private void addClasspath(URL url) throws IOException {
 		File file = new File(URICoder.decodeURI(url.getPath().substring(1)));
 		var zf = new TinyArchive(file);
 		zf.reload();
+
+		int archiveId = archives.size();
+		for (var entry : zf.entries()) {
+			String name = entry.getName();
+			int slash = name.lastIndexOf('/');
+			String dir = slash < 0 ? "" : name.substring(0, slash);
+
+			var index = packageIndex.get(dir);
+			if (index == null) packageIndex.put(dir, new int[] {archiveId});
+			else if (index[index.length-1] != archiveId) {
+				index = Arrays.copyOf(index, index.length+1);
+				index[index.length-1] = archiveId;
+				packageIndex.put(dir, index);
+			}
+		}
+
 		archives.add(zf);
 		ProtectionDomain mypd = Loader.class.getProtectionDomain();
 		locations.add(url.toString().equals(mypd.getCodeSource().getLocation().toString()) ? mypd : null);
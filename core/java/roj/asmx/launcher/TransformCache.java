@@ -0,0 +1,86 @@
+package roj.asmx.launcher;
+
+import org.jetbrains.annotations.Nullable;
+import roj.util.ByteList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 转换后的类的磁盘缓存.
+ * 键是(类名, 原始字节, 转换器指纹)的SHA-1，每个类一个文件，空文件表示转换器没有修改这个类
+ * @author Roj234
+ * @since 2026/10/18 20:10
+ */
+final class TransformCache {
+	private static final byte[] UNCHANGED = new byte[0];
+	private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(TransformCache::sha1);
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final File dir;
+
+	TransformCache(File dir) {this.dir = dir;}
+
+	String key(String name, ByteList data, byte[] fingerprint) {
+		var md = SHA1.get();
+		md.update(fingerprint);
+		for (int i = 0; i < name.length(); i++) md.update((byte) name.charAt(i));
+		md.update((byte) 0);
+		md.update(data.list, data.arrayOffset() + data.rIndex, data.readableBytes());
+
+		byte[] digest = md.digest();
+		char[] hex = new char[digest.length * 2 + 1];
+		for (int i = 0, j = 0; i < digest.length; i++) {
+			if (i == 1) hex[j++] = '/';
+			hex[j++] = Character.forDigit((digest[i] >>> 4) & 15, 16);
+			hex[j++] = Character.forDigit(digest[i] & 15, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return 转换后的字节，转换器没有修改时为空数组，不在缓存中时为null
+	 */
+	@Nullable
+	byte[] get(String key) {
+		var file = new File(dir, key);
+		if (!file.isFile()) return null;
+		try {
+			var data = Files.readAllBytes(file.toPath());
+			return data.length == 0 ? UNCHANGED : data;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param data 转换后的字节，null表示没有修改
+	 */
+	void put(String key, @Nullable ByteList data) {
+		var file = new File(dir, key);
+		try {
+			var parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) return;
+
+			// 先写临时文件再重命名，其它进程或者中途退出不会留下不完整的文件
+			var tmp = File.createTempFile("tc", null, parent);
+			try {
+				if (data != null) Files.write(tmp.toPath(), data.toByteArray());
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException ignored) {}
+	}
+}
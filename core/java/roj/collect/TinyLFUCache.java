@@ -0,0 +1,688 @@
+package roj.collect;
+
+import org.jetbrains.annotations.Nullable;
+import roj.concurrent.Executor;
+import roj.optimizer.FastVarHandle;
+import roj.reflect.Telescope;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * 线程安全的W-TinyLFU缓存.
+ * <p>
+ * 数据保存在ConcurrentHashMap中，读取不加锁，只把访问记录到按线程分段的有损缓冲区；写入也只在节点上同步，然后把任务放进写缓冲区.
+ * 淘汰策略的状态只在持有{@link #evictionLock}时修改：缓冲区攒够一批或者有写入时，拿到锁的线程(或者{@link #setExecutor 指定的线程池})批量重放它们并淘汰.
+ * <p>
+ * 新项目先进入占容量1%的窗口(LRU)，离开窗口后和主区域的淘汰候选比较{@link FrequencySketch 访问频率}，频率更高的才能留下.
+ * 主区域分为试用和保护两段(SLRU)，试用段中被再次访问的项目晋升到保护段.
+ * <p>
+ * 只有因为容量、过期和{@link #evict(int)}被移除的项目会通知{@link #setEvictListener 监听器}，{@link #remove}和{@link #put}覆盖的不会.
+ *
+ * @author Roj234
+ * @since 2026/10/18 18:00
+ */
+@FastVarHandle
+public class TinyLFUCache<K, V> implements Cache<K, V> {
+	private static final byte NONE = -1, WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+	static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		volatile long accessTime, writeTime;
+		// 已经从map中移除，在节点上同步修改
+		volatile boolean dead;
+
+		// 以下字段只在持有evictionLock时访问
+		byte queue = NONE;
+		Node<K, V> prev, next;
+		Node<K, V> writePrev, writeNext;
+
+		Node(K key, V value, long now) {
+			this.key = key;
+			this.value = value;
+			this.accessTime = this.writeTime = now;
+		}
+
+		@Override
+		public String toString() {return key+"="+value;}
+	}
+
+	private static final int IDLE = 0, REQUIRED = 1, PROCESSING = 2;
+	private static final VarHandle
+		DRAIN_STATUS = Telescope.lookup().findVarHandle(TinyLFUCache.class, "drainStatus", int.class),
+		PENDING_WRITES = Telescope.lookup().findVarHandle(TinyLFUCache.class, "pendingWrites", int.class),
+		SCHEDULED = Telescope.lookup().findVarHandle(TinyLFUCache.class, "scheduled", boolean.class);
+
+	private final ConcurrentHashMap<K, Node<K, V>> data;
+	private final int maximumSize, windowMax, protectedMax;
+
+	private final ReadBuffer[] readBuffers;
+	private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+	private final int writeBufferMax;
+	private volatile int drainStatus, pendingWrites;
+	private volatile boolean scheduled;
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	// 按queue索引的访问顺序链表，头部最久未访问
+	private final Node<?, ?>[] heads = new Node<?, ?>[3], tails = new Node<?, ?>[3];
+	private final int[] sizes = new int[3];
+	// 写入顺序链表，只在设置了expireAfterWrite时使用
+	private Node<K, V> writeHead, writeTail;
+
+	private long expireAfterWrite, expireAfterAccess;
+	private Executor executor;
+	private BiConsumer<K, V> listener;
+
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+	private volatile long evictions;
+
+	public TinyLFUCache(int maximumSize) {
+		if (maximumSize <= 0) throw new IllegalArgumentException("maximumSize <= 0: "+maximumSize);
+
+		this.maximumSize = maximumSize;
+		this.windowMax = Math.max(1, maximumSize / 100);
+		this.protectedMax = (maximumSize - windowMax) * 4 / 5;
+		this.data = new ConcurrentHashMap<>(Math.min(maximumSize, 1 << 16));
+		this.sketch = new FrequencySketch(maximumSize);
+
+		int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+		this.readBuffers = new ReadBuffer[stripes];
+		for (int i = 0; i < stripes; i++) readBuffers[i] = new ReadBuffer();
+		this.writeBufferMax = Math.max(128, stripes * 32);
+	}
+
+	//region 设置 (应该在开始使用前调用)
+	/**
+	 * 写入后经过duration就过期
+	 */
+	public TinyLFUCache<K, V> expireAfterWrite(long duration, TimeUnit unit) {this.expireAfterWrite = unit.toNanos(duration);return this;}
+	/**
+	 * 最后一次访问后经过duration就过期
+	 */
+	public TinyLFUCache<K, V> expireAfterAccess(long duration, TimeUnit unit) {this.expireAfterAccess = unit.toNanos(duration);return this;}
+	/**
+	 * 在这个线程池中异步地维护(重放缓冲区、淘汰和通知监听器)，为null时由刚好拿到锁的调用者进行
+	 */
+	public TinyLFUCache<K, V> setExecutor(@Nullable Executor executor) {this.executor = executor;return this;}
+	@Override
+	public void setEvictListener(BiConsumer<K, V> listener) {this.listener = listener;}
+	//endregion
+	//region 读写
+	@Nullable
+	public V get(K key) {
+		var node = data.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+
+		long now = expires() ? System.nanoTime() : 0;
+		if (isExpired(node, now)) {
+			misses.increment();
+			scheduleDrain();
+			return null;
+		}
+
+		V value = node.value;
+		afterRead(node, now);
+		hits.increment();
+		return value;
+	}
+	public boolean containsKey(K key) {
+		var node = data.get(key);
+		return node != null && !isExpired(node, expires() ? System.nanoTime() : 0);
+	}
+
+	/**
+	 * @return 之前的值
+	 */
+	@Nullable
+	public V put(K key, V value) {
+		if (value == null) throw new NullPointerException("value");
+
+		long now = expires() ? System.nanoTime() : 0;
+		while (true) {
+			var node = data.get(key);
+			if (node == null) {
+				var created = new Node<>(key, value, now);
+				node = data.putIfAbsent(key, created);
+				if (node == null) {
+					afterWrite(() -> onAdd(created));
+					return null;
+				}
+			}
+
+			V prev;
+			synchronized (node) {
+				if (node.dead) continue;
+
+				prev = isExpired(node, now) ? null : node.value;
+				node.value = value;
+				node.writeTime = node.accessTime = now;
+			}
+
+			var updated = node;
+			afterWrite(() -> onUpdate(updated));
+			return prev;
+		}
+	}
+
+	/**
+	 * 如果不存在就用loader创建，同一个键的loader同时只会有一个在执行
+	 * @param loader 返回null时不缓存
+	 */
+	@Nullable
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		long now = expires() ? System.nanoTime() : 0;
+
+		var node = data.get(key);
+		if (node != null) {
+			if (!isExpired(node, now)) {
+				V value = node.value;
+				afterRead(node, now);
+				hits.increment();
+				return value;
+			}
+
+			removeNode(node);
+		}
+		misses.increment();
+
+		Object[] created = new Object[1];
+		node = data.computeIfAbsent(key, k -> {
+			V value = loader.apply(k);
+			if (value == null) return null;
+
+			var n = new Node<>(k, value, now);
+			created[0] = n;
+			return n;
+		});
+		if (node == null) return null;
+
+		if (created[0] != null) {
+			var added = node;
+			afterWrite(() -> onAdd(added));
+		} else {
+			afterRead(node, now);
+		}
+		return node.value;
+	}
+
+	/**
+	 * @return 删除的值，不通知监听器
+	 */
+	@Nullable
+	public V remove(K key) {
+		while (true) {
+			var node = data.get(key);
+			if (node == null) return null;
+
+			V value;
+			synchronized (node) {
+				if (node.dead) continue;
+
+				value = node.value;
+				data.remove(key, node);
+				node.dead = true;
+			}
+
+			afterWrite(() -> onRemove(node));
+			return isExpired(node, expires() ? System.nanoTime() : 0) ? null : value;
+		}
+	}
+	private void removeNode(Node<K, V> node) {
+		synchronized (node) {
+			if (node.dead) return;
+			data.remove(node.key, node);
+			node.dead = true;
+		}
+		afterWrite(() -> onRemove(node));
+	}
+
+	public void clear() {
+		evictionLock.lock();
+		try {
+			drainBuffers();
+
+			for (var node : data.values()) {
+				synchronized (node) {
+					if (node.dead) continue;
+					data.remove(node.key, node);
+					node.dead = true;
+				}
+				onRemove(node);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return 大约的项目数量，可能包括过期但还未清理的项目
+	 */
+	public int size() {return data.size();}
+
+	/**
+	 * 立即进行一次维护
+	 */
+	public void cleanUp() {
+		ArrayList<Node<K, V>> evicted;
+		evictionLock.lock();
+		try {
+			evicted = maintenance();
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	@Override
+	public int evict(int amount) {
+		ArrayList<Node<K, V>> evicted;
+		evictionLock.lock();
+		try {
+			drainBuffers();
+
+			evicted = new ArrayList<>();
+			while (amount > evicted.size()) {
+				var victim = firstOf(PROBATION);
+				if (victim == null) victim = firstOf(WINDOW);
+				if (victim == null) victim = firstOf(PROTECTED);
+				if (victim == null) break;
+
+				evictNode(victim, evicted);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+		return evicted.size();
+	}
+	//endregion
+	//region 统计
+	public long hitCount() {return hits.sum();}
+	public long missCount() {return misses.sum();}
+	public long evictionCount() {return evictions;}
+	public double hitRate() {
+		long hit = hits.sum(), total = hit + misses.sum();
+		return total == 0 ? 1 : (double) hit / total;
+	}
+
+	@Override
+	public String toString() {return "TinyLFUCache{size="+data.size()+"/"+maximumSize+", hit="+hits.sum()+", miss="+misses.sum()+", evict="+evictions+'}';}
+	//endregion
+	//region 缓冲区
+	private boolean expires() {return (expireAfterWrite | expireAfterAccess) != 0;}
+	private boolean isExpired(Node<K, V> node, long now) {
+		return (expireAfterWrite != 0 && now - node.writeTime >= expireAfterWrite) ||
+			(expireAfterAccess != 0 && now - node.accessTime >= expireAfterAccess);
+	}
+
+	private void afterRead(Node<K, V> node, long now) {
+		if (expireAfterAccess != 0) node.accessTime = now;
+
+		int probe = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		var buffer = readBuffers[(probe >>> 16) & (readBuffers.length - 1)];
+		// 缓冲区满了就丢弃这次访问记录，频率统计本来就是近似的
+		if (!buffer.offer(node) || drainStatus == REQUIRED) scheduleDrain();
+	}
+
+	private void afterWrite(Runnable task) {
+		writeBuffer.offer(task);
+		int pending = (int) PENDING_WRITES.getAndAdd(this, 1) + 1;
+		if (pending < writeBufferMax) {
+			scheduleDrain();
+			return;
+		}
+
+		// 维护跟不上写入速度时，由写入者阻塞地进行，避免写缓冲区无限增长
+		ArrayList<Node<K, V>> evicted;
+		evictionLock.lock();
+		try {
+			evicted = maintenance();
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	private void scheduleDrain() {
+		// 正在维护的线程看到REQUIRED就不会回到IDLE
+		DRAIN_STATUS.setRelease(this, REQUIRED);
+
+		var executor = this.executor;
+		if (executor == null) performDrain();
+		else if (!scheduled && SCHEDULED.compareAndSet(this, false, true)) executor.execute(this::performDrain);
+	}
+	private void performDrain() {
+		scheduled = false;
+		while (drainStatus == REQUIRED && evictionLock.tryLock()) {
+			ArrayList<Node<K, V>> evicted;
+			try {
+				evicted = maintenance();
+			} finally {
+				evictionLock.unlock();
+			}
+			notifyEvicted(evicted);
+
+			// 维护期间其它线程又提交了任务，但没有拿到锁
+			if (drainStatus != REQUIRED) break;
+		}
+	}
+
+	private ArrayList<Node<K, V>> maintenance() {
+		DRAIN_STATUS.setRelease(this, PROCESSING);
+
+		var evicted = new ArrayList<Node<K, V>>();
+		try {
+			drainBuffers();
+			if (expires()) expireEntries(System.nanoTime(), evicted);
+			evictEntries(evicted);
+		} finally {
+			DRAIN_STATUS.compareAndSet(this, PROCESSING, IDLE);
+		}
+		return evicted;
+	}
+
+	private void notifyEvicted(ArrayList<Node<K, V>> evicted) {
+		var listener = this.listener;
+		if (listener == null) return;
+
+		for (int i = 0; i < evicted.size(); i++) {
+			var node = evicted.get(i);
+			listener.accept(node.key, node.value);
+		}
+	}
+
+	private void drainBuffers() {
+		for (var buffer : readBuffers) buffer.drainTo(this);
+		drainWriteBuffer();
+	}
+	private void drainWriteBuffer() {
+		int count = 0;
+		Runnable task;
+		while ((task = writeBuffer.poll()) != null) {
+			task.run();
+			count++;
+		}
+		if (count > 0) PENDING_WRITES.getAndAdd(this, -count);
+	}
+	//endregion
+	//region 淘汰策略 (持有evictionLock)
+	private void onAdd(Node<K, V> node) {
+		// 已经被删除了，对应的删除任务会是空操作
+		if (node.dead) return;
+
+		sketch.increment(spread(node.key.hashCode()));
+		linkLast(node, WINDOW);
+		if (expireAfterWrite != 0) linkWriteLast(node);
+	}
+	private void onUpdate(Node<K, V> node) {
+		if (node.queue == NONE) return;
+
+		onAccess(node);
+		if (expireAfterWrite != 0) {
+			unlinkWrite(node);
+			linkWriteLast(node);
+		}
+	}
+	private void onRemove(Node<K, V> node) {
+		if (node.queue == NONE) return;
+
+		unlink(node);
+		if (expireAfterWrite != 0) unlinkWrite(node);
+	}
+
+	final void onAccess(Node<K, V> node) {
+		byte queue = node.queue;
+		if (queue == NONE) return;
+
+		sketch.increment(spread(node.key.hashCode()));
+		unlink(node);
+		if (queue == PROBATION) {
+			linkLast(node, PROTECTED);
+
+			// 保护段满了，最久未访问的降级回试用段
+			if (sizes[PROTECTED] > protectedMax) {
+				var demoted = firstOf(PROTECTED);
+				unlink(demoted);
+				linkLast(demoted, PROBATION);
+			}
+		} else {
+			linkLast(node, queue);
+		}
+	}
+
+	private void expireEntries(long now, ArrayList<Node<K, V>> evicted) {
+		if (expireAfterAccess != 0) {
+			for (byte queue = WINDOW; queue <= PROTECTED; queue++) {
+				Node<K, V> node;
+				while ((node = firstOf(queue)) != null && now - node.accessTime >= expireAfterAccess) {
+					evictNode(node, evicted);
+				}
+			}
+		}
+
+		if (expireAfterWrite != 0) {
+			Node<K, V> node;
+			while ((node = writeHead) != null && now - node.writeTime >= expireAfterWrite) {
+				evictNode(node, evicted);
+			}
+		}
+	}
+
+	private void evictEntries(ArrayList<Node<K, V>> evicted) {
+		// 离开窗口的项目排在试用段末尾，成为淘汰候选
+		while (sizes[WINDOW] > windowMax) {
+			var node = firstOf(WINDOW);
+			unlink(node);
+			linkLast(node, PROBATION);
+		}
+
+		while (sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED] > maximumSize) {
+			var victim = firstOf(PROBATION);
+			if (victim == null) {
+				victim = firstOf(PROTECTED);
+				if (victim == null) victim = firstOf(WINDOW);
+			} else {
+				var candidate = lastOf(PROBATION);
+				if (candidate != victim && !admit(candidate, victim)) victim = candidate;
+			}
+
+			evictNode(victim, evicted);
+		}
+	}
+
+	private boolean admit(Node<K, V> candidate, Node<K, V> victim) {
+		int candidateFreq = sketch.frequency(spread(candidate.key.hashCode()));
+		int victimFreq = sketch.frequency(spread(victim.key.hashCode()));
+		if (candidateFreq > victimFreq) return true;
+		// 防止攻击者用低频项目把热门的淘汰候选一直顶在试用段开头
+		if (candidateFreq <= 5) return false;
+		return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+	}
+
+	private void evictNode(Node<K, V> node, ArrayList<Node<K, V>> evicted) {
+		boolean removed;
+		synchronized (node) {
+			removed = !node.dead && data.remove(node.key, node);
+			node.dead = true;
+		}
+
+		onRemove(node);
+		if (removed) {
+			evicted.add(node);
+			evictions++;
+		}
+	}
+	//endregion
+	//region 链表
+	@SuppressWarnings("unchecked")
+	private Node<K, V> firstOf(byte queue) {return (Node<K, V>) heads[queue];}
+	@SuppressWarnings("unchecked")
+	private Node<K, V> lastOf(byte queue) {return (Node<K, V>) tails[queue];}
+
+	@SuppressWarnings("unchecked")
+	private void linkLast(Node<K, V> node, byte queue) {
+		var tail = (Node<K, V>) tails[queue];
+		node.queue = queue;
+		node.prev = tail;
+		node.next = null;
+		if (tail == null) heads[queue] = node;
+		else tail.next = node;
+		tails[queue] = node;
+		sizes[queue]++;
+	}
+	private void unlink(Node<K, V> node) {
+		byte queue = node.queue;
+		var prev = node.prev;
+		var next = node.next;
+		if (prev == null) heads[queue] = next;
+		else prev.next = next;
+		if (next == null) tails[queue] = prev;
+		else next.prev = prev;
+
+		node.prev = node.next = null;
+		node.queue = NONE;
+		sizes[queue]--;
+	}
+
+	private void linkWriteLast(Node<K, V> node) {
+		var tail = writeTail;
+		node.writePrev = tail;
+		node.writeNext = null;
+		if (tail == null) writeHead = node;
+		else tail.writeNext = node;
+		writeTail = node;
+	}
+	private void unlinkWrite(Node<K, V> node) {
+		var prev = node.writePrev;
+		var next = node.writeNext;
+		// 不在写入顺序链表中
+		if (prev == null && writeHead != node) return;
+
+		if (prev == null) writeHead = next;
+		else prev.writeNext = next;
+		if (next == null) writeTail = prev;
+		else next.writePrev = prev;
+		node.writePrev = node.writeNext = null;
+	}
+	//endregion
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		return h * 0x45d9f3b;
+	}
+
+	/**
+	 * 多生产者单消费者的有损环形缓冲区，满了就丢弃
+	 */
+	@FastVarHandle
+	static final class ReadBuffer {
+		private static final int SIZE = 16, MASK = SIZE - 1;
+		private static final VarHandle
+			SLOT$L$ARRAY = MethodHandles.arrayElementVarHandle(Node[].class),
+			WRITE_COUNTER = Telescope.lookup().findVarHandle(ReadBuffer.class, "writeCounter", long.class);
+
+		private final Node<?, ?>[] buffer = new Node<?, ?>[SIZE];
+		private volatile long readCounter, writeCounter;
+
+		/**
+		 * @return 缓冲区满了时返回false
+		 */
+		boolean offer(Node<?, ?> node) {
+			long tail = writeCounter;
+			if (tail - readCounter >= SIZE) return false;
+
+			// 竞争失败也丢弃，不重试
+			if (WRITE_COUNTER.compareAndSet(this, tail, tail + 1)) {
+				SLOT$L$ARRAY.setRelease(buffer, (int) tail & MASK, node);
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		<K, V> void drainTo(TinyLFUCache<K, V> cache) {
+			long head = readCounter, tail = writeCounter;
+			for (; head != tail; head++) {
+				int i = (int) head & MASK;
+				var node = (Node<K, V>) SLOT$L$ARRAY.getAcquire(buffer, i);
+				// 写入者增加了计数但还没有放进去
+				if (node == null) break;
+
+				SLOT$L$ARRAY.setRelease(buffer, i, null);
+				cache.onAccess(node);
+			}
+			readCounter = head;
+		}
+	}
+
+	/**
+	 * 4位计数器的Count-Min Sketch，记录的次数达到容量的10倍时全部减半，使频率随时间衰减
+	 */
+	static final class FrequencySketch {
+		private static final long RESET_MASK = 0x7777777777777777L, ONE_MASK = 0x1111111111111111L;
+		private static final long[] SEED = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+		private final long[] table;
+		private final int mask, sampleSize;
+		private int size;
+
+		FrequencySketch(int maximumSize) {
+			int length = Math.max(Integer.highestOneBit(Math.min(maximumSize, 1 << 30) - 1) << 1, 8);
+			table = new long[length];
+			mask = length - 1;
+			sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+		}
+
+		int frequency(int hash) {
+			int freq = 15;
+			for (int i = 0; i < 4; i++) {
+				long h = hashOf(hash, i);
+				int shift = ((int) h & 15) << 2;
+				freq = Math.min(freq, (int) (table[(int) (h >>> 32) & mask] >>> shift) & 15);
+			}
+			return freq;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				long h = hashOf(hash, i);
+				int index = (int) (h >>> 32) & mask, shift = ((int) h & 15) << 2;
+
+				long value = table[index];
+				if (((value >>> shift) & 15) != 15) {
+					table[index] = value + (1L << shift);
+					added = true;
+				}
+			}
+
+			if (added && ++size == sampleSize) reset();
+		}
+
+		private void reset() {
+			int odd = 0;
+			for (int i = 0; i < table.length; i++) {
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			size = (size - (odd >>> 2)) >>> 1;
+		}
+
+		private static long hashOf(int hash, int i) {
+			long h = (hash + SEED[i]) * SEED[i];
+			return h + (h >>> 32);
+		}
+	}
+}
@@ -9,15 +9,22 @@ import roj.optimizer.FastVarHandle;
 import roj.reflect.Telescope;
 
 import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TransferQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 线程池.
+ * 默认所有任务进入同一个有界队列；{@linkplain #setWorkStealing(boolean) 工作窃取模式}下，池内线程提交的任务会放进该线程自己的双端队列(后进先出)，
+ * 空闲的线程再从其它线程的队列中窃取，池外提交的任务仍然进入共享队列.
+ */
 @FastVarHandle
 public class TaskPool implements ExecutorService {
 	@FunctionalInterface
@@ -40,13 +47,22 @@ public class TaskPool implements ExecutorService {
 	private volatile int running;
 	private volatile long prevStop;
 
-	private static final VarHandle RUNNING = Telescope.lookup().findVarHandle(TaskPool.class, "running", int.class);
+	private static final VarHandle
+		RUNNING = Telescope.lookup().findVarHandle(TaskPool.class, "running", int.class),
+		SEARCHING = Telescope.lookup().findVarHandle(TaskPool.class, "searching", int.class);
 
 	final ReentrantLock queueLock = new ReentrantLock();
 	final Condition noFull = queueLock.newCondition();
 	final RingBuffer<Runnable> tasks;
 	final TransferQueue<Object> fastPath = new LinkedTransferQueue<>();
 
+	// 唤醒空闲线程来窃取任务
+	private static final Object WAKE = new Object();
+	private boolean stealing;
+	private volatile WorkQueue[] queues = new WorkQueue[0];
+	// 最后检查一遍其它队列、然后准备阻塞的线程数
+	private volatile int searching;
+
 	public TaskPool(int coreThreads, int maxThreads, int newThreshold, int rejectThreshold, int stopTimeout, MyThreadFactory factory) {
 		this.core = coreThreads;
 		this.max = maxThreads;
@@ -81,6 +97,7 @@ public class TaskPool implements ExecutorService {
 	private static final class Common {
 		static final TaskPool TASK = new TaskPool(1, 4, 0, 10000, "RojLib 任务 #");
 		static final TaskPool CPU = new TaskPool(0, Integer.getInteger("roj.cpuPoolSize", Runtime.getRuntime().availableProcessors()), 0, 10000, "RojLib 计算 #");
+		static {if (Boolean.getBoolean("roj.cpuPool.workStealing")) CPU.setWorkStealing(true);}
 	}
 
 	public static TaskPool newFixed(String prefix) { return newFixed(Runtime.getRuntime().availableProcessors(), prefix); }
@@ -91,6 +108,25 @@ public class TaskPool implements ExecutorService {
 		return pool;
 	}
 
+	public static TaskPool newWorkStealing(String prefix) { return newWorkStealing(Runtime.getRuntime().availableProcessors(), prefix); }
+	public static TaskPool newWorkStealing(int threadCount, String prefix) {
+		TaskPool pool = newFixed(threadCount, prefix);
+		pool.setWorkStealing(true);
+		return pool;
+	}
+
+	/**
+	 * 切换工作窃取模式，只能在第一个线程启动前调用.
+	 * 每个线程的本地队列最多容纳rejectThreshold个任务，超过时转交共享队列，由{@link RejectPolicy}处理
+	 */
+	public void setWorkStealing(boolean stealing) {
+		synchronized (threadLock) {
+			if (running != 0 || !threads.isEmpty()) throw new IllegalStateException("线程池已经启动");
+			this.stealing = stealing;
+		}
+	}
+	public boolean isWorkStealing() {return stealing;}
+
 	public void setExceptionHandler(Thread.UncaughtExceptionHandler handler) {exceptionHandler = handler;}
 
 	public boolean isOnExecutor() {return Thread.currentThread() instanceof PoolThread impl && impl.pool() == this;}
@@ -99,15 +135,24 @@ public class TaskPool implements ExecutorService {
 	public void execute(@Async.Schedule Runnable task) {
 		if (isCancelled(task)) return;
 
+		if (stealing && Thread.currentThread() instanceof PoolThread t && t.pool() == this && t.queue != null) {
+			int len = running;
+			if (len < 0) throw new RejectedExecutionException(this+" was shutdown.");
+
+			var queue = t.queue;
+			if (queue.push(task, tasks.maxCapacity())) {
+				if (shouldGrow(len, queue.size())) newWorker();
+				// 线程可能在最后一次检查之后、开始等待之前，tryTransfer会错过它，所以留下一个WAKE
+				if (searching > 0 && !fastPath.tryTransfer(WAKE)) fastPath.offer(WAKE);
+				return;
+			}
+		}
+
 		// 等待立即结束的短任务
 		if (fastPath.tryTransfer(task)) return;
 
 		int len = running;
-		if (len < core ||
-			len < max &&
-				(newThr == 0 ||
-					(newThr < 0 ? tasks.size()/len : tasks.size()) > Math.abs(newThr))
-		) newWorker();
+		if (shouldGrow(len, tasks.size())) newWorker();
 
 		queueLock.lock();
 		try {
@@ -121,12 +166,26 @@ public class TaskPool implements ExecutorService {
 		}
 	}
 
+	private boolean shouldGrow(int len, int pending) {
+		return len < core ||
+			len < max &&
+				(newThr == 0 ||
+					(newThr < 0 ? pending/len : pending) > Math.abs(newThr));
+	}
+
 	private static boolean isCancelled(Runnable task) {return task instanceof Cancellable cancellable && cancellable.isCancelled();}
 
-	final Runnable pollTask() {
+	final Runnable pollTask(WorkQueue queue) {
 		boolean timeout = false;
 
 		for(;;) {
+			if (queue != null) {
+				Runnable task;
+				while ((task = queue.pop()) != null) {
+					if (!isCancelled(task)) return task;
+				}
+			}
+
 			if (!tasks.isEmpty()) {
 				queueLock.lock();
 				try {
@@ -140,6 +199,11 @@ public class TaskPool implements ExecutorService {
 				}
 			}
 
+			if (queue != null) {
+				var task = steal(queue);
+				if (task != null) return task;
+			}
+
 			Object task = fastPath.poll();
 			if (task == null) {
 				int r = running;
@@ -155,13 +219,19 @@ public class TaskPool implements ExecutorService {
 					}
 				}
 
+				if (queue != null) SEARCHING.getAndAdd(this, 1);
 				try {
+					// 先登记再检查，push的线程要么能看到登记，要么任务能被这里看到
+					if (queue != null && (task = steal(queue)) != null) return (Runnable) task;
 					task = fastPath.poll(idleTime, TimeUnit.MILLISECONDS);
 				} catch (InterruptedException e) {
 					continue;
+				} finally {
+					if (queue != null) SEARCHING.getAndAdd(this, -1);
 				}
 			}
 
+			if (task == WAKE) continue;
 			if (task != null && task != IntMap.UNDEFINED)
 				return (Runnable) task;
 
@@ -169,6 +239,49 @@ public class TaskPool implements ExecutorService {
 		}
 	}
 
+	private Runnable steal(WorkQueue self) {
+		var qs = queues;
+		int len = qs.length;
+		if (len <= 1) return null;
+
+		int i = ThreadLocalRandom.current().nextInt(len);
+		for (int j = 0; j < len; j++) {
+			var q = qs[(i+j) % len];
+			if (q == self) continue;
+
+			Runnable task;
+			while ((task = q.steal()) != null) {
+				if (!isCancelled(task)) return task;
+			}
+		}
+		return null;
+	}
+
+	private WorkQueue register() {
+		var queue = new WorkQueue();
+		synchronized (threadLock) {
+			var qs = queues;
+			var copy = Arrays.copyOf(qs, qs.length+1);
+			copy[qs.length] = queue;
+			queues = copy;
+		}
+		return queue;
+	}
+	private void unregister(WorkQueue queue) {
+		synchronized (threadLock) {
+			var qs = queues;
+			for (int i = 0; i < qs.length; i++) {
+				if (qs[i] == queue) {
+					var copy = new WorkQueue[qs.length-1];
+					System.arraycopy(qs, 0, copy, 0, i);
+					System.arraycopy(qs, i+1, copy, i, copy.length-i);
+					queues = copy;
+					break;
+				}
+			}
+		}
+	}
+
 	private void newWorker() {
 		int r = running;
 		if (r < 0) throw new RejectedExecutionException(this+" was shutdown.");
@@ -214,10 +327,20 @@ public class TaskPool implements ExecutorService {
 
 		while (true) {
 			var o = fastPath.poll();
+			if (o == WAKE) continue;
 			if (!(o instanceof Runnable task)) break;
 			tasks1.add(task);
 		}
 
+		for (var queue : queues) {
+			// steal在竞争时也会返回null
+			while (!queue.isEmpty()) {
+				var task = queue.steal();
+				if (task != null) tasks1.add(task);
+				else Thread.onSpinWait();
+			}
+		}
+
 		while (fastPath.tryTransfer(IntMap.UNDEFINED));
 		synchronized (threadLock) {
 			for (Thread t : threads) t.interrupt();
@@ -240,7 +363,9 @@ public class TaskPool implements ExecutorService {
 
 	public int taskPending() {
 		int r = running;
-		return (r < 0 ? 0 : r-fastPath.getWaitingConsumerCount()) + tasks.size();
+		int pending = (r < 0 ? 0 : r-fastPath.getWaitingConsumerCount()) + tasks.size();
+		for (var queue : queues) pending += queue.size();
+		return pending;
 	}
 	public int threadCount() {return running;}
 	public int idleCount() {return fastPath.getWaitingConsumerCount();}
@@ -252,12 +377,16 @@ public class TaskPool implements ExecutorService {
 	public class PoolThread extends FastLocalThread {
 		public PoolThread(String name) {setName(name);setDaemon(true);}
 
+		WorkQueue queue;
+
 		public TaskPool pool() {return TaskPool.this;}
 
 		@Override
 		public void run() {
+			if (stealing) queue = register();
+
 			while (true) {
-				Runnable task = pollTask();
+				Runnable task = pollTask(queue);
 				if (task == null) break;
 
 				try {
@@ -267,6 +396,8 @@ public class TaskPool implements ExecutorService {
 				}
 			}
 
+			// 退出时本地队列一定是空的：只有自己能向其中添加任务
+			if (queue != null) unregister(queue);
 			synchronized (threadLock) {threads.remove(this);}
 		}
 
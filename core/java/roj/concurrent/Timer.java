@@ -6,14 +6,18 @@ import roj.reflect.Telescope;
 import roj.text.CharList;
 import roj.text.logging.Logger;
 
+import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.locks.LockSupport;
 
 /**
  * 处理定时任务
+ * 新任务按线程分散提交到多个链表头，定时器线程每次tick时合并它们
  * @author Roj234
- * @version 2.4
+ * @version 2.5
  * @since 2024/3/6 0:38
  */
 @FastVarHandle
@@ -42,22 +46,27 @@ public class Timer implements Runnable {
 			owner = wheel;
 			prev = next = this;
 		}
-		TaskHandle(TimingWheel wheel, Runnable task, long delay) {
+		TaskHandle(TimingWheel wheel, Runnable task, long deadline) {
 			owner = wheel;
 			this.task = task;
-			timeLeft = delay;
+			this.deadline = deadline;
+			timeLeft = PENDING;
+			queued = 1;
 		}
 
 		@Override
 		public String toString() {
 			var sb = new CharList().append("TimerTask{");
-			if (timeLeft <= 0) return sb.append(timeLeft == -1 ? "cancelled" : "expired").append(",task=").append(task).append('}').toStringAndFree();
-			return sb.append("queued,timeLeft=").append(timeLeft).append(",owner=").append(wheel()).append(",task=").append(task).append('}').toStringAndFree();
+			long t = timeLeft;
+			if (t == PENDING) return sb.append("pending,deadline=").append(deadline).append(",task=").append(task).append('}').toStringAndFree();
+			if (t <= 0) return sb.append(t == -1 ? "cancelled" : "expired").append(",task=").append(task).append('}').toStringAndFree();
+			return sb.append("queued,timeLeft=").append(t).append(",owner=").append(wheel()).append(",task=").append(task).append('}').toStringAndFree();
 		}
 
 		static final VarHandle
-				NEXT = Telescope.lookup().findVarHandle(TaskHandle.class, "next", TaskHandle.class),
-				TIME = Telescope.lookup().findVarHandle(TaskHandle.class, "timeLeft", long.class);
+				NEXT = Telescope.lookup().findVarHandle(TaskHandle.class, "nextSubmit", TaskHandle.class),
+				TIME = Telescope.lookup().findVarHandle(TaskHandle.class, "timeLeft", long.class),
+				QUEUED = Telescope.lookup().findVarHandle(TaskHandle.class, "queued", int.class);
 
 		// TimingWheel | TimerTask
 		private Object owner;
@@ -67,77 +76,85 @@ public class Timer implements Runnable {
 		}
 
 		TaskHandle prev, next;
+		// 提交链表，和时间轮中的链表分开，这样重新计划时不需要等待它被移出时间轮
+		volatile TaskHandle nextSubmit;
 
 		Runnable task;
+		/**
+		 * 大于0: 在时间轮中，剩余的时间
+		 * 0: 已过期
+		 * -1: 已取消
+		 * -2: 过期后取消
+		 * PENDING: 已提交，等待定时器线程放入时间轮，到期时间在deadline中
+		 */
 		volatile long timeLeft;
-		static final long WRITE_LOCK = 1L, READ_LOCK = 2L;
+		static final long WRITE_LOCK = 1L, READ_LOCK = 2L, PENDING = -3L;
+
+		long deadline;
+		// 是否在提交链表中，保证同一个任务不会被重复加入
+		volatile int queued;
 
 		/*@Override*/ public Timer timer() { return wheel().owner(); }
 		@Override public Runnable task() { return task; }
 		@Override public void reschedule(long delay) {
-			for(;;) {
-				long t = timeLeft;
-				if (t < 0) break;
-				if (TIME.weakCompareAndSet(this, t, -1L)) { removeFromTimer(); break; }
-				Thread.yield();
-			}
+			deadline = System.currentTimeMillis()+delay;
 
-			timeLeft = System.currentTimeMillis()+delay;
+			long t;
+			do {
+				t = timeLeft;
+			} while (!TIME.compareAndSet(this, t, PENDING));
 
-			// 追加到单向链表
-			TaskHandle head = (TaskHandle) HEAD.getAndSet(timer(), this);
-			NEXT.setVolatile(this, head);
+			if (t > 0) tryRemove();
+			if (QUEUED.compareAndSet(this, 0, 1)) timer().submit(this, this);
 		}
-		@Override public boolean isExpired() { return timeLeft == 0 || timeLeft == -2; }
-		@Override public boolean isCancelled() { return timeLeft < 0; }
+		@Override public boolean isExpired() { long t = timeLeft; return t == 0 || t == -2; }
+		@Override public boolean isCancelled() { long t = timeLeft; return t == -1 || t == -2; }
 		@Override public boolean cancel(boolean mayInterruptIfRunning) {
-			boolean taskCancelled;
-
 			for(;;) {
 				long t = timeLeft;
-				if (t < 0) return true;
+				if (t == -1 || t == -2) return true;
 
 				if (TIME.compareAndSet(this, t, t == 0/*isExpired*/ ? -2L : -1L)) {
-					taskCancelled = t == 0 && task instanceof Cancellable cancellable && cancellable.cancel(mayInterruptIfRunning);
-					break;
+					return t == 0 && task instanceof Cancellable cancellable && cancellable.cancel(mayInterruptIfRunning);
 				}
-
-				Thread.yield();
 			}
-
-			return taskCancelled;
 		}
-		private boolean removeFromTimer() {
-			if (!(owner instanceof TaskHandle root)) return false;
-
-			boolean removed = false;
-
-			// 尝试上锁，如果失败，意味着这个链表正在被遍历，那么由于 timeLeft<0 它马上就会被删除
-			while (!TIME.compareAndSet(root, 0L, READ_LOCK)) {
-				Thread.yield();
-			}
+		/**
+		 * 尝试把任务移出时间轮，不会等待.
+		 * 如果链表正被定时器线程持有，那么任务已经不是正数状态，遍历时会被丢弃，或者在重新提交后由定时器线程移出
+		 */
+		private void tryRemove() {
+			if (!(owner instanceof TaskHandle root) || !TIME.compareAndSet(root, 0L, READ_LOCK)) return;
 
 			// critical zone
-			if (prev != null) {
+			if (owner == root && prev != null) {
 				prev.next = next;
 				next.prev = prev;
 				removed();
-				removed = true;
 			}
 			// critical zone
 
-			for (;;) {
-				long t = root.timeLeft;
-				if (TIME.compareAndSet(root, t, t & WRITE_LOCK)) break;
-				Thread.yield();
-			}
+			// 定时器线程可能在此期间设置了写锁标记
+			TIME.getAndBitwiseAnd(root, ~READ_LOCK);
+		}
+		// 这个方法只会在任务计划线程调用
+		void unlink() {
+			if (!(owner instanceof TaskHandle root)) return;
 
-			return removed;
+			root.lock();
+			if (owner == root && prev != null) {
+				prev.next = next;
+				next.prev = prev;
+				removed();
+			}
+			root.timeLeft = 0;
 		}
 		void removed() {
 			prev = null;
 			next = null;
-			owner = wheel();
+			var wheel = wheel();
+			owner = wheel;
+			SIZE.getAndAdd(wheel.owner(), -1);
 		}
 
 		// 这个方法只会在任务计划线程调用
@@ -160,6 +177,7 @@ public class Timer implements Runnable {
 				root.next = this;
 
 				this.owner = root;
+				SIZE.getAndAdd(root.wheel().owner(), 1);
 			}
 			// critical zone
 
@@ -178,7 +196,8 @@ public class Timer implements Runnable {
 				var t = timeLeft;
 				if (t == WRITE_LOCK) break;
 				if (TIME.compareAndSet(this, t, t|WRITE_LOCK) && t == 0) break;
-				Thread.yield();
+				// 只需等待其它线程的tryRemove完成
+				Thread.onSpinWait();
 			}
 		}
 	}
@@ -381,16 +400,43 @@ public class Timer implements Runnable {
 		}
 	}
 
-	private static final VarHandle HEAD = Telescope.lookup().findVarHandle(Timer.class, "head", TaskHandle.class);
+	private static final VarHandle HEADS$L$ARRAY = MethodHandles.arrayElementVarHandle(TaskHandle[].class);
+	private static final VarHandle SIZE = Telescope.lookup().findVarHandle(Timer.class, "size", int.class);
+	// 每个链表头占一个缓存行(16个压缩指针)，避免伪共享
+	private static final int STRIPE_SHL = 4;
 
 	private final TimingWheel wheel = new TimingWheel(null);
 	private volatile boolean stopped;
 	private final Executor executor;
 
 	private static final TaskHandle SENTIAL_HEAD_END = new TaskHandle(null);
-	private volatile TaskHandle head = SENTIAL_HEAD_END;
+	private final TaskHandle[] heads;
+	private final int stripeMask;
 
-	public Timer(Executor th) {executor = th;}
+	private volatile int size;
+	private volatile int tickLag, maxTickLag;
+
+	public Timer(Executor th) {
+		executor = th;
+
+		int stripes = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 64) * 2 - 1);
+		stripeMask = stripes - 1;
+		heads = new TaskHandle[stripes << STRIPE_SHL];
+		for (int i = 0; i < heads.length; i += 1 << STRIPE_SHL) heads[i] = SENTIAL_HEAD_END;
+	}
+
+	/**
+	 * 时间轮中的任务数量，包括已取消但还未被遍历到的任务，不包括还未被定时器线程取出的新任务
+	 */
+	public int getPendingCount() {return size;}
+	/**
+	 * 最近一次tick距上一次的毫秒数，正常情况下是0或1
+	 */
+	public int getTickLag() {return tickLag;}
+	/**
+	 * 启动以来最大的tick间隔(ms)
+	 */
+	public int getMaxTickLag() {return maxTickLag;}
 
 	public void run() {
 		int delta = 1;
@@ -416,6 +462,8 @@ public class Timer implements Runnable {
 			time = System.currentTimeMillis();
 
 			delta = (int) (time - prevTime);
+			tickLag = delta;
+			if (delta > maxTickLag) maxTickLag = delta;
 		}
 	}
 
@@ -430,50 +478,106 @@ public class Timer implements Runnable {
 		}
 	}
 	private void pollNewTasks(long time) {
-		TaskHandle h = (TaskHandle) HEAD.getAndSet(this, SENTIAL_HEAD_END);
+		for (int i = 0; i < heads.length; i += 1 << STRIPE_SHL) {
+			if (HEADS$L$ARRAY.getVolatile(heads, i) == SENTIAL_HEAD_END) continue;
 
-		while (h != SENTIAL_HEAD_END) {
-			TaskHandle next;
-			do {
-				next = (TaskHandle) TaskHandle.NEXT.getVolatile(h);
-			} while (next == null || !TaskHandle.NEXT.compareAndSet(h, next, null));
-
-			block: {
-				long timeLeft = h.timeLeft;
-				// 取消，下CAS同, 因为只能取消，所以不用放在循环里
-				if (timeLeft <= 0) break block;
-
-				long addTime = timeLeft - time;
-				if (addTime <= 0) {
-					addTime = TimingWheel.safeExec(executor, h);
-					if (addTime == 0) {
-						h.timeLeft = 0;
-						break block;
-					}
-				}
+			var h = (TaskHandle) HEADS$L$ARRAY.getAndSet(heads, i, SENTIAL_HEAD_END);
+			while (h != SENTIAL_HEAD_END) {
+				TaskHandle next;
+				do {
+					next = (TaskHandle) TaskHandle.NEXT.getVolatile(h);
+				} while (next == null || !TaskHandle.NEXT.compareAndSet(h, next, null));
 
-				if (!TaskHandle.TIME.compareAndSet(h, timeLeft, TimingWheel.tweakTime(wheel, addTime)))
-					break block;
+				// 此后的reschedule会重新提交它
+				h.queued = 0;
+				schedule(h, time);
 
-				TimingWheel.add(wheel, h);
+				h = next;
+			}
+		}
+	}
+	private void schedule(TaskHandle h, long time) {
+		// 如果任务在链表中就被重新计划了，那么先移出
+		if (h.prev != null) h.unlink();
+
+		for (;;) {
+			long timeLeft = h.timeLeft;
+			// 取消或已经执行
+			if (timeLeft == 0 || timeLeft == -1 || timeLeft == -2) return;
+
+			long addTime = h.deadline - time;
+			if (addTime <= 0) {
+				if (!TaskHandle.TIME.compareAndSet(h, timeLeft, 0L)) continue;
+
+				addTime = TimingWheel.safeExec(executor, h);
+				if (addTime > 0 && TaskHandle.TIME.compareAndSet(h, 0L, TimingWheel.tweakTime(wheel, addTime)))
+					TimingWheel.add(wheel, h);
+				return;
 			}
 
-			h = next;
+			if (TaskHandle.TIME.compareAndSet(h, timeLeft, TimingWheel.tweakTime(wheel, addTime))) {
+				TimingWheel.add(wheel, h);
+				return;
+			}
 		}
 	}
 
+	/**
+	 * 将first到last的单向链表加入当前线程对应的提交链表
+	 */
+	final void submit(TaskHandle first, TaskHandle last) {
+		int i = ((int) Thread.currentThread().getId() & stripeMask) << STRIPE_SHL;
+		var head = (TaskHandle) HEADS$L$ARRAY.getAndSet(heads, i, first);
+		TaskHandle.NEXT.setVolatile(last, head);
+	}
+
 	public TimerTask delay(Runnable task, long delayMs) {
 		if (stopped) throw new IllegalStateException("Timer already cancelled.");
 		if (delayMs < 0) throw new IllegalArgumentException("Negative delay.");
-		var handle = new TaskHandle(wheel, task, System.currentTimeMillis()+delayMs);
+		var handle = newHandle(task, System.currentTimeMillis()+delayMs);
+		submit(handle, handle);
+		return handle;
+	}
+	private TaskHandle newHandle(Runnable task, long deadline) {
+		var handle = new TaskHandle(wheel, task, deadline);
 		if (task instanceof PeriodicTask periodicTaskWrapper) {
 			periodicTaskWrapper.setHandle(handle);
 		}
+		return handle;
+	}
+
+	/**
+	 * 以相同的延时一次性添加多个任务，整批只需要一次原子操作
+	 */
+	public TimerTask[] scheduleBatch(List<? extends Runnable> tasks, long delayMs) {
+		long[] delays = new long[tasks.size()];
+		Arrays.fill(delays, delayMs);
+		return scheduleBatch(tasks.toArray(new Runnable[delays.length]), delays);
+	}
+	/**
+	 * 一次性添加多个任务，整批只需要一次原子操作
+	 * @param delaysMs 每个任务各自的延时
+	 */
+	public TimerTask[] scheduleBatch(Runnable[] tasks, long[] delaysMs) {
+		if (stopped) throw new IllegalStateException("Timer already cancelled.");
+		if (tasks.length != delaysMs.length) throw new IllegalArgumentException("tasks.length != delaysMs.length");
 
-		TaskHandle head = (TaskHandle) HEAD.getAndSet(this, handle);
-		TaskHandle.NEXT.setVolatile(handle, head);
+		var handles = new TimerTask[tasks.length];
+		if (tasks.length == 0) return handles;
 
-		return handle;
+		long time = System.currentTimeMillis();
+		TaskHandle first = null, prev = null;
+		for (int i = 0; i < tasks.length; i++) {
+			if (delaysMs[i] < 0) throw new IllegalArgumentException("Negative delay.");
+
+			var handle = newHandle(tasks[i], time+delaysMs[i]);
+			if (prev == null) first = handle;
+			else prev.nextSubmit = handle;
+			handles[i] = prev = handle;
+		}
+
+		submit(first, prev);
+		return handles;
 	}
 	// 周期任务是通过包装器实现的
 	public final TimerTask loop(Runnable task, long periodMs) { return loop(task, periodMs, -1, 0); }
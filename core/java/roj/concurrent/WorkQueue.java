@@ -0,0 +1,102 @@
+package roj.concurrent;
+
+import roj.optimizer.FastVarHandle;
+import roj.reflect.Telescope;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 工作窃取模式下每个工作线程私有的双端队列.
+ * 只有所属线程可以{@link #push}和{@link #pop}(栈顶，后进先出)，其它线程通过{@link #steal}从栈底(先进先出)取走任务.
+ * 元素的归属由对槽位的CAS决定，所以同一个任务只会被取出一次.
+ *
+ * @author Roj234
+ * @since 2026/10/18 12:10
+ */
+@FastVarHandle
+final class WorkQueue {
+	private static final VarHandle SLOT$L$ARRAY = MethodHandles.arrayElementVarHandle(Object[].class);
+	private static final VarHandle BASE = Telescope.lookup().findVarHandle(WorkQueue.class, "base", int.class);
+
+	// 窃取者取走的下一个位置
+	private volatile int base;
+	// 所属线程push的下一个位置，只由所属线程修改
+	private volatile int top;
+	private volatile Object[] array = new Object[64];
+
+	public int size() {
+		int n = top - base;
+		return Math.max(n, 0);
+	}
+	public boolean isEmpty() {return top - base <= 0;}
+
+	/**
+	 * 仅所属线程调用
+	 * @return 队列中的任务数达到maxSize时返回false
+	 */
+	public boolean push(Runnable task, int maxSize) {
+		int t = top, n = t - base;
+		if (n >= maxSize) return false;
+
+		var a = array;
+		if (n >= a.length - 1) a = grow(a, t);
+
+		SLOT$L$ARRAY.setRelease(a, t & (a.length - 1), task);
+		top = t + 1;
+		return true;
+	}
+
+	/**
+	 * 仅所属线程调用，取出最后push的任务
+	 */
+	public Runnable pop() {
+		var a = array;
+		int t = top - 1;
+		if (t - base < 0) return null;
+
+		int i = t & (a.length - 1);
+		var task = SLOT$L$ARRAY.getAcquire(a, i);
+		// 只剩最后一个时可能和窃取者竞争，失败说明它已经被取走
+		if (task != null && SLOT$L$ARRAY.compareAndSet(a, i, task, null)) {
+			top = t;
+			return (Runnable) task;
+		}
+		return null;
+	}
+
+	/**
+	 * 任意线程调用，取出最早push的任务
+	 * @return 队列为空，或者正在和其它线程竞争时返回null
+	 */
+	public Runnable steal() {
+		while (true) {
+			int b = base;
+			if (top - b <= 0) return null;
+
+			var a = array;
+			int i = b & (a.length - 1);
+			var task = SLOT$L$ARRAY.getAcquire(a, i);
+			if (b != (int) BASE.getVolatile(this)) continue;
+			if (task == null) return null;
+
+			if (SLOT$L$ARRAY.compareAndSet(a, i, task, null)) {
+				// 不能直接赋值：取到更后面槽位的窃取者可能已经推进了base
+				BASE.compareAndSet(this, b, b + 1);
+				return (Runnable) task;
+			}
+		}
+	}
+
+	private Object[] grow(Object[] a, int t) {
+		var na = new Object[a.length << 1];
+		int mask = a.length - 1, newMask = na.length - 1;
+		// 把任务从旧数组中CAS出来，防止和正在读旧数组的窃取者重复取出
+		for (int i = base; i != t; i++) {
+			var task = SLOT$L$ARRAY.getAcquire(a, i & mask);
+			if (task != null && SLOT$L$ARRAY.compareAndSet(a, i & mask, task, null)) na[i & newMask] = task;
+		}
+		array = na;
+		return na;
+	}
+}
@@ -0,0 +1,265 @@
+package roj.config;
+
+import roj.text.ParseException;
+import roj.util.DynByteBuf;
+
+import static roj.reflect.Unsafe.U;
+
+/**
+ * 增量的UTF-8 JSON解析器，语法和{@link Utf8JsonParser}相同.
+ * 用显式的状态和栈代替递归，容器的开始和结束立即发送，完整的标量交给Utf8JsonParser解码.
+ *
+ * @author Roj234
+ * @since 2026/10/18 15:20
+ */
+public class JsonPushParser implements PushParser {
+	private static final byte
+		VALUE = 0, LIST_FIRST = 1, LIST_VALUE = 2, LIST_NEXT = 3,
+		MAP_FIRST = 4, MAP_KEY = 5, MAP_COLON = 6, MAP_VALUE = 7, MAP_NEXT = 8,
+		DONE = 9;
+	private static final byte LIST = 0, MAP = 1;
+	private static final byte LINE_COMMENT = 1, BLOCK_COMMENT = 2, BLOCK_COMMENT_STAR = 3;
+
+	private final Utf8JsonParser decoder = new Utf8JsonParser();
+	private ValueEmitter emitter;
+
+	private byte state;
+	private byte[] stack = new byte[16];
+	private int depth, maxDepth = 1000;
+
+	private byte comment;
+	// 未完成token已经扫描过的长度，以及是否停在转义符之后
+	private int scanned;
+	private boolean escaped;
+
+	// feed期间有效
+	private Object ref;
+	private long base;
+
+	public JsonPushParser() {}
+	public JsonPushParser(ValueEmitter emitter) {this.emitter = emitter;}
+
+	public JsonPushParser setMaxDepth(int maxDepth) {this.maxDepth = maxDepth;return this;}
+
+	@Override
+	public JsonPushParser reset(ValueEmitter emitter) {
+		this.emitter = emitter;
+		state = VALUE;
+		depth = 0;
+		comment = 0;
+		scanned = 0;
+		escaped = false;
+		return this;
+	}
+
+	@Override public boolean isFinished() {return state == DONE && comment != BLOCK_COMMENT && comment != BLOCK_COMMENT_STAR;}
+
+	@Override
+	public void feed(DynByteBuf buf) throws ParseException {
+		ref = buf.array();
+		base = buf._unsafeAddr();
+		int pos = buf.rIndex, end = buf.wIndex();
+
+		try {
+			loop:
+			while (pos < end) {
+				if (comment != 0) {
+					pos = comment(pos, end);
+					continue;
+				}
+
+				int b = get(pos) & 0xFF;
+				switch (b) {
+					case ' ', '\t', '\n', '\r' -> {pos++;continue;}
+					case '/' -> {
+						if (pos+1 == end) break loop;
+
+						int b1 = get(pos+1);
+						if (b1 == '/') comment = LINE_COMMENT;
+						else if (b1 == '*') comment = BLOCK_COMMENT;
+						else throw unexpected(buf, pos, b, "值");
+						pos += 2;
+						continue;
+					}
+				}
+
+				switch (b) {
+					case '{', '[' -> {
+						expectValue(buf, pos, b);
+						if (depth == maxDepth) throw err(buf, pos, "嵌套层数超过"+maxDepth);
+						if (depth == stack.length) {
+							var newStack = new byte[depth << 1];
+							System.arraycopy(stack, 0, newStack, 0, depth);
+							stack = newStack;
+						}
+
+						if (b == '{') {
+							stack[depth++] = MAP;
+							state = MAP_FIRST;
+							emitter.emitMap();
+						} else {
+							stack[depth++] = LIST;
+							state = LIST_FIRST;
+							emitter.emitList();
+						}
+					}
+					case '}' -> {
+						if (state != MAP_FIRST && state != MAP_KEY && state != MAP_NEXT) throw unexpected(buf, pos, b, state == MAP_COLON ? ":" : "值");
+						depth--;
+						emitter.pop();
+						valueEnd();
+					}
+					case ']' -> {
+						if (state != LIST_FIRST && state != LIST_VALUE && state != LIST_NEXT) throw unexpected(buf, pos, b, "值");
+						depth--;
+						emitter.pop();
+						valueEnd();
+					}
+					case ',' -> {
+						if (state == LIST_NEXT) state = LIST_VALUE;
+						else if (state == MAP_NEXT) state = MAP_KEY;
+						else throw unexpected(buf, pos, b, "值");
+					}
+					case ':' -> {
+						if (state != MAP_COLON) throw unexpected(buf, pos, b, "值");
+						state = MAP_VALUE;
+					}
+					default -> {
+						int tokenEnd = scan(pos, end, b);
+						if (tokenEnd < 0) break loop;
+
+						token(buf, pos, tokenEnd, b);
+						pos = tokenEnd;
+						continue;
+					}
+				}
+				pos++;
+			}
+		} finally {
+			buf.rIndex = pos;
+			ref = null;
+		}
+	}
+
+	@Override
+	public void finish(DynByteBuf rest) throws ParseException {
+		feed(rest);
+
+		int pos = rest.rIndex;
+		if (pos < rest.wIndex()) {
+			int b = rest.getUnsignedByte(pos);
+			if (b == '"' || b == '\'') throw err(rest, pos, "未结束的字符串");
+			if (b == '/') throw unexpected(rest, pos, b, "值");
+
+			// 在文件尾结束的数字或省略引号的值
+			scanned = 0;
+			ref = rest.array();
+			base = rest._unsafeAddr();
+			try {
+				token(rest, pos, rest.wIndex(), b);
+			} finally {
+				ref = null;
+			}
+			rest.rIndex = rest.wIndex();
+		}
+
+		if (comment == BLOCK_COMMENT || comment == BLOCK_COMMENT_STAR) throw err(rest, rest.rIndex, "未结束的注释");
+		if (state != DONE) throw err(rest, rest.rIndex, "未预料的文件尾，期待"+(depth == 0 ? "值" : stack[depth-1] == MAP ? "}" : "]"));
+	}
+
+	private byte get(int i) {return U.getByte(ref, base+i);}
+
+	private static ParseException err(DynByteBuf buf, int pos, String msg) {return new ParseException(buf, msg, pos - buf.rIndex);}
+	private static ParseException unexpected(DynByteBuf buf, int pos, int b, String expect) {return err(buf, pos, "未预料的'"+(char) b+"'，期待"+expect);}
+
+	private void expectValue(DynByteBuf buf, int pos, int b) throws ParseException {
+		switch (state) {
+			case VALUE, LIST_FIRST, LIST_VALUE, MAP_VALUE -> {}
+			case DONE -> throw err(buf, pos, "多余的数据");
+			case MAP_FIRST, MAP_KEY -> throw unexpected(buf, pos, b, "字符串");
+			case MAP_COLON -> throw unexpected(buf, pos, b, ":");
+			default -> throw unexpected(buf, pos, b, "逗号");
+		}
+	}
+	private void valueEnd() {
+		state = depth == 0 ? DONE : stack[depth-1] == MAP ? MAP_NEXT : LIST_NEXT;
+	}
+
+	/**
+	 * 跳过注释的内容
+	 */
+	private int comment(int pos, int end) {
+		while (pos < end) {
+			int b = get(pos++);
+			switch (comment) {
+				case LINE_COMMENT -> {
+					if (b == '\n') {
+						comment = 0;
+						return pos;
+					}
+				}
+				case BLOCK_COMMENT -> {
+					if (b == '*') comment = BLOCK_COMMENT_STAR;
+				}
+				default -> {
+					if (b == '/') {
+						comment = 0;
+						return pos;
+					}
+					if (b != '*') comment = BLOCK_COMMENT;
+				}
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * 寻找从pos开始的字符串、数字或省略引号的值的结尾，从上次扫描的位置继续
+	 * @return token的结束位置(不含)，不完整时返回-1
+	 */
+	private int scan(int pos, int end, int b) {
+		int i = pos + Math.max(scanned, 1);
+		if (b == '"' || b == '\'') {
+			while (i < end) {
+				int c = get(i++);
+				if (escaped) {
+					escaped = false;
+					// 单引号字符串中，反斜杠只转义单引号
+					if (b == '"' || c == '\'') continue;
+				}
+
+				if (c == '\\') escaped = true;
+				else if (c == b) {
+					scanned = 0;
+					return i;
+				}
+			}
+		} else {
+			for (; i < end; i++) {
+				switch (get(i)) {
+					case ' ', '\t', '\n', '\r', '{', '}', '[', ']', ',', ':', '=', '"', '\'', '/' -> {
+						scanned = 0;
+						return i;
+					}
+				}
+			}
+		}
+
+		scanned = i - pos;
+		return -1;
+	}
+
+	private void token(DynByteBuf buf, int from, int to, int b) throws ParseException {
+		switch (state) {
+			case MAP_FIRST, MAP_KEY -> {
+				decoder.token(buf, from, to, emitter, true);
+				state = MAP_COLON;
+			}
+			default -> {
+				expectValue(buf, from, b);
+				decoder.token(buf, from, to, emitter, false);
+				valueEnd();
+			}
+		}
+	}
+}
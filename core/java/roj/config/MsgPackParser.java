@@ -160,7 +160,7 @@ public class MsgPackParser implements Parser {
 		out.pop();
 	}
 	private static void mapKey(XDataInput in, ValueEmitter out) throws IOException {mapKey(in, out, in.readUnsignedByte());}
-	private static void mapKey(XDataInput in, ValueEmitter out, int tagByte) throws IOException {
+	static void mapKey(XDataInput in, ValueEmitter out, int tagByte) throws IOException {
 		switch (LOOKUP[tagByte]&0xFF) {
 			case UINT8   -> out.emitKey(in.readUnsignedByte());
 			case UINT16  -> out.emitKey(in.readChar());
@@ -0,0 +1,270 @@
+package roj.config;
+
+import roj.io.CorruptedInputException;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+
+import static roj.config.MsgPackParser.*;
+
+/**
+ * 增量的MsgPack解析器.
+ * 容器(包括流式映射和流式数组)的开始和结束立即发送，完整的标量交给{@link MsgPackParser}解码.
+ * 不支持依赖对象池的扩展类型(-9 ~ -11).
+ *
+ * @author Roj234
+ * @since 2026/10/18 15:40
+ */
+public class MsgPackPushParser implements PushParser {
+	private static final byte LIST = 0, MAP_KEY = 1, MAP_VALUE = 2, STREAM_LIST = 3, STREAM_MAP_KEY = 4, STREAM_MAP_VALUE = 5;
+
+	private final MsgPackParser decoder;
+	private ValueEmitter emitter;
+
+	private byte[] kind = new byte[16];
+	// 计数容器中剩余的元素(映射是键值对)数量
+	private int[] remaining = new int[16];
+	private int depth, maxDepth = 1000;
+	private boolean finished;
+
+	// 未完成的变长整数数组已经扫描过的字节数和元素数
+	private int scanned, scannedCount;
+
+	public MsgPackPushParser() {this(new MsgPackParser());}
+	/**
+	 * @param decoder 用于解码标量，可以是重写了{@link MsgPackParser#ext}的子类
+	 */
+	public MsgPackPushParser(MsgPackParser decoder) {this.decoder = decoder;}
+
+	public MsgPackPushParser setMaxDepth(int maxDepth) {this.maxDepth = maxDepth;return this;}
+
+	@Override
+	public MsgPackPushParser reset(ValueEmitter emitter) {
+		this.emitter = emitter;
+		depth = 0;
+		finished = false;
+		scanned = scannedCount = 0;
+		return this;
+	}
+
+	@Override public boolean isFinished() {return finished;}
+
+	@Override
+	public void feed(DynByteBuf buf) throws IOException {
+		int pos = buf.rIndex, end = buf.wIndex();
+
+		try {
+			while (true) {
+				// 结束已经完整的计数容器
+				while (depth > 0 && (kind[depth-1] == LIST || kind[depth-1] == MAP_KEY) && remaining[depth-1] == 0) {
+					depth--;
+					emitter.pop();
+					valueEnd();
+				}
+
+				if (pos >= end) break;
+				if (finished) throw new CorruptedInputException("多余的数据");
+
+				int tag = buf.getUnsignedByte(pos);
+				byte top = depth == 0 ? -1 : kind[depth-1];
+
+				if (tag == STREAM) {
+					if (top != STREAM_LIST && top != STREAM_MAP_KEY) throw new CorruptedInputException("意外的流终止记号");
+					pos++;
+					depth--;
+					emitter.pop();
+					valueEnd();
+					continue;
+				}
+
+				int len;
+				if (top == MAP_KEY || top == STREAM_MAP_KEY) {
+					// 非法的键由mapKey抛出异常
+					len = isKeyTag(tag) ? length(buf, pos, end, tag) : 1;
+					if (len < 0) break;
+
+					buf.rIndex = pos+1;
+					MsgPackParser.mapKey(buf, emitter, tag);
+					pos = buf.rIndex;
+					valueEnd();
+					continue;
+				}
+
+				if ((tag & 0xE0) == 0x80 || tag >= ARRAY16 && tag <= MAP32) {
+					int header, size;
+					if (tag < 0xA0) {
+						header = 1;
+						size = tag & 0x0F;
+					} else {
+						header = (tag & 1) == 0 ? 3 : 5;
+						if (end - pos < header) break;
+						size = header == 3 ? buf.getUnsignedShort(pos+1) : buf.getInt(pos+1);
+						if (size < 0) throw new IOException("数据范围超出Java限制！ 0x"+Integer.toHexString(size));
+					}
+
+					boolean isMap = tag < 0x90 || tag >= MAP16;
+					push(isMap ? MAP_KEY : LIST, size);
+					if (isMap) emitter.emitMap(size);
+					else emitter.emitList(size);
+					pos += header;
+					continue;
+				}
+
+				if (tag >= FIXEXT_PREFIX && tag <= 0xD8 || tag >= EXT8 && tag <= EXT32) {
+					int header, dataLen;
+					if (tag >= FIXEXT_PREFIX) {
+						header = 2;
+						dataLen = 1 << (tag - FIXEXT_PREFIX);
+					} else {
+						header = tag == EXT8 ? 3 : tag == EXT16 ? 4 : 6;
+						if (end - pos < header) break;
+						dataLen = tag == EXT8 ? buf.getUnsignedByte(pos+1) : tag == EXT16 ? buf.getUnsignedShort(pos+1) : buf.getInt(pos+1);
+						if (dataLen < 0) throw new IOException("数据范围超出Java限制！ 0x"+Integer.toHexString(dataLen));
+					}
+					if (end - pos < header) break;
+
+					int type = buf.getByte(pos+header-1);
+					if (type == -5) {
+						if (dataLen != 1 && dataLen != 2) throw new CorruptedInputException("数据错误："+dataLen);
+
+						push(dataLen == 1 ? STREAM_MAP_KEY : STREAM_LIST, 0);
+						if (dataLen == 1) emitter.emitMap();
+						else emitter.emitList();
+						pos += header;
+						continue;
+					}
+
+					len = extLength(buf, pos, end, header, type, dataLen);
+				} else {
+					len = length(buf, pos, end, tag);
+				}
+				if (len < 0) break;
+
+				buf.rIndex = pos;
+				decoder.parse(buf, emitter);
+				pos = buf.rIndex;
+				valueEnd();
+			}
+		} finally {
+			buf.rIndex = pos;
+		}
+	}
+
+	@Override
+	public void finish(DynByteBuf rest) throws IOException {
+		feed(rest);
+		if (!finished) throw new CorruptedInputException("未预料的数据结尾"+(depth == 0 ? "" : "，还有"+depth+"层容器没有结束"));
+	}
+
+	private void push(byte type, int size) throws IOException {
+		if (depth == maxDepth) throw new CorruptedInputException("嵌套层数超过"+maxDepth);
+		if (depth == kind.length) {
+			var newKind = new byte[depth << 1];
+			System.arraycopy(kind, 0, newKind, 0, depth);
+			kind = newKind;
+			var newRemaining = new int[depth << 1];
+			System.arraycopy(remaining, 0, newRemaining, 0, depth);
+			remaining = newRemaining;
+		}
+		kind[depth] = type;
+		remaining[depth] = size;
+		depth++;
+	}
+
+	private void valueEnd() {
+		if (depth == 0) {
+			finished = true;
+			return;
+		}
+
+		int i = depth-1;
+		switch (kind[i]) {
+			case LIST -> remaining[i]--;
+			case MAP_KEY -> kind[i] = MAP_VALUE;
+			case MAP_VALUE -> {
+				kind[i] = MAP_KEY;
+				remaining[i]--;
+			}
+			case STREAM_MAP_KEY -> kind[i] = STREAM_MAP_VALUE;
+			case STREAM_MAP_VALUE -> kind[i] = STREAM_MAP_KEY;
+		}
+	}
+
+	private static boolean isKeyTag(int tag) {
+		return tag <= 0x7F || tag >= 0xE0 || (tag & 0xE0) == FIXSTR_PREFIX || switch (tag) {
+			case UINT8, UINT16, INT8, INT16, INT32, STR8, STR16, STR32 -> true;
+			default -> false;
+		};
+	}
+
+	/**
+	 * @return 标量的总长度，数据不完整时返回-1
+	 */
+	private static int length(DynByteBuf buf, int pos, int end, int tag) throws IOException {
+		int avail = end - pos;
+		long len;
+		if (tag <= 0x7F || tag >= 0xE0) return 1;
+		if ((tag & 0xE0) == FIXSTR_PREFIX) len = 1 + (tag & 0x1F);
+		else switch (tag) {
+			case NULL, FALSE, TRUE -> {return 1;}
+			case UINT8, INT8 -> len = 2;
+			case UINT16, INT16 -> len = 3;
+			case FLOAT32, UINT32, INT32 -> len = 5;
+			case FLOAT64, UINT64, INT64 -> len = 9;
+			case BIN8, STR8 -> {
+				if (avail < 2) return -1;
+				len = 2 + buf.getUnsignedByte(pos+1);
+			}
+			case BIN16, STR16 -> {
+				if (avail < 3) return -1;
+				len = 3 + buf.getUnsignedShort(pos+1);
+			}
+			case BIN32, STR32 -> {
+				if (avail < 5) return -1;
+				len = 5 + (buf.getInt(pos+1) & 0xFFFFFFFFL);
+			}
+			default -> throw new CorruptedInputException("未知的类型: 0x"+Integer.toHexString(tag));
+		}
+		return checkLength(avail, len);
+	}
+
+	private int extLength(DynByteBuf buf, int pos, int end, int header, int type, int dataLen) throws IOException {
+		int avail = end - pos;
+		return switch (type) {
+			case -4 -> checkLength(avail, header + dataLen * 8L);
+			case -8 -> checkLength(avail, header + dataLen * 4L);
+			case -2, -3, -6, -7 -> varIntArrayLength(buf, pos, end, header, dataLen);
+			case -9, -10, -11 -> throw new CorruptedInputException("增量解析不支持依赖对象池的自定义类型: "+type);
+			// 时间戳和其它类型的数据长度就是dataLen
+			default -> checkLength(avail, (long) header + dataLen);
+		};
+	}
+
+	private static int checkLength(int avail, long len) throws IOException {
+		if (len > Integer.MAX_VALUE) throw new IOException("数据范围超出Java限制！ 0x"+Long.toHexString(len));
+		return avail >= len ? (int) len : -1;
+	}
+
+	/**
+	 * 变长整数的长度由首字节开头1的数量决定，从上次扫描的位置继续
+	 */
+	private int varIntArrayLength(DynByteBuf buf, int pos, int end, int header, int count) {
+		int i = pos + (scanned > 0 ? scanned : header);
+		int n = scannedCount;
+		while (n < count && i < end) {
+			int len = Math.min(Integer.numberOfLeadingZeros(~(buf.getUnsignedByte(i) << 24)) + 1, 9);
+			if (i + len > end) break;
+			i += len;
+			n++;
+		}
+
+		if (n < count) {
+			scanned = i - pos;
+			scannedCount = n;
+			return -1;
+		}
+
+		scanned = scannedCount = 0;
+		return i - pos;
+	}
+}
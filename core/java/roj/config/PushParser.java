@@ -0,0 +1,38 @@
+package roj.config;
+
+import roj.text.ParseException;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+
+/**
+ * 增量(推送式)解析器，数据分块到达时逐块喂给它，值一旦完整就发送到{@link ValueEmitter}.
+ * 状态在调用之间保留，占用的内存只和嵌套深度以及最长的单个token有关，和数据总长度无关.
+ * <p>
+ * 一个跨越了块边界的token(字符串、数字等)不会被读取：{@link #feed}返回时buf的rIndex指向它的开头，
+ * 调用者需要把这部分数据原样保留，并在下一次调用时把新数据追加在它之后(HttpServer对BodyParser就是这么做的).
+ *
+ * @author Roj234
+ * @since 2026/10/18 15:20
+ */
+public interface PushParser {
+	/**
+	 * 重置状态，开始解析新的数据
+	 */
+	PushParser reset(ValueEmitter emitter);
+
+	/**
+	 * 解析buf中尽可能多的数据
+	 */
+	void feed(DynByteBuf buf) throws IOException, ParseException;
+	/**
+	 * 数据结束，解析剩余的部分
+	 * @throws ParseException 数据不完整
+	 */
+	void finish(DynByteBuf rest) throws IOException, ParseException;
+
+	/**
+	 * 顶层的值是否已经完整
+	 */
+	boolean isFinished();
+}
@@ -0,0 +1,490 @@
+package roj.config;
+
+import roj.text.CharList;
+import roj.text.FastNumberParser;
+import roj.text.ParseException;
+import roj.util.ByteList;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static roj.reflect.Unsafe.U;
+
+/**
+ * 直接扫描UTF-8字节的JSON解析器.
+ * 不经过TextReader和Tokenizer，也不构建ConfigValue树，事件直接发送给ValueEmitter，适合较大的JSON请求体.
+ * 除了标准JSON，还支持JsonParser默认模式下常用的扩展：注释、单引号字符串(仅转义\')、省略引号的键和值、结尾多余的逗号.
+ * 不支持十六进制、下划线和带后缀的数字，也没有LENIENT和COMMENT模式，需要它们时请使用{@link JsonParser}.
+ * <p>
+ * 和JsonParser一样，只解析第一个值，之后的内容会被忽略. 解析DynByteBuf时，rIndex移动到该值(和之后的空白)的末尾.
+ * 这个类不是线程安全的.
+ *
+ * @author Roj234
+ * @since 2026/10/18 14:40
+ */
+public class Utf8JsonParser implements Parser {
+	// 键的缓存，只缓存较短的ASCII键
+	private static final int KEY_CACHE_SIZE = 256, KEY_CACHE_MAX_LENGTH = 32;
+	private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+	private DynByteBuf buf;
+	private Object ref;
+	private long base;
+	private int pos, end;
+
+	private char[] chars = new char[64];
+	private final CharList number = new CharList();
+
+	@Override
+	public void parse(InputStream in, ValueEmitter emitter) throws IOException, ParseException {
+		parse(new ByteList().readStreamFully(in), emitter);
+	}
+
+	@Override
+	public void parse(DynByteBuf buf, ValueEmitter emitter) throws ParseException {
+		this.buf = buf;
+		ref = buf.array();
+		base = buf._unsafeAddr();
+		pos = buf.rIndex;
+		end = buf.wIndex();
+
+		// UTF-8 BOM
+		if (end - pos >= 3 && get(pos) == (byte) 0xEF && get(pos+1) == (byte) 0xBB && get(pos+2) == (byte) 0xBF) pos += 3;
+
+		try {
+			int b = skip();
+			if (b < 0) throw err("空文件");
+			value(b, emitter);
+			skip();
+			buf.rIndex = pos;
+		} catch (ParseException e) {
+			throw e.addPath("$");
+		} finally {
+			this.buf = null;
+			ref = null;
+		}
+	}
+
+	/**
+	 * 解码buf中[from, to)处的一个完整的字符串、数字或省略引号的键/值，供{@link JsonPushParser}使用
+	 */
+	final void token(DynByteBuf buf, int from, int to, ValueEmitter emitter, boolean isKey) throws ParseException {
+		this.buf = buf;
+		ref = buf.array();
+		base = buf._unsafeAddr();
+		pos = from;
+		end = to;
+
+		try {
+			int b = get(from) & 0xFF;
+			if (isKey) {
+				String key = b == '"' || b == '\'' ? string(b, true) : literal();
+				if (key == null) throw unexpected(b, "字符串");
+				emitter.emitKey(key);
+			} else {
+				value(b, emitter);
+			}
+			if (pos != to) throw unexpected(get(pos) & 0xFF, isKey ? ":" : "逗号");
+		} finally {
+			this.buf = null;
+			ref = null;
+		}
+	}
+
+	private byte get(int i) {return U.getByte(ref, base+i);}
+
+	private ParseException err(String msg) {return new ParseException(buf, msg, pos - buf.rIndex);}
+	private ParseException unexpected(int b, String expect) {
+		return err(b < 0 ? "未预料的文件尾，期待"+expect : "未预料的'"+(char) b+"'，期待"+expect);
+	}
+
+	/**
+	 * 跳过空白和注释
+	 * @return 下一个字节，文件尾时返回-1
+	 */
+	private int skip() throws ParseException {
+		while (pos < end) {
+			int b = get(pos);
+			switch (b) {
+				case ' ', '\t', '\n', '\r' -> pos++;
+				case '/' -> {
+					int b1 = pos+1 < end ? get(pos+1) : 0;
+					if (b1 == '/') {
+						pos += 2;
+						while (pos < end && get(pos) != '\n') pos++;
+					} else if (b1 == '*') {
+						int start = pos;
+						pos += 2;
+						while (true) {
+							if (pos+1 >= end) {
+								pos = start;
+								throw err("未结束的注释");
+							}
+							if (get(pos) == '*' && get(pos+1) == '/') break;
+							pos++;
+						}
+						pos += 2;
+					} else {
+						return b;
+					}
+				}
+				default -> {return b & 0xFF;}
+			}
+		}
+		return -1;
+	}
+
+	private void value(int b, ValueEmitter emitter) throws ParseException {
+		try {
+			switch (b) {
+				case '{' -> map(emitter);
+				case '[' -> list(emitter);
+				case '"', '\'' -> emitter.emit(string(b, false));
+				case '-', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' -> number(emitter);
+				default -> {
+					int start = pos;
+					String literal = literal();
+					if (literal == null) {
+						pos = start;
+						throw unexpected(b, "值");
+					}
+
+					switch (literal) {
+						case "true" -> emitter.emit(true);
+						case "false" -> emitter.emit(false);
+						case "null" -> emitter.emitNull();
+						default -> emitter.emit(literal);
+					}
+				}
+			}
+		} catch (ParseException e) {
+			throw e;
+		} catch (Exception e) {
+			var err = err(e.getClass().getName()+": "+e.getMessage());
+			err.setStackTrace(e.getStackTrace());
+			throw err;
+		}
+	}
+
+	private void list(ValueEmitter emitter) throws ParseException {
+		pos++;
+		emitter.emitList();
+
+		int index = 0;
+		boolean hasComma = true;
+		while (true) {
+			int b = skip();
+			if (b == ']') break;
+			if (b == ',') {
+				if (hasComma) throw unexpected(b, "值");
+				hasComma = true;
+				pos++;
+				continue;
+			}
+			if (b < 0) throw unexpected(b, "]");
+			if (!hasComma) throw unexpected(b, "逗号");
+			hasComma = false;
+
+			try {
+				value(b, emitter);
+			} catch (ParseException e) {
+				throw e.addPath("["+index+"]");
+			}
+			index++;
+		}
+
+		pos++;
+		emitter.pop();
+	}
+
+	private void map(ValueEmitter emitter) throws ParseException {
+		pos++;
+		emitter.emitMap();
+
+		boolean hasComma = true;
+		while (true) {
+			int b = skip();
+			if (b == '}') break;
+			if (b == ',') {
+				if (hasComma) throw unexpected(b, "字符串");
+				hasComma = true;
+				pos++;
+				continue;
+			}
+			if (!hasComma) throw unexpected(b, "逗号");
+			hasComma = false;
+
+			String key;
+			if (b == '"' || b == '\'') key = string(b, true);
+			else if ((key = literal()) == null) throw unexpected(b, "字符串");
+
+			b = skip();
+			if (b != ':') throw unexpected(b, ":");
+			pos++;
+
+			emitter.emitKey(key);
+			b = skip();
+			if (b < 0) throw unexpected(b, "值");
+			try {
+				value(b, emitter);
+			} catch (ParseException e) {
+				throw e.addPath('.'+key);
+			}
+		}
+
+		pos++;
+		emitter.pop();
+	}
+
+	/**
+	 * 读取pos处开始的字符串，pos指向起始的引号
+	 */
+	private String string(int quote, boolean isKey) throws ParseException {
+		int start = ++pos;
+
+		// 快速路径：没有转义和非ASCII字符
+		int hash = 0;
+		int i = start;
+		while (true) {
+			if (i >= end) {
+				pos = start-1;
+				throw err("未结束的字符串");
+			}
+			int b = get(i);
+			if (b == quote) break;
+			if (b == '\\' || b < 0) {
+				i = -1;
+				break;
+			}
+			hash = 31 * hash + b;
+			i++;
+		}
+
+		if (i >= 0) {
+			pos = i+1;
+			int len = i - start;
+			if (isKey && len <= KEY_CACHE_MAX_LENGTH) {
+				int slot = (hash ^ (hash >>> 8)) & (KEY_CACHE_SIZE-1);
+				String key = keyCache[slot];
+				if (key == null || !asciiEquals(key, start, len)) keyCache[slot] = key = ascii(start, len);
+				return key;
+			}
+			return ascii(start, len);
+		}
+
+		int len = 0;
+		char[] out = chars;
+		pos = start;
+		while (true) {
+			if (pos >= end) {
+				pos = start-1;
+				throw err("未结束的字符串");
+			}
+			if (out.length - len < 2) chars = out = Arrays.copyOf(out, out.length << 1);
+
+			int b = get(pos++);
+			if (b == quote) break;
+			if (b == '\\') {
+				if (pos >= end) continue;
+				b = get(pos++);
+				if (quote == '\'') {
+					// 单引号字符串只转义\'
+					if (b != '\'') {
+						out[len++] = '\\';
+						pos--;
+						continue;
+					}
+				} else {
+					switch (b) {
+						case '"', '\\', '/', '\'' -> {}
+						case 'b' -> b = '\b';
+						case 'f' -> b = '\f';
+						case 'n' -> b = '\n';
+						case 'r' -> b = '\r';
+						case 't' -> b = '\t';
+						case 'u' -> b = unicodeEscape();
+						default -> {
+							pos -= 2;
+							throw err("无效的转义字符\\"+(char) (b&0xFF));
+						}
+					}
+				}
+				out[len++] = (char) b;
+			} else if (b >= 0) {
+				out[len++] = (char) b;
+			} else {
+				len = utf8(b, out, len);
+			}
+		}
+		return new String(out, 0, len);
+	}
+
+	private int unicodeEscape() throws ParseException {
+		if (pos + 4 > end) throw err("无效的\\u转义");
+		int c = 0;
+		for (int j = 0; j < 4; j++) {
+			int h = Character.digit(get(pos++), 16);
+			if (h < 0) {
+				pos -= j+3;
+				throw err("无效的\\u转义");
+			}
+			c = (c << 4) | h;
+		}
+		return c;
+	}
+
+	/**
+	 * 解码一个多字节的UTF-8字符，pos指向它的第二个字节
+	 */
+	private int utf8(int b, char[] out, int len) throws ParseException {
+		int cp, n;
+		if ((b & 0xE0) == 0xC0) {cp = b & 0x1F;n = 1;}
+		else if ((b & 0xF0) == 0xE0) {cp = b & 0x0F;n = 2;}
+		else if ((b & 0xF8) == 0xF0) {cp = b & 0x07;n = 3;}
+		else {
+			pos--;
+			throw err("无效的UTF-8字节"+Integer.toHexString(b&0xFF));
+		}
+
+		if (pos + n > end) {
+			pos--;
+			throw err("不完整的UTF-8字符");
+		}
+		for (int j = 0; j < n; j++) {
+			int c = get(pos++);
+			if ((c & 0xC0) != 0x80) {
+				pos -= j+2;
+				throw err("无效的UTF-8字节"+Integer.toHexString(c&0xFF));
+			}
+			cp = (cp << 6) | (c & 0x3F);
+		}
+
+		if (cp >= 0x10000) {
+			out[len++] = Character.highSurrogate(cp);
+			out[len++] = Character.lowSurrogate(cp);
+		} else {
+			out[len++] = (char) cp;
+		}
+		return len;
+	}
+
+	private boolean asciiEquals(String s, int off, int len) {
+		if (s.length() != len) return false;
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(i) != get(off+i)) return false;
+		}
+		return true;
+	}
+	private String ascii(int off, int len) {
+		if (buf.hasArray()) return new String(buf.array(), buf.arrayOffset()+off, len, StandardCharsets.ISO_8859_1);
+
+		char[] out = chars;
+		if (out.length < len) chars = out = new char[Math.max(len, out.length << 1)];
+		for (int i = 0; i < len; i++) out[i] = (char) get(off+i);
+		return new String(out, 0, len);
+	}
+
+	/**
+	 * 读取省略了引号的键或值，和JsonParser一样，在空白或符号处结束
+	 * @return 长度为0时返回null
+	 */
+	private String literal() throws ParseException {
+		int start = pos;
+		boolean ascii = true;
+		while (pos < end) {
+			int b = get(pos);
+			switch (b) {
+				case ' ', '\t', '\n', '\r', '{', '}', '[', ']', ',', ':', '=', '"', '\'', '/' -> {
+					if (pos == start) return null;
+					return ascii ? ascii(start, pos - start) : decode(start, pos);
+				}
+			}
+			if (b < 0) ascii = false;
+			pos++;
+		}
+		if (pos == start) return null;
+		return ascii ? ascii(start, pos - start) : decode(start, pos);
+	}
+	private String decode(int from, int to) throws ParseException {
+		int len = 0;
+		char[] out = chars;
+		if (out.length < to - from) chars = out = new char[to - from];
+
+		pos = from;
+		while (pos < to) {
+			int b = get(pos++);
+			if (b >= 0) out[len++] = (char) b;
+			else len = utf8(b, out, len);
+		}
+		return new String(out, 0, len);
+	}
+
+	private void number(ValueEmitter emitter) throws ParseException {
+		int start = pos;
+		boolean neg = get(pos) == '-';
+		if (neg) pos++;
+
+		long value = 0;
+		int digits = 0;
+		int b = 0;
+		while (pos < end && (b = get(pos)) >= '0' && b <= '9') {
+			value = value * 10 + (b - '0');
+			digits++;
+			pos++;
+		}
+		if (digits == 0) throw unexpected(pos < end ? b : -1, "数字");
+
+		boolean real = false;
+		if (pos < end && b == '.') {
+			real = true;
+			pos++;
+			int fraction = pos;
+			while (pos < end && (b = get(pos)) >= '0' && b <= '9') pos++;
+			if (pos == fraction) throw unexpected(pos < end ? b : -1, "数字");
+		}
+		if (pos < end && (b == 'e' || b == 'E')) {
+			real = true;
+			if (++pos < end && ((b = get(pos)) == '+' || b == '-')) pos++;
+			int exponent = pos;
+			while (pos < end && (b = get(pos)) >= '0' && b <= '9') pos++;
+			if (pos == exponent) throw err("缺少指数");
+		}
+		if (pos < end) {
+			switch (get(pos)) {
+				case ' ', '\t', '\n', '\r', '}', ']', ',', '/' -> {}
+				default -> throw err("不支持的数字格式，请使用JsonParser");
+			}
+		}
+
+		// 18位以内不会溢出long
+		if (!real) {
+			if (digits <= 18) {
+				if (neg) value = -value;
+				if (value == (int) value) emitter.emit((int) value);
+				else emitter.emit(value);
+				return;
+			}
+
+			// 19位不会溢出无符号的long
+			if (digits == 19 && Long.compareUnsigned(value, neg ? Long.MIN_VALUE : Long.MAX_VALUE) <= 0) {
+				emitter.emit(neg ? -value : value);
+				return;
+			}
+			// 超过long的范围，和JsonParser一样作为double
+		}
+
+		var v = number;
+		v.clear();
+		for (int i = neg ? start+1 : start; i < pos; i++) v.append((char) get(i));
+
+		double d = FastNumberParser.parseDouble(v);
+		if (Double.isInfinite(d)) {
+			pos = start;
+			throw err("数字过大");
+		}
+		emitter.emit(neg ? -d : d);
+	}
+}
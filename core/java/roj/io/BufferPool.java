@@ -16,10 +16,15 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static roj.text.TextUtil.scaledNumber1024;
 
 /**
+ * 默认每个线程一个缓冲池
+ * 设置系统属性roj.bufferPool.sharded=true后，创建和CPU核心数相当的分片，线程在第一次使用时轮流绑定到分片上(按线程而不是按核心分配)，
+ * 其它线程释放的缓冲区通过无锁的归还栈交给分片，在下次分配时批量回收
  * @author Roj233
  * @since 2022/6/1 7:06
  */
@@ -31,15 +36,36 @@ public final class BufferPool {
 	private static final int DIRECT_INIT = 32768, DIRECT_INCR = 32768, DIRECT_FLEX_MAX = 16777216, DIRECT_LARGE = 4194304;
 	private static final int DEFAULT_KEEP_BEFORE = 16;
 
-	private static final FastThreadLocal<BufferPool> DEFAULT = FastThreadLocal.withInitial(BufferPool::new);
+	private static final FastThreadLocal<BufferPool> DEFAULT = FastThreadLocal.withInitial(BufferPool::newLocalPool);
 	public static BufferPool localPool() { return DEFAULT.get(); }
 	public static final BufferPool UNPOOLED = new BufferPool(0,0,0,0,0,0,0,0);
 
+	private static final BufferPool[] SHARDS;
+	private static final AtomicInteger NEXT_SHARD = new AtomicInteger();
+	static {
+		if (Boolean.getBoolean("roj.bufferPool.sharded")) {
+			int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+			SHARDS = new BufferPool[count];
+			for (int i = 0; i < count; i++) {
+				SHARDS[i] = new BufferPool(DIRECT_INIT, DIRECT_INCR, DIRECT_FLEX_MAX, HEAP_INIT, HEAP_INCR, HEAP_FLEX_MAX, 64, 60000, true);
+			}
+		} else {
+			SHARDS = null;
+		}
+	}
+	private static BufferPool newLocalPool() {
+		var shards = SHARDS;
+		return shards == null ? new BufferPool() : shards[NEXT_SHARD.getAndIncrement() & (shards.length-1)];
+	}
+	public static boolean isSharded() { return SHARDS != null; }
+
 	private static final VarHandle
 		DIRECT_SHELL_LEN = Telescope.lookup().findVarHandle(BufferPool.class, "directShellLen", int.class),
 		HEAP_SHELL_LEN = Telescope.lookup().findVarHandle(BufferPool.class, "heapShellLen", int.class),
 		HEAP = Telescope.lookup().findVarHandle(BufferPool.class, "heap", byte[].class),
 		DIRECT_REF = Telescope.lookup().findVarHandle(BufferPool.class, "directRef", NativeMemory.class),
+		RETURN_HEAD = Telescope.lookup().findVarHandle(BufferPool.class, "returnHead", Pooled.class),
+		DRAIN_SCHEDULED = Telescope.lookup().findVarHandle(BufferPool.class, "drainScheduled", boolean.class),
 		SHELL$ARRAY = MethodHandles.arrayElementVarHandle(Pooled[].class);
 
 	private static final Logger LOGGER = Logger.getLogger();
@@ -71,10 +97,24 @@ public final class BufferPool {
 	private final Runnable stallReleaseTask;
 	private long accessTimestamp;
 
+	// 分片模式: 其它线程归还的缓冲区
+	private final boolean shard;
+	private volatile Pooled returnHead;
+	private volatile boolean drainScheduled;
+	private final Runnable drainTask;
+
+	// 统计数据，分片模式下会被多个线程同时修改
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), arrayCacheFallbacks = new LongAdder(), remoteFrees = new LongAdder(), stallReleases = new LongAdder();
+
 	private BufferPool() {this(DIRECT_INIT, DIRECT_INCR, DIRECT_FLEX_MAX, HEAP_INIT, HEAP_INCR, HEAP_FLEX_MAX, 15, 60000);}
 	public BufferPool(long directInit, long directIncr, long directMax,
 					  int heapInit, int heapIncr, int heapMax,
 					  int shellSize, int maxStall) {
+		this(directInit, directIncr, directMax, heapInit, heapIncr, heapMax, shellSize, maxStall, false);
+	}
+	private BufferPool(long directInit, long directIncr, long directMax,
+					   int heapInit, int heapIncr, int heapMax,
+					   int shellSize, int maxStall, boolean shard) {
 		this.directInit = directInit;
 		this.heapInit = heapInit;
 
@@ -89,6 +129,9 @@ public final class BufferPool {
 
 		this.maxStall = maxStall;
 		this.stallReleaseTask = getTask(new WeakReference<>(this));
+
+		this.shard = shard;
+		this.drainTask = shard ? getDrainTask(new WeakReference<>(this)) : null;
 	}
 
 	private void tryDelayedFree() {
@@ -107,13 +150,28 @@ public final class BufferPool {
 			BufferPool p = pool.get();
 			if (p == null || System.currentTimeMillis() - p.accessTimestamp < p.maxStall) return;
 
-			if (p.directRef != null && p.pDirect.usedSpace() == 0) freeDirect(p);
-			if (p.heap != null && p.pHeap.usedSpace() == 0) freeHeap(p);
+			if (p.directRef != null && p.pDirect.usedSpace() == 0) {freeDirect(p);p.stallReleases.increment();}
+			if (p.heap != null && p.pHeap.usedSpace() == 0) {freeHeap(p);p.stallReleases.increment();}
 
 			p.hasDelay = false;
 		};
 	}
+	private static Runnable getDrainTask(WeakReference<BufferPool> pool) {
+		return () -> {
+			BufferPool p = pool.get();
+			if (p == null) return;
+
+			p.drainScheduled = false;
+			p.drainReturns();
+		};
+	}
+	/**
+	 * 释放所有内存，分片是共享的，其它线程可能还在使用它，所以只回收归还的缓冲区
+	 */
 	public void release() {
+		drainReturns();
+		if (shard) return;
+
 		if (pHeap != null) {
 			if (pHeap.usedSpace() != 0) throw new IllegalStateException(pHeap.toString());
 			else freeHeap(this);
@@ -158,6 +216,7 @@ public final class BufferPool {
 
 		cap += keepBefore;
 		if (cap == 0) return direct ? EMPTY_DIRECT_SENTIAL : EMPTY_HEAP_SENTIAL;
+		if (returnHead != null) drainReturns();
 
 		Pooled buf;
 		if (direct) {
@@ -166,6 +225,7 @@ public final class BufferPool {
 			buf.setKeepBefore(keepBefore);
 
 			if (allocDirect(cap, buf) != 0) {
+				hits.increment();
 				directAlloc += cap;
 				buf.pool(this);
 				if (ldt != null) ldt.track(buf);
@@ -177,6 +237,7 @@ public final class BufferPool {
 			buf.setKeepBefore(keepBefore);
 
 			if (allocHeap(cap, buf)) {
+				hits.increment();
 				heapAlloc += cap;
 				buf.pool(this);
 				if (ldt != null) ldt.track(buf);
@@ -184,6 +245,7 @@ public final class BufferPool {
 			}
 		}
 
+		misses.increment();
 		if (direct) {
 			directAllocFail += cap;
 			var mem = new NativeMemory();
@@ -191,6 +253,7 @@ public final class BufferPool {
 			buf.set(mem, address+keepBefore, cap-keepBefore);
 		} else {
 			heapAllocFail += cap;
+			arrayCacheFallbacks.increment();
 			byte[] b = ArrayCache.getByteArray(cap, false);
 			buf.set(b, keepBefore, b.length-keepBefore);
 		}
@@ -363,6 +426,37 @@ public final class BufferPool {
 		if (ldt != null) ldt.remove(buf);
 
 		Pooled pb = (Pooled) buf;
+		if (shard && DEFAULT.get() != this) {
+			pushReturn(pb);
+			return;
+		}
+
+		free0(pb);
+	}
+	private void pushReturn(Pooled pb) {
+		Pooled head;
+		do {
+			head = returnHead;
+			pb.nextReturn(head);
+		} while (!RETURN_HEAD.compareAndSet(this, head, pb));
+		remoteFrees.increment();
+
+		// 保证分片不再分配时归还的内存也能回收
+		if (!drainScheduled && DRAIN_SCHEDULED.compareAndSet(this, false, true)) {
+			Timer.getDefault().delay(drainTask, 1000);
+		}
+	}
+	private void drainReturns() {
+		var pb = (Pooled) RETURN_HEAD.getAndSet(this, null);
+		while (pb != null) {
+			var next = pb.nextReturn();
+			pb.nextReturn(null);
+			free0(pb);
+			pb = next;
+		}
+	}
+	private void free0(Pooled pb) {
+		var buf = (DynByteBuf) pb;
 
 		int prefix = pb.getKeepBefore();
 		if (buf.isDirect()) {
@@ -506,20 +600,49 @@ public final class BufferPool {
 			heapAlloc, directAlloc, heapAllocFail, directAllocFail,
 			zeroCopyExpands, reallocateExpands, totalExpands;
 
+	public long getHitCount() { return hits.sum(); }
+	public long getMissCount() { return misses.sum(); }
+	public long getArrayCacheFallbackCount() { return arrayCacheFallbacks.sum(); }
+	public long getRemoteFreeCount() { return remoteFrees.sum(); }
+	public long getStallReleaseCount() { return stallReleases.sum(); }
+	public long getRetainedBytes() {
+		long size = 0;
+		// freeDirect可能同时修改它们，只读一次
+		var direct = pDirect;
+		if (directRef != null && direct != null) size += direct.totalSpace();
+		var heap = this.heap;
+		if (heap != null) size += heap.length;
+		return size;
+	}
+
 	@ForDebug
 	public CharList status(CharList sb) {
 		sb.append("本机缓冲池:");
 		(directRef == null ? sb.append("未初始化") : pDirect.toString(sb, 0)).append("\n堆缓冲池:");
 		(heap==null?sb.append("未初始化"):pHeap.toString(sb, 0)).append("");
+		metrics(sb);
 		return globalStatus(sb);
 	}
+	private CharList metrics(CharList sb) {
+		return sb.append("\n 命中/未命中/ArrayCache:").append(hits.sum()).append('/').append(misses.sum()).append('/').append(arrayCacheFallbacks.sum())
+				 .append("\n 占用:").append(scaledNumber1024(getRetainedBytes()))
+				 .append("\n 跨线程归还:").append(remoteFrees.sum()).append(" 空闲释放:").append(stallReleases.sum());
+	}
 
 	@ForDebug
 	public static CharList globalStatus(CharList sb) {
 		sb.append("\n缓冲区统计数据(大约):");
-		return sb.append("\n 本机分配:").append(scaledNumber1024(directAlloc)).append('/').append(scaledNumber1024(directAlloc+directAllocFail))
-				.append("\n 堆分配:").append(scaledNumber1024(heapAlloc)).append('/').append(scaledNumber1024(heapAlloc+heapAllocFail))
-				.append("\n 扩展:").append(zeroCopyExpands).append('/').append(reallocateExpands).append('/').append(totalExpands);
+		sb.append("\n 本机分配:").append(scaledNumber1024(directAlloc)).append('/').append(scaledNumber1024(directAlloc+directAllocFail))
+		  .append("\n 堆分配:").append(scaledNumber1024(heapAlloc)).append('/').append(scaledNumber1024(heapAlloc+heapAllocFail))
+		  .append("\n 扩展:").append(zeroCopyExpands).append('/').append(reallocateExpands).append('/').append(totalExpands);
+
+		var shards = SHARDS;
+		if (shards != null) {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].metrics(sb.append("\n分片#").append(i).append(':'));
+			}
+		}
+		return sb;
 	}
 
 	private sealed interface Pooled {
@@ -536,6 +659,9 @@ public final class BufferPool {
 
 		void _expand(int len, boolean backward);
 		void _clear();
+
+		Pooled nextReturn();
+		void nextReturn(Pooled next);
 	}
 	@FastVarHandle
 	private static final class PooledDirectBuf extends DirectByteList.Slice implements Pooled {
@@ -552,6 +678,10 @@ public final class BufferPool {
 		@Override public int getKeepBefore() { return meta; }
 		@Override public void setKeepBefore(int keepBefore) { meta = keepBefore; }
 
+		private Pooled nextReturn;
+		@Override public Pooled nextReturn() { return nextReturn; }
+		@Override public void nextReturn(Pooled next) { nextReturn = next; }
+
 		@Override public void close() {release();}
 		@Override public int refCnt() {return refCount;}
 		@Override public void retain(int count) {refCount += count;}
@@ -583,6 +713,10 @@ public final class BufferPool {
 		@Override public int getKeepBefore() { return meta; }
 		@Override public void setKeepBefore(int keepBefore) { meta = keepBefore; }
 
+		private Pooled nextReturn;
+		@Override public Pooled nextReturn() { return nextReturn; }
+		@Override public void nextReturn(Pooled next) { nextReturn = next; }
+
 		@Override public void close() {release();}
 		@Override public int refCnt() {return refCount;}
 		@Override public void retain(int count) {refCount += count;}
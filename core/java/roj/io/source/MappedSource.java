@@ -0,0 +1,109 @@
+package roj.io.source;
+
+import roj.util.DynByteBuf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 只读的内存映射文件，大于1GB的文件分段映射.
+ * {@link #copy()}共享同一份映射，只有读取位置是独立的，所以不占用额外的文件句柄.
+ * {@link #read(long, byte[], int, int)}不修改任何状态，可以被任意多个线程同时调用.
+ * 映射在它和所有副本都不可达后由GC释放.
+ *
+ * @author Roj234
+ * @since 2026/10/18 17:40
+ */
+public final class MappedSource extends Source {
+	private static final int SEGMENT_SHIFT = 30, SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	private final File file;
+	private final ByteBuffer[] segments;
+	private final long length;
+	private long position;
+
+	public MappedSource(File file) throws IOException {
+		this.file = file;
+		try (var ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			length = ch.size();
+			segments = new ByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long offset = (long) i << SEGMENT_SHIFT;
+				segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, length - offset));
+			}
+		}
+	}
+	private MappedSource(MappedSource parent) {
+		this.file = parent.file;
+		this.segments = parent.segments;
+		this.length = parent.length;
+	}
+
+	public File getFile() {return file;}
+
+	/**
+	 * 从pos开始读取，不改变读取位置
+	 * @return 读取的字节数，pos已经到达结尾时返回-1
+	 */
+	public int read(long pos, byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (pos >= length) return -1;
+
+		len = (int) Math.min(len, length - pos);
+		int remain = len;
+		while (remain > 0) {
+			var segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+			int segmentOffset = (int) pos & (SEGMENT_SIZE-1);
+			int n = Math.min(remain, segment.limit() - segmentOffset);
+			// 绝对位置的get不修改ByteBuffer的状态
+			segment.get(segmentOffset, b, off, n);
+
+			pos += n;
+			off += n;
+			remain -= n;
+		}
+		return len;
+	}
+
+	@Override
+	public int read() {
+		if (position >= length) return -1;
+		long pos = position++;
+		return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) pos & (SEGMENT_SIZE-1)) & 0xFF;
+	}
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int n = read(position, b, off, len);
+		if (n > 0) position += n;
+		return n;
+	}
+
+	@Override public void write(byte[] b, int off, int len) throws IOException {throw new IOException("只读的Source");}
+	@Override public void write(DynByteBuf data) throws IOException {throw new IOException("只读的Source");}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		if (pos < 0) throw new EOFException("Negative position");
+		position = pos;
+	}
+	@Override public long position() {return position;}
+	@Override public long skip(long amount) {
+		long pos = Math.min(position + amount, length);
+		amount = pos - position;
+		position = pos;
+		return amount;
+	}
+
+	@Override public void setLength(long length) throws IOException {throw new IOException("只读的Source");}
+	@Override public long length() {return length;}
+
+	@Override public Source copy() {return new MappedSource(this);}
+	@Override public void moveSelf(long from, long to, long length) throws IOException {throw new IOException("只读的Source");}
+
+	@Override public boolean isWritable() {return false;}
+	@Override public String toString() {return "MappedSource{"+file.getPath()+'}';}
+}
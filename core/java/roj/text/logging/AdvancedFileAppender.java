@@ -5,26 +5,29 @@ import roj.archive.xz.LZMAOutputStream;
 import roj.concurrent.FastLocalThread;
 import roj.config.node.MapValue;
 import roj.io.IOUtil;
+import roj.optimizer.FastVarHandle;
+import roj.reflect.Telescope;
 import roj.text.CharList;
 import roj.text.Formatter;
 import roj.text.TextUtil;
 import roj.text.TextWriter;
 
 import java.io.*;
+import java.lang.invoke.VarHandle;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedTransferQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 /**
+ * 异步日志追加器
+ * 日志行直接复制进预分配的环形缓冲区槽位，写线程批量取出，按大小或时间刷新
  * @author Roj234
  * @since 2025/11/06 03:50
  */
+@FastVarHandle
 public class AdvancedFileAppender implements LogAppender, Runnable {
 	private final File logPath;
 	private final Formatter logName;
@@ -37,8 +40,29 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 	// remove
 	private final int maxFileCount, maxFileSizeKb;
 
-	private final BlockingQueue<String> queue;
+	private static final class Slot {
+		volatile long seq;
+		final char[] chars;
+		int length;
+		// 超过槽位长度的行
+		String overflow;
+
+		Slot(int size) {chars = new char[size];}
+	}
+
+	private static final VarHandle
+			HEAD = Telescope.lookup().findVarHandle(AdvancedFileAppender.class, "head", long.class),
+			DROPPED = Telescope.lookup().findVarHandle(AdvancedFileAppender.class, "dropped", long.class),
+			BLOCKED = Telescope.lookup().findVarHandle(AdvancedFileAppender.class, "blocked", long.class);
+
+	private final Slot[] slots;
+	private final int mask;
+	private volatile long head, tail;
+	private volatile long dropped, blocked;
+	private volatile boolean sleeping;
+
 	private final boolean immediateFlush;
+	private final int flushSize, flushInterval, blockTimeout;
 
 	private final Charset charset;
 	private final Thread writer = new FastLocalThread(this, "RojLib 异步日志追加 ");
@@ -51,13 +75,17 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 		logPath = new File(data.getString("path", "logs"));
 		logName = new Template(LogContext.FMT, data.getString("file_name", "latest.log"));
 
-		if (data.getBool("async.enable", true)) {
-			immediateFlush = false;
-			queue = new ArrayBlockingQueue<>(data.getInt("async.buffer", 10));
-		} else {
-			immediateFlush = true;
-			queue = new LinkedTransferQueue<>();
-		}
+		immediateFlush = !data.getBool("async.enable", true);
+		int capacity = Math.max(2, data.getInt("async.buffer", 1024));
+		slots = new Slot[Integer.highestOneBit(capacity - 1) << 1];
+		mask = slots.length - 1;
+		int lineSize = data.getInt("async.line_size", 256);
+		for (int i = 0; i < slots.length; i++) slots[i] = new Slot(lineSize);
+
+		flushSize = Math.max(512, (int) TextUtil.unscaledNumber1024(data.getString("async.flush_size", "8KB")));
+		flushInterval = data.getInt("async.flush_interval", 200);
+		// 缓冲区满时最多等待多久，0表示直接丢弃；同步模式(async.enable=false)下一直等待，不会丢弃
+		blockTimeout = data.getInt("async.block_timeout", 1000);
 
 		rotationFileSizeKb = (int) (Math.round(TextUtil.unscaledNumber1024(data.getString("rotation.size", "10MB"))) >> 10);
 		if (rotationFileSizeKb <= 0) throw new IllegalArgumentException("rotation.size must be greater than 0");
@@ -71,26 +99,67 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 		writer.start();
 	}
 
+	/**
+	 * 因为缓冲区满而丢弃的行数
+	 */
+	public long getDroppedCount() {return dropped;}
+	/**
+	 * 因为缓冲区满而等待的次数
+	 */
+	public long getBlockedCount() {return blocked;}
+
 	@Override
 	public void append(CharList sb) throws IOException {
-		try {
-			String str = sb.toString();
-			if (!queue.offer(str, 1000, TimeUnit.MILLISECONDS)) {
-				throw new IOException("Log timed out: " + str);
+		long pos = claim();
+		if (pos < 0) return;
+
+		var slot = slots[(int) pos & mask];
+		int len = sb.length();
+		if (len <= slot.chars.length) {
+			System.arraycopy(sb.list, 0, slot.chars, 0, len);
+			slot.overflow = null;
+		} else {
+			slot.overflow = sb.toString();
+		}
+		slot.length = len;
+		slot.seq = pos+1;
+
+		// 异步模式下写线程按flushInterval醒来，只有缓冲区快满时才提前叫醒它
+		if (immediateFlush || (sleeping && pos - tail >= slots.length >> 1)) LockSupport.unpark(writer);
+	}
+	private long claim() {
+		long deadline = 0;
+		for (;;) {
+			long h = head;
+			if (h - tail < slots.length) {
+				if (HEAD.compareAndSet(this, h, h+1)) return h;
+				continue;
 			}
-		} catch (InterruptedException e) {
-			throw IOUtil.rethrowAsIOException(e);
+
+			if (deadline == 0) {
+				BLOCKED.getAndAdd(this, 1L);
+				LockSupport.unpark(writer);
+				deadline = System.nanoTime() + blockTimeout * 1_000_000L;
+			}
+			if (!running || (!immediateFlush && System.nanoTime() - deadline >= 0)) {
+				DROPPED.getAndAdd(this, 1L);
+				return -1;
+			}
+
+			LockSupport.parkNanos(50_000L);
 		}
 	}
 
 	public void run() {
 		try {
 			File logFile = changeFile(null, null);
-			var writer = TextWriter.append(logFile, charset);
+			var writer = newWriter(logFile);
 			int deltaTime = 0;
-			long prevTime = System.currentTimeMillis();
+			long prevTime = System.currentTimeMillis(), lastFlush = prevTime;
+			long reportedDrops = 0;
+			boolean dirty = false;
 			try {
-				while (running || !queue.isEmpty()) {
+				while (running || tail != head) {
 					long time = System.currentTimeMillis();
 					deltaTime += time - prevTime;
 					prevTime = time;
@@ -100,18 +169,35 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 
 						var newFile = changeFile(logFile, writer);
 						if (newFile != null) {
-							writer = TextWriter.append(newFile, charset);
+							writer = newWriter(newFile);
 							logFile = newFile;
 						}
 					}
 
-					try {
-						var message = queue.take();
-						writer.append(message);
+					int count = drain(writer);
+					if (count > 0) dirty = true;
+
+					long drops = dropped;
+					if (drops != reportedDrops) {
+						writer.append("[AsyncLogger] 缓冲区已满，丢弃了").append(drops - reportedDrops).append("行日志\n");
+						reportedDrops = drops;
+						dirty = true;
+					}
+
+					// 距离上次刷新满flushInterval才刷新，写满flushSize时TextWriter会自己刷新
+					if (dirty && (immediateFlush || !running || time - lastFlush >= flushInterval)) {
 						writer.flush();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						break;
+						lastFlush = time;
+						dirty = false;
+					}
+
+					if (count == 0) {
+						sleeping = true;
+						if (slots[(int) tail & mask].seq != tail+1 && running) {
+							long wait = immediateFlush ? 1000 : Math.max(1, dirty ? flushInterval - (time - lastFlush) : flushInterval);
+							LockSupport.parkNanos(wait * 1_000_000L);
+						}
+						sleeping = false;
 					}
 				}
 			} finally {
@@ -123,6 +209,37 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 		}
 	}
 
+	private TextWriter newWriter(File file) throws IOException {
+		var writer = TextWriter.append(file, charset);
+		// 写满flushSize才会自动刷新
+		writer.ensureCapacity(flushSize);
+		return writer;
+	}
+
+	/**
+	 * 取出所有已发布的行，每个槽位写完后立即释放给生产者
+	 */
+	private int drain(TextWriter writer) {
+		long t = tail;
+		int count = 0;
+		for (;;) {
+			var slot = slots[(int) t & mask];
+			if (slot.seq != t+1) break;
+
+			var overflow = slot.overflow;
+			if (overflow != null) {
+				writer.append(overflow);
+				slot.overflow = null;
+			} else {
+				writer.append(slot.chars, 0, slot.length);
+			}
+
+			tail = ++t;
+			count++;
+		}
+		return count;
+	}
+
 	private File changeFile(File currentFile, Closeable handle) throws IOException {
 		if (currentFile != null) {
 			if (currentFile.length() < ((long) rotationFileSizeKb << 10)) {
@@ -225,7 +342,8 @@ public class AdvancedFileAppender implements LogAppender, Runnable {
 
 	public void close() {
 		running = false;
-		writer.interrupt();
+		// 不能interrupt: FileChannel会因此关闭，还没刷新的日志就丢了
+		LockSupport.unpark(writer);
 		try {
 			writer.join();
 		} catch (InterruptedException e) {
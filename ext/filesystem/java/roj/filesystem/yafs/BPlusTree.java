@@ -1,477 +1,701 @@
 package roj.filesystem.yafs;
 
+import org.jetbrains.annotations.Nullable;
+import roj.collect.ArrayList;
+import roj.collect.IntList;
+import roj.collect.IntMap;
+import roj.io.IOUtil;
+import roj.io.source.FileSource;
+import roj.io.source.Source;
+import roj.util.ByteList;
+
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
+ * 保存在文件中的B+树，键和值都是变长的字节数组，键按无符号字节序排列.
+ * <p>
+ * 文件由固定大小的页组成，第0页是元数据.
+ * 访问过的页解码后保存在有容量上限的缓冲池(LRU)中，修改只标记为脏，在被挤出缓冲池或者{@link #flush()}时才写回.
+ * 页内所有键的公共前缀只保存一次，叶节点分裂时上提的是能区分左右两边的最短前缀而不是整个键.
+ * <p>
+ * 删除不会合并节点.
+ * 这个类不是线程安全的.
+ *
  * @author Roj234
  * @since 2025/07/13 02:11
  */
-public class BPlusTree {
-	private static final int BLOCK_SIZE = 512; // 磁盘块大小（字节）
-	private static final int ORDER = 4;        // B+树的阶（每个节点最多ORDER-1个键）
-	private final RandomAccessFile file;
-	private long rootAddress = 0;              // 根节点在文件中的位置（字节偏移）
+public class BPlusTree implements Closeable {
+	private static final int MAGIC = 0x59425054; // YBPT
+	private static final int MIN_PAGE_SIZE = 512, MAX_PAGE_SIZE = 1 << 20, MIN_CACHE_PAGES = 16;
 
 	// 节点类型标记
-	private static final byte LEAF_NODE = 0;
-	private static final byte INTERNAL_NODE = 1;
-
-	// 元数据块结构（文件开头）
-	private static final int META_BLOCK_SIZE = 8; // long类型（8字节）存储根节点地址
-
-	public BPlusTree(String filename) throws IOException {
-		file = new RandomAccessFile(filename, "rw");
-		if (file.length() == 0) {
-			// 初始化新文件：创建空叶节点作为根
-			rootAddress = META_BLOCK_SIZE;
-			LeafNode root = new LeafNode();
-			writeNode(root, rootAddress);
-			writeRootAddress();
-		} else {
-			// 读取现有根节点地址
-			file.seek(0);
-			rootAddress = file.readLong();
-		}
-	}
+	private static final byte LEAF_NODE = 1;
+	private static final byte INTERNAL_NODE = 2;
+	// 类型(1) 数量(VUInt 5) 前缀长度(VUInt 5) 下一个叶节点或最左侧子节点(4)
+	private static final int PAGE_HEADER = 15;
+
+	private final Source file;
+	private final int pageSize, maxEntrySize, cacheCapacity;
+	private final byte[] pageBuffer;
+
+	// 元数据
+	private int rootPage, height, pageCount;
+	private long size;
+	private boolean metaDirty;
+
+	// 缓冲池
+	private final IntMap<Page> pages = new IntMap<>();
+	private Page lruHead, lruTail;
+
+	private int modCount;
+
+	// 最近一次分裂的结果
+	private byte[] splitKey;
+	private int splitPage;
+
+	/**
+	 * 页大小16KB，缓存1024页
+	 */
+	public BPlusTree(File file) throws IOException {this(new FileSource(file), 16384, 1024);}
+
+	/**
+	 * @param pageSize 新文件的页大小，打开已有的文件时使用其中保存的值. 单个键值对的长度不能超过页大小的1/8
+	 * @param cachePages 缓冲池最多保存多少页
+	 */
+	public BPlusTree(Source file, int pageSize, int cachePages) throws IOException {
+		this.file = file;
+		this.cacheCapacity = Math.max(cachePages, MIN_CACHE_PAGES);
 
-	// 写入根节点地址到元数据块
-	private void writeRootAddress() throws IOException {
-		file.seek(0);
-		file.writeLong(rootAddress);
-	}
+		try {
+			if (file.length() == 0) {
+				if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE) throw new IllegalArgumentException("页大小超出范围: "+pageSize);
+
+				this.pageSize = pageSize;
+				this.pageBuffer = new byte[pageSize];
+				// 初始化新文件：创建空叶节点作为根
+				pageCount = 1;
+				rootPage = allocate(true).id;
+				height = 1;
+				flush();
+			} else {
+				var meta = new byte[28];
+				file.seek(0);
+				file.readFully(meta);
+
+				var buf = new ByteList(meta);
+				if (buf.readInt() != MAGIC) throw new IOException("不是B+树文件");
+				this.pageSize = buf.readInt();
+				if (this.pageSize < MIN_PAGE_SIZE || this.pageSize > MAX_PAGE_SIZE) throw new IOException("页大小错误: "+this.pageSize);
+				this.pageBuffer = new byte[this.pageSize];
+
+				rootPage = buf.readInt();
+				height = buf.readInt();
+				pageCount = buf.readInt();
+				size = buf.readLong();
+				if (file.length() < (long) pageCount * this.pageSize) throw new IOException("文件被截断");
+			}
+		} catch (Throwable e) {
+			IOUtil.closeSilently(file);
+			throw e;
+		}
 
-	// 节点抽象类
-	private abstract static class Node {
-		int keyCount = 0;
-		int[] keys = new int[ORDER];
+		this.maxEntrySize = (this.pageSize - PAGE_HEADER) / 8;
 	}
 
-	// 叶节点类
-	private class LeafNode extends Node {
-		long next = -1;       // 下一个叶节点的文件地址
-		int[] values = new int[ORDER]; // 与键关联的值
-
-		// 序列化叶节点
-		byte[] serialize() {
-			byte[] data = new byte[BLOCK_SIZE];
-			int pos = 0;
-
-			// 节点类型标记 (1字节)
-			data[pos++] = LEAF_NODE;
-
-			// 键数量 (4字节)
-			System.arraycopy(intToBytes(keyCount), 0, data, pos, 4);
-			pos += 4;
-
-			// 键数组 (每个键4字节)
-			for (int i = 0; i < keyCount; i++) {
-				System.arraycopy(intToBytes(keys[i]), 0, data, pos, 4);
-				pos += 4;
-			}
+	/**
+	 * 解码后的页
+	 */
+	private static final class Page {
+		final int id;
+		final boolean leaf;
+		boolean dirty;
+
+		int count;
+		byte[][] keys;
+		// 叶节点
+		byte[][] values;
+		int next = -1;
+		// 内部节点，children[i]中的键小于keys[i]，children[i+1]中的键大于等于keys[i]
+		int[] children;
+
+		// 不计算公共前缀时所有项目的编码长度
+		int bytes;
+
+		Page lruPrev, lruNext;
+
+		Page(int id, boolean leaf, int capacity) {
+			this.id = id;
+			this.leaf = leaf;
+			keys = new byte[capacity][];
+			if (leaf) values = new byte[capacity][];
+			else children = new int[capacity+1];
+		}
 
-			// 值数组 (每个值4字节)
-			for (int i = 0; i < keyCount; i++) {
-				System.arraycopy(intToBytes(values[i]), 0, data, pos, 4);
-				pos += 4;
-			}
+		void ensureCapacity(int n) {
+			if (keys.length >= n) return;
 
-			// 下一个叶节点地址 (8字节)
-			System.arraycopy(longToBytes(next), 0, data, pos, 8);
-			return data;
+			n = Math.max(n, keys.length * 2);
+			keys = Arrays.copyOf(keys, n);
+			if (leaf) values = Arrays.copyOf(values, n);
+			else children = Arrays.copyOf(children, n+1);
 		}
 
-		// 从字节数组反序列化
-		void deserialize(byte[] data) {
-			int pos = 1; // 跳过节点类型标记
+		int prefixLength() {
+			if (count < 2) return 0;
+			byte[] a = keys[0], b = keys[count-1];
+			int i = Arrays.mismatch(a, b);
+			return i < 0 ? a.length : i;
+		}
 
-			// 读取键数量
-			keyCount = bytesToInt(data, pos);
-			pos += 4;
+		int encodedSize() {
+			int prefix = prefixLength();
+			// 后缀长度的VUInt只会更短，所以这是上界
+			return PAGE_HEADER + prefix + bytes - count * prefix;
+		}
 
-			// 读取键
-			for (int i = 0; i < keyCount; i++) {
-				keys[i] = bytesToInt(data, pos);
-				pos += 4;
+		/**
+		 * @return 第一个大于等于key的位置
+		 */
+		int lowerBound(byte[] key) {
+			int low = 0, high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = Arrays.compareUnsigned(keys[mid], key);
+				if (cmp < 0) low = mid + 1;
+				else if (cmp > 0) high = mid - 1;
+				else return mid;
 			}
+			return low;
+		}
 
-			// 读取值
-			for (int i = 0; i < keyCount; i++) {
-				values[i] = bytesToInt(data, pos);
-				pos += 4;
+		/**
+		 * @return 可能包含key的子节点下标
+		 */
+		int childIndex(byte[] key) {
+			int low = 0, high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (Arrays.compareUnsigned(keys[mid], key) <= 0) low = mid + 1;
+				else high = mid - 1;
 			}
-
-			// 读取下一个叶节点地址
-			next = bytesToLong(data, pos);
+			return low;
 		}
 	}
 
-	// 内部节点类
-	private class InternalNode extends Node {
-		long[] children = new long[ORDER]; // 子节点文件地址
-
-		// 序列化内部节点
-		byte[] serialize() {
-			byte[] data = new byte[BLOCK_SIZE];
-			int pos = 0;
-
-			data[pos++] = INTERNAL_NODE;
-			System.arraycopy(intToBytes(keyCount), 0, data, pos, 4);
-			pos += 4;
-
-			// 键数组
-			for (int i = 0; i < keyCount; i++) {
-				System.arraycopy(intToBytes(keys[i]), 0, data, pos, 4);
-				pos += 4;
+	private static int varIntSize(int n) {return n < 0x80 ? 1 : n < 0x4000 ? 2 : n < 0x200000 ? 3 : n < 0x10000000 ? 4 : 5;}
+	private static int leafEntrySize(byte[] key, byte[] value) {return varIntSize(key.length) + key.length + varIntSize(value.length) + value.length;}
+	private static int internalEntrySize(byte[] key) {return varIntSize(key.length) + key.length + 4;}
+
+	//region 缓冲池
+	private Page page(int id) throws IOException {
+		var page = pages.get(id);
+		if (page != null) {
+			if (page != lruTail) {
+				unlinkLru(page);
+				linkLru(page);
 			}
-
-			// 子节点地址（比键多一个）
-			for (int i = 0; i <= keyCount; i++) {
-				System.arraycopy(longToBytes(children[i]), 0, data, pos, 8);
-				pos += 8;
-			}
-			return data;
+			return page;
 		}
 
-		// 反序列化内部节点
-		void deserialize(byte[] data) {
-			int pos = 1; // 跳过节点类型
-			keyCount = bytesToInt(data, pos);
-			pos += 4;
-
-			for (int i = 0; i < keyCount; i++) {
-				keys[i] = bytesToInt(data, pos);
-				pos += 4;
-			}
-
-			for (int i = 0; i <= keyCount; i++) {
-				children[i] = bytesToLong(data, pos);
-				pos += 8;
-			}
-		}
+		page = readPage(id);
+		pages.put(id, page);
+		linkLru(page);
+		return page;
 	}
 
-	// 辅助函数：int转字节数组
-	private static byte[] intToBytes(int value) {
-		return new byte[] {
-				(byte)(value >>> 24),
-				(byte)(value >>> 16),
-				(byte)(value >>> 8),
-				(byte)value
-		};
+	private Page allocate(boolean leaf) {
+		var page = new Page(pageCount++, leaf, 16);
+		page.dirty = true;
+		pages.put(page.id, page);
+		linkLru(page);
+		metaDirty = true;
+		return page;
 	}
 
-	// 辅助函数：字节数组转int
-	private static int bytesToInt(byte[] bytes, int offset) {
-		return ((bytes[offset] & 0xFF) << 24) |
-				((bytes[offset+1] & 0xFF) << 16) |
-				((bytes[offset+2] & 0xFF) << 8) |
-				(bytes[offset+3] & 0xFF);
+	private void linkLru(Page page) {
+		page.lruPrev = lruTail;
+		page.lruNext = null;
+		if (lruTail == null) lruHead = page;
+		else lruTail.lruNext = page;
+		lruTail = page;
+	}
+	private void unlinkLru(Page page) {
+		if (page.lruPrev == null) lruHead = page.lruNext;
+		else page.lruPrev.lruNext = page.lruNext;
+		if (page.lruNext == null) lruTail = page.lruPrev;
+		else page.lruNext.lruPrev = page.lruPrev;
+		page.lruPrev = page.lruNext = null;
 	}
 
-	// 辅助函数：long转字节数组
-	private static byte[] longToBytes(long value) {
-		byte[] result = new byte[8];
-		for (int i = 7; i >= 0; i--) {
-			result[i] = (byte)(value & 0xFF);
-			value >>= 8;
+	/**
+	 * 挤出最久未使用的页.
+	 * 只在操作之间调用，所以正在修改的页不会被挤出
+	 */
+	private void trim() throws IOException {
+		while (pages.size() > cacheCapacity) {
+			var page = lruHead;
+			if (page.dirty) writePage(page);
+			unlinkLru(page);
+			pages.remove(page.id);
 		}
-		return result;
 	}
 
-	// 辅助函数：字节数组转long
-	private static long bytesToLong(byte[] bytes, int offset) {
-		long value = 0;
-		for (int i = 0; i < 8; i++) {
-			value = (value << 8) | (bytes[offset+i] & 0xFF);
+	/**
+	 * 按页号顺序写回所有脏页和元数据
+	 */
+	public void flush() throws IOException {
+		var dirty = new ArrayList<Page>();
+		for (var page : pages.values()) {
+			if (page.dirty) dirty.add(page);
 		}
-		return value;
-	}
+		dirty.sort((a, b) -> Integer.compare(a.id, b.id));
+		for (int i = 0; i < dirty.size(); i++) writePage(dirty.get(i));
 
-	// 从文件读取节点
-	private Node readNode(long address) throws IOException {
-		file.seek(address);
-		byte[] data = new byte[BLOCK_SIZE];
-		file.readFully(data);
+		if (metaDirty) {
+			var buf = new ByteList(pageBuffer);
+			buf.clear();
+			buf.putInt(MAGIC).putInt(pageSize).putInt(rootPage).putInt(height).putInt(pageCount).putLong(size);
+			Arrays.fill(pageBuffer, buf.wIndex(), pageSize, (byte) 0);
 
-		if (data[0] == LEAF_NODE) {
-			LeafNode node = new LeafNode();
-			node.deserialize(data);
-			return node;
-		} else {
-			InternalNode node = new InternalNode();
-			node.deserialize(data);
-			return node;
+			file.seek(0);
+			file.write(pageBuffer, 0, pageSize);
+			metaDirty = false;
 		}
+		file.flush();
 	}
 
-	// 写入节点到文件
-	private void writeNode(Node node, long address) throws IOException {
-		file.seek(address);
-		if (node instanceof LeafNode) {
-			file.write(((LeafNode)node).serialize());
-		} else {
-			file.write(((InternalNode)node).serialize());
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			file.close();
 		}
 	}
-
-	// 插入键值对
-	public void insert(int key, int value) throws IOException {
-		InsertResult result = insert(rootAddress, key, value);
-		if (result != null) {
-			// 创建新根节点
-			InternalNode newRoot = new InternalNode();
-			newRoot.keyCount = 1;
-			newRoot.keys[0] = result.splitKey;
-			newRoot.children[0] = rootAddress;
-			newRoot.children[1] = result.newChildAddress;
-
-			// 更新根节点地址
-			rootAddress = file.length();
-			writeNode(newRoot, rootAddress);
-			writeRootAddress();
+	//endregion
+	//region 序列化
+	private void writePage(Page page) throws IOException {
+		var buf = new ByteList(pageBuffer);
+		buf.clear();
+
+		int prefix = page.prefixLength();
+		buf.put(page.leaf ? LEAF_NODE : INTERNAL_NODE).putVUInt(page.count).putVUInt(prefix);
+		if (prefix > 0) buf.put(page.keys[0], 0, prefix);
+		buf.putInt(page.leaf ? page.next : page.children[0]);
+
+		for (int i = 0; i < page.count; i++) {
+			byte[] key = page.keys[i];
+			buf.putVUInt(key.length - prefix).put(key, prefix, key.length - prefix);
+			if (page.leaf) {
+				byte[] value = page.values[i];
+				buf.putVUInt(value.length).put(value);
+			} else {
+				buf.putInt(page.children[i+1]);
+			}
 		}
-	}
+		if (buf.wIndex() > pageSize) throw new IllegalStateException("页#"+page.id+"溢出: "+buf.wIndex());
+		Arrays.fill(pageBuffer, buf.wIndex(), pageSize, (byte) 0);
 
-	// 递归插入辅助方法
-	private InsertResult insert(long nodeAddress, int key, int value) throws IOException {
-		Node node = readNode(nodeAddress);
+		file.seek((long) page.id * pageSize);
+		file.write(pageBuffer, 0, pageSize);
+		page.dirty = false;
+	}
 
-		if (node instanceof LeafNode) {
-			LeafNode leaf = (LeafNode) node;
-			return insertIntoLeaf(leaf, nodeAddress, key, value);
-		} else {
-			InternalNode internal = (InternalNode) node;
-			int idx = Arrays.binarySearch(internal.keys, 0, internal.keyCount, key);
-			if (idx < 0) idx = -idx - 1; // 转换为插入位置
-
-			// 递归插入子节点
-			InsertResult result = insert(internal.children[idx], key, value);
-
-			if (result != null) {
-				// 处理分裂结果
-				if (internal.keyCount < ORDER - 1) {
-					// 内部节点有空间
-					insertIntoInternal(internal, idx, result.splitKey, result.newChildAddress);
-					writeNode(internal, nodeAddress);
-					return null;
-				} else {
-					// 内部节点分裂
-					return splitInternalNode(internal, nodeAddress, idx, result);
-				}
+	private Page readPage(int id) throws IOException {
+		if (id <= 0 || id >= pageCount) throw new IOException("页号超出范围: "+id);
+
+		file.seek((long) id * pageSize);
+		file.readFully(pageBuffer, 0, pageSize);
+		var buf = new ByteList(pageBuffer);
+
+		byte type = buf.readByte();
+		if (type != LEAF_NODE && type != INTERNAL_NODE) throw new IOException("页#"+id+"已损坏: type="+type);
+
+		int count = buf.readVUInt();
+		var page = new Page(id, type == LEAF_NODE, Math.max(count, 16));
+		page.count = count;
+
+		byte[] prefix = buf.readBytes(buf.readVUInt());
+		int link = buf.readInt();
+		if (page.leaf) page.next = link;
+		else page.children[0] = link;
+
+		int bytes = 0;
+		for (int i = 0; i < count; i++) {
+			int suffix = buf.readVUInt();
+			byte[] key = new byte[prefix.length + suffix];
+			System.arraycopy(prefix, 0, key, 0, prefix.length);
+			buf.readFully(key, prefix.length, suffix);
+			page.keys[i] = key;
+
+			if (page.leaf) {
+				byte[] value = buf.readBytes(buf.readVUInt());
+				page.values[i] = value;
+				bytes += leafEntrySize(key, value);
+			} else {
+				page.children[i+1] = buf.readInt();
+				bytes += internalEntrySize(key);
 			}
-			return null;
 		}
+		page.bytes = bytes;
+		return page;
+	}
+	//endregion
+	//region 查询
+	public long size() {return size;}
+	public int height() {return height;}
+
+	@Nullable
+	public byte[] get(byte[] key) throws IOException {
+		var page = findLeaf(key);
+		int i = page.lowerBound(key);
+		byte[] value = i < page.count && Arrays.equals(page.keys[i], key) ? page.values[i] : null;
+		trim();
+		return value;
 	}
 
-	// 插入到叶节点
-	private InsertResult insertIntoLeaf(LeafNode leaf, long address, int key, int value) {
-		int idx = Arrays.binarySearch(leaf.keys, 0, leaf.keyCount, key);
-		if (idx >= 0) {
-			// 键已存在，更新值
-			leaf.values[idx] = value;
-			return null;
-		}
-
-		idx = -idx - 1; // 插入位置
+	private Page findLeaf(byte[] key) throws IOException {
+		var page = page(rootPage);
+		while (!page.leaf) page = page(page.children[page.childIndex(key)]);
+		return page;
+	}
 
-		if (leaf.keyCount < ORDER - 1) {
-			// 节点有空间
-			System.arraycopy(leaf.keys, idx, leaf.keys, idx+1, leaf.keyCount - idx);
-			System.arraycopy(leaf.values, idx, leaf.values, idx+1, leaf.keyCount - idx);
-			leaf.keys[idx] = key;
-			leaf.values[idx] = value;
-			leaf.keyCount++;
-			return null;
+	/**
+	 * 遍历[from, to)中的键值对，参数为null表示不限制.
+	 * 游标移动时不分配对象，{@link Cursor#key()}和{@link Cursor#value()}返回的数组不应被修改.
+	 * 在遍历过程中修改树会使游标失效.
+	 */
+	public Cursor cursor(@Nullable byte[] from, @Nullable byte[] to) throws IOException {
+		Page leaf;
+		int index;
+		if (from == null) {
+			leaf = page(rootPage);
+			while (!leaf.leaf) leaf = page(leaf.children[0]);
+			index = 0;
 		} else {
-			// 叶节点分裂
-			return splitLeafNode(leaf, address, key, value);
+			leaf = findLeaf(from);
+			index = leaf.lowerBound(from);
 		}
+		return new Cursor(leaf, index - 1, to);
 	}
 
-	// 分裂叶节点
-	private InsertResult splitLeafNode(LeafNode leaf, long address, int key, int value) {
-		// 创建新叶节点
-		LeafNode newLeaf = new LeafNode();
-		int splitPoint = (ORDER + 1) / 2;
-		int totalItems = leaf.keyCount + 1;
-
-		// 临时存储所有键值（包括新键）
-		int[] tempKeys = Arrays.copyOf(leaf.keys, totalItems);
-		int[] tempValues = Arrays.copyOf(leaf.values, totalItems);
-
-		// 插入新键值
-		int insertIdx = Arrays.binarySearch(tempKeys, 0, leaf.keyCount, key);
-		if (insertIdx < 0) insertIdx = -insertIdx - 1;
-		System.arraycopy(tempKeys, insertIdx, tempKeys, insertIdx+1, leaf.keyCount - insertIdx);
-		System.arraycopy(tempValues, insertIdx, tempValues, insertIdx+1, leaf.keyCount - insertIdx);
-		tempKeys[insertIdx] = key;
-		tempValues[insertIdx] = value;
-
-		// 分配键值
-		leaf.keyCount = splitPoint;
-		newLeaf.keyCount = totalItems - splitPoint;
-
-		System.arraycopy(tempKeys, 0, leaf.keys, 0, splitPoint);
-		System.arraycopy(tempValues, 0, leaf.values, 0, splitPoint);
-		System.arraycopy(tempKeys, splitPoint, newLeaf.keys, 0, newLeaf.keyCount);
-		System.arraycopy(tempValues, splitPoint, newLeaf.values, 0, newLeaf.keyCount);
-
-		// 更新链表指针
-		newLeaf.next = leaf.next;
-		try {
-			leaf.next = file.length(); // 新节点地址将在写入时确定
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	public final class Cursor {
+		private Page leaf;
+		private int index;
+		private final byte[] end;
+		private final int expectedModCount = modCount;
+
+		Cursor(Page leaf, int index, byte[] end) {
+			this.leaf = leaf;
+			this.index = index;
+			this.end = end;
 		}
 
-		// 创建分裂结果
-		InsertResult result = new InsertResult();
-		result.splitKey = newLeaf.keys[0]; // 新节点的第一个键作为分裂键
-		result.newChildAddress = leaf.next; // 新节点地址
+		/**
+		 * @return 是否移动到了下一个键值对
+		 */
+		public boolean next() throws IOException {
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (leaf == null) return false;
+
+			index++;
+			while (index >= leaf.count) {
+				if (leaf.next < 0) {
+					leaf = null;
+					return false;
+				}
 
-		return result;
-	}
+				leaf = page(leaf.next);
+				index = 0;
+				trim();
+			}
 
-	// 处理内部节点插入
-	private void insertIntoInternal(InternalNode node, int idx, int splitKey, long newChildAddress) {
-		// 移动键和子节点指针
-		System.arraycopy(node.keys, idx, node.keys, idx+1, node.keyCount - idx);
-		System.arraycopy(node.children, idx+1, node.children, idx+2, node.keyCount - idx);
+			if (end != null && Arrays.compareUnsigned(leaf.keys[index], end) >= 0) {
+				leaf = null;
+				return false;
+			}
+			return true;
+		}
 
-		// 插入新键和指针
-		node.keys[idx] = splitKey;
-		node.children[idx+1] = newChildAddress;
-		node.keyCount++;
+		public byte[] key() {return leaf.keys[index];}
+		public byte[] value() {return leaf.values[index];}
 	}
+	//endregion
+	//region 修改
+	/**
+	 * @return 之前的值
+	 */
+	@Nullable
+	public byte[] put(byte[] key, byte[] value) throws IOException {
+		if (leafEntrySize(key, value) > maxEntrySize) throw new IllegalArgumentException("键值对过长: "+key.length+"+"+value.length+" > "+maxEntrySize);
+
+		modCount++;
+		splitKey = null;
+		byte[] prev = insert(page(rootPage), key, value);
+
+		if (splitKey != null) {
+			// 创建新根节点
+			var newRoot = allocate(false);
+			newRoot.count = 1;
+			newRoot.keys[0] = splitKey;
+			newRoot.children[0] = rootPage;
+			newRoot.children[1] = splitPage;
+			newRoot.bytes = internalEntrySize(splitKey);
+
+			rootPage = newRoot.id;
+			height++;
+			splitKey = null;
+		}
 
-	// 分裂内部节点
-	private InsertResult splitInternalNode(InternalNode node, long address, int idx, InsertResult childResult) {
-		// 创建临时数组容纳所有键和指针
-		int totalKeys = node.keyCount + 1;
-		int[] tempKeys = new int[totalKeys];
-		long[] tempChildren = new long[totalKeys + 1];
+		if (prev == null) {
+			size++;
+			metaDirty = true;
+		}
+		trim();
+		return prev;
+	}
 
-		// 复制现有数据
-		System.arraycopy(node.keys, 0, tempKeys, 0, idx);
-		System.arraycopy(node.children, 0, tempChildren, 0, idx+1);
+	private byte[] insert(Page page, byte[] key, byte[] value) throws IOException {
+		if (page.leaf) {
+			byte[] prev = null;
+
+			int i = page.lowerBound(key);
+			if (i < page.count && Arrays.equals(page.keys[i], key)) {
+				// 键已存在，更新值
+				prev = page.values[i];
+				page.bytes += value.length - prev.length + varIntSize(value.length) - varIntSize(prev.length);
+				page.values[i] = value;
+			} else {
+				page.ensureCapacity(page.count+1);
+				System.arraycopy(page.keys, i, page.keys, i+1, page.count - i);
+				System.arraycopy(page.values, i, page.values, i+1, page.count - i);
+				page.keys[i] = key;
+				page.values[i] = value;
+				page.count++;
+				page.bytes += leafEntrySize(key, value);
+			}
 
-		// 插入新键和指针
-		tempKeys[idx] = childResult.splitKey;
-		tempChildren[idx+1] = childResult.newChildAddress;
+			page.dirty = true;
+			if (page.encodedSize() > pageSize) split(page);
+			return prev;
+		}
 
-		System.arraycopy(node.keys, idx, tempKeys, idx+1, node.keyCount - idx);
-		System.arraycopy(node.children, idx+1, tempChildren, idx+2, node.keyCount - idx);
+		int idx = page.childIndex(key);
+		byte[] prev = insert(page(page.children[idx]), key, value);
+
+		if (splitKey != null) {
+			// 处理分裂结果
+			byte[] sep = splitKey;
+			page.ensureCapacity(page.count+1);
+			System.arraycopy(page.keys, idx, page.keys, idx+1, page.count - idx);
+			System.arraycopy(page.children, idx+1, page.children, idx+2, page.count - idx);
+			page.keys[idx] = sep;
+			page.children[idx+1] = splitPage;
+			page.count++;
+			page.bytes += internalEntrySize(sep);
+			page.dirty = true;
+
+			splitKey = null;
+			if (page.encodedSize() > pageSize) split(page);
+		}
+		return prev;
+	}
 
-		// 确定分裂点
-		int splitPoint = totalKeys / 2;
-		int promoteKey = tempKeys[splitPoint];
+	/**
+	 * 按去掉公共前缀后的编码长度对半分裂，结果保存在{@link #splitKey}和{@link #splitPage}
+	 */
+	private void split(Page page) {
+		int prefix = page.prefixLength();
+		int half = (page.bytes - page.count * prefix) / 2;
+
+		int mid = 0, acc = 0;
+		while (mid < page.count - 1) {
+			acc += (page.leaf ? leafEntrySize(page.keys[mid], page.values[mid]) : internalEntrySize(page.keys[mid])) - prefix;
+			if (acc >= half) break;
+			mid++;
+		}
+		// 两边都至少有一项，内部节点上提的键不留在任何一边
+		if (mid == 0) mid = 1;
+		if (!page.leaf && mid == page.count - 1) mid--;
+
+		var right = allocate(page.leaf);
+		int rightCount;
+		if (page.leaf) {
+			rightCount = page.count - mid;
+			right.ensureCapacity(rightCount);
+			System.arraycopy(page.keys, mid, right.keys, 0, rightCount);
+			System.arraycopy(page.values, mid, right.values, 0, rightCount);
+
+			right.next = page.next;
+			page.next = right.id;
+			splitKey = shortestSeparator(page.keys[mid-1], page.keys[mid]);
+		} else {
+			rightCount = page.count - mid - 1;
+			right.ensureCapacity(rightCount);
+			System.arraycopy(page.keys, mid+1, right.keys, 0, rightCount);
+			System.arraycopy(page.children, mid+1, right.children, 0, rightCount+1);
+			splitKey = page.keys[mid];
+		}
 
-		// 创建新内部节点
-		InternalNode newNode = new InternalNode();
-		newNode.keyCount = totalKeys - splitPoint - 1;
+		right.count = rightCount;
+		Arrays.fill(page.keys, mid, page.count, null);
+		if (page.leaf) Arrays.fill(page.values, mid, page.count, null);
+		page.count = mid;
 
-		// 分配键和指针
-		node.keyCount = splitPoint;
-		System.arraycopy(tempKeys, splitPoint+1, newNode.keys, 0, newNode.keyCount);
-		System.arraycopy(tempChildren, splitPoint+1, newNode.children, 0, newNode.keyCount + 1);
+		recount(page);
+		recount(right);
+		splitPage = right.id;
+	}
 
-		// 创建结果
-		InsertResult result = new InsertResult();
-		result.splitKey = promoteKey;
-		try {
-			result.newChildAddress = file.length(); // 新节点地址
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	private static void recount(Page page) {
+		int bytes = 0;
+		for (int i = 0; i < page.count; i++) {
+			bytes += page.leaf ? leafEntrySize(page.keys[i], page.values[i]) : internalEntrySize(page.keys[i]);
 		}
-
-		return result;
+		page.bytes = bytes;
 	}
 
-	// 查找键值
-	public Integer search(int key) throws IOException {
-		return search(rootAddress, key);
+	/**
+	 * @return 大于left并且小于等于right的最短的right的前缀
+	 */
+	private static byte[] shortestSeparator(byte[] left, byte[] right) {
+		int i = Arrays.mismatch(left, right);
+		return i + 1 >= right.length ? right : Arrays.copyOf(right, i + 1);
 	}
 
-	private Integer search(long nodeAddress, int key) throws IOException {
-		Node node = readNode(nodeAddress);
-
-		if (node instanceof LeafNode) {
-			LeafNode leaf = (LeafNode) node;
-			int idx = Arrays.binarySearch(leaf.keys, 0, leaf.keyCount, key);
-			return idx >= 0 ? leaf.values[idx] : null;
-		} else {
-			InternalNode internal = (InternalNode) node;
-			int idx = Arrays.binarySearch(internal.keys, 0, internal.keyCount, key);
-			if (idx < 0) idx = -idx - 1;
-			return search(internal.children[idx], key);
+	/**
+	 * @return 删除的值
+	 */
+	@Nullable
+	public byte[] remove(byte[] key) throws IOException {
+		var page = findLeaf(key);
+		int i = page.lowerBound(key);
+
+		byte[] prev = null;
+		if (i < page.count && Arrays.equals(page.keys[i], key)) {
+			modCount++;
+			prev = page.values[i];
+			page.bytes -= leafEntrySize(key, prev);
+			page.count--;
+			System.arraycopy(page.keys, i+1, page.keys, i, page.count - i);
+			System.arraycopy(page.values, i+1, page.values, i, page.count - i);
+			page.keys[page.count] = null;
+			page.values[page.count] = null;
+			page.dirty = true;
+
+			size--;
+			metaDirty = true;
 		}
-	}
 
-	// 范围查询 [start, end]
-	public List<Integer> rangeQuery(int start, int end) throws IOException {
-		List<Integer> results = new ArrayList<>();
-		long leafAddress = findLeaf(rootAddress, start);
-
-		while (leafAddress != -1) {
-			LeafNode leaf = (LeafNode) readNode(leafAddress);
-			for (int i = 0; i < leaf.keyCount; i++) {
-				if (leaf.keys[i] > end) return results;
-				if (leaf.keys[i] >= start) {
-					results.add(leaf.values[i]);
-				}
-			}
-			leafAddress = leaf.next;
-		}
-		return results;
+		trim();
+		return prev;
 	}
 
-	// 查找包含某个键的叶节点
-	private long findLeaf(long nodeAddress, int key) throws IOException {
-		Node node = readNode(nodeAddress);
-		if (node instanceof LeafNode) {
-			return nodeAddress;
-		} else {
-			InternalNode internal = (InternalNode) node;
-			int idx = Arrays.binarySearch(internal.keys, 0, internal.keyCount, key);
-			if (idx < 0) idx = -idx - 1;
-			return findLeaf(internal.children[idx], key);
+	/**
+	 * 从有序的数据一次性构建整棵树，比逐个插入快得多，并且每页都按fillFactor填满.
+	 * 只能在树为空时调用.
+	 * @param entries 键必须严格递增
+	 * @param fillFactor 每页填充的比例，之后还要插入的话可以留出空间
+	 */
+	public void bulkLoad(Iterator<? extends Map.Entry<byte[], byte[]>> entries, float fillFactor) throws IOException {
+		if (size != 0) throw new IllegalStateException("树不是空的");
+		if (!(fillFactor > 0 && fillFactor <= 1)) throw new IllegalArgumentException("fillFactor="+fillFactor);
+		modCount++;
+
+		int limit = Math.max((int) (pageSize * fillFactor), PAGE_HEADER + maxEntrySize * 2);
+		var children = new IntList();
+		var separators = new ArrayList<byte[]>();
+
+		// 删空的树可能还留着内部节点作为根，这时换一个新的叶节点做根（旧页和删除留下的空页一样不回收）
+		if (height != 1) {
+			rootPage = allocate(true).id;
+			height = 1;
 		}
-	}
 
-	// 关闭文件
-	public void close() throws IOException {
-		file.close();
-	}
+		// 空树的根就是第一个叶节点
+		var leaf = page(rootPage);
+		children.add(leaf.id);
+
+		byte[] lastKey = null;
+		long count = 0;
+		while (entries.hasNext()) {
+			var entry = entries.next();
+			byte[] key = entry.getKey(), value = entry.getValue();
+			int entrySize = leafEntrySize(key, value);
+			if (entrySize > maxEntrySize) throw new IllegalArgumentException("键值对过长: "+key.length+"+"+value.length+" > "+maxEntrySize);
+			if (lastKey != null && Arrays.compareUnsigned(lastKey, key) >= 0) throw new IllegalArgumentException("键没有严格递增");
+
+			if (leaf.count > 0) {
+				// 键是有序的，所以第一个和最后一个的公共前缀就是整页的
+				int prefix = Arrays.mismatch(leaf.keys[0], key);
+
+				if (PAGE_HEADER + prefix + leaf.bytes + entrySize - (leaf.count + 1) * prefix > limit) {
+					var next = allocate(true);
+					leaf.next = next.id;
+					leaf.dirty = true;
+
+					separators.add(shortestSeparator(lastKey, key));
+					children.add(next.id);
+					leaf = next;
+					trim();
+				}
+			}
 
-	// 插入结果辅助类
-	private static class InsertResult {
-		int splitKey;          // 分裂后提升的键
-		long newChildAddress;  // 新子节点地址
-	}
+			leaf.ensureCapacity(leaf.count+1);
+			leaf.keys[leaf.count] = key;
+			leaf.values[leaf.count] = value;
+			leaf.count++;
+			leaf.bytes += entrySize;
+			leaf.dirty = true;
 
-	public static void main(String[] args) throws IOException {
-		BPlusTree tree = new BPlusTree("bplustree.dat");
+			lastKey = key;
+			count++;
+		}
 
-		// 插入示例数据
-		tree.insert(10, 100);
-		tree.insert(20, 200);
-		tree.insert(5, 50);
-		tree.insert(15, 150);
-		tree.insert(25, 250);
-		tree.insert(30, 300);
+		// 逐层向上构建内部节点
+		while (children.size() > 1) {
+			var parents = new IntList();
+			var parentSeparators = new ArrayList<byte[]>();
+
+			var node = allocate(false);
+			node.children[0] = children.get(0);
+			parents.add(node.id);
+
+			for (int i = 1; i < children.size(); i++) {
+				byte[] sep = separators.get(i-1);
+				int entrySize = internalEntrySize(sep);
+
+				if (node.count > 0 && PAGE_HEADER + node.bytes + entrySize > limit) {
+					// sep上提到上一层，当前子节点成为新节点的最左侧
+					node = allocate(false);
+					node.children[0] = children.get(i);
+					parents.add(node.id);
+					parentSeparators.add(sep);
+					trim();
+					continue;
+				}
 
-		// 查找测试
-		System.out.println("Search 15: " + tree.search(15)); // 150
-		System.out.println("Search 30: " + tree.search(30)); // 300
-		System.out.println("Search 99: " + tree.search(99)); // null
+				node.ensureCapacity(node.count+1);
+				node.keys[node.count] = sep;
+				node.children[++node.count] = children.get(i);
+				node.bytes += entrySize;
+			}
 
-		// 范围查询测试
-		System.out.println("Range [12, 28]: " + tree.rangeQuery(12, 28)); // [150, 200, 250]
+			children = parents;
+			separators = parentSeparators;
+			height++;
+		}
 
-		tree.close();
+		rootPage = children.get(0);
+		size = count;
+		metaDirty = true;
+		trim();
 	}
-}
\ No newline at end of file
+	//endregion
+}
@@ -0,0 +1,197 @@
+package roj.config.mapper;
+
+import roj.ci.annotation.IndirectReference;
+import roj.util.ByteList;
+import roj.util.DynByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+import static roj.config.MsgPackParser.*;
+
+/**
+ * {@link ObjectMapper#DIRECT_CODEC}生成的序列化器使用的字节级写入函数.
+ * 键在生成时就编码好了，以每个char一个字节的字符串常量形式保存，运行时通过{@link DynByteBuf#putAscii(CharSequence)}复制.
+ * 输出和{@link roj.config.JsonSerializer}以及{@link roj.config.MsgPackEncoder.Compressed}相同，除了JSON字符串中的控制字符总是使用\\u转义.
+ *
+ * @author Roj234
+ * @since 2026/10/18 16:30
+ */
+public final class ByteCodec {
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+	//region 生成时
+	private static String latin1(ByteList b) {return new String(b.toByteArray(), StandardCharsets.ISO_8859_1);}
+
+	/**
+	 * @return 逗号、带引号的键和冒号
+	 */
+	static String jsonKey(String name) {
+		var tmp = new ByteList().put(',');
+		json(tmp, name);
+		return latin1(tmp.put(':'));
+	}
+	static String msgPackKey(String name) {
+		var tmp = new ByteList();
+		msgPack(tmp, name);
+		return latin1(tmp);
+	}
+	static String msgPackKey(int key) {
+		var tmp = new ByteList();
+		msgPack(tmp, key);
+		return latin1(tmp);
+	}
+	//endregion
+	//region JSON
+	@IndirectReference
+	public static void jsonNull(DynByteBuf out) {out.putAscii("null");}
+	@IndirectReference
+	public static void json(DynByteBuf out, boolean v) {out.putAscii(v ? "true" : "false");}
+	@IndirectReference
+	public static void json(DynByteBuf out, int v) {json(out, (long) v);}
+	@IndirectReference
+	public static void json(DynByteBuf out, long v) {
+		if (v == Long.MIN_VALUE) {
+			out.putAscii("-9223372036854775808");
+			return;
+		}
+
+		if (v < 0) {
+			out.put('-');
+			v = -v;
+		}
+
+		byte[] digits = new byte[19];
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (int) (v % 10));
+			v /= 10;
+		} while (v != 0);
+		out.put(digits, i, digits.length - i);
+	}
+	// 和TextEmitter一样，float按double写出
+	@IndirectReference
+	public static void json(DynByteBuf out, float v) {json(out, (double) v);}
+	@IndirectReference
+	public static void json(DynByteBuf out, double v) {out.putAscii(Double.toString(v));}
+	@IndirectReference
+	public static void json(DynByteBuf out, char v) {json(out, String.valueOf(v));}
+	@IndirectReference
+	public static void json(DynByteBuf out, String v) {
+		if (v == null) {
+			jsonNull(out);
+			return;
+		}
+
+		out.put('"');
+		int prev = 0;
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if (c >= 32 && c != '"' && c != '\\' && (c < 127 || c > 159)) continue;
+
+			if (prev < i) out.putUTFData(v.substring(prev, i));
+			prev = i+1;
+
+			out.put('\\');
+			switch (c) {
+				case '"', '\\' -> out.put(c);
+				case '\n' -> out.put('n');
+				case '\r' -> out.put('r');
+				case '\t' -> out.put('t');
+				case '\b' -> out.put('b');
+				case '\f' -> out.put('f');
+				default -> out.put('u').put('0').put('0').put(HEX[c >>> 4]).put(HEX[c & 15]);
+			}
+		}
+
+		if (prev == 0) out.putUTFData(v);
+		else if (prev < v.length()) out.putUTFData(v.substring(prev));
+		out.put('"');
+	}
+
+	/**
+	 * 结束对象，每个键都以逗号开头，所以第一个逗号换成左括号
+	 * @param start 第一个键的位置
+	 */
+	@IndirectReference
+	public static void jsonEnd(DynByteBuf out, int start) {
+		if (out.wIndex() == start) out.put('{');
+		else out.set(start, '{');
+		out.put('}');
+	}
+	//endregion
+	//region MsgPack
+	@IndirectReference
+	public static void msgPackNull(DynByteBuf out) {out.put(NULL);}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, boolean v) {out.put(v ? TRUE : FALSE);}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, int v) {
+		if ((byte) v == v) {
+			if (v >= -32) out.put(v);
+			else out.put(INT8).put(v);
+		} else if ((short) v == v) out.put(INT16).putShort(v);
+		else out.put(INT32).putInt(v);
+	}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, long v) {
+		if ((int) v == v) msgPack(out, (int) v);
+		else out.put(INT64).putLong(v);
+	}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, float v) {out.put(FLOAT32).putFloat(v);}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, double v) {out.put(FLOAT64).putDouble(v);}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, char v) {out.put(UINT16).putShort(v);}
+	@IndirectReference
+	public static void msgPack(DynByteBuf out, String v) {
+		if (v == null) {
+			msgPackNull(out);
+			return;
+		}
+
+		int len = DynByteBuf.byteCountUTF8(v);
+		if (len <= 31) out.put(FIXSTR_PREFIX | len);
+		else if (len <= 0xFF) out.put(STR8).put(len);
+		else if (len <= 0xFFFF) out.put(STR16).putShort(len);
+		else out.put(STR32).putInt(len);
+		out.putUTFData0(v, len);
+	}
+
+	@IndirectReference
+	public static void msgPackList(DynByteBuf out, int size) {
+		if (size <= 0xF) out.put(FIXARRAY_PREFIX | size);
+		else if (size <= 0xFFFF) out.put(ARRAY16).putShort(size);
+		else out.put(ARRAY32).putInt(size);
+	}
+
+	/**
+	 * 开始对象
+	 * @param size 键值对的数量，小于0时表示在结束时才知道
+	 * @return 传给{@link #msgPackMapEnd}的位置
+	 */
+	@IndirectReference
+	public static int msgPackMap(DynByteBuf out, int size) {
+		if (size >= 0) {
+			if (size <= 0xF) out.put(FIXMAP_PREFIX | size);
+			else if (size <= 0xFFFF) out.put(MAP16).putShort(size);
+			else out.put(MAP32).putInt(size);
+			return -1;
+		}
+
+		if (out.isReal()) {
+			out.put(MAP16).putShort(0);
+			return out.wIndex() - 2;
+		}
+
+		// 不支持随机访问的话就用流式扩展
+		out.put(FIXEXT_PREFIX).put(-5);
+		return -2;
+	}
+	@IndirectReference
+	public static void msgPackMapEnd(DynByteBuf out, int pos, int size) {
+		if (pos >= 0) out.setShort(pos, size);
+		else if (pos == -2) out.put(STREAM);
+	}
+	//endregion
+}
@@ -6,6 +6,7 @@ import roj.collect.ArrayList;
 import roj.collect.BitSet;
 import roj.collect.HashSet;
 import roj.config.ValueEmitter;
+import roj.util.DynByteBuf;
 import roj.util.Helpers;
 
 import java.util.Collection;
@@ -84,4 +85,33 @@ final class CollectionAdapter extends TypeAdapter {
 			c.pop();
 		}
 	}
+
+	@Override
+	public void writeJson(DynByteBuf out, Object o) {
+		if (valueType == null) throw new IllegalStateException("开启Dynamic模式以序列化任意对象");
+
+		if (o == null) ByteCodec.jsonNull(out);
+		else {
+			out.put('[');
+			boolean first = true;
+			for (Object o1 : (Collection<?>) o) {
+				if (first) first = false;
+				else out.put(',');
+				valueType.writeJson(out, o1);
+			}
+			out.put(']');
+		}
+	}
+
+	@Override
+	public void writeMsgPack(DynByteBuf out, Object o) {
+		if (valueType == null) throw new IllegalStateException("开启Dynamic模式以序列化任意对象");
+
+		Collection<?> ref = (Collection<?>) o;
+		if (o == null) ByteCodec.msgPackNull(out);
+		else {
+			ByteCodec.msgPackList(out, ref.size());
+			for (Object o1 : ref) valueType.writeMsgPack(out, o1);
+		}
+	}
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package roj.config.mapper;
 
 import roj.config.ValueEmitter;
 import roj.reflect.Reflection;
+import roj.util.DynByteBuf;
 import roj.util.Helpers;
 
 /**
@@ -31,4 +32,9 @@ final class EnumAdapter extends TypeAdapter {
 		if (o == null) c.emitNull();
 		else c.emit(((Enum<?>) o).name());
 	}
+
+	@Override
+	public void writeJson(DynByteBuf out, Object o) {ByteCodec.json(out, o == null ? null : ((Enum<?>) o).name());}
+	@Override
+	public void writeMsgPack(DynByteBuf out, Object o) {ByteCodec.msgPack(out, o == null ? null : ((Enum<?>) o).name());}
 }
\ No newline at end of file
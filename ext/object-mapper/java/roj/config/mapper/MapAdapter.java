@@ -5,6 +5,7 @@ import roj.asm.type.IType;
 import roj.collect.BitSet;
 import roj.collect.HashMap;
 import roj.config.ValueEmitter;
+import roj.util.DynByteBuf;
 
 import java.util.List;
 import java.util.Map;
@@ -116,4 +117,42 @@ final class MapAdapter extends TypeAdapter {
 			valueType.write(c, entry.getValue());
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public void writeJson(DynByteBuf out, Object o) {
+		if (valueType == null) throw new IllegalStateException("开启Dynamic模式以序列化任意对象");
+
+		if (o == null) ByteCodec.jsonNull(out);
+		else {
+			out.put('{');
+			boolean first = true;
+			for (Map.Entry<?,?> entry : ((Map<?,?>) o).entrySet()) {
+				if (first) first = false;
+				else out.put(',');
+				ByteCodec.json(out, String.valueOf(entry.getKey()));
+				out.put(':');
+				valueType.writeJson(out, entry.getValue());
+			}
+			out.put('}');
+		}
+	}
+
+	@Override
+	public void writeMsgPack(DynByteBuf out, Object o) {
+		if (valueType == null) throw new IllegalStateException("开启Dynamic模式以序列化任意对象");
+
+		Map<?,?> ref = (Map<?,?>) o;
+		if (ref == null) ByteCodec.msgPackNull(out);
+		else {
+			ByteCodec.msgPackMap(out, ref.size());
+			for (Map.Entry<?,?> entry : ref.entrySet()) {
+				if (keyType == null || !(entry.getKey() instanceof Integer idx)) {
+					ByteCodec.msgPack(out, String.valueOf(entry.getKey()));
+				} else {
+					ByteCodec.msgPack(out, (int) idx);
+				}
+				valueType.writeMsgPack(out, entry.getValue());
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package roj.config.mapper;
 
 import roj.collect.ArrayList;
 import roj.config.ValueEmitter;
+import roj.util.DynByteBuf;
 
 import java.lang.reflect.Array;
 
@@ -72,4 +73,28 @@ final class ObjectArrayAdapter extends TypeAdapter {
 			c.pop();
 		}
 	}
+
+	@Override
+	public void writeJson(DynByteBuf out, Object o) {
+		if (o == null) ByteCodec.jsonNull(out);
+		else {
+			Object[] arr = ((Object[]) o);
+			out.put('[');
+			for (int i = 0; i < arr.length; i++) {
+				if (i != 0) out.put(',');
+				ser.writeJson(out, arr[i]);
+			}
+			out.put(']');
+		}
+	}
+
+	@Override
+	public void writeMsgPack(DynByteBuf out, Object o) {
+		if (o == null) ByteCodec.msgPackNull(out);
+		else {
+			Object[] arr = ((Object[]) o);
+			ByteCodec.msgPackList(out, arr.length);
+			for (Object o1 : arr) ser.writeMsgPack(out, o1);
+		}
+	}
 }
\ No newline at end of file
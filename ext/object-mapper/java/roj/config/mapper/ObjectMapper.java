@@ -121,7 +121,13 @@ public abstract class ObjectMapper {
 	/**
 	 * 使用整数而不是字符串键以压缩，适合Msgpack等原生支持整数键的目标
 	 */
-	NO_SCHEMA = 1024;
+	NO_SCHEMA = 1024,
+	/**
+	 * 额外生成直接向DynByteBuf写入JSON和MsgPack字节的{@link ObjectWriter#writeJson}和{@link ObjectWriter#writeMsgPack}，
+	 * 键在生成时编码为常量，不经过ValueEmitter；字符串键的查找使用生成的hashCode switch
+	 * 不支持SERIALIZE_PARENT、writeObject和访问者形式的As，这些类仍使用ValueEmitter
+	 */
+	DIRECT_CODEC = 2048;
 
 	int flag;
 	public ToIntFunction<Class<?>> perClassFlag;
@@ -132,7 +138,7 @@ public abstract class ObjectMapper {
 	}
 
 	public static ObjectMapper getInstance() {return create(GENERATE|CHECK_INTERFACE|CHECK_PARENT);}
-	public static ObjectMapper getInstance(@MagicConstant(flags = {GENERATE, CHECK_INTERFACE, CHECK_PARENT, PARSE_DYNAMIC, PREFER_DYNAMIC, OBJECT_POOL, SERIALIZE_PUBLIC_ONLY, SERIALIZE_PARENT, NO_SCHEMA}) int flag) {return create(flag);}
+	public static ObjectMapper getInstance(@MagicConstant(flags = {GENERATE, CHECK_INTERFACE, CHECK_PARENT, PARSE_DYNAMIC, PREFER_DYNAMIC, OBJECT_POOL, SERIALIZE_PUBLIC_ONLY, SERIALIZE_PARENT, NO_SCHEMA, DIRECT_CODEC}) int flag) {return create(flag);}
 	public static ObjectMapper getInstance(int flag, ClassLoader classLoader) {return new ObjectMapperImpl(flag, classLoader);}
 
 	private static ObjectMapper create(int flag) {return new ObjectMapperImpl(flag, Reflection.getCallerClass(3, ObjectMapper.class).getClassLoader());}
@@ -5,6 +5,7 @@ import roj.asm.*;
 import roj.asm.annotation.Annotation;
 import roj.asm.attr.Annotations;
 import roj.asm.attr.Attribute;
+import roj.asm.attr.ConstantValue;
 import roj.asm.attr.StringAttribute;
 import roj.asm.cp.CstClass;
 import roj.asm.cp.CstInt;
@@ -474,7 +475,7 @@ final class ObjectMapperImpl extends ObjectMapper {
 		TypeAdapter ser;
 
 		if (!type.isEnum() && (type.getComponentType() == null || !type.getComponentType().isPrimitive())) {
-			name = ((this.flag&OBJECT_POOL) | (flag&(SERIALIZE_PARENT | NO_SCHEMA)))+";"+name;
+			name = ((this.flag&OBJECT_POOL) | (flag&(SERIALIZE_PARENT | NO_SCHEMA | DIRECT_CODEC)))+";"+name;
 		}
 
 		var GENERATED = CACHE.computeIfAbsent(type.getClassLoader(), CACHE_NEW).adapters;
@@ -807,10 +808,15 @@ final class ObjectMapperImpl extends ObjectMapper {
 			cw = keyCw = c.newMethod(ACC_PUBLIC|ACC_FINAL, "key", "(Lroj/config/mapper/MappingContext;Ljava/lang/String;)V");
 			cw.visitSize(3,4);
 
-			cw.field(GETSTATIC, c, fieldIdKey);
-			cw.insn(ALOAD_2);
-			cw.insn(ICONST_M1);
-			cw.invoke(DIRECT_IF_OVERRIDE, "roj/collect/IntBiMap", "getByValueOrDefault", "(Ljava/lang/Object;I)I");
+			if ((flag & DIRECT_CODEC) != 0) {
+				cw.insn(ALOAD_2);
+				cw.invokeS(c.name(), "fid", "(Ljava/lang/String;)I");
+			} else {
+				cw.field(GETSTATIC, c, fieldIdKey);
+				cw.insn(ALOAD_2);
+				cw.insn(ICONST_M1);
+				cw.invoke(DIRECT_IF_OVERRIDE, "roj/collect/IntBiMap", "getByValueOrDefault", "(Ljava/lang/Object;I)I");
+			}
 			cw.insn(DUP);
 			cw.insn(ISTORE_3);
 		}
@@ -846,6 +852,16 @@ final class ObjectMapperImpl extends ObjectMapper {
 			write.insn(ASTORE_2);
 
 			if (parentSerInst != null) invokeParent(write, ALOAD);
+			else if ((flag & DIRECT_CODEC) != 0) {
+				// 键值对的数量在生成完所有字段后才知道，不能ldc一个之后还要修改的CstInt(常量池按值去重，会和fieldCount()的共用)
+				directCount = new CstInt(0);
+				directCountField = c.newField(ACC_PRIVATE|ACC_STATIC|ACC_FINAL, "DIRECT_SIZE", "I");
+				c.fields.get(directCountField).addAttribute(new ConstantValue(directCount));
+				directFields = 0;
+				directFailed = false;
+				directBegin(writeJson = c.newMethod(ACC_PUBLIC|ACC_FINAL, "writeJson", "(Lroj/util/DynByteBuf;Ljava/lang/Object;)V"), data, true);
+				directBegin(writeMsgPack = c.newMethod(ACC_PUBLIC|ACC_FINAL, "writeMsgPack", "(Lroj/util/DynByteBuf;Ljava/lang/Object;)V"), data, false);
+			}
 		}
 		// endregion
 
@@ -1002,6 +1018,32 @@ final class ObjectMapperImpl extends ObjectMapper {
 			write = null;
 		}
 
+		if (writeJson != null) {
+			if (directFailed) {
+				c.methods.remove(c.getMethod("writeJson"));
+				c.methods.remove(c.getMethod("writeMsgPack"));
+			} else {
+				// 只有全部字段都总是写出时才能预先知道键值对的数量
+				directCount.value = directFields;
+
+				writeJson.insn(ALOAD_1);
+				writeJson.vars(ILOAD, 5);
+				writeJson.invokeS(BYTE_CODEC, "jsonEnd", "(Lroj/util/DynByteBuf;I)V");
+				writeJson.insn(RETURN);
+				writeJson.finish();
+
+				writeMsgPack.insn(ALOAD_1);
+				writeMsgPack.vars(ILOAD, 5);
+				writeMsgPack.vars(ILOAD, 6);
+				writeMsgPack.invokeS(BYTE_CODEC, "msgPackMapEnd", "(Lroj/util/DynByteBuf;II)V");
+				writeMsgPack.insn(RETURN);
+				writeMsgPack.finish();
+			}
+			writeJson = writeMsgPack = null;
+			directCount = null;
+		}
+		if ((flag & (DIRECT_CODEC|NO_SCHEMA)) == DIRECT_CODEC) fieldIdSwitch();
+
 		CodeWriter init = c.newMethod(ACC_PUBLIC|ACC_FINAL, "init", "(Lroj/collect/IntBiMap;Lroj/collect/BitSet;)V");
 		init.visitSize(1, 3);
 		init.insn(ALOAD_1);
@@ -1049,6 +1091,50 @@ final class ObjectMapperImpl extends ObjectMapper {
 		return build(o);
 	}
 
+	/**
+	 * 按字段名的hashCode switch，代替运行时的IntBiMap查找
+	 */
+	private void fieldIdSwitch() {
+		var cw = c.newMethod(ACC_PRIVATE|ACC_STATIC, "fid", "(Ljava/lang/String;)I");
+		cw.visitSize(2, 1);
+
+		var entries = new ArrayList<>(fieldIds.selfEntrySet());
+		if (!entries.isEmpty()) {
+			entries.sort((a, b) -> Integer.compare(a.getValue().hashCode(), b.getValue().hashCode()));
+
+			cw.insn(ALOAD_0);
+			cw.invokeV("java/lang/String", "hashCode", "()I");
+			var sw = cw.autoSwitch();
+			sw.def = cw.label();
+			cw.insn(ICONST_M1);
+			cw.insn(IRETURN);
+
+			for (int i = 0; i < entries.size(); i++) {
+				var entry = entries.get(i);
+				int hash = entry.getValue().hashCode();
+				if (i == 0 || hash != entries.get(i-1).getValue().hashCode()) {
+					if (i != 0) {
+						cw.insn(ICONST_M1);
+						cw.insn(IRETURN);
+					}
+					sw.branch(hash, cw.label());
+				}
+
+				Label next = new Label();
+				cw.insn(ALOAD_0);
+				cw.ldc(new CstString(entry.getValue()));
+				cw.invokeV("java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+				cw.jump(IFEQ, next);
+				cw.ldc(entry.getIntKey());
+				cw.insn(IRETURN);
+				cw.label(next);
+			}
+		}
+		cw.insn(ICONST_M1);
+		cw.insn(IRETURN);
+		cw.finish();
+	}
+
 	private String currentObject;
 	private int parentSer;
 	private final BitSet parentExist = new BitSet();
@@ -1190,90 +1276,22 @@ final class ObjectMapperImpl extends ObjectMapper {
 		break;
 		}
 
+		int serId = -1;
+		if (actualType == Type.OBJECT && !"java/lang/String".equals(type.getActualClass())) {
+			Signature serSig = fn.getAttribute(data, Attribute.SIGNATURE);
+			serId = ser(type.getActualClass(), serSig != null ? typeParamToRaw(serSig, data.getAttribute(Attribute.SIGNATURE)) : null);
+		}
+
+		if (writeJson != null && !"SKIP".equals(writeMode)) {
+			directField(writeJson, true, fieldId, data, fn, type, actualName, get, writeMode, as, asId, serId, nullValuePattern);
+			directField(writeMsgPack, false, fieldId, data, fn, type, actualName, get, writeMode, as, asId, serId, nullValuePattern);
+		}
+
 		Label skip = null;
 		cw = write;
 		if (cw != null && !"SKIP".equals(writeMode)) {
 			// 如果可选并且不是基本类型
-			_ActualTypeIsClass:
-			if (!"ALWAYS".equals(writeMode)) {
-				skip = new Label();
-
-				cw.insn(ALOAD_2);
-				if (get == null) cw.field(GETFIELD, data.name(), fn.name(), fn.rawDesc());
-				else cw.invoke(INVOKEVIRTUAL, get);
-
-				switch (actualType) {
-					case Type.OBJECT -> {
-						cw.visitSizeMax(0, 5);
-						cw.vars(ASTORE, 4);
-						if (nullValuePattern == null) {
-							cw.vars(ALOAD, 4);
-							cw.jump(IFNULL, skip);
-						} else {
-							var desc = MemberDescriptor.fromJavapLike(nullValuePattern);
-							cw.field(GETSTATIC, desc.owner, desc.name, desc.rawDesc);
-							cw.vars(ALOAD, 4);
-							cw.invokeV("java/lang/Object", "equals", "(Ljava/lang/Object;)Z");
-							cw.jump(IFNE, skip);
-						}
-
-						if (writeMode.equals("NON_BLANK")) {
-							var actualTypeName = type.getActualClass();
-							if (actualTypeName.startsWith("[")) {
-								cw.vars(ALOAD, 4);
-								cw.insn(ARRAYLENGTH);
-								cw.jump(IFEQ, skip);
-							} else {
-								Class<?> type111;
-								try {
-									type111 = type.toClass(classLoader);
-								} catch (ClassNotFoundException e) {
-									throw OperationDone.NEVER;
-								}
-
-								if (String.class.isAssignableFrom(type111)) {
-									cw.vars(ALOAD, 4);
-									cw.invokeV("java/lang/String", "isEmpty", "()Z");
-									cw.jump(IFNE, skip);
-								} else if (CharSequence.class.isAssignableFrom(type111)) {
-									cw.vars(ALOAD, 4);
-									cw.invokeItf("java/lang/CharSequence", "length", "()I");
-									cw.jump(IFEQ, skip);
-								} else if (Map.class.isAssignableFrom(type111)) {
-									cw.vars(ALOAD, 4);
-									cw.invokeItf("java/util/Map", "isEmpty", "()Z");
-									cw.jump(IFNE, skip);
-								} else if (Collection.class.isAssignableFrom(type111)) {
-									cw.vars(ALOAD, 4);
-									cw.invokeItf("java/util/Collection", "isEmpty", "()Z");
-									cw.jump(IFNE, skip);
-								} else if (java.util.Optional.class.isAssignableFrom(type111)) {
-									cw.vars(ALOAD, 4);
-									cw.invokeV("java/util/Optional", "isPresent", "()Z");
-									cw.jump(IFEQ, skip);
-								}
-							}
-						}
-
-						break _ActualTypeIsClass;
-					}
-					case Type.LONG -> {
-						cw.insn(LCONST_0);
-						cw.insn(LCMP);
-						cw.visitSizeMax(4, 0);
-					}
-					case Type.FLOAT -> {
-						cw.insn(FCONST_0);
-						cw.insn(FCMPG);
-					}
-					case Type.DOUBLE -> {
-						cw.insn(DCONST_0);
-						cw.insn(DCMPG);
-						cw.visitSizeMax(4, 0);
-					}
-				}
-				cw.jump(IFEQ, skip);
-			}
+			skip = writeSkip(cw, data, fn, type, actualType, get, writeMode, nullValuePattern);
 
 			if (comment != null) {
 				cw.insn(ALOAD_1);
@@ -1293,10 +1311,7 @@ final class ObjectMapperImpl extends ObjectMapper {
 		cw = keyCw;
 		block:
 		if (actualType == Type.OBJECT && !"java/lang/String".equals(type.getActualClass())) {
-			int id;
-			String serType = type.getActualClass();
-			Signature serSig = fn.getAttribute(data, Attribute.SIGNATURE);
-			id = ser(serType, serSig != null ? typeParamToRaw(serSig, data.getAttribute(Attribute.SIGNATURE)) : null);
+			int id = serId;
 
 			keySwitch.branch(fieldId, cw.label());
 			cw.insn(ALOAD_1);
@@ -1375,6 +1390,178 @@ final class ObjectMapperImpl extends ObjectMapper {
 
 		if (skip != null) cw.label(skip);
 	}
+	/**
+	 * 可选字段的跳过条件，对象类型的值保存在变量4中
+	 * @return 跳过时的目标，ALWAYS返回null
+	 */
+	private Label writeSkip(CodeWriter cw, ClassNode data, FieldNode fn, Type type, int actualType, MethodNode get, String writeMode, String nullValuePattern) {
+		if ("ALWAYS".equals(writeMode)) return null;
+
+		var skip = new Label();
+
+		cw.insn(ALOAD_2);
+		if (get == null) cw.field(GETFIELD, data.name(), fn.name(), fn.rawDesc());
+		else cw.invoke(INVOKEVIRTUAL, get);
+
+		switch (actualType) {
+			case Type.OBJECT -> {
+				cw.visitSizeMax(0, 5);
+				cw.vars(ASTORE, 4);
+				if (nullValuePattern == null) {
+					cw.vars(ALOAD, 4);
+					cw.jump(IFNULL, skip);
+				} else {
+					var desc = MemberDescriptor.fromJavapLike(nullValuePattern);
+					cw.field(GETSTATIC, desc.owner, desc.name, desc.rawDesc);
+					cw.vars(ALOAD, 4);
+					cw.invokeV("java/lang/Object", "equals", "(Ljava/lang/Object;)Z");
+					cw.jump(IFNE, skip);
+				}
+
+				if (writeMode.equals("NON_BLANK")) {
+					var actualTypeName = type.getActualClass();
+					if (actualTypeName.startsWith("[")) {
+						cw.vars(ALOAD, 4);
+						cw.insn(ARRAYLENGTH);
+						cw.jump(IFEQ, skip);
+					} else {
+						Class<?> type111;
+						try {
+							type111 = type.toClass(classLoader);
+						} catch (ClassNotFoundException e) {
+							throw OperationDone.NEVER;
+						}
+
+						if (String.class.isAssignableFrom(type111)) {
+							cw.vars(ALOAD, 4);
+							cw.invokeV("java/lang/String", "isEmpty", "()Z");
+							cw.jump(IFNE, skip);
+						} else if (CharSequence.class.isAssignableFrom(type111)) {
+							cw.vars(ALOAD, 4);
+							cw.invokeItf("java/lang/CharSequence", "length", "()I");
+							cw.jump(IFEQ, skip);
+						} else if (Map.class.isAssignableFrom(type111)) {
+							cw.vars(ALOAD, 4);
+							cw.invokeItf("java/util/Map", "isEmpty", "()Z");
+							cw.jump(IFNE, skip);
+						} else if (Collection.class.isAssignableFrom(type111)) {
+							cw.vars(ALOAD, 4);
+							cw.invokeItf("java/util/Collection", "isEmpty", "()Z");
+							cw.jump(IFNE, skip);
+						} else if (java.util.Optional.class.isAssignableFrom(type111)) {
+							cw.vars(ALOAD, 4);
+							cw.invokeV("java/util/Optional", "isPresent", "()Z");
+							cw.jump(IFEQ, skip);
+						}
+					}
+				}
+
+				return skip;
+			}
+			case Type.LONG -> {
+				cw.insn(LCONST_0);
+				cw.insn(LCMP);
+				cw.visitSizeMax(4, 0);
+			}
+			case Type.FLOAT -> {
+				cw.insn(FCONST_0);
+				cw.insn(FCMPG);
+			}
+			case Type.DOUBLE -> {
+				cw.insn(DCONST_0);
+				cw.insn(DCMPG);
+				cw.visitSizeMax(4, 0);
+			}
+		}
+		cw.jump(IFEQ, skip);
+		return skip;
+	}
+	private void directBegin(CodeWriter cw, ClassNode data, boolean json) {
+		cw.visitSizeMax(5, 7);
+
+		Label notNull = new Label();
+		cw.insn(ALOAD_2);
+		cw.jump(IFNONNULL, notNull);
+		cw.insn(ALOAD_1);
+		cw.invokeS(BYTE_CODEC, json ? "jsonNull" : "msgPackNull", "(Lroj/util/DynByteBuf;)V");
+		cw.insn(RETURN);
+
+		cw.label(notNull);
+		cw.insn(ALOAD_2);
+		cw.clazz(CHECKCAST, data.name());
+		cw.insn(ASTORE_2);
+
+		cw.insn(ALOAD_1);
+		if (json) {
+			cw.invokeV("roj/util/DynByteBuf", "wIndex", "()I");
+		} else {
+			cw.field(GETSTATIC, c, directCountField);
+			cw.invokeS(BYTE_CODEC, "msgPackMap", "(Lroj/util/DynByteBuf;I)I");
+			cw.insn(ICONST_0);
+			cw.vars(ISTORE, 6);
+		}
+		cw.vars(ISTORE, 5);
+	}
+	/**
+	 * 变量5: JSON对象的开始位置或MsgPack映射头的位置，变量6: 写出的MsgPack键值对数量
+	 */
+	private void directField(CodeWriter cw, boolean json, int fieldId, ClassNode data, FieldNode fn, Type type,
+							 String actualName, MethodNode get, String writeMode, AsType as, int asId, int serId,
+							 String nullValuePattern) {
+		if (as != null && (as.isVisitor || (as.instance != null && asId < 0))) {
+			directFailed = true;
+			return;
+		}
+		if (json) {
+			if (!"ALWAYS".equals(writeMode)) directFields = -1;
+			else if (directFields >= 0) directFields++;
+		}
+
+		int actualType = type.getActualType();
+		Label skip = writeSkip(cw, data, fn, type, actualType, get, writeMode, nullValuePattern);
+
+		String key;
+		if (actualName == null) key = json ? ",\""+fieldId+"\":" : ByteCodec.msgPackKey(fieldId);
+		else key = json ? ByteCodec.jsonKey(actualName) : ByteCodec.msgPackKey(actualName);
+
+		cw.insn(ALOAD_1);
+		cw.ldc(new CstString(key));
+		cw.invokeV("roj/util/DynByteBuf", "putAscii", "(Ljava/lang/CharSequence;)Lroj/util/DynByteBuf;");
+		cw.insn(POP);
+		if (!json) cw.iinc(6, 1);
+
+		if (serId >= 0) {
+			cw.insn(ALOAD_0);
+			cw.field(GETFIELD, c, serId);
+		}
+		cw.insn(ALOAD_1);
+		if (as != null && as.instance != null) {
+			cw.insn(ALOAD_0);
+			cw.field(GETFIELD, c, asId);
+		}
+
+		if (skip != null && actualType == Type.OBJECT) cw.vars(ALOAD, 4);
+		else {
+			cw.insn(ALOAD_2);
+			if (get == null) cw.field(GETFIELD, data.name(), fn.name(), fn.rawDesc());
+			else cw.invoke(INVOKEVIRTUAL, get);
+		}
+
+		if (as != null) cw.invoke(as.instance == null ? INVOKESTATIC : INVOKEVIRTUAL, as.writer);
+
+		if (serId >= 0) {
+			cw.invokeV("roj/config/mapper/TypeAdapter", json ? "writeJson" : "writeMsgPack", "(Lroj/util/DynByteBuf;Ljava/lang/Object;)V");
+		} else {
+			String desc = switch (actualType) {
+				case Type.OBJECT -> "Ljava/lang/String;";
+				case Type.BYTE, Type.SHORT -> "I";
+				default -> String.valueOf((char) actualType);
+			};
+			cw.invokeS(BYTE_CODEC, json ? "json" : "msgPack", "(Lroj/util/DynByteBuf;"+desc+")V");
+		}
+
+		if (skip != null) cw.label(skip);
+	}
 	private String typeParamToRaw(Signature fieldSig, Signature typeSig) {
 		Function<TypeVariable, IType> mapper = n -> {
 			IType bound = typeSig.typeVariables.get(n.name()).get(0);
@@ -1474,6 +1661,13 @@ final class ObjectMapperImpl extends ObjectMapper {
 
 	private ClassNode c;
 	private CodeWriter copy, write;
+
+	private static final String BYTE_CODEC = "roj/config/mapper/ByteCodec";
+	private CodeWriter writeJson, writeMsgPack;
+	private CstInt directCount;
+	private int directCountField;
+	private int directFields;
+	private boolean directFailed;
 	private final ToIntMap<String> serializerId = new ToIntMap<>();
 
 	private int ser(String type, String generic) {
@@ -3,6 +3,8 @@ package roj.config.mapper;
 import org.jetbrains.annotations.Nullable;
 import roj.ci.annotation.StaticMethod;
 import roj.config.ConfigMaster;
+import roj.config.JsonSerializer;
+import roj.config.MsgPackEncoder;
 import roj.config.TreeEmitter;
 import roj.config.ValueEmitter;
 import roj.io.IOUtil;
@@ -49,6 +51,32 @@ public interface ObjectWriter<T> {
 	 */
 	void write(ValueEmitter emitter, @Nullable T value);
 
+	/**
+	 * Writes the given object as UTF-8 JSON directly into {@code out}.
+	 *
+	 * <p>The default implementation goes through a {@link JsonSerializer}; writers created with
+	 * {@link ObjectMapper#DIRECT_CODEC} override it with generated code that appends bytes
+	 * without any emitter or intermediate text buffer.</p>
+	 *
+	 * @param out the buffer to append to
+	 * @param value the object to write (may be null)
+	 */
+	default void writeJson(DynByteBuf out, @Nullable T value) {
+		var sb = new CharList();
+		write(new JsonSerializer().to(sb), value);
+		out.putUTFData(sb);
+		sb._free();
+	}
+	/**
+	 * Writes the given object as MsgPack directly into {@code out}, using the same encoding
+	 * as {@link MsgPackEncoder.Compressed}.
+	 *
+	 * @param out the buffer to append to
+	 * @param value the object to write (may be null)
+	 * @see #writeJson(DynByteBuf, Object)
+	 */
+	default void writeMsgPack(DynByteBuf out, @Nullable T value) {write(new MsgPackEncoder.Compressed(out), value);}
+
 	@StaticMethod default void write(ConfigMaster type, T o, File file) throws IOException {write(type, o, file, "");}
 	@StaticMethod default void write(ConfigMaster type, T o, OutputStream out) throws IOException {write(type, o, out, "");}
 	@StaticMethod default CharList write(ConfigMaster type, T o, CharList sb) {return write(type, o, sb, "");}
@@ -2,6 +2,7 @@ package roj.config.mapper;
 
 import roj.asm.type.Type;
 import roj.config.ValueEmitter;
+import roj.util.DynByteBuf;
 
 /**
  * @author Roj234
@@ -67,4 +68,39 @@ final class PrimitiveAdapter extends TypeAdapter {
 			case Type.CHAR -> c.emit((Character) o);
 		}
 	}
+
+	@Override
+	public void writeJson(DynByteBuf out, Object o) {
+		if (o == null) {
+			ByteCodec.jsonNull(out);
+			return;
+		}
+
+		switch (type) {
+			case Type.OBJECT -> ByteCodec.json(out, o.toString());
+			case Type.BOOLEAN -> ByteCodec.json(out, (boolean) (Boolean) o);
+			case Type.LONG -> ByteCodec.json(out, ((Number) o).longValue());
+			case Type.DOUBLE, Type.FLOAT -> ByteCodec.json(out, ((Number) o).doubleValue());
+			case Type.BYTE, Type.SHORT, Type.INT -> ByteCodec.json(out, ((Number) o).intValue());
+			case Type.CHAR -> ByteCodec.json(out, (char) (Character) o);
+		}
+	}
+
+	@Override
+	public void writeMsgPack(DynByteBuf out, Object o) {
+		if (o == null) {
+			ByteCodec.msgPackNull(out);
+			return;
+		}
+
+		switch (type) {
+			case Type.OBJECT -> ByteCodec.msgPack(out, o.toString());
+			case Type.BOOLEAN -> ByteCodec.msgPack(out, (boolean) (Boolean) o);
+			case Type.LONG -> ByteCodec.msgPack(out, ((Number) o).longValue());
+			case Type.DOUBLE -> ByteCodec.msgPack(out, ((Number) o).doubleValue());
+			case Type.FLOAT -> ByteCodec.msgPack(out, ((Number) o).floatValue());
+			case Type.BYTE, Type.SHORT, Type.INT -> ByteCodec.msgPack(out, ((Number) o).intValue());
+			case Type.CHAR -> ByteCodec.msgPack(out, (char) (Character) o);
+		}
+	}
 }
\ No newline at end of file
@@ -15,6 +15,11 @@ final class MethodStub implements Cloneable {
 	List<IType> argumentTypes;
 	IType returnType;
 
+	static final byte SYNC = 0, ASYNC_PROMISE = 1, ASYNC_FUTURE = 2;
+	// 返回Promise或CompletableFuture的方法在结果可用时才回复，valueType是它们的类型参数
+	byte asyncType;
+	IType valueType;
+
 	int methodId;
 
 	@Override
@@ -0,0 +1,40 @@
+package roj.net.rpc;
+
+import roj.collect.ArrayList;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 合并在一起发送的多个小调用
+ * @author Roj234
+ * @since 2026/10/18 22:10
+ */
+final class PInvokeBatch implements ServerPacket {
+	final List<PInvokeMethod> invocations;
+
+	public PInvokeBatch(List<PInvokeMethod> invocations) {this.invocations = invocations;}
+	public PInvokeBatch(DynByteBuf buf) {
+		int count = buf.readVUInt();
+		invocations = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int transactionId = buf.readInt();
+			int methodId = buf.readInt();
+			var params = buf.slice(buf.readVUInt()).copySlice();
+			invocations.add(new PInvokeMethod(transactionId, methodId, params));
+		}
+	}
+
+	@Override public void encode(DynByteBuf buf) {
+		buf.putVUInt(invocations.size());
+		for (int i = 0; i < invocations.size(); i++) {
+			var invocation = invocations.get(i);
+			buf.putInt(invocation.transactionId).putInt(invocation.methodId).putVUInt(invocation.params.readableBytes()).put(invocation.params);
+		}
+	}
+
+	@Override public void handle(RPCServerImpl.Session server) throws IOException {
+		for (int i = 0; i < invocations.size(); i++) invocations.get(i).handle(server);
+	}
+}
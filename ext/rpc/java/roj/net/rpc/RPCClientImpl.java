@@ -9,28 +9,32 @@ import roj.asm.type.Type;
 import roj.ci.annotation.IndirectReference;
 import roj.ci.annotation.Public;
 import roj.collect.ArrayList;
-import roj.collect.IntMap;
 import roj.collect.ToIntMap;
 import roj.concurrent.Promise;
+import roj.concurrent.Timer;
+import roj.concurrent.TimerTask;
 import roj.io.IOUtil;
+import roj.math.MathUtils;
 import roj.net.ChannelCtx;
 import roj.net.ChannelHandler;
 import roj.net.MyChannel;
 import roj.net.rpc.api.RPCClient;
 import roj.net.rpc.api.RemoteProcedure;
+import roj.optimizer.FastVarHandle;
 import roj.reflect.Reflection;
+import roj.reflect.Telescope;
 import roj.reflect.VirtualReference;
 import roj.util.DynByteBuf;
 import roj.util.Helpers;
-import roj.util.Pair;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.channels.AsynchronousCloseException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
 
 import static roj.asm.Opcodes.*;
 
@@ -39,22 +43,190 @@ import static roj.asm.Opcodes.*;
  * @since 2025/10/11 22:47
  */
 @Public
+@FastVarHandle
 public class RPCClientImpl implements RPCClient, ChannelHandler {
 	private static final VirtualReference<Map<Class<?>, TypeStub>> STUB_CACHE = new VirtualReference<>();
+	private static final VarHandle CALLS$L$ARRAY = MethodHandles.arrayElementVarHandle(Call[].class);
+
+	// 小于这个大小的调用会和同时发出的其它调用合并成一个包
+	private static final int BATCH_THRESHOLD = 1024, MAX_BATCH_SIZE = 32768;
 
 	private final Map<Class<?>, ProxyStub> localStubImpl = new java.util.HashMap<>();
 	private final List<MethodStub> localMethods = new ArrayList<>();
 	private final AtomicInteger transactionId = new AtomicInteger();
 
-	public RPCClientImpl() {}
+	public RPCClientImpl() {this(4096);}
+	/**
+	 * @param maxPendingCalls 同时进行中的调用数量上限，向上取整到2的幂
+	 */
+	public RPCClientImpl(int maxPendingCalls) {
+		calls = new Call[MathUtils.nextPowerOfTwo(maxPendingCalls)];
+		mask = calls.length - 1;
+	}
 
 	private ChannelCtx connection;
 	private volatile Throwable error;
 
-	private final Map<String, Pair<Object, Integer>> methodIdQueries = new roj.collect.HashMap<>();
-	private final IntMap<Consumer<Object>> callbacks = new IntMap<>();
+	private final Map<String, MethodQuery> methodIdQueries = new roj.collect.HashMap<>();
 	private Promise<RPCClient> openCallback = Promise.manual();
 
+	//region 超时
+	private static final ThreadLocal<long[]> NEXT_TIMEOUT = new ThreadLocal<>();
+	private volatile long timeout;
+
+	/**
+	 * 设置之后每次调用的超时时间，超时后同步调用抛出{@link RemoteException}，异步调用的Promise被拒绝
+	 * @param timeoutMs 毫秒，0表示不超时
+	 */
+	public void setTimeout(long timeoutMs) {this.timeout = timeoutMs;}
+	/**
+	 * 仅为当前线程的下一次调用设置超时时间，覆盖{@link #setTimeout(long)}
+	 */
+	public static void nextCallTimeout(long timeoutMs) {NEXT_TIMEOUT.set(new long[] {timeoutMs});}
+	private long takeTimeout() {
+		var next = NEXT_TIMEOUT.get();
+		if (next == null) return timeout;
+		NEXT_TIMEOUT.remove();
+		return next[0];
+	}
+	//endregion
+	//region 事务表
+	/**
+	 * 进行中的调用.
+	 * 按transactionId & mask放在{@link #calls}的槽位中，放入和取出都是对槽位的CAS，所以结果、超时和连接关闭中只有一个能完成它
+	 */
+	@FastVarHandle
+	private static final class Call implements Runnable {
+		private static final VarHandle DONE = Telescope.lookup().findVarHandle(Call.class, "done", boolean.class);
+
+		final RPCClientImpl client;
+		// null表示同步调用，由生成的代码解码
+		final IType valueType;
+		final Object result;
+		int id;
+		// 已经放入事务表，超时时需要取出
+		volatile boolean registered;
+		private volatile boolean done;
+		volatile TimerTask timeoutTask;
+
+		Call(RPCClientImpl client, IType valueType, Object result) {
+			this.client = client;
+			this.valueType = valueType;
+			this.result = result;
+		}
+
+		boolean isDone() {return done;}
+
+		// 超时可能发生在方法ID查询期间，这时还没有放入事务表
+		@Override public void run() {
+			if (registered) client.take(id);
+			fail(new RemoteException(registered ? "调用#"+id+"超时" : "调用超时"));
+		}
+
+		@SuppressWarnings("unchecked")
+		void complete(Object value) {
+			if (!DONE.compareAndSet(this, false, true)) return;
+			var task = timeoutTask;
+			if (task != null) task.cancel();
+			if (result instanceof CompletableFuture<?> future) ((CompletableFuture<Object>) future).complete(value);
+			else ((Promise.Result) result).resolve(value);
+		}
+		void fail(Throwable exception) {
+			if (!DONE.compareAndSet(this, false, true)) return;
+			var task = timeoutTask;
+			if (task != null) task.cancel();
+			if (result instanceof CompletableFuture<?> future) future.completeExceptionally(exception);
+			else ((Promise.Result) result).reject(exception);
+		}
+	}
+
+	private final Call[] calls;
+	private final int mask;
+
+	private int register(Call call) {
+		// 槽位被很久以前的调用占用时换下一个ID
+		for (int i = 0; i <= mask; i++) {
+			int id = transactionId.getAndIncrement();
+			call.id = id;
+			if (CALLS$L$ARRAY.compareAndSet(calls, id & mask, null, call)) return id;
+		}
+		throw new RemoteException("进行中的调用过多");
+	}
+
+	private Call take(int id) {
+		int slot = id & mask;
+		var call = (Call) CALLS$L$ARRAY.getVolatile(calls, slot);
+		if (call == null || call.id != id || !CALLS$L$ARRAY.compareAndSet(calls, slot, call, null)) return null;
+		return call;
+	}
+	//endregion
+	//region 合并发送
+	private final ConcurrentLinkedQueue<PInvokeMethod> outbox = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger outboxSize = new AtomicInteger();
+
+	/**
+	 * 第一个调用者负责发送，在它发送期间到达的调用由它一并发送
+	 */
+	private void send(PInvokeMethod packet) {
+		outbox.offer(packet);
+		if (outboxSize.getAndIncrement() != 0) return;
+
+		int missed = 1;
+		do {
+			int sent = 0;
+			var batch = new ArrayList<PInvokeMethod>();
+			int batchSize = 0;
+
+			PInvokeMethod invocation;
+			while ((invocation = outbox.poll()) != null) {
+				sent++;
+
+				int size = invocation.params.readableBytes();
+				if (size > BATCH_THRESHOLD) {
+					write(invocation);
+					continue;
+				}
+
+				if (batchSize + size > MAX_BATCH_SIZE) {
+					writeBatch(batch);
+					batch = new ArrayList<>();
+					batchSize = 0;
+				}
+				batch.add(invocation);
+				batchSize += size + 12;
+			}
+			writeBatch(batch);
+
+			missed = outboxSize.addAndGet(-sent);
+		} while (missed != 0);
+	}
+
+	private void writeBatch(List<PInvokeMethod> batch) {
+		switch (batch.size()) {
+			case 0 -> {}
+			case 1 -> write(batch.get(0));
+			default -> {
+				try {
+					connection.channel().fireChannelWrite(new PInvokeBatch(batch));
+				} catch (Throwable e) {
+					for (int i = 0; i < batch.size(); i++) failWrite(batch.get(i), e);
+				}
+			}
+		}
+	}
+	private void write(PInvokeMethod invocation) {
+		try {
+			connection.channel().fireChannelWrite(invocation);
+		} catch (Throwable e) {
+			failWrite(invocation, e);
+		}
+	}
+	private void failWrite(PInvokeMethod invocation, Throwable e) {
+		var call = take(invocation.transactionId);
+		if (call != null) call.fail(e);
+	}
+	//endregion
+
 	@Override public void handlerAdded(ChannelCtx ctx) {this.connection = ctx;}
 	@Override public void channelRead(ChannelCtx ctx, Object msg) throws IOException {((ClientPacket) msg).handle(this);}
 	@Override public void exceptionCaught(ChannelCtx ctx, Throwable ex) throws Exception {
@@ -65,14 +237,17 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 		if (error == null) error = new AsynchronousCloseException();
 		((Promise.Result) openCallback).reject(error);
 
-		for (Pair<Object, Integer> value : methodIdQueries.values()) {
-			Object lock = value.getKey();
-			synchronized (lock) { lock.notifyAll(); }
+		List<MethodQuery> queries;
+		synchronized (methodIdQueries) {
+			queries = new ArrayList<>(methodIdQueries.values());
+			methodIdQueries.clear();
 		}
-		methodIdQueries.clear();
+		for (var query : queries) query.complete();
 
-		for (Consumer<Object> value : callbacks.values()) value.accept(error);
-		callbacks.clear();
+		for (int i = 0; i < calls.length; i++) {
+			var call = (Call) CALLS$L$ARRAY.getAndSet(calls, i, null);
+			if (call != null) call.fail(error);
+		}
 	}
 	@Override public void channelOpened(ChannelCtx ctx) {
 		((Promise.Result) openCallback).resolve(this);
@@ -84,14 +259,63 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 
 	public Promise<RPCClient> onOpened() {return openCallback;}
 
+	//region 方法ID
+	private static final class MethodQuery {
+		final PQueryMethods packet;
+		final int nearby;
+		private boolean done;
+		private List<Runnable> waiters = new ArrayList<>();
+
+		MethodQuery(PQueryMethods packet, int nearby) {
+			this.packet = packet;
+			this.nearby = nearby;
+		}
+
+		/**
+		 * @return 是否在超时前完成
+		 */
+		synchronized boolean await(long timeout) throws InterruptedException {
+			long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+			while (!done) {
+				if (deadline == 0) {
+					wait();
+				} else {
+					long remain = deadline - System.currentTimeMillis();
+					// wait(0)会一直等待
+					if (remain <= 0) return false;
+					wait(remain);
+				}
+			}
+			return true;
+		}
+		/**
+		 * @return false表示已经完成，调用者应当自己运行callback
+		 */
+		synchronized boolean whenDone(Runnable callback) {
+			if (done) return false;
+			waiters.add(callback);
+			return true;
+		}
+		void complete() {
+			List<Runnable> callbacks;
+			synchronized (this) {
+				done = true;
+				notifyAll();
+				callbacks = waiters;
+				waiters = null;
+			}
+			for (int i = 0; i < callbacks.size(); i++) callbacks.get(i).run();
+		}
+	}
+
 	void remoteMethods(String className, List<MethodStub> methods) {
-		Pair<Object, Integer> pair;
+		MethodQuery query;
 		synchronized (methodIdQueries) {
-			pair = methodIdQueries.remove(className);
+			query = methodIdQueries.remove(className);
 		}
-		if (pair == null) throw new IllegalStateException("Unexpected className "+className);
+		if (query == null) throw new IllegalStateException("Unexpected className "+className);
 
-		int nearby = pair.getValue();
+		int nearby = query.nearby;
 
 		var methodIds = new ToIntMap<MethodStub>(methods.size());
 		for (var method : methods) methodIds.putInt(method, method.methodId);
@@ -109,18 +333,54 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 			method.methodId = methodIds.getOrDefault(method, -1);
 		}
 
-		Object lock = pair.getKey();
-		synchronized (lock) { lock.notifyAll(); }
+		query.complete();
+	}
+
+	/**
+	 * @return 方法ID未知时返回查询，否则返回null
+	 */
+	private MethodQuery queryMethodId(MethodStub remoteMethod, int localMethodId) throws IOException {
+		if (remoteMethod.methodId != 0) return null;
+
+		MethodQuery query, existing;
+		synchronized (methodIdQueries) {
+			if (remoteMethod.methodId != 0) return null;
+
+			query = new MethodQuery(new PQueryMethods(remoteMethod.className), localMethodId);
+			existing = methodIdQueries.putIfAbsent(remoteMethod.className, query);
+		}
+		if (existing != null) query = existing;
+		else connection.channel().fireChannelWrite(query.packet);
+		return query;
 	}
+	//endregion
 
 	void invocationResult(int transactionId, Object returnValue) {
-		Consumer<Object> callback;
-		synchronized (callbacks) {
-			callback = callbacks.remove(transactionId);
+		// 超时的调用可能在之后收到结果
+		var call = take(transactionId);
+		if (call == null) return;
+
+		if (returnValue instanceof Throwable e) {
+			call.fail(e);
+		} else if (call.valueType == null) {
+			call.complete(returnValue);
+		} else {
+			Object value;
+			try {
+				value = TypeStub.decode((DynByteBuf) returnValue, call.valueType);
+			} catch (Throwable e) {
+				call.fail(e);
+				return;
+			}
+			call.complete(value);
 		}
+	}
 
-		if (callback == null) throw new IllegalStateException("Unexpected transaction #"+transactionId);
-		callback.accept(returnValue);
+	// 参数缓冲区是线程共享的，必须复制
+	private static DynByteBuf copyParams(DynByteBuf params) {
+		var copy = DynByteBuf.wrap(params.toByteArray());
+		params.release();
+		return copy;
 	}
 
 	@IndirectReference
@@ -128,50 +388,44 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 	static DynByteBuf invokeRemoteMethod(DynByteBuf params, RPCClientImpl self, int localMethodId) throws IOException {
 		checkAsyncClose(self);
 
-		var remoteMethod = self.localMethods.get(localMethodId);
+		long timeout = self.takeTimeout();
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
 
-		if (remoteMethod.methodId == 0) {
-			Pair<Object, Integer> pair, existing;
-			synchronized (self.methodIdQueries) {
-				pair = new Pair<>(new PQueryMethods(remoteMethod.className), localMethodId);
-				existing = self.methodIdQueries.putIfAbsent(remoteMethod.className, pair);
-			}
-			if (existing != null) pair = existing;
-			else self.connection.channel().fireChannelWrite(pair.getKey());
-
-			while (remoteMethod.methodId == 0) {
-				Object lock = pair.getKey();
-				synchronized (lock) {
-					try {
-						lock.wait();
-					} catch (InterruptedException e) {
-						throw IOUtil.rethrowAsIOException(e);
-					}
-				}
-
-				checkAsyncClose(self);
+		var remoteMethod = self.localMethods.get(localMethodId);
+		var query = self.queryMethodId(remoteMethod, localMethodId);
+		if (query != null) {
+			try {
+				if (!query.await(timeout)) throw new RemoteException("查询"+remoteMethod.className+"的方法超时");
+			} catch (InterruptedException e) {
+				throw IOUtil.rethrowAsIOException(e);
 			}
+			checkAsyncClose(self);
 		}
 
 		int remoteMethodId = remoteMethod.methodId;
 		if (remoteMethodId < 0) throw new RemoteException("(from remote) No implementation for "+remoteMethod.className+"."+remoteMethod.methodName);
 
-		int transactionId = self.transactionId.getAndIncrement();
-		var packet = new PInvokeMethod(transactionId, remoteMethodId, self.connection.allocate(true, params.readableBytes()).put(params));
-
-		params.release();
-
-		var promise = Promise.manual();
-
-		self.callbacks.put(transactionId, promise::resolve);
-		self.connection.channel().fireChannelWrite(packet);
+		var promise = Promise.manual(null);
+		var call = new Call(self, null, promise);
+		var packet = new PInvokeMethod(self.register(call), remoteMethodId, copyParams(params));
+		self.send(packet);
 
 		try {
-			Object o = promise.get();
-			if (o instanceof Throwable e)
-				Helpers.athrow(e);
+			Object o;
+			if (deadline == 0) {
+				o = promise.get();
+			} else {
+				try {
+					o = promise.get(Math.max(deadline - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					if (self.take(packet.transactionId) == call) throw new RemoteException("调用#"+packet.transactionId+"超时");
+					// 刚好完成
+					o = promise.get();
+				}
+			}
 			return (DynByteBuf) o;
 		} catch (InterruptedException e) {
+			self.take(packet.transactionId);
 			throw IOUtil.rethrowAsIOException(e);
 		} catch (ExecutionException e) {
 			Helpers.athrow(e.getCause());
@@ -179,6 +433,57 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 		}
 	}
 
+	/**
+	 * 返回Promise或CompletableFuture的方法调用这个，不会阻塞
+	 */
+	@IndirectReference
+	@Public
+	static Object invokeRemoteMethodAsync(DynByteBuf params, RPCClientImpl self, int localMethodId, IType valueType) {
+		var remoteMethod = self.localMethods.get(localMethodId);
+
+		Object result = remoteMethod.asyncType == MethodStub.ASYNC_FUTURE ? new CompletableFuture<>() : Promise.manual();
+		var call = new Call(self, valueType, result);
+
+		var buffer = copyParams(params);
+		long timeout = self.takeTimeout();
+		// 从创建时开始计时，包括等待方法ID查询的时间
+		if (timeout > 0) call.timeoutTask = Timer.getDefault().delay(call, timeout);
+
+		Runnable invoke = () -> {
+			if (call.isDone()) return;
+
+			int remoteMethodId = remoteMethod.methodId;
+			if (self.error != null) {
+				call.fail(new IOException("Stream closed", self.error));
+			} else if (remoteMethodId < 0) {
+				call.fail(new RemoteException("(from remote) No implementation for "+remoteMethod.className+"."+remoteMethod.methodName));
+			} else {
+				try {
+					var packet = new PInvokeMethod(self.register(call), remoteMethodId, buffer);
+					call.registered = true;
+					// 在登记之前超时了，槽位由这里取出
+					if (call.isDone()) {
+						self.take(packet.transactionId);
+						return;
+					}
+					self.send(packet);
+				} catch (Throwable e) {
+					call.fail(e);
+				}
+			}
+		};
+
+		try {
+			checkAsyncClose(self);
+			// 方法ID未知时在查询结果到达后再发送
+			var query = self.queryMethodId(remoteMethod, localMethodId);
+			if (query == null || !query.whenDone(invoke)) invoke.run();
+		} catch (Throwable e) {
+			call.fail(e);
+		}
+		return result;
+	}
+
 	private static void checkAsyncClose(RPCClientImpl self) throws IOException {
 		if (self.error != null) throw new IOException("Stream closed", self.error);
 	}
@@ -282,9 +587,17 @@ public class RPCClientImpl implements RPCClient, ChannelHandler {
 			cw.field(GETFIELD, myClass, methodIdOffsetId);
 			cw.ldc(method.methodId);
 			cw.insn(IADD);
-			cw.invokeS("roj/net/rpc/RPCClientImpl", "invokeRemoteMethod", "(Lroj/util/DynByteBuf;Lroj/net/rpc/RPCClientImpl;I)Lroj/util/DynByteBuf;");
 
 			IType returnType = method.returnType;
+			if (method.asyncType != MethodStub.SYNC) {
+				helper.loadType(cw, method.valueType);
+				cw.invokeS("roj/net/rpc/RPCClientImpl", "invokeRemoteMethodAsync", "(Lroj/util/DynByteBuf;Lroj/net/rpc/RPCClientImpl;ILroj/asm/type/IType;)Ljava/lang/Object;");
+				cw.clazz(CHECKCAST, returnType.rawType().getActualClass());
+				cw.insn(ARETURN);
+				continue;
+			}
+
+			cw.invokeS("roj/net/rpc/RPCClientImpl", "invokeRemoteMethod", "(Lroj/util/DynByteBuf;Lroj/net/rpc/RPCClientImpl;I)Lroj/util/DynByteBuf;");
 			if (returnType == Type.VOID_TYPE) {
 				cw.insn(RETURN);
 			} else if (returnType.isPrimitive()) {
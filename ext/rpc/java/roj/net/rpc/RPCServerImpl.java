@@ -91,7 +91,7 @@ public class RPCServerImpl implements RPCServer, RPCClient {
 		myClass.addInterface("roj/net/rpc/RPCServerImpl$Invoker");
 		myClass.defaultConstructor();
 
-		var cw = myClass.newMethod(ACC_PUBLIC | ACC_FINAL, "invoke", "(ILroj/util/DynByteBuf;Lroj/util/DynByteBuf;Ljava/lang/Object;)V");
+		var cw = myClass.newMethod(ACC_PUBLIC | ACC_FINAL, "invoke", "(ILroj/util/DynByteBuf;Lroj/util/DynByteBuf;Ljava/lang/Object;)Ljava/lang/Object;");
 		cw.computeFrames(FrameVisitor.COMPUTE_SIZES);
 		// to compute frames
 		//ClassUtil.getInstance().setResolver(new SimpleResolver(type.getClassLoader()));
@@ -130,6 +130,12 @@ public class RPCServerImpl implements RPCServer, RPCClient {
 			cw.invokeItf(instanceType.owner(), method.methodName, Type.getMethodDescriptor(method.argumentTypes, method.returnType));
 
 			IType returnType = method.returnType;
+			if (method.asyncType != MethodStub.SYNC) {
+				// 返回Promise本身，由Session在它完成后回复
+				cw.insn(ARETURN);
+				continue;
+			}
+
 			if (returnType.isPrimitive()) {
 				if (returnType != Type.VOID_TYPE) {
 					cw.insn(ALOAD_3);
@@ -144,7 +150,8 @@ public class RPCServerImpl implements RPCServer, RPCClient {
 				cw.invokeS("roj/net/rpc/TypeStub", "encode", "(Ljava/lang/Object;Lroj/asm/type/IType;Lroj/util/DynByteBuf;)V");
 			}
 
-			cw.insn(RETURN);
+			cw.insn(ACONST_NULL);
+			cw.insn(ARETURN);
 		}
 
 		loadType.clinit.insn(RETURN);
@@ -166,7 +173,10 @@ public class RPCServerImpl implements RPCServer, RPCClient {
 
 	@Public
 	private interface Invoker {
-		void invoke(int methodId, DynByteBuf arguments, DynByteBuf returnType, Object instance) throws Throwable;
+		/**
+		 * @return 异步方法返回的Promise或CompletableFuture，同步方法的返回值已经写入returnType，返回null
+		 */
+		Object invoke(int methodId, DynByteBuf arguments, DynByteBuf returnType, Object instance) throws Throwable;
 	}
 
 	final class Session implements ChannelHandler {
@@ -189,21 +199,39 @@ public class RPCServerImpl implements RPCServer, RPCClient {
 				var invoker = (Invoker) proxyStub.stub.instance;
 
 				ByteList returnType = new ByteList();
-				Throwable exception = null;
+				Object future;
 				try {
-					invoker.invoke(methodId1, arguments, returnType, proxyStub.instance);
+					future = invoker.invoke(methodId1, arguments, returnType, proxyStub.instance);
 				} catch (Throwable e) {
-					LOGGER.warn("Uncaught in RPC invocation of {}", e, this);
-					exception = e;
+					reply(transactionId, null, e);
+					return;
 				}
 
-				try {
-					var packet = exception != null ? new PInvocationFailure(transactionId, exception) : new PInvocationResult(transactionId, returnType);
-					connection.channel().fireChannelWrite(packet);
-				} catch (IOException e) {
-					LOGGER.warn("Exception replying {}", e, this);
+				if (method.asyncType == MethodStub.SYNC) {
+					reply(transactionId, returnType, null);
+				} else {
+					TypeStub.whenComplete(future, (value, exception) -> {
+						if (exception == null) {
+							try {
+								TypeStub.encode(value, method.valueType, returnType);
+							} catch (Throwable e) {
+								exception = e;
+							}
+						}
+						reply(transactionId, returnType, exception);
+					});
 				}
 			});
 		}
+
+		private void reply(int transactionId, DynByteBuf returnValue, Throwable exception) {
+			if (exception != null) LOGGER.warn("Uncaught in RPC invocation of {}", exception, this);
+			try {
+				var packet = exception != null ? new PInvocationFailure(transactionId, exception) : new PInvocationResult(transactionId, returnValue);
+				connection.channel().fireChannelWrite(packet);
+			} catch (IOException e) {
+				LOGGER.warn("Exception replying {}", e, this);
+			}
+		}
 	}
 }
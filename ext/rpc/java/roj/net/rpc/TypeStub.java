@@ -4,10 +4,13 @@ import roj.asm.ClassNode;
 import roj.asm.MethodNode;
 import roj.asm.Opcodes;
 import roj.asm.type.IType;
+import roj.asm.type.ParameterizedType;
 import roj.asm.type.Signature;
+import roj.asm.type.Type;
 import roj.ci.annotation.IndirectReference;
 import roj.ci.annotation.Public;
 import roj.config.ConfigMaster;
+import roj.concurrent.Promise;
 import roj.config.mapper.ObjectMapper;
 import roj.net.handler.PacketHandler;
 import roj.net.rpc.api.RemoteProcedure;
@@ -21,6 +24,9 @@ import roj.util.Helpers;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 
 /**
  * @author Roj234
@@ -33,7 +39,8 @@ final class TypeStub {
 			.register(PRemoteMethods.class, PRemoteMethods::new)
 			.register(PInvokeMethod.class, PInvokeMethod::new)
 			.register(PInvocationResult.class, PInvocationResult::new)
-			.register(PInvocationFailure.class, PInvocationFailure::new);
+			.register(PInvocationFailure.class, PInvocationFailure::new)
+			.register(PInvokeBatch.class, PInvokeBatch::new);
 	static final ObjectMapper SERIALIZER = ObjectMapper.getInstance(ObjectMapper.GENERATE|ObjectMapper.CHECK_INTERFACE|ObjectMapper.CHECK_PARENT|ObjectMapper.OBJECT_POOL|ObjectMapper.NO_SCHEMA);
 
 	@IndirectReference public static DynByteBuf getEncodeBuffer() {
@@ -44,6 +51,27 @@ final class TypeStub {
 	@IndirectReference public static void encode(Object instance, IType type, DynByteBuf buffer) {SERIALIZER.writer(type).write(ConfigMaster.MSGPACK, Helpers.cast(instance), buffer);}
 	@IndirectReference public static Object decode(DynByteBuf buffer, IType type) throws IOException, ParseException {return SERIALIZER.reader(type).read(buffer, ConfigMaster.MSGPACK);}
 
+	/**
+	 * 在Promise或CompletableFuture完成时调用callback
+	 */
+	static void whenComplete(Object future, BiConsumer<Object, Throwable> callback) {
+		if (future instanceof CompletionStage<?> stage) {
+			stage.whenComplete((value, ex) -> callback.accept(value, ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex));
+		} else if (future instanceof Promise<?> promise) {
+			// Promise的异常处理器返回值后仍然会调用成功回调
+			var failure = new Throwable[1];
+			promise.then((value, next) -> {
+				callback.accept(failure[0] == null ? value : null, failure[0]);
+				next.resolve(null);
+			}, ex -> {
+				failure[0] = ex;
+				return null;
+			});
+		} else {
+			callback.accept(null, null);
+		}
+	}
+
 	Class<? extends RemoteProcedure> type;
 	Object instance;
 	List<MethodStub> methods;
@@ -70,6 +98,19 @@ final class TypeStub {
 			remoteMethod.argumentTypes = sign.values;
 			remoteMethod.returnType = sign.values.remove(sign.values.size() - 1);
 
+			var returnType = remoteMethod.returnType;
+			if (!returnType.isPrimitive() && returnType.array() == 0) {
+				switch (returnType.owner()) {
+					case "roj/concurrent/Promise" -> remoteMethod.asyncType = MethodStub.ASYNC_PROMISE;
+					case "java/util/concurrent/CompletableFuture" -> remoteMethod.asyncType = MethodStub.ASYNC_FUTURE;
+				}
+				if (remoteMethod.asyncType != MethodStub.SYNC) {
+					IType valueType = returnType instanceof ParameterizedType pt && pt.typeParameters.size() == 1 ? pt.typeParameters.get(0) : null;
+					// 通配符之类的按Object处理
+					remoteMethod.valueType = valueType != null && (valueType.kind() == IType.SIMPLE_TYPE || valueType.kind() == IType.PARAMETERIZED_TYPE) ? valueType : Type.klass("java/lang/Object");
+				}
+			}
+
 			methods.add(remoteMethod);
 		}
 
@@ -7,23 +7,42 @@ import roj.asm.Opcodes;
 import roj.asm.insn.Label;
 import roj.asm.type.TypeHelper;
 import roj.asmx.TransformUtil;
+import roj.collect.ArrayList;
+import roj.collect.RingBuffer;
 import roj.concurrent.SegmentReadWriteLock;
+import roj.concurrent.Timer;
+import roj.concurrent.TimerTask;
+import roj.optimizer.FastVarHandle;
 import roj.reflect.Reflection;
+import roj.text.CharList;
 import roj.util.Helpers;
 import roj.util.LeakDetector;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.channels.ClosedByInterruptException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 /**
+ * 数据库连接池.
+ * 同一线程在归还前重复获取会得到同一个连接.
+ * <p>
+ * 固定模式({@link #ConnectionPool(DataSource, int)})：最多32个连接，按线程散列选择槽位.
+ * <br>
+ * 弹性模式({@link #ConnectionPool(DataSource, int, int)})：连接数在min和max之间伸缩，等待的线程按FIFO顺序排队并挂起，
+ * 可在借出时或后台校验连接，后台定时关闭空闲过久的连接，并统计等待时间分布.
+ *
  * @author Roj234
  * @since 2023/5/17 9:20
  */
+@FastVarHandle
 public class ConnectionPool implements DataSource {
 	final DataSource connector;
 
@@ -45,10 +64,409 @@ public class ConnectionPool implements DataSource {
 		this.pool = new Connection[pooledConnections];
 		this.stale = new long[pooledConnections];
 		this.multiplier = 0; // 先乐观一点
+
+		this.minSize = this.maxSize = 0;
+		this.poolLock = null;
+		this.idle = null;
+		this.waiters = null;
 	}
 
 	@Override
 	public ConnectionPool pooled(int connections) {throw new UnsupportedOperationException("already pooled");}
+	@Override
+	public ConnectionPool pooled(int minSize, int maxSize) {throw new UnsupportedOperationException("already pooled");}
+
+	//region 弹性模式
+	private static final VarHandle HISTOGRAM$J$ARRAY = MethodHandles.arrayElementVarHandle(long[].class);
+	/**
+	 * 等待时间直方图的桶数，第0个桶是小于1ms，第i个桶是[2^(i-1), 2^i)ms，最后一个桶包括所有更长的等待
+	 */
+	public static final int HISTOGRAM_BUCKETS = 16;
+
+	private static final class Entry {
+		final Connection conn;
+		long lastUsed, lastValidated;
+
+		Entry(Connection conn) {
+			this.conn = conn;
+			this.lastUsed = this.lastValidated = System.currentTimeMillis();
+		}
+	}
+	private static final class Waiter {
+		final Thread thread = Thread.currentThread();
+		volatile Entry entry;
+	}
+	// 交给等待者的特殊值：SLOT表示已经为它预留了一个连接数额度，需要自行创建；CLOSED表示连接池已关闭
+	private static final Entry SLOT = new Entry(null), CLOSED = new Entry(null);
+
+	private final int minSize, maxSize;
+	private final ReentrantLock poolLock;
+	// 尾部是最近归还的，首部是空闲最久的
+	private final RingBuffer<Entry> idle;
+	private final RingBuffer<Waiter> waiters;
+
+	// 以下字段由poolLock保护
+	private int total, active;
+	private long createdCount, destroyedCount, timeoutCount, validationFailures;
+	private boolean closed;
+
+	private final long[] waitHistogram = new long[HISTOGRAM_BUCKETS];
+
+	private boolean validateOnBorrow;
+	private int validationTimeout = 5;
+	private long validationInterval, idleTimeout = 600000;
+	private TimerTask maintainTask;
+
+	/**
+	 * 创建弹性模式的连接池
+	 * @param minSize 后台维持的最少连接数
+	 * @param maxSize 最多连接数
+	 */
+	public ConnectionPool(DataSource connector, int minSize, int maxSize) {
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize) throw new IllegalArgumentException("无效的连接数范围:"+minSize+"-"+maxSize);
+		this.connector = connector;
+		this.pool = null;
+		this.stale = null;
+
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.poolLock = new ReentrantLock();
+		this.idle = RingBuffer.lazy(maxSize);
+		this.waiters = RingBuffer.unbounded();
+
+		setMaintainInterval(1000);
+	}
+
+	/**
+	 * 借出连接前使用{@link Connection#isValid(int)}校验，失败的连接会被关闭并重新获取
+	 */
+	public ConnectionPool setValidateOnBorrow(boolean validateOnBorrow) {this.validateOnBorrow = validateOnBorrow;return this;}
+	/**
+	 * isValid的超时时间，单位秒
+	 */
+	public ConnectionPool setValidationTimeout(int seconds) {this.validationTimeout = seconds;return this;}
+	/**
+	 * 后台校验空闲超过该时间(ms)的连接，0表示不在后台校验
+	 */
+	public ConnectionPool setValidationInterval(long ms) {this.validationInterval = ms;return this;}
+	/**
+	 * 空闲超过该时间(ms)的连接会在后台关闭，直到剩下minSize个，0表示不关闭
+	 */
+	public ConnectionPool setIdleTimeout(long ms) {this.idleTimeout = ms;return this;}
+	/**
+	 * 后台维护(关闭空闲连接，校验，补足minSize)的周期，0表示不做后台维护
+	 */
+	public synchronized ConnectionPool setMaintainInterval(long ms) {
+		if (poolLock == null) throw new IllegalStateException("仅弹性模式可用");
+		if (maintainTask != null) maintainTask.cancel(false);
+		maintainTask = ms > 0 ? Timer.getDefault().loop(this::maintain, ms) : null;
+		return this;
+	}
+
+	public int getMinSize() {return minSize;}
+	public int getMaxSize() {return maxSize;}
+	public int getActiveCount() {return active;}
+	public int getIdleCount() {return idle.size();}
+	public int getTotalCount() {return total;}
+	public int getWaitingCount() {return waiters.size();}
+	public long getCreatedCount() {return createdCount;}
+	public long getDestroyedCount() {return destroyedCount;}
+	public long getTimeoutCount() {return timeoutCount;}
+	public long getValidationFailures() {return validationFailures;}
+	/**
+	 * @return 等待时间直方图的副本，桶的含义见{@link #HISTOGRAM_BUCKETS}
+	 */
+	public long[] getWaitHistogram() {
+		long[] copy = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < copy.length; i++) copy[i] = (long) HISTOGRAM$J$ARRAY.getVolatile(waitHistogram, i);
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		if (poolLock == null) return "ConnectionPool{fixed, size="+pool.length+"}";
+
+		var sb = new CharList().append("ConnectionPool{").append(minSize).append('-').append(maxSize)
+			.append(", total=").append(total).append(", active=").append(active).append(", idle=").append(idle.size()).append(", waiting=").append(waiters.size())
+			.append(", created=").append(createdCount).append(", destroyed=").append(destroyedCount)
+			.append(", timeout=").append(timeoutCount).append(", invalid=").append(validationFailures)
+			.append(", wait={");
+		long[] histogram = getWaitHistogram();
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0) continue;
+			sb.append(i == 0 ? "<1" : i == histogram.length-1 ? ">="+(1L << (i-1)) : "<"+(1L << i)).append("ms=").append(histogram[i]).append(", ");
+		}
+		if (sb.charAt(sb.length()-1) == ' ') sb.setLength(sb.length()-2);
+		return sb.append("}}").toStringAndFree();
+	}
+
+	@Nullable
+	private Entry acquire(long timeoutMs) throws SQLException {
+		long start = System.nanoTime();
+		long deadline = timeoutMs == 0 ? Long.MAX_VALUE : start + timeoutMs * 1000000L;
+
+		while (true) {
+			Entry e;
+			Waiter w = null;
+
+			poolLock.lock();
+			try {
+				if (closed) throw new SQLException("连接池已关闭");
+
+				e = idle.pollLast();
+				if (e == null) {
+					if (total < maxSize) {
+						total++;
+						e = SLOT;
+					} else {
+						w = new Waiter();
+						waiters.addLast(w);
+					}
+				}
+				if (w == null) active++;
+			} finally {
+				poolLock.unlock();
+			}
+
+			if (w != null) {
+				e = await(w, deadline);
+				if (e == null) return null;
+			}
+
+			if (e == SLOT) {
+				e = create();
+			} else if (validateOnBorrow && !validate(e)) {
+				continue;
+			}
+
+			long ms = (System.nanoTime() - start) / 1000000L;
+			HISTOGRAM$J$ARRAY.getAndAdd(waitHistogram, ms == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(ms), HISTOGRAM_BUCKETS-1), 1L);
+			return e;
+		}
+	}
+
+	@Nullable
+	private Entry await(Waiter w, long deadline) throws SQLException {
+		Entry e;
+		while ((e = w.entry) == null) {
+			long left = deadline - System.nanoTime();
+			boolean interrupted = Thread.interrupted();
+			if (left <= 0 || interrupted) {
+				poolLock.lock();
+				try {
+					// 持有锁时entry不会再变化
+					if ((e = w.entry) == null) {
+						waiters.removeFirstOccurrence(w);
+						if (!interrupted) timeoutCount++;
+					}
+				} finally {
+					poolLock.unlock();
+				}
+
+				if (interrupted) {
+					if (e == null) {
+						Helpers.athrow(new ClosedByInterruptException());
+						return null;
+					}
+					Thread.currentThread().interrupt();
+				}
+				break;
+			}
+
+			LockSupport.parkNanos(this, left);
+		}
+
+		if (e == CLOSED) throw new SQLException("连接池已关闭");
+		return e;
+	}
+
+	private Entry create() throws SQLException {
+		Connection conn;
+		try {
+			conn = connector.connect();
+		} catch (Throwable ex) {
+			discard(null);
+			throw ex;
+		}
+
+		poolLock.lock();
+		createdCount++;
+		poolLock.unlock();
+		return new Entry(conn);
+	}
+
+	/**
+	 * 校验一个已经借出的连接，失败时关闭它
+	 */
+	private boolean validate(Entry e) {
+		boolean valid;
+		try {
+			valid = e.conn.isValid(validationTimeout);
+		} catch (Exception ex) {
+			valid = false;
+		}
+
+		if (valid) {
+			e.lastValidated = System.currentTimeMillis();
+			return true;
+		}
+
+		poolLock.lock();
+		validationFailures++;
+		poolLock.unlock();
+		discard(e);
+		return false;
+	}
+
+	/**
+	 * 归还一个借出的连接，优先直接交给最早等待的线程
+	 */
+	private void release(Entry e) {
+		e.lastUsed = System.currentTimeMillis();
+
+		Waiter w;
+		poolLock.lock();
+		try {
+			if (closed) {
+				w = null;
+			} else {
+				w = waiters.pollFirst();
+				if (w == null) {
+					active--;
+					idle.addLast(e);
+					return;
+				}
+				w.entry = e;
+			}
+		} finally {
+			poolLock.unlock();
+		}
+
+		if (w != null) LockSupport.unpark(w.thread);
+		else discard(e);
+	}
+
+	/**
+	 * 关闭一个借出的连接(或者一个未使用的创建额度)并释放它占用的连接数，如果有线程在等待，让它自己创建新连接
+	 */
+	private void discard(@Nullable Entry e) {
+		Waiter w;
+		poolLock.lock();
+		try {
+			w = closed ? null : waiters.pollFirst();
+			if (w != null) {
+				w.entry = SLOT;
+			} else {
+				active--;
+				total--;
+			}
+			if (e != null) destroyedCount++;
+		} finally {
+			poolLock.unlock();
+		}
+
+		if (w != null) LockSupport.unpark(w.thread);
+		if (e != null) closeQuietly(e.conn);
+	}
+
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch (Exception ignored) {}
+	}
+
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		var evict = new ArrayList<Entry>();
+		var check = new ArrayList<Entry>();
+		int create;
+
+		poolLock.lock();
+		try {
+			if (closed) return;
+
+			Entry e;
+			if (idleTimeout > 0) {
+				while (total > minSize && (e = idle.peekFirst()) != null && now - e.lastUsed > idleTimeout) {
+					idle.pollFirst();
+					total--;
+					destroyedCount++;
+					evict.add(e);
+				}
+			}
+
+			if (validationInterval > 0) {
+				for (var itr = idle.iterator(); itr.hasNext(); ) {
+					e = itr.next();
+					if (now - e.lastValidated > validationInterval) {
+						itr.remove();
+						active++;
+						check.add(e);
+					}
+				}
+			}
+
+			create = Math.max(minSize - total, 0);
+			total += create;
+			active += create;
+		} finally {
+			poolLock.unlock();
+		}
+
+		for (int i = 0; i < evict.size(); i++) closeQuietly(evict.get(i).conn);
+
+		for (int i = 0; i < check.size(); i++) {
+			var e = check.get(i);
+			if (validate(e)) release(e);
+		}
+
+		while (create-- > 0) {
+			try {
+				release(create());
+			} catch (Throwable ex) {
+				// create()已经归还了额度
+				while (create-- > 0) discard(null);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 关闭弹性模式的连接池，已借出的连接在归还时关闭，正在等待的线程会收到SQLException
+	 */
+	public void close() {
+		if (poolLock == null) throw new IllegalStateException("仅弹性模式可用");
+		synchronized (this) {
+			if (maintainTask != null) maintainTask.cancel(false);
+			maintainTask = null;
+		}
+
+		var toClose = new ArrayList<Entry>();
+		var toWake = new ArrayList<Waiter>();
+		poolLock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+
+			toClose.addAll(idle);
+			total -= idle.size();
+			destroyedCount += idle.size();
+			idle.clear();
+
+			toWake.addAll(waiters);
+			waiters.clear();
+		} finally {
+			poolLock.unlock();
+		}
+
+		for (int i = 0; i < toWake.size(); i++) {
+			var w = toWake.get(i);
+			w.entry = CLOSED;
+			LockSupport.unpark(w.thread);
+		}
+		for (int i = 0; i < toClose.size(); i++) closeQuietly(toClose.get(i).conn);
+	}
+	//endregion
 
 	public Connection connect() throws SQLException {
 		Connection connection = connect(10000);
@@ -59,6 +477,14 @@ public class ConnectionPool implements DataSource {
 		var conn = connId.get();
 		if (conn != null) return wrap((Connection) conn[1]);
 
+		if (poolLock != null) {
+			var entry = acquire(timeoutMs);
+			if (entry == null) return null;
+
+			connId.set(new Object[]{entry, entry.conn});
+			return wrap(entry.conn);
+		}
+
 		int id = (pool.length-1) & ((int) Thread.currentThread().getId() * multiplier);
 		long deadline = timeoutMs == 0 ? Long.MAX_VALUE : System.currentTimeMillis()+timeoutMs;
 
@@ -97,6 +523,32 @@ public class ConnectionPool implements DataSource {
 		long maxBefore = System.currentTimeMillis()-timeout;
 
 		SQLException e1 = null;
+		if (poolLock != null) {
+			var evict = new ArrayList<Entry>();
+			poolLock.lock();
+			try {
+				Entry e;
+				while ((e = idle.peekFirst()) != null && e.lastUsed < maxBefore) {
+					idle.pollFirst();
+					total--;
+					destroyedCount++;
+					evict.add(e);
+				}
+			} finally {
+				poolLock.unlock();
+			}
+
+			for (int i = 0; i < evict.size(); i++) {
+				try {
+					evict.get(i).conn.close();
+				} catch (SQLException e) {
+					if (e1 == null) e1 = e;
+					else e1.addSuppressed(e);
+				}
+			}
+			return e1;
+		}
+
 		for (int i = 0; i < stale.length; i++) {
 			if (stale[i] < maxBefore) {
 				lock.tryLock(i);
@@ -184,6 +636,13 @@ public class ConnectionPool implements DataSource {
 			closed = true;
 		}
 
+		if (poolLock != null) {
+			var entry = (Entry) id[0];
+			if (closed) discard(entry);
+			else release(entry);
+			return;
+		}
+
 		if (closed) {
 			pool[(int) id[0]] = null;
 		} else {
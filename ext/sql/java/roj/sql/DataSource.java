@@ -17,6 +17,7 @@ import java.util.Properties;
 public interface DataSource {
 	Connection connect() throws SQLException;
 	default ConnectionPool pooled(int connections) {return new ConnectionPool(this, connections);}
+	default ConnectionPool pooled(int minSize, int maxSize) {return new ConnectionPool(this, minSize, maxSize);}
 
 	static DataSource _default() {return jdbc("java.lang.Object", "jdbc:default:connection", null, null);}
 
@@ -25,6 +25,8 @@ public class DiskFileInfo implements FileInfo, ChannelHandler {
 	protected final File file;
 	protected long lastModified, lastUpdated;
 	private final boolean download;
+	// 不为null时，句柄、长度和修改时间都来自缓存
+	protected final FileCache.Entry cached;
 
 	private DynByteBuf cc;
 	private byte[] uc;
@@ -37,6 +39,14 @@ public class DiskFileInfo implements FileInfo, ChannelHandler {
 		this.file = file;
 		this.lastModified = file.lastModified();
 		this.download = download;
+		this.cached = null;
+	}
+	public DiskFileInfo(FileCache.Entry cached) {this(cached, false);}
+	public DiskFileInfo(FileCache.Entry cached, boolean download) {
+		this.file = cached.file;
+		this.lastModified = cached.lastModified();
+		this.download = download;
+		this.cached = cached;
 	}
 
 	public DiskFileInfo compressed() {if (state < 1) state = 1;return this;}
@@ -52,7 +62,7 @@ public class DiskFileInfo implements FileInfo, ChannelHandler {
 
 	@Override
 	public int stats() {
-		if (uc == null && (SelectorLoop.currentTimeMillis()-lastUpdated) > 500) {
+		if (uc == null && cached == null && (SelectorLoop.currentTimeMillis()-lastUpdated) > 500) {
 			lastUpdated = SelectorLoop.currentTimeMillis();
 			lastModified = file.lastModified();
 		}
@@ -70,17 +80,34 @@ public class DiskFileInfo implements FileInfo, ChannelHandler {
 	@Override
 	public long length(boolean deflated) {
 		if (deflated) return cc.readableBytes();
-		return uc == null ? file.length() : uc.length;
+		return uc != null ? uc.length : cached != null ? cached.length() : file.length();
 	}
 
 	private static final OpenOption[] READ = {StandardOpenOption.READ};
 	@Override
-	public FileChannel getSendFile(boolean deflated) throws IOException {return deflated ? null : FileChannel.open(file.toPath(), READ);}
+	public FileChannel getSendFile(boolean deflated) throws IOException {
+		if (deflated) return null;
+		if (cached != null) {
+			var channel = cached.acquireChannel();
+			if (channel != null) return channel;
+		}
+		return FileChannel.open(file.toPath(), READ);
+	}
+	@Override
+	public void closeSendFile(FileChannel channel) {
+		if (cached != null && channel == cached.channel) cached.release();
+		else IOUtil.closeSilently(channel);
+	}
 
 	@Override
 	public InputStream get(boolean deflated, long offset) throws IOException {
 		if (deflated) return cc.slice((int) offset, cc.readableBytes() - (int) offset).asInputStream();
 
+		if (uc == null && cached != null) {
+			var in = cached.openStream(offset);
+			if (in != null) return in;
+		}
+
 		var in = uc == null ? new FileInputStream(file) : new ByteArrayInputStream(uc);
 		IOUtil.skipFully(in, offset);
 		return in;
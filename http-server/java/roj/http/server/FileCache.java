@@ -0,0 +1,311 @@
+package roj.http.server;
+
+import roj.collect.LRUCache;
+import roj.io.IOUtil;
+import roj.net.SelectorLoop;
+import roj.optimizer.FastVarHandle;
+import roj.reflect.Telescope;
+import roj.text.CharList;
+import roj.util.NativeMemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 静态文件缓存.
+ * 缓存文件的stat结果和打开的FileChannel，较小的文件还会被映射到内存，多个请求共享同一个句柄.
+ * 每隔checkInterval毫秒重新检查一次修改时间和长度，变化时换成新的条目.
+ * 旧条目在所有使用它的响应都release之后才关闭.
+ * <p>
+ * 注意：被映射的文件不应在服务期间被原地截断，否则读取映射区域时会抛出InternalError，应当写入新文件再替换.
+ *
+ * @author Roj234
+ * @since 2026/10/18 13:20
+ */
+@FastVarHandle
+public class FileCache {
+	public static final byte MISSING = 0, FILE = 1, DIRECTORY = 2;
+
+	private static final VarHandle
+		REF_COUNT = Telescope.lookup().findVarHandle(Entry.class, "refCount", int.class),
+		MAPPED_HITS = Telescope.lookup().findVarHandle(FileCache.class, "mappedHits", long.class);
+
+	@FastVarHandle
+	public final class Entry {
+		public final File file;
+		final byte type;
+		final long lastModified, length;
+		volatile long checkedAt;
+
+		FileChannel channel;
+		ByteBuffer mapped;
+		// 缓存本身持有一个引用
+		private volatile int refCount = 1;
+
+		Entry(File file, byte type, long lastModified, long length, long checkedAt) {
+			this.file = file;
+			this.type = type;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.checkedAt = checkedAt;
+		}
+
+		public boolean exists() {return type != MISSING;}
+		public boolean isFile() {return type == FILE;}
+		public boolean isDirectory() {return type == DIRECTORY;}
+		public long lastModified() {return lastModified;}
+		public long length() {return length;}
+		public boolean isMapped() {return mapped != null;}
+
+		private boolean retain() {
+			for (;;) {
+				int rc = refCount;
+				if (rc <= 0) return false;
+				if (REF_COUNT.compareAndSet(this, rc, rc+1)) return true;
+			}
+		}
+		void release() {
+			if ((int) REF_COUNT.getAndAdd(this, -1) == 1) close();
+		}
+		private void close() {
+			if (channel == null) return;
+
+			IOUtil.closeSilently(channel);
+			if (mapped != null) NativeMemory.freeDirectBuffer(mapped);
+			synchronized (FileCache.this) {
+				openFiles--;
+				if (mapped != null) mappedBytes -= length;
+			}
+		}
+
+		/**
+		 * 获取共享的FileChannel，需要使用{@link #release()}归还，它只能用于按位置读写
+		 * @return 条目已失效时返回null
+		 */
+		FileChannel acquireChannel() {return channel != null && retain() ? channel : null;}
+		/**
+		 * 从映射区域或共享的FileChannel读取，流关闭时归还引用
+		 * @return 条目已失效时返回null
+		 */
+		InputStream openStream(long offset) {
+			if (channel == null || !retain()) return null;
+			if (mapped != null) MAPPED_HITS.getAndAdd(FileCache.this, 1L);
+			return new EntryInput(this, offset);
+		}
+
+		@Override
+		public String toString() {return "FileCache.Entry{"+file+", type="+type+", length="+length+", mapped="+(mapped != null)+", ref="+refCount+'}';}
+	}
+
+	private static final class EntryInput extends InputStream {
+		private Entry entry;
+		private final ByteBuffer mapped;
+		private long position;
+
+		EntryInput(Entry entry, long offset) {
+			this.entry = entry;
+			this.position = offset;
+			this.mapped = entry.mapped == null ? null : entry.mapped.duplicate();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (entry == null) throw new IOException("Stream closed");
+
+			long remain = entry.length - position;
+			if (remain <= 0) return -1;
+			if (len > remain) len = (int) remain;
+
+			if (mapped != null) {
+				mapped.get((int) position, b, off, len);
+			} else {
+				len = entry.channel.read(ByteBuffer.wrap(b, off, len), position);
+				if (len < 0) return -1;
+			}
+			position += len;
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			if (entry == null || n <= 0) return 0;
+			n = Math.min(n, entry.length - position);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {return entry == null ? 0 : (int) Math.min(entry.length - position, Integer.MAX_VALUE);}
+
+		@Override
+		public void close() {
+			var e = entry;
+			if (e != null) {
+				entry = null;
+				e.release();
+			}
+		}
+	}
+
+	private final LRUCache<String, Entry> entries;
+	private final int checkInterval;
+	private final int mmapThreshold;
+	private final long maxMappedBytes;
+
+	// 以下字段由this保护
+	private long hits, misses, invalidations, evictions;
+	private int openFiles;
+	private long mappedBytes;
+	private volatile long mappedHits;
+
+	/**
+	 * @param maxEntries 最多缓存的路径数量，也是最多保持打开的文件数量
+	 * @param checkInterval 重新检查文件修改时间的间隔(ms)
+	 * @param mmapThreshold 不超过该长度的文件会被映射到内存
+	 * @param maxMappedBytes 映射到内存的总字节数上限
+	 */
+	public FileCache(int maxEntries, int checkInterval, int mmapThreshold, long maxMappedBytes) {
+		this.checkInterval = checkInterval;
+		this.mmapThreshold = mmapThreshold;
+		this.maxMappedBytes = maxMappedBytes;
+		this.entries = new LRUCache<>(maxEntries);
+		this.entries.setEvictListener((k, v) -> {
+			evictions++;
+			v.release();
+		});
+	}
+	public FileCache() {this(1024, 1000, 65536, 64L << 20);}
+
+	/**
+	 * 获取文件的缓存条目，必要时重新stat并打开文件
+	 */
+	public Entry lookup(File file) {
+		String key = file.getPath();
+		long now = SelectorLoop.currentTimeMillis();
+
+		Entry prev;
+		synchronized (this) {
+			prev = entries.get(key);
+			if (prev != null && now - prev.checkedAt < checkInterval) {
+				hits++;
+				return prev;
+			}
+		}
+
+		byte type;
+		long lastModified, length;
+		try {
+			var attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			type = attr.isRegularFile() ? FILE : attr.isDirectory() ? DIRECTORY : MISSING;
+			lastModified = attr.lastModifiedTime().toMillis();
+			length = attr.size();
+		} catch (IOException e) {
+			// 不存在，或者无权访问
+			type = MISSING;
+			lastModified = length = 0;
+		}
+
+		if (prev != null && prev.type == type && prev.lastModified == lastModified && prev.length == length) {
+			prev.checkedAt = now;
+			synchronized (this) {hits++;}
+			return prev;
+		}
+
+		var entry = new Entry(file, type, lastModified, length, now);
+		if (type == FILE) open(entry);
+
+		synchronized (this) {
+			misses++;
+			if (prev != null) invalidations++;
+
+			var old = entries.put(key, entry);
+			if (old != null) old.release();
+		}
+		return entry;
+	}
+
+	private void open(Entry entry) {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// 由DiskFileInfo自行打开，并报告错误
+			return;
+		}
+
+		boolean map;
+		synchronized (this) {
+			openFiles++;
+			map = entry.length > 0 && entry.length <= mmapThreshold && mappedBytes + entry.length <= maxMappedBytes;
+			if (map) mappedBytes += entry.length;
+		}
+
+		if (map) {
+			try {
+				entry.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.length);
+			} catch (IOException e) {
+				synchronized (this) {mappedBytes -= entry.length;}
+			}
+		}
+		entry.channel = channel;
+	}
+
+	/**
+	 * 移除并(在引用归零后)关闭所有条目
+	 */
+	public synchronized void clear() {
+		for (var entry : entries.values()) entry.release();
+		entries.clear();
+	}
+
+	public synchronized long getHits() {return hits;}
+	public synchronized long getMisses() {return misses;}
+	public synchronized long getInvalidations() {return invalidations;}
+	public synchronized long getEvictions() {return evictions;}
+	public synchronized int getOpenFiles() {return openFiles;}
+	public synchronized long getMappedBytes() {return mappedBytes;}
+	public long getMappedHits() {return mappedHits;}
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public synchronized String toJson() {
+		return new CharList().append("{\"entries\":").append(entries.size())
+							 .append(",\"hits\":").append(hits)
+							 .append(",\"misses\":").append(misses)
+							 .append(",\"hitRate\":").append(getHitRate())
+							 .append(",\"invalidations\":").append(invalidations)
+							 .append(",\"evictions\":").append(evictions)
+							 .append(",\"openFiles\":").append(openFiles)
+							 .append(",\"mappedBytes\":").append(mappedBytes)
+							 .append(",\"mappedHits\":").append(mappedHits)
+							 .append('}').toStringAndFree();
+	}
+
+	/**
+	 * 以JSON格式返回命中率等统计信息的路由器
+	 */
+	public Router statsRouter() {
+		return (req, resp) -> {
+			resp.code(200).setHeader("cache-control", "no-store");
+			return Content.json(toJson());
+		};
+	}
+
+	@Override
+	public String toString() {return "FileCache"+toJson();}
+}
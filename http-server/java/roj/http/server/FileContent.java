@@ -324,7 +324,7 @@ final class FileContent implements Content {
 	@Override
 	public void release(ChannelCtx ctx) {
 		if (sendfile != null) {
-			IOUtil.closeSilently(sendfile.channel);
+			file.closeSendFile(sendfile.channel);
 			sendfile = null;
 		} else {
 			IOUtil.closeSilently(in);
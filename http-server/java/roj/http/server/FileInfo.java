@@ -2,6 +2,7 @@ package roj.http.server;
 
 import org.intellij.lang.annotations.MagicConstant;
 import roj.http.Headers;
+import roj.io.IOUtil;
 import roj.net.ChannelCtx;
 
 import java.io.IOException;
@@ -20,6 +21,10 @@ public interface FileInfo {
 
 	long length(boolean deflated);
 	default FileChannel getSendFile(boolean deflated) throws IOException {return null;}
+	/**
+	 * 归还{@link #getSendFile(boolean)}返回的FileChannel，它可能是被多个请求共享的
+	 */
+	default void closeSendFile(FileChannel channel) {IOUtil.closeSilently(channel);}
 	InputStream get(boolean deflated, long offset) throws IOException;
 
 	long lastModified();
@@ -84,9 +84,19 @@ final class HttpServer11 extends PacketMerger implements PayloadInfo, Response,
 	}
 
 	@Override
-	@SuppressWarnings("fallthrough")
 	public void channelTick(ChannelCtx ctx) throws IOException {
 		if (state == UNOPENED) return;
+		try {
+			tick(ctx);
+		} finally {
+			// 事件驱动的SelectorLoop: 发送响应体时每毫秒tick，否则在超时时tick
+			long delay = (flag&SEND_BODY) != 0 ? 1 : time - SelectorLoop.currentTimeMillis() + 1;
+			ctx.channel().scheduleTick((int) Math.max(1, Math.min(delay, Integer.MAX_VALUE)));
+		}
+	}
+
+	@SuppressWarnings("fallthrough")
+	private void tick(ChannelCtx ctx) throws IOException {
 
 		if ((flag&SEND_BODY) != 0 && !ctx.isFlushing()) {
 			boolean hasMore = body.send(this);
@@ -500,6 +510,7 @@ final class HttpServer11 extends PacketMerger implements PayloadInfo, Response,
 			body = content;
 			time = SelectorLoop.currentTimeMillis() + router.writeTimeout(req, body);
 			sendHead();
+			ch.channel().scheduleTick(0);
 		} catch (Exception e) {
 			try {
 				exceptionCaught(ch, e);
@@ -14,9 +14,22 @@ import java.util.function.Predicate;
  */
 public class PathRouter implements Router, Predicate<String> {
 	public final File path;
+	private FileCache cache;
+	private PrecompressedStore precompressed;
+
 	public PathRouter(String path) {this.path = new File(path);}
 	public PathRouter(File path) {this.path = path;}
 
+	/**
+	 * 使用缓存的stat结果和文件句柄，避免每个请求都open和stat
+	 */
+	public PathRouter setCache(FileCache cache) {this.cache = cache;return this;}
+	public FileCache getCache() {return cache;}
+	/**
+	 * 向接受gzip的客户端提供预压缩的副本
+	 */
+	public PathRouter setPrecompressed(PrecompressedStore precompressed) {this.precompressed = precompressed;return this;}
+
 	@Override
 	public Content response(Request req, Response resp) throws IOException {
 		String url = req.path();
@@ -27,6 +40,8 @@ public class PathRouter implements Router, Predicate<String> {
 			return Content.internalError("啊呀呀，你写的路径过滤被绕过了！路径是："+url);
 		}
 
+		if (cache != null) return cached(req, resp, file);
+
 		if (file.isDirectory()) {
 			file = new File(file, "index.html");
 			if (!file.isFile()) {
@@ -39,13 +54,44 @@ public class PathRouter implements Router, Predicate<String> {
 		}
 
 		resp.code(200).setHeader("cache-control", HttpUtil.CACHED_REVALIDATE);
+		var variant = precompressed(req, resp, file, file.lastModified(), file.length());
+		if (variant != null) return variant;
 		return Content.file(req, new DiskFileInfo(file));
 	}
 
+	private Content cached(Request req, Response resp, File file) {
+		var entry = cache.lookup(file);
+		if (entry.isDirectory()) {
+			entry = cache.lookup(new File(file, "index.html"));
+			if (!entry.isFile()) {
+				resp.code(403);
+				return Content.httpError(HttpUtil.FORBIDDEN);
+			}
+		} else if (!entry.isFile()) {
+			resp.code(404);
+			return Content.httpError(HttpUtil.NOT_FOUND);
+		}
+
+		resp.code(200).setHeader("cache-control", HttpUtil.CACHED_REVALIDATE);
+		var variant = precompressed(req, resp, entry.file, entry.lastModified(), entry.length());
+		if (variant != null) return variant;
+		return Content.file(req, new DiskFileInfo(entry));
+	}
+
+	private Content precompressed(Request req, Response resp, File file, long lastModified, long length) {
+		if (precompressed == null) return null;
+
+		resp.setHeader("vary", "accept-encoding");
+		if (!req.containsKey("accept-encoding", "gzip")) return null;
+
+		var variant = precompressed.get(file, lastModified, length);
+		return variant == null ? null : Content.file(req, variant);
+	}
+
 	// (Optional) for OKRouter Prefix Delegation check
 	@Override
 	public boolean test(String url) {
 		var file = IOUtil.resolveSafe(path, url);
-		return file != null && file.exists();
+		return file != null && (cache != null ? cache.lookup(file).exists() : file.exists());
 	}
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ public interface PayloadInfo {
 	 * 若不设置，请求体大小不能超过{@link HttpServer#POST_BUFFER_MAX}限制，以免占用过多内存.
 	 * 请求体为短JSON可以不设置。
 	 * 若是文件，FormData建议设置为{@link MultipartParser}，传统表单可以{@link UrlEncodedParser}
+	 * 较大的JSON或MsgPack可以使用{@link PushBodyParser}边接收边解析
 	 */
 	void setParser(BodyParser bodyParser);
 }
\ No newline at end of file
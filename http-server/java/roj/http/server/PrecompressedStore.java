@@ -0,0 +1,308 @@
+package roj.http.server;
+
+import org.jetbrains.annotations.Nullable;
+import roj.collect.ArrayList;
+import roj.collect.HashMap;
+import roj.collect.HashSet;
+import roj.concurrent.TaskPool;
+import roj.http.Headers;
+import roj.text.CharList;
+import roj.text.TextUtil;
+import roj.text.logging.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 预压缩的静态文件仓库.
+ * 在后台为可压缩的文件生成gzip格式的副本，保存在缓存目录中，重启后依然有效；副本的gzip头部(FEXTRA)中记录了源文件路径的SHA-1、修改时间和长度，用于判断是否属于这个文件、是否过期.
+ * 副本作为一个独立的实体(Content-Encoding: gzip)提供，因此可以使用sendfile，并且Range请求针对的是压缩后的字节.
+ *
+ * @author Roj234
+ * @since 2026/10/18 13:50
+ */
+public class PrecompressedStore {
+	private static final Logger LOGGER = Logger.getLogger("PrecompressedStore");
+
+	private static final int FEXTRA = 4;
+	private static final int EXTRA_ID = ('R' << 8) | 'J', PATH_HASH_LENGTH = 20, EXTRA_LENGTH = PATH_HASH_LENGTH + 16;
+	private static final int HEADER_SIZE = 10 + 2 + 4 + EXTRA_LENGTH;
+
+	/**
+	 * 一个已经生成的副本
+	 */
+	static final class Meta {
+		final File source, variant;
+		final long sourceModified, sourceLength;
+		final long length;
+		final int crc;
+		// 压缩收益太低，不使用副本
+		final boolean useless;
+
+		Meta(File source, File variant, long sourceModified, long sourceLength, long length, int crc, boolean useless) {
+			this.source = source;
+			this.variant = variant;
+			this.sourceModified = sourceModified;
+			this.sourceLength = sourceLength;
+			this.length = length;
+			this.crc = crc;
+			this.useless = useless;
+		}
+
+		boolean matches(long modified, long length) {return sourceModified == modified && sourceLength == length;}
+	}
+	private static final Meta PENDING = new Meta(null, null, 0, 0, 0, 0, true);
+
+	/**
+	 * 以Content-Encoding: gzip提供的副本
+	 */
+	public static final class Variant extends DiskFileInfo {
+		private final Meta meta;
+
+		Variant(Meta meta) {
+			super(meta.variant);
+			this.meta = meta;
+		}
+		Variant(Meta meta, FileCache.Entry entry) {
+			super(entry);
+			this.meta = meta;
+		}
+
+		@Override public int stats() {return FILE_RA;}
+		@Override public long lastModified() {return meta.sourceModified;}
+		@Override public String getETag() {return '"'+Long.toHexString(meta.sourceModified)+'-'+Long.toHexString(meta.sourceLength)+"-gz\"";}
+		@Override public int getCrc32() {return meta.crc;}
+		public long getSourceLength() {return meta.sourceLength;}
+
+		@Override
+		public void prepare(Response rh, Headers h) {
+			h.put("content-encoding", "gzip");
+			h.putIfAbsent("vary", "accept-encoding");
+			h.putIfAbsent("Content-Type", MimeType.getMimeType(meta.source.getName()));
+		}
+	}
+
+	private final File cacheDir;
+	private final HashMap<String, Meta> variants = new HashMap<>();
+	private TaskPool executor = TaskPool.common();
+	private FileCache fileCache;
+	private int level = Deflater.BEST_COMPRESSION;
+	private long minSize = 256, maxSize = 16 << 20;
+	private float maxRatio = 0.9f;
+
+	public PrecompressedStore(File cacheDir) {
+		this.cacheDir = cacheDir;
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) throw new IllegalArgumentException("无法创建缓存目录 "+cacheDir);
+	}
+
+	public PrecompressedStore setExecutor(TaskPool executor) {this.executor = executor;return this;}
+	/**
+	 * 使用文件缓存打开副本
+	 */
+	public PrecompressedStore setFileCache(FileCache fileCache) {this.fileCache = fileCache;return this;}
+	public PrecompressedStore setLevel(int level) {this.level = level;return this;}
+	public PrecompressedStore setSizeLimit(long minSize, long maxSize) {this.minSize = minSize;this.maxSize = maxSize;return this;}
+	/**
+	 * 压缩后的长度超过原长度的ratio倍时，不使用副本
+	 */
+	public PrecompressedStore setMaxRatio(float ratio) {this.maxRatio = ratio;return this;}
+
+	/**
+	 * 获取文件的gzip副本，如果副本不存在或已过期，那么在后台生成它，这一次返回null
+	 * @param lastModified 源文件的修改时间
+	 * @param length 源文件的长度
+	 */
+	@Nullable
+	public Variant get(File source, long lastModified, long length) {
+		if (length < minSize || length > maxSize || !MimeType.get(source.getName()).compress) return null;
+
+		String key = source.getAbsolutePath();
+		Meta meta;
+		synchronized (variants) {
+			meta = variants.get(key);
+			if (meta == PENDING) return null;
+			if (meta == null || !meta.matches(lastModified, length)) {
+				variants.put(key, PENDING);
+				meta = null;
+			}
+		}
+
+		if (meta == null) {
+			executor.execute(() -> update(key, source));
+			return null;
+		}
+		if (meta.useless) return null;
+
+		return fileCache != null ? new Variant(meta, fileCache.lookup(meta.variant)) : new Variant(meta);
+	}
+
+	/**
+	 * 在后台为目录下所有可压缩的文件加载或生成副本
+	 */
+	public void precompress(File root) {
+		executor.execute(() -> {
+			var stack = new ArrayList<File>();
+			stack.add(root);
+			while (!stack.isEmpty()) {
+				var file = stack.pop();
+				var children = file.listFiles();
+				if (children != null) {
+					for (var child : children) stack.add(child);
+				} else if (file.isFile() && file.length() >= minSize && file.length() <= maxSize && MimeType.get(file.getName()).compress) {
+					String key = file.getAbsolutePath();
+					synchronized (variants) {
+						if (variants.containsKey(key)) continue;
+						variants.put(key, PENDING);
+					}
+					update(key, file);
+				}
+			}
+		});
+	}
+
+	private static byte[] pathHash(String key) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	private File variantFile(byte[] pathHash, File source) {
+		return new File(cacheDir, TextUtil.bytes2hex(pathHash, 0, 8, new CharList()).append('_').append(source.getName()).append(".gz").toStringAndFree());
+	}
+
+	private void update(String key, File source) {
+		Meta meta = null;
+		try {
+			long modified = source.lastModified(), length = source.length();
+			byte[] pathHash = pathHash(key);
+			var variant = variantFile(pathHash, source);
+
+			meta = load(source, variant, pathHash);
+			if (meta == null || !meta.matches(modified, length)) meta = compress(source, variant, pathHash, modified, length);
+		} catch (Exception e) {
+			LOGGER.warn("无法为{}生成压缩副本", e, source);
+		} finally {
+			synchronized (variants) {
+				if (meta != null) variants.put(key, meta);
+				else variants.remove(key);
+			}
+		}
+	}
+
+	@Nullable
+	private Meta load(File source, File variant, byte[] pathHash) throws IOException {
+		if (!variant.isFile()) return null;
+
+		try (var in = new RandomAccessFile(variant, "r")) {
+			long length = in.length();
+			if (length < HEADER_SIZE + 8) return null;
+
+			if (in.readUnsignedShort() != 0x1F8B || in.readUnsignedByte() != 8 || (in.readUnsignedByte() & FEXTRA) == 0) return null;
+			in.skipBytes(6);
+			if (Short.reverseBytes(in.readShort()) != 4 + EXTRA_LENGTH || in.readUnsignedShort() != EXTRA_ID || Short.reverseBytes(in.readShort()) != EXTRA_LENGTH) return null;
+
+			// 文件名只用了路径哈希的一部分，不同的源文件可能对应同一个副本
+			byte[] storedHash = new byte[PATH_HASH_LENGTH];
+			in.readFully(storedHash);
+			if (!Arrays.equals(storedHash, pathHash)) return null;
+
+			long modified = Long.reverseBytes(in.readLong());
+			long sourceLength = Long.reverseBytes(in.readLong());
+
+			in.seek(length - 8);
+			int crc = Integer.reverseBytes(in.readInt());
+
+			return new Meta(source, variant, modified, sourceLength, length, crc, length > sourceLength * maxRatio);
+		}
+	}
+
+	private Meta compress(File source, File variant, byte[] pathHash, long modified, long length) throws IOException {
+		var tmp = new File(cacheDir, variant.getName()+".tmp");
+
+		var crc = new CRC32();
+		var def = new Deflater(level, true);
+		try (var in = new FileInputStream(source);
+			 var out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+			// gzip头部，FEXTRA中是源文件路径的哈希、修改时间和长度
+			var header = new DataOutputStream(out);
+			header.writeShort(0x1F8B);
+			header.writeByte(8);
+			header.writeByte(FEXTRA);
+			header.writeInt(Integer.reverseBytes((int) (modified / 1000)));
+			header.writeByte(0);
+			header.writeByte(255);
+			header.writeShort(Short.reverseBytes((short) (4 + EXTRA_LENGTH)));
+			header.writeShort(EXTRA_ID);
+			header.writeShort(Short.reverseBytes((short) EXTRA_LENGTH));
+			header.write(pathHash);
+			header.writeLong(Long.reverseBytes(modified));
+			header.writeLong(Long.reverseBytes(length));
+
+			byte[] buf = new byte[8192], outBuf = new byte[8192];
+			int r;
+			while ((r = in.read(buf)) > 0) {
+				crc.update(buf, 0, r);
+				def.setInput(buf, 0, r);
+				while (!def.needsInput()) {
+					int n = def.deflate(outBuf);
+					out.write(outBuf, 0, n);
+				}
+			}
+			def.finish();
+			while (!def.finished()) {
+				int n = def.deflate(outBuf);
+				out.write(outBuf, 0, n);
+			}
+
+			header.writeInt(Integer.reverseBytes((int) crc.getValue()));
+			header.writeInt(Integer.reverseBytes((int) length));
+		} catch (Throwable e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			def.end();
+		}
+
+		// 源文件在压缩期间被修改了，丢弃
+		if (source.lastModified() != modified || source.length() != length) {
+			tmp.delete();
+			return null;
+		}
+
+		Files.move(tmp.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		long size = variant.length();
+		var meta = new Meta(source, variant, modified, length, size, (int) crc.getValue(), size > length * maxRatio);
+		if (meta.useless) LOGGER.debug("{}的压缩率太低({}/{})，不使用副本", source, size, length);
+		return meta;
+	}
+
+	/**
+	 * 删除缓存目录中没有对应源文件的副本，需要在所有副本都已经加载后调用
+	 */
+	public int purge() {
+		var used = new HashSet<String>();
+		synchronized (variants) {
+			for (var meta : variants.values()) {
+				if (meta.variant != null) used.add(meta.variant.getName());
+			}
+		}
+
+		int count = 0;
+		var files = cacheDir.listFiles();
+		if (files != null) {
+			for (var file : files) {
+				if (!used.contains(file.getName()) && file.getName().endsWith(".gz") && file.delete()) count++;
+			}
+		}
+		return count;
+	}
+}
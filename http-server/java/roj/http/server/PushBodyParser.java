@@ -0,0 +1,57 @@
+package roj.http.server;
+
+import roj.config.JsonPushParser;
+import roj.config.MsgPackPushParser;
+import roj.config.PushParser;
+import roj.config.ValueEmitter;
+import roj.io.CorruptedInputException;
+import roj.net.ChannelCtx;
+import roj.text.ParseException;
+import roj.util.DynByteBuf;
+
+import java.io.IOException;
+
+/**
+ * 边接收边解析的JSON或MsgPack请求体，值一旦完整就发送到ValueEmitter，不需要缓冲整个请求体.
+ * 跨越了块边界的token留在缓冲区中，由HttpServer拼接到下一块数据的开头.
+ *
+ * @author Roj234
+ * @since 2026/10/18 15:50
+ */
+public class PushBodyParser implements BodyParser {
+	private final PushParser parser;
+
+	public PushBodyParser(PushParser parser) {this.parser = parser;}
+
+	public static PushBodyParser json(ValueEmitter emitter) {return new PushBodyParser(new JsonPushParser().reset(emitter));}
+	public static PushBodyParser msgpack(ValueEmitter emitter) {return new PushBodyParser(new MsgPackPushParser().reset(emitter));}
+	/**
+	 * 根据content-type选择MsgPack或JSON
+	 */
+	public static PushBodyParser of(Request req, ValueEmitter emitter) {
+		return switch (req.header("content-type")) {
+			case "application/x-msgpack"/* Unofficial */, "application/vnd.msgpack" -> msgpack(emitter);
+			default -> json(emitter);
+		};
+	}
+
+	public PushParser getParser() {return parser;}
+
+	@Override
+	public void channelRead(ChannelCtx ctx, Object msg) throws IOException {
+		try {
+			parser.feed((DynByteBuf) msg);
+		} catch (ParseException | CorruptedInputException e) {
+			throw IllegalRequestException.badRequest(e.getMessage());
+		}
+	}
+
+	@Override
+	public void onSuccess(DynByteBuf rest) throws IOException {
+		try {
+			parser.finish(rest);
+		} catch (ParseException | CorruptedInputException e) {
+			throw IllegalRequestException.badRequest(e.getMessage());
+		}
+	}
+}
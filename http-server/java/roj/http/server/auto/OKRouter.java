@@ -23,24 +23,32 @@ import roj.asmx.ParamNameMapper;
 import roj.ci.annotation.IndirectReference;
 import roj.collect.ArrayList;
 import roj.collect.HashMap;
+import roj.collect.IntList;
 import roj.collect.IntMap;
 import roj.collect.ToIntMap;
 import roj.concurrent.Task;
 import roj.config.ConfigMaster;
+import roj.config.Utf8JsonParser;
 import roj.config.mapper.ObjectMapper;
 import roj.config.node.ConfigValue;
 import roj.http.HttpUtil;
 import roj.http.server.*;
 import roj.io.IOUtil;
+import roj.optimizer.FastVarHandle;
 import roj.reflect.Reflection;
+import roj.reflect.Telescope;
 import roj.reflect.VirtualReference;
+import roj.text.CharList;
 import roj.text.HtmlEntities;
+import roj.text.Tokenizer;
 import roj.util.ByteList;
 import roj.util.FastFailException;
 import roj.util.Helpers;
 import roj.util.TypedKey;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -97,14 +105,24 @@ import static roj.asm.Opcodes.*;
  * @see Interceptor
  * @see Mime
  */
+@FastVarHandle
 public final class OKRouter implements Router {
 	private static final String REQ = "roj/http/server/Request";
 	private static final int ACCEPTS_ALL = 511;
 
+	private static final VarHandle HISTOGRAM$J$ARRAY = MethodHandles.arrayElementVarHandle(long[].class);
+	/**
+	 * 处理耗时直方图的桶数，第0桶是不到1μs，第i桶是[2^(i-1), 2^i)μs，最后一桶包含所有更长的耗时
+	 */
+	public static final int HISTOGRAM_BUCKETS = 24;
+
 	private final TypedKey<RouteInfo> RouterImplKey = new TypedKey<>("or:router");
 	private final HashMap<String, Dispatcher> interceptors = new HashMap<>();
 
 	private final RouteNode route = new LiteralNode("");
+	// 完全由字面量组成的路由的查找表，修改路由后清空，在下一个请求时重建
+	private volatile ExactTable exactTable;
+	private final ArrayList<RouteInfo> routeInfos = new ArrayList<>();
 
 	private final boolean debug;
 	private List<Task> onFinishes = Collections.emptyList();
@@ -661,6 +679,14 @@ public final class OKRouter implements Router {
 			}
 		}
 
+		if (configType == ConfigMaster.JSON) {
+			// 直接从字节解析，不经过TextReader
+			var parser = (Utf8JsonParser) req.threadLocal().get("or:jsonParser");
+			if (parser == null) req.threadLocal().put("or:jsonParser", parser = new Utf8JsonParser());
+			parser.parse(body, serializer.reset());
+			return serializer.get();
+		}
+
 		body.retain();
 		return serializer.read(body, configType);
 	}
@@ -696,11 +722,13 @@ public final class OKRouter implements Router {
 
 		// 存放已经实例化的拦截器
 		HashMap<String, Dispatcher> interceptorInstance = new HashMap<>();
+		exactTable = null;
 		for (var entry : registration.handlers.selfEntrySet()) {
 			int i = entry.getIntKey();
 			var annotation = entry.getValue();
 			var info = new RouteInfo();
 
+			info.path = pathRel.concat(annotation.getString("value"));
 			info.contentType = annotation.getString("mime", registration.defaultMime);
 			info.handler = registration.inst.setMethodId(i, o);
 
@@ -748,6 +776,7 @@ public final class OKRouter implements Router {
 			RouteNode node = route.add(url, 0, url.length());
 
 			int supportedMethods = annotation.getInt("accepts", Accepts.GET | Accepts.POST);
+			info.methods = supportedMethods;
 			var list = (RouteList)node.value;
 			if (list == null) {
 				list = new RouteList();
@@ -781,6 +810,7 @@ public final class OKRouter implements Router {
 					}
 				}
 			}
+			routeInfos.add(info);
 		}
 
 		for (var entry : registration.interceptors.selfEntrySet()) {
@@ -809,6 +839,7 @@ public final class OKRouter implements Router {
 	public final OKRouter addPrefixDelegation(String path, Router router, @Nullable String... interceptors) {
 		RouteNode node = route.add(path, 0, path.length());
 		if (node.value != null) throw new IllegalArgumentException("子路径'"+path+"'已存在");
+		exactTable = null;
 
 		var list = new RouteList();
 		list.supportedMethods = ACCEPTS_ALL;
@@ -816,6 +847,9 @@ public final class OKRouter implements Router {
 			list.prefixValidator = Helpers.cast(router);
 		}
 		var info = new RouteInfo();
+		info.path = path;
+		info.methods = ACCEPTS_ALL;
+		info.delegation = true;
 		list.defaultRoute = info;
 
 		node.flag |= RouteNode.PREFIX|(path.endsWith("/")?RouteNode.DIRECTORY:0);
@@ -858,6 +892,7 @@ public final class OKRouter implements Router {
 			}
 			return null;
 		};
+		routeInfos.add(info);
 
 		return this;
 	}
@@ -868,7 +903,24 @@ public final class OKRouter implements Router {
 		};
 	}
 
-	public final boolean removePrefixDelegation(String path) {return route.remove(path, 0, path.length());}
+	public final boolean removePrefixDelegation(String path) {
+		if (!route.remove(path, 0, path.length())) return false;
+		exactTable = null;
+		for (int i = routeInfos.size() - 1; i >= 0; i--) {
+			var info = routeInfos.get(i);
+			if (info.delegation && info.path.equals(path)) routeInfos.remove(i);
+		}
+		return true;
+	}
+
+	/**
+	 * 立即编译完全由字面量组成的路由的查找表，否则它会在路由修改后的第一个请求时编译.
+	 * 注意：通过addPrefixDelegation添加的OKRouter在此之后的修改不会使该表失效
+	 */
+	public final OKRouter freeze() {
+		exactTable = new ExactTable(route);
+		return this;
+	}
 
 	private static final class RouteList {
 		int supportedMethods;
@@ -876,36 +928,138 @@ public final class OKRouter implements Router {
 		RouteInfo defaultRoute;
 		RouteInfo[] routes;
 	}
+	@FastVarHandle
 	private static final class RouteInfo {
+		private static final VarHandle
+			ERRORS = Telescope.lookup().findVarHandle(RouteInfo.class, "errors", long.class),
+			TOTAL_TIME = Telescope.lookup().findVarHandle(RouteInfo.class, "totalTime", long.class);
+
 		String contentType;
 		Dispatcher handler;
 		Dispatcher[] filters;
+
+		String path;
+		int methods;
+		boolean delegation;
+
+		final long[] histogram = new long[HISTOGRAM_BUCKETS];
+		volatile long errors, totalTime;
+
+		void record(long nanos, boolean success) {
+			long us = nanos / 1000L;
+			HISTOGRAM$J$ARRAY.getAndAdd(histogram, us == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(us), HISTOGRAM_BUCKETS-1), 1L);
+			TOTAL_TIME.getAndAdd(this, nanos);
+			if (!success) ERRORS.getAndAdd(this, 1L);
+		}
+	}
+
+	/**
+	 * 以完整路径为键的开放寻址表，只包含从根开始每一级都是字面量、并且不是前缀匹配的路由.
+	 * 它们的优先级高于任何参数和前缀路由，所以命中时不需要再遍历RouteNode.
+	 */
+	private static final class ExactTable {
+		private final String[] keys;
+		private final RouteNode[] nodes;
+		private final int mask;
+
+		ExactTable(RouteNode root) {
+			var keys = new ArrayList<String>();
+			var nodes = new ArrayList<RouteNode>();
+			collect(root, "", keys, nodes);
+
+			int length = 4;
+			while (length < keys.size() * 2) length <<= 1;
+			this.keys = new String[length];
+			this.nodes = new RouteNode[length];
+			this.mask = length-1;
+
+			for (int i = 0; i < keys.size(); i++) {
+				String key = keys.get(i);
+				int slot = RouteNode.hash(key, 0, key.length()) & mask;
+				while (this.keys[slot] != null) slot = (slot+1) & mask;
+				this.keys[slot] = key;
+				this.nodes[slot] = nodes.get(i);
+			}
+		}
+		private static void collect(RouteNode node, String path, List<String> keys, List<RouteNode> nodes) {
+			if (node.value != null && (node.flag & RouteNode.PREFIX) == 0) {
+				keys.add(path);
+				nodes.add(node);
+			}
+
+			var table = node.table;
+			if (table == null) return;
+			for (LiteralNode child : table) {
+				for (; child != null; child = child.next) {
+					collect(child, path.isEmpty() ? child.name : path+'/'+child.name, keys, nodes);
+				}
+			}
+		}
+
+		RouteNode get(String path, int end) {
+			int slot = RouteNode.hash(path, 0, end) & mask;
+			while (true) {
+				String key = keys[slot];
+				if (key == null) return null;
+				if (key.length() == end && path.regionMatches(0, key, 0, end)) return nodes[slot];
+				slot = (slot+1) & mask;
+			}
+		}
 	}
 
 	private static final class PathMatcher {
 		private final ArrayList<RouteNode> env1 = new ArrayList<>(), env2 = new ArrayList<>();
-		private final ArrayList<ArrayList<String>> par3 = new ArrayList<>(), par4 = new ArrayList<>();
+		private final IntList head1 = new IntList(), head2 = new IntList();
+		// 捕获的路径参数，每一项是(上一项, 起始, 结束)，以链表的形式共享相同的前缀
+		private final IntList captures = new IntList();
+		private final ArrayList<String> captureNames = new ArrayList<>();
 
 		int prefixLen;
 		RouteList matchedValue;
 
 		private RouteNode prefixNode;
-		private ArrayList<String> prefixPar;
-		private int prefixParSize;
+		private int prefixCapture;
 		private boolean exactPrefixMatch;
 
 		int allowMethod;
 
+		final boolean matchExact(Request req, ExactTable table, String path) {
+			int end = path.length();
+			boolean isFile = end > 0 && path.charAt(end - 1) != '/';
+			int keyEnd = isFile || end == 0 ? end : end-1;
+			// 以斜杠开头的路径由match处理
+			if (keyEnd == 0 && end != 0) return false;
+
+			var node = table.get(path, keyEnd);
+			if (node == null) return false;
+
+			if ((node.flag & RouteNode.DIRECTORY) != 0) {
+				if (isFile) return false;
+			} else if ((node.flag & RouteNode.FILE) != 0) {
+				if (!isFile) return false;
+			}
+
+			// 方法不允许时可能由其它路由处理，也需要正确的allow头
+			checkAllow(req, node);
+			if (allowMethod != 0) return false;
+
+			prefixLen = (node.flag&RouteNode.DIRECTORY) == 0 && !isFile && end > 0 ? end-1 : end;
+			matchedValue = getNodeValue(node);
+			return true;
+		}
+
 		final boolean match(Request req, RouteNode root, String path, int i, int end) {
 			var nodeS = env1;
 			var nodeD = env2;
-			var parS = par3;
-			var parD = par4;
+			var headS = head1;
+			var headD = head2;
 
 			nodeS.add(root);
+			headS.add(-1);
+			captures.clear();
+			captureNames.clear();
 
 			prefixNode = null;
-			prefixPar = null;
 			exactPrefixMatch = false;
 
 			int prevI = 0;
@@ -915,31 +1069,27 @@ public final class OKRouter implements Router {
 
 				for (int k = 0; k < nodeS.size(); k++) {
 					RouteNode node = nodeS.get(k);
+					int head = headS.get(k);
 
 					if (node instanceof ParamNode pn) {
-						ArrayList<String> params = parS.size() <= k || parS.get(k) == null ? new ArrayList<>() : new ArrayList<>(parS.get(k));
-						params.add(pn.name);
-						params.add(path.substring(prevI, i-1));
-
-						parD.ensureCapacity(k+1);
-						parD._setSize(k+1);
-						parD.getInternalArray()[k] = params;
+						head = capture(head, pn.name, prevI, i-1);
 					}
 
 					if ((node.flag & RouteNode.PREFIX) != 0 && checkPrefixMatch(node, path, i)) {
 						prefixLen = i;
 						prefixNode = node;
-						prefixPar = parD.size() <= k ? null : parD.get(k);
-						if (prefixPar != null) prefixParSize = prefixPar.size();
+						prefixCapture = head;
 					}
 
+					int size = nodeD.size();
 					node.get(path, i, nextI, nodeD);
+					for (; size < nodeD.size(); size++) headD.add(head);
 				}
 
 				if (nodeD.isEmpty()) {
-					parS.clear();
+					headS.clear();
 					nodeS.clear();
-					return buildPrefix(req);
+					return buildPrefix(req, path);
 				}
 
 				var tmp = nodeS;
@@ -947,10 +1097,10 @@ public final class OKRouter implements Router {
 				nodeD = tmp;
 				nodeD.clear();
 
-				var tmp2 = parS;
-				parS = parD;
-				parD = tmp2;
-				parD.clear();
+				var tmp2 = headS;
+				headS = headD;
+				headD = tmp2;
+				headD.clear();
 
 				prevI = i;
 				i = nextI+1;
@@ -958,7 +1108,7 @@ public final class OKRouter implements Router {
 
 			RouteNode node = null;
 			int priority = exactPrefixMatch ? 5 : -1;
-			ArrayList<String> par = null;
+			int par = -1;
 
 			boolean isFile = path.length() > 0 && path.charAt(end - 1) != '/';
 			for (int j = 0; j < nodeS.size(); j++) {
@@ -978,13 +1128,10 @@ public final class OKRouter implements Router {
 
 						node = n;
 						priority = prio;
-						par = parS.size() <= j ? null : parS.get(j);
+						par = headS.get(j);
 
 						if (node instanceof ParamNode rex) {
-							if (par == null) par = new ArrayList<>();
-
-							par.add(rex.name);
-							par.add(path.substring(prevI, isFile ? end : end-1));
+							par = capture(par, rex.name, prevI, isFile ? end : end-1);
 						}
 					} else if (prio == priority && node != null) { // equals
 						throw new IllegalStateException("该路径被多个请求处理器命中: "+node+"|"+n);
@@ -992,25 +1139,34 @@ public final class OKRouter implements Router {
 				}
 			}
 
-			parS.clear();
+			headS.clear();
 			nodeS.clear();
 
-			if (node == null) return buildPrefix(req);
+			if (node == null) return buildPrefix(req, path);
 
 			// 兼容之前的代码，非严格模式
 			if ((node.flag&RouteNode.DIRECTORY) == 0 && !isFile && end > 0) end--;
 			prefixLen = end;
 			matchedValue = getNodeValue(node);
-			if (par != null) {
-				var pathVariable = req.arguments();
-				int j = 0;
-				while (j < par.size()) {
-					pathVariable.add(par.get(j++), par.get(j++));
-				}
-			}
+			addArguments(req, path, par);
 			return true;
 		}
 
+		private int capture(int prev, String name, int start, int end) {
+			captures.add(prev);
+			captures.add(start);
+			captures.add(end);
+			captureNames.add(name);
+			return captureNames.size()-1;
+		}
+		private void addArguments(Request req, String path, int id) {
+			if (id < 0) return;
+			// 链表是倒序的
+			int off = id * 3;
+			addArguments(req, path, captures.get(off));
+			req.arguments().add(captureNames.get(id), path.substring(captures.get(off+1), captures.get(off+2)));
+		}
+
 		private void checkAllow(Request req, RouteNode n) {
 			int accepts = getNodeValue(n).supportedMethods;
 			allowMethod = ((1 << req.action()) & accepts) == 0 ? accepts : 0;
@@ -1021,22 +1177,13 @@ public final class OKRouter implements Router {
 			return v != null && (exactPrefixMatch = v.prefixValidator.test(path.substring(i)));
 		}
 
-		private boolean buildPrefix(Request req) {
+		private boolean buildPrefix(Request req, String path) {
 			if (prefixNode == null) return false;
 			checkAllow(req, prefixNode);
 			matchedValue = getNodeValue(prefixNode);
-
-			var par = prefixPar;
-			if (par != null) {
-				var pathVariable = req.arguments();
-				int i = 0;
-				while (i < prefixParSize) {
-					pathVariable.add(par.get(i++), par.get(i++));
-				}
-			}
+			addArguments(req, path, prefixCapture);
 
 			prefixNode = null;
-			prefixPar = null;
 			return true;
 		}
 		private static RouteList getNodeValue(RouteNode node) {
@@ -1307,7 +1454,10 @@ public final class OKRouter implements Router {
 		var m = (PathMatcher) req.threadLocal().get("or:pathMatcher");
 		if (m == null) req.threadLocal().put("or:pathMatcher", m = new PathMatcher());
 
-		RouteList matchedValue = m.match(req, route, path, 0, path.length()) ? m.matchedValue : null;
+		var table = exactTable;
+		if (table == null) exactTable = table = new ExactTable(route);
+
+		RouteList matchedValue = m.matchExact(req, table, path) || m.match(req, route, path, 0, path.length()) ? m.matchedValue : null;
 
 		RouteInfo set;
 
@@ -1358,9 +1508,13 @@ public final class OKRouter implements Router {
 		RouteInfo set = req.connection().attachment(RouterImplKey, null);
 
 		Object ret;
+		boolean success = false;
+		long start = System.nanoTime();
 		try {
 			ret = set.handler.invoke(req, resp, null);
+			success = true;
 		} finally {
+			set.record(System.nanoTime() - start, success);
 			for (var c : onFinishes) {
 				try {
 					c.run();
@@ -1374,6 +1528,87 @@ public final class OKRouter implements Router {
 		return new TextContent(ret instanceof CharSequence cs ? cs : ret.toString(), set.contentType);
 	}
 
+	/**
+	 * 一个路由的调用统计
+	 */
+	public static final class RouteMetrics {
+		public final String path;
+		public final int methods;
+		public final long calls, errors, totalTime;
+		public final long[] histogram;
+
+		RouteMetrics(RouteInfo info) {
+			path = info.path;
+			methods = info.methods;
+			histogram = new long[HISTOGRAM_BUCKETS];
+			long calls = 0;
+			for (int i = 0; i < histogram.length; i++) calls += histogram[i] = (long) HISTOGRAM$J$ARRAY.getVolatile(info.histogram, i);
+			this.calls = calls;
+			errors = info.errors;
+			totalTime = info.totalTime;
+		}
+
+		/**
+		 * @return 平均耗时(ns)
+		 */
+		public long averageTime() {return calls == 0 ? 0 : totalTime / calls;}
+		/**
+		 * @return 所在桶的上界(μs)，对于最后一个桶是它的下界
+		 */
+		public long percentile(double p) {
+			long target = (long) Math.ceil(calls * p);
+			long sum = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				sum += histogram[i];
+				if (sum >= target && sum > 0) return i == histogram.length-1 ? 1L << (i-1) : 1L << i;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {return "RouteMetrics{"+path+", calls="+calls+", errors="+errors+", avg="+averageTime()/1000+"μs}";}
+	}
+
+	/**
+	 * 获取这个路由器中所有路由的调用次数和耗时直方图(不包括请求头过滤器的耗时)
+	 */
+	public List<RouteMetrics> getMetrics() {
+		var list = new ArrayList<RouteMetrics>(routeInfos.size());
+		for (int i = 0; i < routeInfos.size(); i++) list.add(new RouteMetrics(routeInfos.get(i)));
+		return list;
+	}
+
+	public String metricsToJson() {
+		var sb = new CharList().append('[');
+		for (var metrics : getMetrics()) {
+			if (sb.length() > 1) sb.append(',');
+			Tokenizer.escape(sb.append("{\"path\":\""), metrics.path).append('"')
+			  .append(",\"methods\":\"").append(serializeAllow(metrics.methods)).append('"')
+			  .append(",\"calls\":").append(metrics.calls)
+			  .append(",\"errors\":").append(metrics.errors)
+			  .append(",\"avgMicros\":").append(metrics.averageTime() / 1000)
+			  .append(",\"p50\":").append(metrics.percentile(0.5))
+			  .append(",\"p99\":").append(metrics.percentile(0.99))
+			  .append(",\"histogram\":[");
+			for (int i = 0; i < metrics.histogram.length; i++) {
+				if (i > 0) sb.append(',');
+				sb.append(metrics.histogram[i]);
+			}
+			sb.append("]}");
+		}
+		return sb.append(']').toStringAndFree();
+	}
+
+	/**
+	 * 以JSON格式返回{@link #getMetrics()}的路由器
+	 */
+	public Router metricsRouter() {
+		return (req, resp) -> {
+			resp.code(200).setHeader("cache-control", "no-store");
+			return Content.json(metricsToJson());
+		};
+	}
+
 	public interface Dispatcher {
 		Object invoke(Request req, Response server, Object argument) throws IllegalRequestException;
 		default Dispatcher setMethodId(int methodId, Object instance) { return this; }
@@ -0,0 +1,409 @@
+package roj.http;
+
+import roj.collect.RingBuffer;
+import roj.concurrent.Promise;
+import roj.concurrent.Timer;
+import roj.concurrent.TimerTask;
+import roj.io.IOUtil;
+import roj.net.*;
+import roj.net.handler.Timeout;
+import roj.util.TypedKey;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个远程地址一个的HTTP/1.1连接池.
+ * 不使用管线化：一个连接同时只处理一个请求，响应结束后交给排队最久的异步请求，或者放回空闲队列.
+ * 超过{@link HttpRequest#POOL_KEEPALIVE}没有使用的空闲连接由定时器关闭.
+ * <p>
+ * 连接数达到上限时，{@link HttpRequest#executeAsync}按先来先到排队，不阻塞任何线程；{@link HttpRequest#executePooled}阻塞等待空闲连接.
+ *
+ * @author Roj234
+ * @since 2026/10/18 19:10
+ */
+public final class HttpConnectionPool implements ChannelHandler {
+	private static final Map<InetSocketAddress, HttpConnectionPool> POOLS = new ConcurrentHashMap<>();
+	private static volatile TimerTask evictTask;
+
+	public static HttpConnectionPool of(InetSocketAddress address) {
+		var pool = POOLS.get(address);
+		if (pool != null) return pool;
+
+		pool = POOLS.computeIfAbsent(address, HttpConnectionPool::new);
+		if (evictTask == null) {
+			synchronized (POOLS) {
+				if (evictTask == null) evictTask = Timer.getDefault().loop(HttpConnectionPool::evictIdleConnections, 5000);
+			}
+		}
+		return pool;
+	}
+	public static Collection<HttpConnectionPool> pools() {return POOLS.values();}
+
+	private static final TypedKey<Long> IDLE_SINCE = new TypedKey<>("_sleep"), CONNECT_START = new TypedKey<>("_connect");
+
+	private final InetSocketAddress address;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final RingBuffer<MyChannel> idle = RingBuffer.unbounded();
+	private final RingBuffer<Waiter> waiters = RingBuffer.unbounded();
+	private int connections, maxConnections = 8;
+
+	private final LongAdder requests = new LongAdder(), reused = new LongAdder(), queued = new LongAdder();
+	private final LongAdder connects = new LongAdder(), connectFailures = new LongAdder(), connectTime = new LongAdder();
+
+	private HttpConnectionPool(InetSocketAddress address) {this.address = address;}
+
+	public InetSocketAddress getAddress() {return address;}
+	public HttpConnectionPool setMaxConnections(int maxConnections) {
+		Waiter[] toConnect;
+		lock.lock();
+		try {
+			this.maxConnections = maxConnections;
+			toConnect = takeWaitersForNewConnections();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		connectAll(toConnect);
+		return this;
+	}
+
+	//region 统计
+	public long requestCount() {return requests.sum();}
+	/**
+	 * @return 复用空闲连接的请求数
+	 */
+	public long reuseCount() {return reused.sum();}
+	/**
+	 * @return 因为连接数达到上限而排队的异步请求数
+	 */
+	public long queuedCount() {return queued.sum();}
+	public long connectCount() {return connects.sum();}
+	public long connectFailureCount() {return connectFailures.sum();}
+	/**
+	 * @return 成功建立的TCP连接的平均耗时(毫秒)，不包括TLS握手
+	 */
+	public double averageConnectTime() {
+		long n = connects.sum() - connectFailures.sum();
+		return n <= 0 ? 0 : connectTime.sum() / 1e6 / n;
+	}
+	public double reuseRate() {
+		long n = requests.sum();
+		return n == 0 ? 0 : (double) reused.sum() / n;
+	}
+
+	public int activeConnections() {return connections - idle.size();}
+	public int idleConnections() {return idle.size();}
+	public int pendingRequests() {return waiters.size();}
+
+	@Override
+	public String toString() {
+		return "HttpConnectionPool{"+address+", conn="+connections+"/"+maxConnections+", idle="+idle.size()+", waiting="+waiters.size()+
+			", reuse="+reused.sum()+"/"+requests.sum()+", connect="+connects.sum()+"(fail="+connectFailures.sum()+", avg="+averageConnectTime()+"ms)}";
+	}
+	//endregion
+	//region 执行
+	private static final class Waiter implements Runnable {
+		final HttpConnectionPool pool;
+		final HttpRequest request;
+		final HttpResponseImpl client;
+		final int timeout;
+		final ChannelHandler timer;
+		final Promise.Result promise;
+		TimerTask timeoutTask;
+
+		Waiter(HttpConnectionPool pool, HttpRequest request, HttpResponseImpl client, int timeout, ChannelHandler timer, Promise.Result promise) {
+			this.pool = pool;
+			this.request = request;
+			this.client = client;
+			this.timeout = timeout;
+			this.timer = timer;
+			this.promise = promise;
+		}
+
+		// 排队超时
+		@Override
+		public void run() {
+			var pool = this.pool;
+			pool.lock.lock();
+			try {
+				if (!pool.waiters.removeFirstOccurrence(this)) return;
+			} finally {
+				pool.lock.unlock();
+			}
+			promise.reject(new IOException("等待"+pool.address+"的空闲连接时超时"));
+		}
+	}
+
+	/**
+	 * 阻塞直到请求被交给了一个连接
+	 */
+	void execute(HttpRequest request, HttpResponseImpl client, int timeout, ChannelHandler timer) throws IOException {
+		requests.increment();
+		while (true) {
+			MyChannel ch;
+			lock.lock();
+			try {
+				while (true) {
+					ch = idle.pollFirst();
+					if (ch != null || connections < maxConnections) break;
+
+					available.await();
+				}
+				if (ch == null) connections++;
+			} catch (InterruptedException e) {
+				throw IOUtil.rethrowAsIOException(e);
+			} finally {
+				lock.unlock();
+			}
+
+			if (ch == null) {
+				connect(request, client, timeout, timer);
+				return;
+			}
+			if (reuse(ch, request, client, timer)) return;
+		}
+	}
+
+	/**
+	 * 不阻塞，连接数达到上限时排队
+	 * @param promise 在{@link HttpResponseImpl}收到响应头时完成
+	 */
+	void executeAsync(HttpRequest request, HttpResponseImpl client, int timeout, ChannelHandler timer, Promise.Result promise) {
+		requests.increment();
+		client.headWaiter = promise;
+
+		var waiter = new Waiter(this, request, client, timeout, timer, promise);
+		while (true) {
+			MyChannel ch;
+			lock.lock();
+			try {
+				ch = idle.pollFirst();
+				if (ch == null) {
+					if (connections >= maxConnections) {
+						queued.increment();
+						waiters.addLast(waiter);
+						if (timeout > 0) waiter.timeoutTask = Timer.getDefault().delay(waiter, timeout);
+						return;
+					}
+					connections++;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (ch == null) {
+				connectSafe(waiter);
+				return;
+			}
+
+			var channelLock = ch.lock();
+			channelLock.lock();
+			try {
+				if (reuse(ch, request, client, timer)) return;
+			} finally {
+				channelLock.unlock();
+			}
+		}
+	}
+
+	private boolean reuse(MyChannel ch, HttpRequest request, HttpResponseImpl client, ChannelHandler timer) {
+		if (retain(ch, request, client, timer)) return true;
+
+		IOUtil.closeSilently(ch);
+		return false;
+	}
+	/**
+	 * 和{@link #reuse}相同，但是失败时不关闭连接
+	 */
+	private boolean retain(MyChannel ch, HttpRequest request, HttpResponseImpl client, ChannelHandler timer) {
+		if (!ch.isOutputOpen()) return false;
+
+		var shc = (HttpResponseImpl) ch.handler("h11@merger").handler();
+		if (shc.retain(request, client)) {
+			ch.remove("super_timer");
+			ch.addBefore("h11@merger", "super_timer", timer);
+			reused.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 调用前已经占用了一个连接数
+	 */
+	private void connect(HttpRequest request, HttpResponseImpl client, int timeout, ChannelHandler timer) throws IOException {
+		connects.increment();
+		try {
+			var ch = MyChannel.openTCP();
+			ch.addLast("super_timer", timer).addLast("h11@merger", client);
+			request.attach(ch, timeout);
+			ch.addFirst("h11@pool", this);
+			ch.attachment(CONNECT_START, System.nanoTime());
+			ServerLaunch.DEFAULT_LOOPER.register(ch, null);
+		} catch (Throwable e) {
+			connectFailures.increment();
+
+			Waiter[] toConnect;
+			lock.lock();
+			try {
+				connections--;
+				toConnect = takeWaitersForNewConnections();
+				available.signal();
+			} finally {
+				lock.unlock();
+			}
+			connectAll(toConnect);
+			throw e;
+		}
+	}
+	private void connectSafe(Waiter waiter) {
+		if (waiter.timeoutTask != null) waiter.timeoutTask.cancel();
+		try {
+			connect(waiter.request, waiter.client, waiter.timeout, waiter.timer);
+		} catch (Throwable e) {
+			waiter.promise.reject(e);
+		}
+	}
+
+	/**
+	 * 持有锁时调用，为排队的请求占用空出来的连接数
+	 */
+	private Waiter[] takeWaitersForNewConnections() {
+		int n = Math.min(waiters.size(), maxConnections - connections);
+		if (n <= 0) return null;
+
+		var arr = new Waiter[n];
+		for (int i = 0; i < n; i++) arr[i] = waiters.removeFirst();
+		connections += n;
+		return arr;
+	}
+	private void connectAll(Waiter[] waiters) {
+		if (waiters != null) for (var waiter : waiters) connectSafe(waiter);
+	}
+	//endregion
+	//region 连接事件
+	@Override
+	public void channelOpened(ChannelCtx ctx) throws IOException {
+		Long start = ctx.attachment(CONNECT_START);
+		if (start != null) {
+			connectTime.add(System.nanoTime() - start);
+			ctx.attachment(CONNECT_START, null);
+		}
+		ctx.channelOpened();
+	}
+
+	@Override
+	public void onEvent(ChannelCtx ctx, Event event) {
+		if (event.id.equals(HttpResponseImpl.HC_FINISH)) {
+			release(ctx, event);
+		} else if (event.id.equals(Timeout.READ_TIMEOUT)) {
+			// 空闲连接的读取超时由定时器处理
+			Long since = ctx.attachment(IDLE_SINCE);
+			if (since != null && System.currentTimeMillis() - since < HttpRequest.POOL_KEEPALIVE) {
+				event.setResult(Event.RESULT_DENY);
+			}
+		}
+	}
+
+	/**
+	 * 在SelectorLoop上调用，响应已经完整接收
+	 */
+	private void release(ChannelCtx ctx, Event event) {
+		var ch = ctx.channel();
+
+		Waiter waiter;
+		lock.lock();
+		try {
+			waiter = waiters.pollFirst();
+			if (waiter == null) {
+				if (idle.size() >= maxConnections) return;
+
+				ch.remove("async_handler");
+				event.setResult(Event.RESULT_DENY);
+				ctx.attachment(IDLE_SINCE, System.currentTimeMillis());
+				idle.addLast(ch);
+				available.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		ch.remove("async_handler");
+		event.setResult(Event.RESULT_DENY);
+		ctx.attachment(IDLE_SINCE, null);
+		if (retain(ch, waiter.request, waiter.client, waiter.timer)) {
+			if (waiter.timeoutTask != null) waiter.timeoutTask.cancel();
+			return;
+		}
+
+		// 不能复用: 先把这个请求放回最前面再关闭连接，channelClosed空出的连接数才会交给它
+		lock.lock();
+		try {
+			waiters.addFirst(waiter);
+		} finally {
+			lock.unlock();
+		}
+		IOUtil.closeSilently(ch);
+
+		// 连接之前就已经关闭的话，channelClosed不会再被调用
+		Waiter[] toConnect;
+		lock.lock();
+		try {
+			toConnect = takeWaitersForNewConnections();
+		} finally {
+			lock.unlock();
+		}
+		connectAll(toConnect);
+	}
+
+	@Override
+	public void channelClosed(ChannelCtx ctx) {
+		Long start = ctx.attachment(CONNECT_START);
+		if (start != null) connectFailures.increment();
+
+		Waiter[] toConnect;
+		lock.lock();
+		try {
+			idle.removeFirstOccurrence(ctx.channel());
+			connections--;
+			toConnect = takeWaitersForNewConnections();
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+		connectAll(toConnect);
+	}
+
+	private static void evictIdleConnections() {
+		long deadline = System.currentTimeMillis() - HttpRequest.POOL_KEEPALIVE;
+		for (var pool : POOLS.values()) {
+			while (true) {
+				MyChannel ch;
+				pool.lock.lock();
+				try {
+					// 先放回去的在前面
+					ch = pool.idle.peekFirst();
+					if (ch == null) break;
+
+					Long since = ch.attachment(IDLE_SINCE);
+					if (since != null && since > deadline) break;
+					pool.idle.removeFirst();
+				} finally {
+					pool.lock.unlock();
+				}
+				IOUtil.closeSilently(ch);
+			}
+		}
+	}
+	//endregion
+}
@@ -4,13 +4,16 @@ import org.intellij.lang.annotations.MagicConstant;
 import org.jetbrains.annotations.ApiStatus;
 import org.jetbrains.annotations.Nullable;
 import roj.collect.ArrayList;
-import roj.collect.RingBuffer;
+import roj.concurrent.Promise;
+import roj.concurrent.TaskPool;
 import roj.crypt.CryptoFactory;
 import roj.io.BufferPool;
 import roj.io.IOUtil;
 import roj.net.*;
 import roj.net.handler.TLSClient;
 import roj.net.handler.Timeout;
+import roj.net.resolver.CachingNameResolver;
+import roj.net.resolver.NameResolver;
 import roj.text.CharList;
 import roj.text.URICoder;
 import roj.util.*;
@@ -21,13 +24,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -199,11 +198,18 @@ public abstract class HttpRequest {
 		}
 	}
 
+	private String getHost() {
+		int port = site.lastIndexOf(':');
+		return port < 0 ? site : site.substring(0, port);
+	}
 	private InetSocketAddress getAddress() throws IOException {
 		if (_address != null) return _address;
 
 		int port = site.lastIndexOf(':');
-		InetAddress host = InetAddress.getByName(port < 0 ? site : site.substring(0, port));
+		String hostname = getHost();
+		var addresses = RESOLVER.lookup(hostname);
+		if (addresses == null || addresses.isEmpty()) throw new UnknownHostException(hostname);
+		InetAddress host = addresses.get(0);
 		if (port < 0) {
 			port = switch (protocol) {
 				case "https" -> 443;
@@ -309,9 +315,13 @@ public abstract class HttpRequest {
 	//endregion
 	//region 池化连接
 	public static int POOL_KEEPALIVE = 60000;
+	/**
+	 * 解析主机名使用的解析器，默认缓存成功结果60秒，失败结果5秒
+	 */
+	public static NameResolver RESOLVER = new CachingNameResolver(NameResolver.JVM, 256, 60000, 5000);
 
 	public final HttpResponse executePooled() throws IOException { return executePooled(DEFAULT_TIMEOUT); }
-	public final HttpResponse executePooled(int timeout) throws IOException { return executePooled(timeout, action.equals("GET") || action.equals("HEAD") || action.equals("OPTIONS") ? 1 : -1); }
+	public final HttpResponse executePooled(int timeout) throws IOException { return executePooled(timeout, defaultRedirect()); }
 	public final HttpResponse executePooled(int timeout, int maxRedirect) throws IOException { return executePooled(timeout, maxRedirect, 0); }
 
 	/**
@@ -327,133 +337,50 @@ public abstract class HttpRequest {
 		headers.putIfAbsent("connection", "keep-alive");
 
 		HttpResponseImpl client = new HttpResponseImpl();
-
-		Pool pool = POOLS.computeIfAbsent(getAddress(), NEW_POOL);
-		pool.executePooled(this, client, timeout, new AutoRedirect(this, timeout, maxRedirect, maxRetry));
-
+		HttpConnectionPool.of(getAddress()).execute(this, client, timeout, new AutoRedirect(this, timeout, maxRedirect, maxRetry));
 		return client;
 	}
 
-	private static final Map<InetSocketAddress, Pool> POOLS = new ConcurrentHashMap<>();
-	private static final Function<InetSocketAddress, Pool> NEW_POOL = (x) -> new Pool(8);
+	public final Promise<HttpResponse> executeAsync() { return executeAsync(DEFAULT_TIMEOUT); }
+	public final Promise<HttpResponse> executeAsync(int timeout) { return executeAsync(timeout, defaultRedirect(), 0); }
 
-	private static final class Pool extends RingBuffer<MyChannel> implements ChannelHandler {
-		static final TypedKey<AtomicLong> SLEEP = new TypedKey<>("_sleep");
-
-		final ReentrantLock lock = new ReentrantLock();
-		final Condition available = lock.newCondition();
-		final AtomicInteger freeConnectionSlot;
-		int maxConnections;
-
-		Pool(int count) {
-			super(count);
-			this.freeConnectionSlot = new AtomicInteger(count);
-			this.maxConnections = count;
-		}
+	/**
+	 * 使用连接池异步执行HTTP请求，不阻塞调用者.
+	 * 连接数达到上限时按先来先到排队，排队时间超过timeout也会失败.
+	 * 主机名不在DNS缓存中时，在{@link TaskPool#common()}上解析.
+	 *
+	 * @param timeout 连接、读取和排队超时时间（毫秒）
+	 * @param maxRedirect 最大重定向次数，负数表示无限重定向
+	 * @param maxRetry 最大重试次数，负数等同于0
+	 * @return 收到响应头时完成的Promise，失败时包含异常
+	 */
+	public final Promise<HttpResponse> executeAsync(int timeout, int maxRedirect, int maxRetry) {
+		headers.putIfAbsent("connection", "keep-alive");
 
-		public void setMaxConnections(int conn) {
-			int delta;
-			synchronized (this) {
-				delta = conn - maxConnections;
-				maxConnections = conn;
-			}
-			freeConnectionSlot.getAndAdd(delta);
-		}
+		Promise<HttpResponse> promise = Promise.manual();
+		var callback = (Promise.Result) promise;
+		var client = new HttpResponseImpl();
+		var timer = new AutoRedirect(this, timeout, maxRedirect, maxRetry);
 
-		@Override
-		public void onEvent(ChannelCtx ctx, Event event) {
-			if (event.id.equals(HttpResponseImpl.HC_FINISH)) {
-				_add(ctx, event);
-			} else if (event.id.equals(Timeout.READ_TIMEOUT)) {
-				AtomicLong aLong = ctx.attachment(SLEEP);
-				if (aLong != null && System.currentTimeMillis() - aLong.get() < POOL_KEEPALIVE) {
-					event.setResult(Event.RESULT_DENY);
-				}
-			}
-		}
-		@Override
-		public void channelClosed(ChannelCtx ctx) {
-			lock.lock();
+		if (_address != null || (RESOLVER instanceof CachingNameResolver cache && cache.isCached(getHost()))) {
 			try {
-				removeFirstOccurrence(ctx.channel());
-				freeConnectionSlot.getAndIncrement();
-				available.signal();
-			} finally {
-				lock.unlock();
+				HttpConnectionPool.of(getAddress()).executeAsync(this, client, timeout, timer, callback);
+			} catch (Throwable e) {
+				callback.reject(e);
 			}
-		}
-
-		final void _add(ChannelCtx ctx, Event event) {
-			if (size < maxCapacity) {
-				lock.lock();
-				try {
-					if (size < maxCapacity) {
-						ctx.channel().remove("async_handler");
-						if (event != null) event.setResult(Event.RESULT_DENY);
-						ctx.attachment(SLEEP, new AtomicLong(System.currentTimeMillis()));
-						ringAddLast(ctx.channel());
-					}
-					available.signal();
-				} finally {
-					lock.unlock();
-				}
-			}
-		}
-
-		void executePooled(HttpRequest request, HttpResponseImpl client, int timeout, ChannelHandler timer) throws IOException {
-			while (true) {
-				if (size > 0) {
-					lock.lock();
-					while (true) {
-						MyChannel ch = pollFirst();
-						if (ch == null) break;
-						if (!ch.isOutputOpen()) continue;
-						lock.unlock();
-
-						HttpResponseImpl shc = (HttpResponseImpl) ch.handler("h11@merger").handler();
-						if (shc.retain(request, client)) {
-							ch.remove("super_timer");
-							ch.addBefore("h11@merger", "super_timer", timer);
-							return;
-						} else {
-							IOUtil.closeSilently(ch);
-							lock.lock();
-						}
-					}
-					lock.unlock();
-				}
-
-				while (true) {
-					int i = freeConnectionSlot.get();
-					if (i <= 0) break;
-
-					if (freeConnectionSlot.compareAndSet(i, i-1)) {
-						try {
-							MyChannel ch = MyChannel.openTCP();
-							ch.addLast("super_timer", timer)
-									.addLast("h11@merger", client);
-							request.attach(ch, timeout);
-							ch.addFirst("h11@pool", this);
-							ServerLaunch.DEFAULT_LOOPER.register(ch, null);
-						} catch (Throwable e) {
-							freeConnectionSlot.getAndIncrement();
-							throw e;
-						}
-						return;
-					}
-				}
-
-				lock.lock();
+		} else {
+			TaskPool.common().execute(() -> {
 				try {
-					available.await();
-				} catch (InterruptedException e) {
-					throw IOUtil.rethrowAsIOException(e);
-				} finally {
-					lock.unlock();
+					HttpConnectionPool.of(getAddress()).executeAsync(this, client, timeout, timer, callback);
+				} catch (Throwable e) {
+					callback.reject(e);
 				}
-			}
+			});
 		}
+		return promise;
 	}
+
+	private int defaultRedirect() {return action.equals("GET") || action.equals("HEAD") || action.equals("OPTIONS") ? 1 : -1;}
 	//endregion
 	//region WebSocket客户端
 	@ApiStatus.Experimental
@@ -40,6 +40,8 @@ final class HttpResponseImpl implements ChannelHandler, HttpResponse {
 	private Throwable ex;
 
 	private volatile Consumer<HttpResponse> callback;
+	// 由HttpConnectionPool设置，reset()不清除
+	Promise.Result headWaiter;
 
 	@Override
 	public void handlerAdded(ChannelCtx ctx) {
@@ -54,6 +56,11 @@ final class HttpResponseImpl implements ChannelHandler, HttpResponse {
 			state = HEAD;
 			notifyAll();
 		}
+		var waiter = headWaiter;
+		if (waiter != null) {
+			headWaiter = null;
+			waiter.resolve(this);
+		}
 		if (callback != null) callback.accept(this);
 
 		ctx.channelOpened();
@@ -134,6 +141,12 @@ final class HttpResponseImpl implements ChannelHandler, HttpResponse {
 			streamLock.notifyAll();
 		}
 
+		var waiter = headWaiter;
+		if (waiter != null) {
+			headWaiter = null;
+			if (ok) waiter.resolve(this);
+			else waiter.reject(ex);
+		}
 		if (callback != null) callback.accept(this);
 	}
 
@@ -3,6 +3,7 @@ package roj.http.h2;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
+import roj.collect.ArrayList;
 import roj.collect.IntMap;
 import roj.http.Headers;
 import roj.io.IOUtil;
@@ -113,20 +114,26 @@ public class H2Connection implements ChannelHandler {
 	public void channelRead(ChannelCtx ctx, Object msg) throws IOException {
 		var buf = (DynByteBuf) msg;
 
+		batch++;
 		int wIdx = buf.wIndex();
-		while (buf.readableBytes() > 3) {
-			int len = buf.getMedium(buf.rIndex);
-			if (len > localSetting.max_frame_size) {sizeError();return;}
-			len += 6;
-			if (buf.readableBytes() < len+3) return;
-
-			buf.wIndex((buf.rIndex+=3) + len);
-			try {
-				frame(ctx, buf);
-				buf.rIndex = buf.wIndex();
-			} finally {
-				if (buf.capacity() != 0) buf.wIndex(wIdx);
+		try {
+			while (buf.readableBytes() > 3) {
+				int len = buf.getMedium(buf.rIndex);
+				if (len > localSetting.max_frame_size) {sizeError();return;}
+				len += 6;
+				if (buf.readableBytes() < len+3) return;
+
+				buf.wIndex((buf.rIndex+=3) + len);
+				try {
+					frame(ctx, buf);
+					buf.rIndex = buf.wIndex();
+				} finally {
+					if (buf.capacity() != 0) buf.wIndex(wIdx);
+				}
 			}
+		} finally {
+			batch--;
+			flushFrames();
 		}
 	}
 	private void frame(ChannelCtx ctx, DynByteBuf buf) throws IOException {
@@ -158,7 +165,7 @@ public class H2Connection implements ChannelHandler {
 						for (H2Stream stream : streams.values()) stream.sendWindow += ws - prevWs;
 					}
 
-					ctx.channelWrite(IOUtil.getSharedByteBuf().putMedium(0).put(FRAME_SETTINGS).put(FLAG_ACK).putInt(0));
+					write(IOUtil.getSharedByteBuf().putMedium(0).put(FRAME_SETTINGS).put(FLAG_ACK).putInt(0));
 					hpack.setEncoderTableSize(remoteSetting.header_table_size);
 				} else {
 					if (buf.isReadable()) sizeError();
@@ -279,7 +286,7 @@ public class H2Connection implements ChannelHandler {
 					packetLimit("Ping", -1);
 
 					ByteList ob = IOUtil.getSharedByteBuf();
-					ctx.channelWrite(ob.putMedium(8).put(FRAME_PING).put(FLAG_ACK).putInt(0).put(buf));
+					write(ob.putMedium(8).put(FRAME_PING).put(FLAG_ACK).putInt(0).put(buf));
 				} else if (ping == null || buf.readLong() != (ping.sendTime ^ ping.nonce)) error(H2Exception.ERROR_PROTOCOL, "Ping.Ack");
 				else {
 					ping.recvTime = System.currentTimeMillis();
@@ -334,7 +341,7 @@ public class H2Connection implements ChannelHandler {
 					//RFC 9113 section-6.9-10
 					if (c == null) return;
 
-					if ((win += sendWindow) < 0) streamError(id, H2Exception.ERROR_FLOW_CONTROL);
+					if ((win += c.sendWindow) < 0) streamError(id, H2Exception.ERROR_FLOW_CONTROL);
 					c.sendWindow = win;
 					c.onWindowUpdate(this);
 				}
@@ -409,6 +416,7 @@ public class H2Connection implements ChannelHandler {
 		if (streams.isEmpty()) {
 			if ((flag&FLAG_GOAWAY_SENT) == 0) goaway(H2Exception.ERROR_OK, "");
 			try {
+				flushFrames();
 				ctx.channel().closeGracefully();
 			} catch (Exception e) {
 				ctx.close();
@@ -443,6 +451,7 @@ public class H2Connection implements ChannelHandler {
 		if ((flag&FLAG_GOAWAY_SENT) == 0) goaway(errno, reason != null && LOGGER.canLog(Level.DEBUG) ? reason : "");
 
 		try {
+			flushFrames();
 			ctx.channel().close();
 		} catch (IOException ignored) {}
 	}
@@ -463,17 +472,40 @@ public class H2Connection implements ChannelHandler {
 			.put(FRAME_RST_STREAM).put(0)
 			.putInt(id).putInt(errno);
 		try {
-			ctx.channelWrite(ob);
-			ctx.flush();
+			write(ob);
+			if (batch == 0) ctx.flush();
 		} catch (IOException ignored) {}
 	}
 	//endregion
 	//region 数据包发送
 	private static DynByteBuf withLength(DynByteBuf buf) {return buf.setMedium(0, buf.wIndex()-9);}
+
+	/**
+	 * 在channelRead和channelTick中产生的帧先合并到这里，回调结束时一次写出
+	 */
+	private final ByteList out = new ByteList();
+	private int batch;
+	private static final int FLUSH_THRESHOLD = 65536;
+
+	private void write(DynByteBuf frame) throws IOException {
+		out.put(frame);
+		if (batch == 0 || out.wIndex() >= FLUSH_THRESHOLD) flushFrames();
+	}
+	/**
+	 * 写出合并的帧.
+	 * 在channelRead和channelTick之外调用发送方法时，帧是立即写出的，不需要调用这个方法
+	 */
+	public final void flushFrames() throws IOException {
+		if (!out.isReadable()) return;
+		if (!ctx.isOutputOpen()) {out.clear();return;}
+
+		ctx.channelWrite(out);
+		out.clear();
+	}
 	public void syncSettings() throws IOException {
 		var ob = IOUtil.getSharedByteBuf();
 		localSetting.write(ob.putMedium(0).put(FRAME_SETTINGS).put(0).putInt(0), isServer());
-		ctx.channelWrite(withLength(ob));
+		write(withLength(ob));
 	}
 	public boolean ping(Consumer<H2Ping> callback) throws IOException {
 		if (ping != null) return false;
@@ -482,7 +514,7 @@ public class H2Connection implements ChannelHandler {
 		var ob = IOUtil.getSharedByteBuf().putMedium(8)
 			.put(FRAME_PING).put(0)
 			.putInt(0).putLong(ping.sendTime ^ ping.nonce);
-		ctx.channelWrite(ob);
+		write(ob);
 		return true;
 	}
 	@Nullable
@@ -508,7 +540,7 @@ public class H2Connection implements ChannelHandler {
 			.put(FRAME_GOAWAY).put(0)
 			.putInt(0).putInt(nextStreamId-1).putInt(errno).putUTFData(message);
 		try {
-			ctx.channelWrite(withLength(ob));
+			write(withLength(ob));
 		} catch (IOException ignored) {}
 	}
 	//endregion
@@ -529,7 +561,7 @@ public class H2Connection implements ChannelHandler {
 			stream.receiveWindow += increment;
 		}
 
-		ctx.channelWrite(IOUtil.getSharedByteBuf().putMedium(4).put(FRAME_WINDOW_UPDATE).put(0).putInt(id).putInt(increment));
+		write(IOUtil.getSharedByteBuf().putMedium(4).put(FRAME_WINDOW_UPDATE).put(0).putInt(id).putInt(increment));
 	}
 	//endregion
 	//region HEADER/DATA
@@ -586,7 +618,7 @@ public class H2Connection implements ChannelHandler {
 		noBody = encodeLoop(header, noBody, ob, false);
 
 		ob.set(4, ob.getByte(4) | FLAG_HEADER_END | (noBody ? FLAG_END : 0));
-		ctx.channelWrite(withLength(ob));
+		write(withLength(ob));
 		stream.outState = noBody ? H2Stream.CLOSED : H2Stream.DATA;
 	}
 	private boolean encodeLoop(Headers header, boolean noBody, ByteList ob, boolean pseudo) throws IOException {
@@ -603,7 +635,7 @@ public class H2Connection implements ChannelHandler {
 			int newSize = ob.wIndex();
 			if (newSize > size) {
 				ob.wIndex(oldSize);
-				ctx.channelWrite(withLength(ob));
+				write(withLength(ob));
 
 				ob.rIndex = 0;
 				ob.wIndex(9 + (newSize -= oldSize));
@@ -617,65 +649,51 @@ public class H2Connection implements ChannelHandler {
 		return noBody;
 	}
 
+	/**
+	 * @return 现在最多可以发送多少数据，在{@link #channelTick}中还受这个流分到的额度限制
+	 */
 	public int getImmediateWindow(H2Stream stream) {
 		if (ctx.isFlushing()) return 0;
-		return stream == null ? sendWindow : Math.min(sendWindow, stream.sendWindow);
+		return stream == null ? sendWindow : Math.min(Math.min(sendWindow, stream.sendWindow), stream.credit);
 	}
 	/**
-	 * 发送数据
+	 * 发送数据，超过{@link H2Setting#max_frame_size}时拆分成多个帧.
+	 * 没有发送的部分留在data中
 	 * @param isLastBlock true代表这是最后的数据
 	 * @return 是否因为流量控制未发送完全
 	 */
 	public boolean sendData(H2Stream stream, DynByteBuf data, boolean isLastBlock) throws IOException {
 		if (stream.outState != H2Stream.DATA) throw new IllegalArgumentException("流"+stream+"不在可以发送数据的状态");
 
-		int window = Math.min(stream.sendWindow, this.sendWindow);
+		int len = data.readableBytes();
+		int window = getImmediateWindow(stream);
 		// 两年过去，我已经忘了BLOCK帧是干啥的了，RFC里也没看到
-		if (window <= 0 || ctx.isFlushing()) return true;
+		// 空的帧不受流量控制
+		if (window <= 0 && len > 0) return true;
 
-		DynByteBuf wt;
-		boolean limitedByFlowControl;
-		if (data.readableBytes() > window) {
-			wt = data.slice(window);
-			limitedByFlowControl = true;
-		} else {
-			wt = data;
-			limitedByFlowControl = false;
-		}
-		stream.sendWindow -= data.readableBytes();
-		this.sendWindow -= data.readableBytes();
+		boolean limitedByFlowControl = len > window;
+		if (limitedByFlowControl) len = window;
 
 		int size = remoteSetting.max_frame_size;
+		do {
+			int n = Math.min(len, size);
+			len -= n;
 
-		ByteList ob = new ByteList();
-		ob.ensureCapacity(Math.min(wt.readableBytes(), size)+9);
-		ob.putMedium(0).put(FRAME_DATA).put(0).putInt(stream.id);
+			int frameFlag = isLastBlock && !limitedByFlowControl && len == 0 ? FLAG_END : 0;
+			out.putMedium(n).put(FRAME_DATA).put(frameFlag).putInt(stream.id).put(data, n);
+			data.rIndex += n;
 
-		while (wt.readableBytes() > size) {
-			ob.put(wt, size);
-			wt.rIndex += size;
-			ctx.channelWrite(withLength(ob));
-			ob.rIndex = 0;
-			ob.wIndex(9);
+			stream.sendWindow -= n;
+			stream.credit -= n;
+			this.sendWindow -= n;
 
-			if (ctx.isFlushing()) {
-				stream.sendWindow += wt.readableBytes();
-				this.sendWindow += wt.readableBytes();
-				data.rIndex -= wt.readableBytes();
-
-				ob.release();
-				return true;
+			if (batch == 0 || out.wIndex() >= FLUSH_THRESHOLD) {
+				flushFrames();
+				if (len > 0 && ctx.isFlushing()) return true;
 			}
-		}
-
-		if (isLastBlock) ob.set(4, FLAG_END);
-		ob.put(wt);
-		wt.rIndex = wt.wIndex();
-		ctx.channelWrite(withLength(ob));
+		} while (len > 0);
 
-		ob.release();
-
-		if (isLastBlock) {
+		if (isLastBlock && !limitedByFlowControl) {
 			if (isServer()) {
 				streams.remove(stream.id);
 				stream.finish(this);
@@ -694,9 +712,78 @@ public class H2Connection implements ChannelHandler {
 	@Override
 	public String toString() {return getClass().getSimpleName()+"/"+(ctx == null ? "<disconnected>" : Net.toString(ctx.remoteAddress()));}
 
+	//region 调度
+	private final ArrayList<H2Stream> scheduled = new ArrayList<>();
+	private int roundRobin;
+	// 每个流每次tick至少可以发送的字节数，避免窗口很小时拆出太多小帧
+	private static final int MIN_QUANTUM = 1024;
+
+	/**
+	 * 按权重把连接的发送窗口分给正在发送数据的流，每次tick轮流从不同的流开始.
+	 * 分到的额度用完而连接还有窗口时，把剩下的窗口再分给这些流，直到窗口或socket缓冲区用完
+	 */
 	@Override
 	public void channelTick(ChannelCtx ctx) throws IOException {
-		for (var stream : streams.values()) {
+		if (streams.isEmpty()) return;
+
+		var list = scheduled;
+		list.addAll(streams.values());
+		int start = Integer.remainderUnsigned(roundRobin++, list.size());
+
+		batch++;
+		try {
+			assignCredit(list, false);
+			tick(list, start, false);
+
+			for (int round = 0; round < 4; round++) {
+				if (sendWindow <= 0 || ctx.isFlushing() || !assignCredit(list, true)) break;
+				tick(list, start, true);
+			}
+		} finally {
+			for (int i = 0; i < list.size(); i++) list.get(i).credit = Integer.MAX_VALUE;
+			list.clear();
+
+			batch--;
+			flushFrames();
+		}
+
+		// 有活动的流时保持每毫秒tick
+		if (!streams.isEmpty()) ctx.channel().scheduleTick(1);
+	}
+	/**
+	 * @param hungryOnly 只分给上一轮用完了额度的流
+	 * @return 是否有流分到了额度
+	 */
+	private boolean assignCredit(ArrayList<H2Stream> list, boolean hungryOnly) {
+		int totalWeight = 0;
+		for (int i = 0; i < list.size(); i++) {
+			var stream = list.get(i);
+			if (isSending(stream, hungryOnly)) totalWeight += weight(stream);
+		}
+		if (totalWeight == 0) return false;
+
+		long budget = Math.max(sendWindow, 0);
+		for (int i = 0; i < list.size(); i++) {
+			var stream = list.get(i);
+			stream.credit = isSending(stream, hungryOnly)
+				? (int) Math.max(MIN_QUANTUM, budget * weight(stream) / totalWeight)
+				: hungryOnly ? 0 : Integer.MAX_VALUE;
+		}
+		return true;
+	}
+	private boolean isSending(H2Stream stream, boolean hungryOnly) {
+		return stream.outState == H2Stream.DATA && (!hungryOnly || stream.credit == 0) && isValid(stream);
+	}
+	private static int weight(H2Stream stream) {
+		int weight = stream.priority & 0xFF;
+		return weight == 0 ? 16 : weight;
+	}
+	private void tick(ArrayList<H2Stream> list, int start, boolean hungryOnly) {
+		int size = list.size();
+		for (int i = 0; i < size; i++) {
+			var stream = list.get((start + i) % size);
+			if (hungryOnly ? stream.credit == 0 : !isValid(stream)) continue;
+
 			try {
 				stream.tick(this);
 			} catch (Throwable e) {
@@ -704,6 +791,7 @@ public class H2Connection implements ChannelHandler {
 			}
 		}
 	}
+	//endregion
 
 	@Override
 	public void channelClosed(ChannelCtx ctx) throws IOException {
@@ -714,6 +802,7 @@ public class H2Connection implements ChannelHandler {
 		}
 		streams.clear();
 		hpack.clear();
+		out.clear();
 		flag &= FLAG_SERVER;
 	}
 
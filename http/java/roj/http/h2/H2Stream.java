@@ -34,6 +34,8 @@ public abstract class H2Stream {
 	protected byte flag;
 
 	int sendWindow, receiveWindow;
+	// 这次tick中还可以发送的字节数，由H2Connection的调度器分配
+	int credit = Integer.MAX_VALUE;
 	public final int getReceiveWindow() {return receiveWindow;}
 	public final int getSendWindow() {return sendWindow;}
 
@@ -1,8 +1,7 @@
 package roj.http.h2;
 
 import org.jetbrains.annotations.Nullable;
-import roj.collect.HashSet;
-import roj.collect.RingBuffer;
+import roj.collect.HashMap;
 import roj.crypt.Base64;
 import roj.io.IOUtil;
 import roj.text.CharList;
@@ -11,7 +10,7 @@ import roj.util.ByteList;
 import roj.util.DynByteBuf;
 
 import java.util.Arrays;
-import java.util.List;
+import java.util.Set;
 
 import static roj.http.h2.H2Exception.ERROR_COMPRESS;
 import static roj.http.h2.H2Exception.ERROR_PROTOCOL;
@@ -26,6 +25,11 @@ final class HPACK {
 	static final class Field {
 		int id;
 		CharSequence k,v;
+
+		// 编码器索引
+		int hash, nameHash, seq;
+		Field next, nameNext;
+
 		public Field() {}
 		public Field(CharSequence k, CharSequence v) {
 			this.k = k;
@@ -34,100 +38,139 @@ final class HPACK {
 
 		int len() {return 32+k.length()+v.length();}
 
-		@Override
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (o == null || getClass() != o.getClass()) return false;
-
-			Field field = (Field) o;
-
-			if (!k.equals(field.k)) return false;
-			return v.equals(field.v);
-		}
-
-		@Override
-		public int hashCode() {return 31 * k.hashCode() + v.hashCode();}
-
 		@Override
 		public String toString() {return "Field{"+k+"='"+v+'\''+'}';}
 	}
-	private static final class Table extends RingBuffer<Field> {
-		HPACK owner;
+	/**
+	 * 动态表，最新的条目下标最小.
+	 * 条目按插入序号seq放在环形数组的{@code seq & mask}处，所以下标可以由seq直接算出来
+	 */
+	private static final class Table {
+		private Field[] ring = new Field[16];
+		private int count, insertSeq;
 		int size, cap;
 
-		public Table(int capacity) {
-			super(0, 256);
+		// 只有编码器需要，链表头是最新的条目
+		Field[] pairIndex, nameIndex;
+
+		Table(int capacity, boolean indexed) {
 			cap = capacity;
+			if (indexed) {
+				pairIndex = new Field[64];
+				nameIndex = new Field[64];
+			}
 		}
 
-		public Field getField(int id) throws H2Exception {
-			if (--id < STATIC_TABLE.size()) return STATIC_TABLE.get(id);
-			id -= STATIC_TABLE.size();
-			if (id >= super.size) throw new H2Exception(ERROR_COMPRESS, "HPACK.Table.IndexError");
-			return (Field) elements[(id+head) % elements.length];
+		Field getField(int id) throws H2Exception {
+			if (--id < STATIC_TABLE.length) {
+				if (id < 0) throw new H2Exception(ERROR_COMPRESS, "HPACK.Table.IndexError");
+				return STATIC_TABLE[id];
+			}
+			id -= STATIC_TABLE.length;
+			if (id >= count) throw new H2Exception(ERROR_COMPRESS, "HPACK.Table.IndexError");
+			return ring[(insertSeq-1-id) & (ring.length-1)];
 		}
+		int indexOf(Field f) {return STATIC_TABLE.length + insertSeq - f.seq;}
 
-		public void _add(Field f) {
+		void add(Field f) {
 			int len = f.len();
 			if (len > cap) {
 				clear();
 				return;
 			}
 
-			while (cap - size < len) _remove();
-			ringAddLast(f);
+			while (cap - size < len) evict();
+			if (count == ring.length) resize(ring.length << 1);
 
-			if (owner != null) {
-				f.id = STATIC_TABLE.size()+super.size;
-				owner.encode_fp.add(f);
+			f.seq = insertSeq;
+			ring[insertSeq++ & (ring.length-1)] = f;
+			count++;
+			size += len;
 
-				if (f.v.length() > 0) {
-					Field f1 = F(f.k.toString(), "");
-					f1.id = f.id;
-					owner.encode_fp.add(f1);
-				}
-			}
+			if (pairIndex != null) link(f);
 		}
-
-		public void _remove() {
-			Field f = removeLast();
+		private void evict() {
+			int slot = (insertSeq - count) & (ring.length-1);
+			Field f = ring[slot];
+			ring[slot] = null;
+			count--;
 			size -= f.len();
 
-			if (owner != null) {
-				owner.encode_fp.remove(f);
-				f.v = "";
-				owner.encode_fp.remove(f);
-			}
+			if (pairIndex != null) unlink(f);
+		}
+		private void resize(int length) {
+			var newRing = new Field[length];
+			for (int seq = insertSeq - count; seq != insertSeq; seq++)
+				newRing[seq & (length-1)] = ring[seq & (ring.length-1)];
+			ring = newRing;
 		}
 
-		@Override
-		public void clear() {
-			super.clear();
-			size = 0;
+		//region 编码器索引
+		private void link(Field f) {
+			int slot = f.hash & (pairIndex.length-1);
+			f.next = pairIndex[slot];
+			pairIndex[slot] = f;
 
-			if (owner != null)
-				owner.encode_fp.clear();
+			slot = f.nameHash & (nameIndex.length-1);
+			f.nameNext = nameIndex[slot];
+			nameIndex[slot] = f;
 		}
+		private void unlink(Field f) {
+			// 被删除的总是最旧的，在链表的末尾
+			int slot = f.hash & (pairIndex.length-1);
+			Field prev = pairIndex[slot];
+			if (prev == f) pairIndex[slot] = f.next;
+			else {
+				while (prev.next != f) prev = prev.next;
+				prev.next = f.next;
+			}
+			f.next = null;
+
+			slot = f.nameHash & (nameIndex.length-1);
+			prev = nameIndex[slot];
+			if (prev == f) nameIndex[slot] = f.nameNext;
+			else {
+				while (prev.nameNext != f) prev = prev.nameNext;
+				prev.nameNext = f.nameNext;
+			}
+			f.nameNext = null;
+		}
+		private void reindex() {
+			int length = Math.max(16, Integer.highestOneBit(Math.max(cap >>> 5, 1)) << 1);
+			length = Math.min(length, 4096);
+			if (length != pairIndex.length) {
+				pairIndex = new Field[length];
+				nameIndex = new Field[length];
+			} else {
+				Arrays.fill(pairIndex, null);
+				Arrays.fill(nameIndex, null);
+			}
+			// 旧的先加，这样新的在链表头
+			for (int seq = insertSeq - count; seq != insertSeq; seq++)
+				link(ring[seq & (ring.length-1)]);
+		}
+		//endregion
 
-		@Override
-		public void setMaxCapacity(int capacity) {
-			if (cap == capacity) return;
+		void clear() {
+			Arrays.fill(ring, null);
+			count = size = 0;
 
-			cap = capacity;
-			if (capacity == 0) {
-				clear();
-			} else {
-				while (size > capacity) _remove();
+			if (pairIndex != null) {
+				Arrays.fill(pairIndex, null);
+				Arrays.fill(nameIndex, null);
 			}
+		}
 
-			int max = capacity / 32;
-			if ((capacity & 31) != 0) max++;
+		void setMaxCapacity(int capacity) {
+			if (cap == capacity) return;
 
-			super.setMaxCapacity(max);
+			cap = capacity;
+			while (size > capacity) evict();
+			if (pairIndex != null) reindex();
 		}
 	}
 
-	private static final List<Field> STATIC_TABLE = Arrays.asList(F(":authority"), F(":method", "GET"), F(":method", "POST"), F(":path", "/"),
+	private static final Field[] STATIC_TABLE = {F(":authority"), F(":method", "GET"), F(":method", "POST"), F(":path", "/"),
 		F(":path", "/index.html"), F(":scheme", "http"), F(":scheme", "https"), F(":status", "200"), F(":status", "204"), F(":status", "206"),
 		F(":status", "304"), F(":status", "400"), F(":status", "404"), F(":status", "500"), F("accept-charset"), F("accept-encoding", "gzip, deflate"),
 		F("accept-language"), F("accept-ranges"), F("accept"), F("access-control-allow-origin"), F("age"), F("allow"),
@@ -136,34 +179,48 @@ final class HPACK {
 		F("expect"), F("expires"), F("from"), F("host"), F("if-match"), F("if-modified-since"), F("if-none-match"), F("if-range"),
 		F("if-unmodified-since"), F("last-modified"), F("link"), F("location"), F("max-forwards"), F("proxy-authenticate"),
 		F("proxy-authorization"), F("range"), F("referer"), F("refresh"), F("retry-after"), F("server"), F("set-cookie"),
-		F("strict-transport-security"), F("transfer-encoding"), F("user-agent"), F("vary"), F("via"), F("www-authenticate"));
-	private static final HashSet<Field> STATIC_MAP = new HashSet<>();
+		F("strict-transport-security"), F("transfer-encoding"), F("user-agent"), F("vary"), F("via"), F("www-authenticate")};
+	// 静态表不变，两个索引都是只读的，链表通过Field.next和Field.nameNext
+	private static final Field[] STATIC_PAIR = new Field[128], STATIC_NAME = new Field[128];
 	static {
-		for (int i = 0; i < STATIC_TABLE.size();) {
-			Field f = STATIC_TABLE.get(i);
+		for (int i = 0; i < STATIC_TABLE.length;) {
+			Field f = STATIC_TABLE[i];
 			f.id = ++i;
-			STATIC_MAP.add(f);
-			if (f.v.length() > 0) {
-				Field f1 = F(f.k.toString());
-				f1.id = i;
-				STATIC_MAP.add(f1);
+			f.nameHash = hash(f.k);
+			f.hash = pairHash(f.nameHash, f.v);
+
+			int slot = f.hash & (STATIC_PAIR.length-1);
+			f.next = STATIC_PAIR[slot];
+			STATIC_PAIR[slot] = f;
+
+			// 同名的条目只索引第一个
+			if (findName(STATIC_NAME, f.k, f.nameHash) == null) {
+				slot = f.nameHash & (STATIC_NAME.length-1);
+				f.nameNext = STATIC_NAME[slot];
+				STATIC_NAME[slot] = f;
 			}
 		}
 	}
 
-	private final BitStream bitStream = new BitStream();
-
 	private boolean encoderSizeChanged, decoderSizeChanged;
-	private final Table encode_tab = new Table(4096), decode_tab = new Table(4096);
-	private final Field checker = new Field();
-	private final HashSet<Field> encode_fp = new HashSet<>();
+	private final Table encode_tab = new Table(4096, true), decode_tab = new Table(4096, false);
 
-	public HPACK() {encode_tab.owner = this;}
+	/**
+	 * 编码过的字面量：头部名称，以及server和content-type这类每个响应都一样、但不一定会进入动态表的值.
+	 * date、etag和cookie之类每次都不同或者敏感的值不缓存.
+	 * 字面量的编码结果和动态表的状态无关，所以可以缓存；满了之后不再添加
+	 */
+	private final HashMap<String, byte[]> literalCache = new HashMap<>();
+	private final ByteList literalBuf = new ByteList(64);
+	private static final int LITERAL_CACHE_SIZE = 64, LITERAL_CACHE_MAX_LENGTH = 128;
+	private static final Set<String> CACHEABLE_VALUES = Set.of("server", "content-type", "content-encoding", "vary", "cache-control", "accept-ranges", "x-content-type-options", "access-control-allow-origin");
+
+	public HPACK() {}
 
 	public void clear() {
 		encode_tab.clear();
-		encode_fp.clear();
 		decode_tab.clear();
+		literalCache.clear();
 	}
 
 	public void setEncoderTableSize(int encodeMax/*REMOTE*/) {
@@ -181,35 +238,47 @@ final class HPACK {
 
 	public void encode(CharSequence k, CharSequence v, DynByteBuf out) {encode(k,v,out,0);}
 	public void encode(CharSequence k, CharSequence v, DynByteBuf out, int indexType) {
+		var tab = encode_tab;
 		if (encoderSizeChanged) {
-			writeInt(0x20, 5, encode_tab.cap, out);
+			writeInt(0x20, 5, tab.cap, out);
 			encoderSizeChanged = false;
 		}
 
-		int id = findExistField(STATIC_MAP, k, v);
-		// 0: not, <0: pair, >0: key
-		if (id >= 0 && encode_tab.cap > 0) {
-			int dyn_id = findExistField(encode_fp, k, v);
-			if (dyn_id < 0 || id == 0) id = dyn_id;
-		}
+		int nameHash = hash(k), hash = pairHash(nameHash, v);
 
 		// 1xxx xxxx
-		if (id < 0) {writeInt(0x80, 7, -id, out);return;}
+		Field f = findPair(STATIC_PAIR, k, v, hash);
+		if (f != null) {writeInt(0x80, 7, f.id, out);return;}
+		f = findPair(tab.pairIndex, k, v, hash);
+		if (f != null) {writeInt(0x80, 7, tab.indexOf(f), out);return;}
+
+		int id;
+		f = findName(STATIC_NAME, k, nameHash);
+		if (f != null) id = f.id;
+		else {
+			f = findName(tab.nameIndex, k, nameHash);
+			id = f == null ? 0 : tab.indexOf(f);
+		}
 
 		switch (indexType) {
 			// 01xx xxxx
-			case H2Connection.FIELD_SAVE -> {
-				encode_tab._add(F(k.toString(), v.toString()));
-				writeInt(0x40, 6, id, out);
-			}
+			case H2Connection.FIELD_SAVE -> writeInt(0x40, 6, id, out);
 			// 0000 xxxx
 			case H2Connection.FIELD_DISCARD -> writeInt(0x00, 4, id, out);
 			// 0001 xxxx
 			case H2Connection.FIELD_DISCARD_ALWAYS -> writeInt(0x10, 4, id, out);
 		}
 
-		if (id == 0) writeString(k, out);
-		writeString(v, out);
+		if (id == 0) writeString(k, out, true);
+		writeString(v, out, indexType != H2Connection.FIELD_DISCARD_ALWAYS && CACHEABLE_VALUES.contains(k.toString()));
+
+		// 下标是相对于添加之前的表的，即使引用的名称会被这次添加挤出去也没关系
+		if (indexType == H2Connection.FIELD_SAVE) {
+			f = F(k.toString(), v.toString());
+			f.nameHash = nameHash;
+			f.hash = hash;
+			tab.add(f);
+		}
 	}
 
 	@Nullable
@@ -223,7 +292,7 @@ final class HPACK {
 				f = decode_tab.getField(k == 0x7F ? readInt(in, 0x7F) : k);
 			}
 			// 01xx xxxx    Literal Header Field with Incremental Indexing
-			case 4, 5, 6, 7 -> decode_tab._add(f = getField(in, k, 63));
+			case 4, 5, 6, 7 -> decode_tab.add(f = getField(in, k, 63));
 			// 001x xxxx    Dynamic Table Size Update
 			case 2, 3 -> {
 				if ((k &= 31) == 31) k = readInt(in, 31);
@@ -243,38 +312,84 @@ final class HPACK {
 		return f;
 	}
 
-	private int findExistField(HashSet<Field> set, CharSequence k, CharSequence v) {
-		Field test = checker;
-
-		test.k = k;
-		test.v = v;
-		Field in_table = set.find(test);
-		if (in_table != test) {
-			return -in_table.id;
+	//region 索引
+	private static int hash(CharSequence s) {
+		int h;
+		if (s instanceof String) h = s.hashCode();
+		else {
+			h = 0;
+			for (int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
 		}
+		return h ^ (h >>> 16);
+	}
+	private static int pairHash(int nameHash, CharSequence v) {
+		int h = nameHash * 31 + hash(v);
+		return h ^ (h >>> 16);
+	}
+	private static boolean contentEquals(CharSequence a, CharSequence b) {
+		if (a instanceof String s) return s.contentEquals(b);
 
-		test.v = "";
-		in_table = set.find(test);
-		if (in_table != test) {
-			return in_table.id;
+		int len = a.length();
+		if (len != b.length()) return false;
+		for (int i = 0; i < len; i++) {
+			if (a.charAt(i) != b.charAt(i)) return false;
 		}
+		return true;
+	}
 
-		return 0;
+	private static Field findPair(Field[] index, CharSequence k, CharSequence v, int hash) {
+		if (index == null) return null;
+		Field f = index[hash & (index.length-1)];
+		while (f != null) {
+			if (f.hash == hash && contentEquals(f.v, v) && contentEquals(f.k, k)) return f;
+			f = f.next;
+		}
+		return null;
 	}
+	private static Field findName(Field[] index, CharSequence k, int nameHash) {
+		if (index == null) return null;
+		Field f = index[nameHash & (index.length-1)];
+		while (f != null) {
+			if (f.nameHash == nameHash && contentEquals(f.k, k)) return f;
+			f = f.nameNext;
+		}
+		return null;
+	}
+	//endregion
 
-	private void writeString(CharSequence str, DynByteBuf out) {
+	private void writeString(CharSequence str, DynByteBuf out, boolean cacheable) {
+		if (cacheable && str instanceof String s && s.length() <= LITERAL_CACHE_MAX_LENGTH) {
+			byte[] b = literalCache.get(s);
+			if (b != null) {
+				out.put(b);
+				return;
+			}
+
+			if (literalCache.size() < LITERAL_CACHE_SIZE) {
+				literalBuf.clear();
+				writeString0(s, literalBuf);
+				b = literalBuf.toByteArray();
+				literalCache.put(s, b);
+				out.put(b);
+				return;
+			}
+		}
+
+		writeString0(str, out);
+	}
+	private static void writeString0(CharSequence str, DynByteBuf out) {
 		int len = huffmanLength(str);
 		if (len < str.length()) {
 			writeInt(128, 7, len, out);
 			out.ensureWritable(len);
-			huffmanEncode(str, bitStream.init(out));
+			huffmanEncode(str, out);
 		} else {
 			writeInt(0, 7, str.length(), out);
 			out.putAscii(str);
 		}
 	}
 
-	private void writeInt(int prefix, int prefixLen, int val, DynByteBuf out) {
+	private static void writeInt(int prefix, int prefixLen, int val, DynByteBuf out) {
 		int max = (1<<prefixLen)-1;
 		if (val < max) {
 			out.put((byte) (prefix | val));
@@ -302,19 +417,15 @@ final class HPACK {
 		return key;
 	}
 
-	private String readString(DynByteBuf in) throws H2Exception {
+	private static String readString(DynByteBuf in) throws H2Exception {
 		int first = in.readByte();
 		int length = (first&0x7F)==0x7F?readInt(in, 0x7F):first&0x7F;
+		if (in.readableBytes() < length) throw new H2Exception(ERROR_PROTOCOL, "HPACK.PrematureEnd");
+
 		if (first < 0) {
-			int lim = in.wIndex();
-			if (lim - in.rIndex < length) throw new H2Exception(ERROR_PROTOCOL, "HPACK.PrematureEnd");
-
-			in.wIndex(in.rIndex+length);
-			try {
-				return huffmanDecode(bitStream.init(in));
-			} finally {
-				in.wIndex(lim);
-			}
+			String s = huffmanDecode(in, in.rIndex, length);
+			in.rIndex += length;
+			return s;
 		}
 		return in.readAscii(length);
 	}
@@ -337,18 +448,14 @@ final class HPACK {
 	}
 
 	// region huffman
-
-	private static final class Entry {
-		Entry[] entries;
-		char sym;
-		byte bits;
-
-		Entry() {entries = new Entry[256]; bits = 8;}
-		Entry(int sym, int bits) {this.sym = (char) sym; this.bits = (byte) bits;}
-	}
 	private static final int[] HUFFMAN_SYM = new int[257];
 	private static final byte[] HUFFMAN_SYM_BITS = new byte[257];
-	private static final Entry HUFFMAN_TAB = new Entry();
+	/**
+	 * 每次查8位的多级解码表，每级256项.
+	 * 叶子: sym << 8 | 在这一级消耗的位数(1-8)
+	 * 下一级: -(下一级在数组中的偏移)
+	 */
+	private static final int[] HUFFMAN_DECODE;
 	static {
 		String table = "b/4v//9jn///xc///+Pn///yc///+Xn///zc///+fn///0Y///q9////5z///6ef///V7////3n/" +
 			"//18///+zn///28///+7n///38////Dn///48////L3////3P///z5///+nP///15///+3P///35////HP///55" +
@@ -365,6 +472,9 @@ final class HPACK {
 		ByteList list = ByteList.allocate(999);
 		Base64.decode(table, list);
 
+		int[] decode = new int[256 * 16];
+		int tables = 1;
+
 		var br = new BitStream(list);
 		for (int i = 0; i < 257; i++) {
 			int len = br.readBits(5);
@@ -373,86 +483,103 @@ final class HPACK {
 			HUFFMAN_SYM[i] = code;
 			HUFFMAN_SYM_BITS[i] = (byte) len;
 
-			Entry entry = HUFFMAN_TAB;
+			int offset = 0;
 			while (len > 8) {
 				len -= 8;
 
-				int slot = (code >>> len) & 0xFF;
-
-				Entry[] items = entry.entries;
-				entry = items[slot];
-				if (entry == null) {
-					entry = new Entry();
-					items[slot] = entry;
+				int slot = offset + ((code >>> len) & 0xFF);
+				int entry = decode[slot];
+				if (entry == 0) {
+					if (tables * 256 == decode.length) decode = Arrays.copyOf(decode, decode.length << 1);
+					entry = decode[slot] = -(tables++ * 256);
 				}
+				offset = -entry;
 			}
 
-			Entry end = new Entry(i, len);
-
 			// etc 0b1110[nnnn]
 			int shift = 8 - len;
-			int high = (code << shift) & 255;
+			int high = offset + ((code << shift) & 255);
 			int count = 1 << shift;
 
 			// "模糊匹配"
-			while (count-- > 0) {
-				entry.entries[high++] = end;
-			}
+			Arrays.fill(decode, high, high+count, i << 8 | len);
 		}
+		HUFFMAN_DECODE = Arrays.copyOf(decode, tables * 256);
 	}
 
-	private static void huffmanEncode(CharSequence seq, BitStream out) {
+	private static void huffmanEncode(CharSequence seq, DynByteBuf out) {
+		long buf = 0;
+		int bits = 0;
 		for (int i = 0; i < seq.length(); i++) {
 			int id = seq.charAt(i);
-			out.writeBit(HUFFMAN_SYM_BITS[id], HUFFMAN_SYM[id]);
+			int len = HUFFMAN_SYM_BITS[id];
+			buf = (buf << len) | HUFFMAN_SYM[id];
+			// 最长的码是30位，所以buf中最多37位有效
+			if ((bits += len) >= 32) {
+				bits -= 32;
+				out.putInt((int) (buf >>> bits));
+			}
 		}
-		if (out.bitCount > 0) {
-			long l = out.buffer << (8 - out.bitCount);
-			l |= (0xFF >>> out.bitCount);
-			out.bytes.put((byte) l);
-			out.bitCount = 0;
+		while (bits >= 8) {
+			bits -= 8;
+			out.put((byte) (buf >>> bits));
 		}
+		// '1's padding
+		if (bits > 0) out.put((byte) ((buf << (8 - bits)) | (0xFF >>> bits)));
 	}
 	private static int huffmanLength(CharSequence seq) {
 		long len = 0;
 		for (int i = 0; i < seq.length(); i++) {
 			len += HUFFMAN_SYM_BITS[seq.charAt(i)];
 		}
-		if ((len & 7) != 0) len += 8;
-		return (int) (len >>> 3);
+		return (int) ((len + 7) >>> 3);
 	}
 
-	private static String huffmanDecode(BitStream in) throws H2Exception {
+	private static String huffmanDecode(DynByteBuf in, int off, int len) throws H2Exception {
 		CharList sb = IOUtil.getSharedCharBuf();
+		int[] table = HUFFMAN_DECODE;
+
+		int end = off + len;
+		long buf = 0;
+		int bits = 0;
+		while (true) {
+			while (bits <= 56 && off < end) {
+				buf = (buf << 8) | in.getUnsignedByte(off++);
+				bits += 8;
+			}
+			if (bits == 0) break;
 
-		int remain;
-		notEnoughData:
-		while ((remain = in.readableBits()) > 0) {
-			Entry table = HUFFMAN_TAB;
+			int offset = 0;
 			while (true) {
-				table = table.entries[in.peekOptionalBits(8)];
-				if (table == null) throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.InvalidCode");
-
-				int symBits = table.bits;
-				if (remain < symBits) break notEnoughData;
-				in.skipBits(symBits);
-				remain -= symBits;
-
-				if (table.entries == null) {
-					if (table.sym == 256) throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.UnexpectedEOF");
-					sb.append(table.sym);
-					break;
+				int entry;
+				if (bits >= 8) entry = table[offset + ((int) (buf >>> (bits - 8)) & 0xFF)];
+				else {
+					// 输入已经结束，剩下的bits位只能是EOS的前缀，即不超过7个'1'
+					int pad = 8 - bits;
+					entry = table[offset + (((int) buf << pad | (1 << pad) - 1) & 0xFF)];
+					if (entry <= 0 || (entry & 0xFF) > bits) {
+						int mask = (1 << bits) - 1;
+						if (offset != 0 || ((int) buf & mask) != mask) throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.InvalidPadding");
+						return sb.toString();
+					}
 				}
-			}
-		}
 
-		// '1's padding
-		int mask = (1 << remain) - 1;
-		if (remain > 0 && (in.readBits(remain) & mask) != mask) {
-			throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.InvalidPadding");
+				if (entry < 0) {
+					offset = -entry;
+					bits -= 8;
+					continue;
+				}
+				if (entry == 0) throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.InvalidCode");
+
+				bits -= entry & 0xFF;
+				int sym = entry >>> 8;
+				if (sym == 256) throw new H2Exception(ERROR_COMPRESS, "HPACK.Huffman.UnexpectedEOF");
+				sb.append((char) sym);
+				break;
+			}
 		}
 
 		return sb.toString();
 	}
 	// endregion
-}
\ No newline at end of file
+}
@@ -494,7 +494,7 @@ public abstract class MyChannel implements Selectable, Closeable {
 			flush();
 		}
 
-		timeout++;
+		timeout += elapsed;
 
 		lock.lock();
 		try {
@@ -515,6 +515,23 @@ public abstract class MyChannel implements Selectable, Closeable {
 		}
 	}
 
+	@Override
+	public int tickDelay(int idle) {
+		if (state >= CLOSE_PENDING || state == INITIAL) return -1;
+		if (state == CONNECT_PENDING) return timeout > 0 ? Math.min(timeout, idle) : idle;
+		if ((flags & (REINVOKE_READ|TIMED_FLUSH)) != 0 || !pending.isEmpty()) return 1;
+		return idle;
+	}
+
+	/**
+	 * 在事件驱动的{@link SelectorLoop}中，请求不晚于delay毫秒后的一次tick
+	 * 轮询模式下什么都不做（本来每毫秒都会tick），可以从任意线程调用
+	 * @see SelectorLoop#setIdleTickInterval(int)
+	 */
+	public final void scheduleTick(int delay) {
+		if (key.attachment() instanceof SelectorLoop.Att att) att.requestTick(delay);
+	}
+
 	@Override
 	public final boolean isClosedOn(SelectionKey key) {
 		return key != this.key | !key.isValid();
@@ -589,6 +606,7 @@ public abstract class MyChannel implements Selectable, Closeable {
 
 			if (ch.keyFor(sel) != key) key.cancel();
 			key = ch.register(sel, ops, att);
+			if (att instanceof SelectorLoop.Att a) a.key = key;
 		} finally {
 			lock.unlock();
 		}
@@ -10,6 +10,12 @@ import java.nio.channels.Selector;
  */
 interface Selectable {
 	default void tick(int elapsed) throws Exception {}
+	/**
+	 * 事件驱动模式下，距下一次{@link #tick(int)}的毫秒数
+	 * @param idle 空闲通道的tick间隔
+	 * @return 负数表示不再需要tick
+	 */
+	default int tickDelay(int idle) {return -1;}
 
 	default boolean isClosedOn(SelectionKey key) {return !key.isValid();}
 
@@ -3,11 +3,14 @@ package roj.net;
 import roj.collect.ArrayList;
 import roj.concurrent.FastLocalThread;
 import roj.io.IOUtil;
+import roj.optimizer.FastVarHandle;
+import roj.reflect.Telescope;
 import roj.util.Helpers;
 import roj.util.JVM;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.invoke.VarHandle;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -31,19 +34,93 @@ public final class SelectorLoop implements Closeable {
 
 	public static final BiConsumer<String, Throwable> PRINT_HANDLER = (reason, error) -> LOGGER.warn("在{}阶段发生了未处理的异常", error, reason);
 
+	@FastVarHandle
 	final class Poller extends FastLocalThread implements Consumer<SelectionKey> {
 		private Selector selector;
 		private long prevAlert;
 
 		volatile boolean idle, wakeupLock;
 
+		// 事件驱动模式
+		private final TickWheel wheel;
+		private final int idleTick;
+		private volatile Att tickRequests;
+		// 其它线程的tick请求唤醒了选择器，这次提前返回不是epoll空转
+		private volatile boolean tickWakeup;
+		private static final VarHandle TICK_REQUESTS = Telescope.lookup().findVarHandle(Poller.class, "tickRequests", Att.class);
+
 		static { JVM.useAccurateTiming(); }
 		Poller() throws IOException {
 			this.selector = MySelector.open();
+			this.idleTick = SelectorLoop.this.idleTick;
+			this.wheel = idleTick > 0 ? new TickWheel(System.currentTimeMillis()) : null;
 			setName(prefix+" #"+index++);
 			setDaemon(daemon);
 		}
 
+		final void requestTick(Att att, int delay) {
+			if (wheel == null) return;
+			if (delay < 0) delay = 0;
+
+			if (Thread.currentThread() == this) {
+				wheel.add(att, wheel.now() + Math.max(delay, 1));
+				return;
+			}
+
+			long time = System.currentTimeMillis() + delay;
+			for (;;) {
+				long prev = att.requestTime;
+				if (prev <= time) return;
+				if (Att.REQUEST_TIME.compareAndSet(att, prev, time)) {
+					if (prev == Long.MAX_VALUE) {
+						Att head;
+						do {
+							head = tickRequests;
+							att.nextRequest = head;
+						} while (!TICK_REQUESTS.compareAndSet(this, head, att));
+
+						tickWakeup = true;
+						selector.wakeup();
+					}
+					return;
+				}
+			}
+		}
+
+		private void pollTickRequests() {
+			var att = (Att) TICK_REQUESTS.getAndSet(this, null);
+			while (att != null) {
+				var next = att.nextRequest;
+				att.nextRequest = null;
+
+				wheel.add(att, (long) Att.REQUEST_TIME.getAndSet(att, Long.MAX_VALUE));
+
+				att = next;
+			}
+		}
+
+		private void fireTicks(long now) {
+			var wheel = this.wheel;
+			Att att;
+			while ((att = (Att) wheel.poll(now)) != null) {
+				var t = att.channel;
+
+				long elapsed = att.lastTick == 0 ? 1 : now - att.lastTick;
+				att.lastTick = now;
+				try {
+					t.tick((int) Math.max(1, Math.min(elapsed, Integer.MAX_VALUE)));
+				} catch (Throwable e) {
+					if (uncaughtException(t, "T_TICK", e)) {
+						safeClose(att, att.key);
+						continue;
+					}
+				}
+
+				int delay = t.tickDelay(idleTick);
+				if (delay >= 0) wheel.add(att, now + Math.max(delay, 1));
+			}
+		}
+
 		final void refresh() {
 			var old = selector;
 			Selector sel;
@@ -81,8 +158,18 @@ public final class SelectorLoop implements Closeable {
 
 			mainLoop:
 			while (!loop.isClosed() && sel.isOpen() && !Thread.interrupted()) {
+				long timeout = 1;
+				if (wheel != null) {
+					pollTickRequests();
+					timeout = wheel.nextWakeup();
+					// 没有定时任务时一直阻塞到有IO事件，没有通道时进入下方的空闲等待
+					if (timeout < 0) timeout = keys.isEmpty() ? -1 : 0;
+					else if ((timeout -= System.currentTimeMillis()) <= 0) timeout = -1;
+				}
+
 				try {
-					sel.select(1);
+					if (timeout < 0) sel.selectNow();
+					else sel.select(timeout);
 				} catch (IOException e) {
 					exception.accept("S_SELECT", e);
 					break;
@@ -91,6 +178,7 @@ public final class SelectorLoop implements Closeable {
 				}
 
 				if (!sel.isOpen()) break;
+				if (wheel != null) currentTimeMillis = System.currentTimeMillis();
 
 				while (wakeupLock) LockSupport.park();
 
@@ -133,14 +221,45 @@ public final class SelectorLoop implements Closeable {
 					} catch (Throwable e) {
 						if (uncaughtException(t, "T_SELECTED", e)) {
 							safeClose(att, key);
+							continue;
 						}
 					}
+
+					// 有IO的通道在这一轮tick，和轮询模式一致
+					if (wheel != null) wheel.add(att, wheel.now());
 				}
 
 				if (!sel.isOpen()) break;
 
 				long now = System.currentTimeMillis();
 				currentTimeMillis = now;
+
+				if (wheel != null) {
+					boolean woken = tickWakeup;
+					if (woken) tickWakeup = false;
+					pollTickRequests();
+					fireTicks(now);
+
+					// epoll空转: 没有事件也没到期却提前返回
+					if (selected.isEmpty() && timeout > 0 && now - time < timeout && !woken) {
+						if (++delayed > 10000) {
+							int prevSize = sel.keys().size();
+							refresh();
+							sel = selector;
+							selected = (MySelector) sel.selectedKeys();
+							keys = MySelector.getIterable(sel);
+							LOGGER.warn("重建选择器, size={}/{}", prevSize, sel.keys().size());
+							delayed = 0;
+						}
+					} else {
+						delayed = 0;
+					}
+
+					time = now;
+					selected.clear();
+					continue;
+				}
+
 				int missedTime = (int) (now - time);
 				if (missedTime >= 1) {
 					delayed = 0;
@@ -232,7 +351,8 @@ public final class SelectorLoop implements Closeable {
 		}
 
 		private void safeClose(Att att, SelectionKey key) {
-			key.cancel();
+			if (key != null) key.cancel();
+			if (wheel != null) wheel.remove(att);
 
 			try {
 				att.channel.close();
@@ -257,6 +377,7 @@ public final class SelectorLoop implements Closeable {
 	private final int minThreads, maxThreads, idleKill, threshold;
 	private boolean daemon;
 	private BiConsumer<String, Throwable> exception = PRINT_HANDLER;
+	private int idleTick;
 
 	final Object lock;
 	Poller[] threads;
@@ -308,6 +429,17 @@ public final class SelectorLoop implements Closeable {
 	 */
 	public final void setDaemon(boolean daemon) {this.daemon = daemon;}
 
+	/**
+	 * 事件驱动模式，只影响新创建的线程
+	 * 0(默认): 每毫秒对所有通道调用{@link Selectable#tick(int)}
+	 * 大于0: 选择器阻塞到有IO或者最近的定时，只有到期的通道才会tick，空闲通道每idleTick毫秒tick一次
+	 * 依赖高频tick的处理器需要通过{@link MyChannel#scheduleTick(int)}请求下一次tick
+	 */
+	public final void setIdleTickInterval(int idleTick) {
+		if (idleTick < 0) throw new IllegalArgumentException("idleTick < 0");
+		this.idleTick = idleTick;
+	}
+
 	public final int getStartedCount() {return index;}
 	public final int getIdleCount() {
 		int idle = 0;
@@ -381,6 +513,8 @@ public final class SelectorLoop implements Closeable {
 
 					try {
 						t.register(lowest.selector, ops, att);
+						att.owner = lowest;
+						lowest.requestTick(att, 0);
 					} finally {
 						lowest.wakeupLock = false;
 						LockSupport.unpark(lowest);
@@ -405,13 +539,29 @@ public final class SelectorLoop implements Closeable {
 
 		try {
 			t.register(thread.selector, ops, att);
+			att.owner = thread;
+			thread.requestTick(att, 0);
 		} finally {
 			thread.start();
 		}
 	}
 
-	static final class Att {
+	@FastVarHandle
+	static final class Att extends TickWheel.Node {
 		Selectable channel;
 		Consumer<Selectable> callback;
+
+		SelectionKey key;
+		Poller owner;
+		long lastTick;
+
+		volatile long requestTime = Long.MAX_VALUE;
+		Att nextRequest;
+		static final VarHandle REQUEST_TIME = Telescope.lookup().findVarHandle(Att.class, "requestTime", long.class);
+
+		final void requestTick(int delay) {
+			var p = owner;
+			if (p != null) p.requestTick(this, delay);
+		}
 	}
 }
\ No newline at end of file
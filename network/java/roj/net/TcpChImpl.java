@@ -11,6 +11,7 @@ import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import static roj.util.ByteList.EMPTY;
 
@@ -20,10 +21,39 @@ import static roj.util.ByteList.EMPTY;
  */
 class TcpChImpl extends MyChannel {
 	private static final int OUTPUT_CLOSED = 64;
+	// 一次gathering write最多的缓冲区数量，也是待写队列的长度，满了之后合并到队尾
+	private static final int MAX_GATHER = 64, MIN_CHUNK = 4096;
 
 	private SocketChannel sc;
 	private int initialBufferCapacity, bufferRetainStrategy;
 
+	/**
+	 * 待写出的数据块，缓冲区由通道持有，写出的进度记录在nio中
+	 */
+	private static final class Chunk {
+		final DynByteBuf buf;
+		final ByteBuffer nio;
+
+		Chunk(DynByteBuf buf) {
+			this.buf = buf;
+			this.nio = BufferPool.retainWrapper(buf);
+		}
+
+		boolean append(DynByteBuf data) {
+			if (buf.unsafeWritableBytes() < data.readableBytes()) return false;
+			buf.put(data);
+			nio.limit(buf.wIndex());
+			return true;
+		}
+
+		void release() {
+			BufferPool.releaseWrapper(buf, nio);
+			buf.release();
+		}
+	}
+	private ByteBuffer[] gather;
+	private long pendingBytes;
+
 	TcpChImpl(int initialBufferCapacity) throws IOException {
 		this(SocketChannel.open(), initialBufferCapacity, 0);
 		ch.configureBlocking(false);
@@ -35,6 +65,7 @@ class TcpChImpl extends MyChannel {
 		this.initialBufferCapacity = initialBufferCapacity;
 		this.bufferRetainStrategy = bufferRetainStrategy;
 		state = CONNECTED;
+		pending.setMaxCapacity(MAX_GATHER);
 	}
 
 	public void setInitialBufferCapacity(int initialBufferCapacity) {this.initialBufferCapacity = initialBufferCapacity;}
@@ -72,7 +103,16 @@ class TcpChImpl extends MyChannel {
 		addFlag(OUTPUT_CLOSED);
 	}
 	@Override
-	protected void disconnect0() throws IOException { sc.close(); ch = sc = SocketChannel.open(); rb.clear(); }
+	protected void disconnect0() throws IOException { sc.close(); ch = sc = SocketChannel.open(); rb.clear(); releasePending(); }
+
+	@Override
+	protected void fireClosed() throws IOException {
+		try {
+			super.fireClosed();
+		} finally {
+			releasePending();
+		}
+	}
 
 	@Override
 	public void tick(int elapsed) throws Exception {
@@ -91,21 +131,20 @@ class TcpChImpl extends MyChannel {
 		}
 	}
 
+	@Override
+	public int tickDelay(int idle) {
+		int delay = super.tickDelay(idle);
+		if (delay > 1 && bufferRetainStrategy > 0 && rb != EMPTY) delay = Math.max(1, Math.min(delay, bufferRetainStrategy - timeout));
+		return delay;
+	}
+
 	public void flush() throws IOException {
 		if (state >= CLOSED) return;
 		if (pending.isEmpty()) return;
 
 		lock.lock();
 		try {
-			var buf = (DynByteBuf) pending.peekFirst();
-			if (buf == null) return;
-
-			write0(buf);
-			if (buf.isReadable()) return;
-
-			assert pending.size() == 1 : "composite buffer violation";
-			pending.clear();
-			buf.release();
+			if (pending.isEmpty() || !writePending()) return;
 
 			flags &= ~(PAUSE_FOR_FLUSH|TIMED_FLUSH);
 			key.interestOps(SelectionKey.OP_READ);
@@ -161,40 +200,89 @@ class TcpChImpl extends MyChannel {
 		var buf = (DynByteBuf) o;
 		if (!buf.isReadable()) return;
 
-		BufferPool bp = alloc();
+		DynByteBuf copy = null;
 		try {
+			var data = buf;
 			if (pending.isEmpty()) {
-				if (!buf.isDirect()) buf = bp.allocate(true, buf.readableBytes(), 0).put(buf);
-				write0(buf);
-			}
-
-			if (buf.isReadable()) {
-				DynByteBuf flusher;
+				if (!buf.isDirect()) data = copy = alloc().allocate(true, buf.readableBytes(), 0).put(buf);
+				write0(data);
+				if (!data.isReadable()) {
+					fireFlushed();
+					return;
+				}
 
 				// difference with EmbeddedChannel: #selected will automatically invoke flush()
-				if (pending.isEmpty()) {
-					fireFlushing();
-					key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-					flusher = DynByteBuf.allocateDirect(buf.readableBytes(), 1048576);
-					pending.offerLast(flusher);
-				} else {
-					flusher = (DynByteBuf) pending.getFirst();
-				}
+				fireFlushing();
+				key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+			}
 
-				if (flusher.unsafeWritableBytes() < buf.readableBytes()) flusher.compact();
-				flusher.put(buf);
-				if (flusher.readableBytes() > rb.capacity()) pauseAndFlush();
+			pendingBytes += data.readableBytes();
+			if (data == copy) {
+				// 复制出的缓冲区直接进入队列，不再复制第二次
+				copy = null;
+				offerChunk(new Chunk(data), data);
 			} else {
-				fireFlushed();
+				var tail = (Chunk) pending.peekLast();
+				if (tail == null || !tail.append(data)) {
+					var chunk = alloc().allocate(true, Math.max(data.readableBytes(), MIN_CHUNK), 0).put(data);
+					offerChunk(new Chunk(chunk), chunk);
+				}
 			}
-		} finally {
-			if (o != buf) buf.release();
 
-			buf = (DynByteBuf) o;
+			if (pendingBytes > rb.capacity()) pauseAndFlush();
+		} finally {
+			if (copy != null) copy.release();
 			buf.rIndex = buf.wIndex();
 		}
 	}
 
+	private void offerChunk(Chunk chunk, DynByteBuf data) {
+		if (pending.offerLast(chunk)) return;
+
+		// 队列满了，把最后一块和新数据合并
+		var tail = (Chunk) pending.pollLast();
+		tail.buf.rIndex = tail.nio.position();
+		var merged = alloc().allocate(true, tail.buf.readableBytes() + data.readableBytes(), 0).put(tail.buf).put(data);
+		tail.release();
+		chunk.release();
+		pending.offerLast(new Chunk(merged));
+	}
+
+	/**
+	 * 用一次gathering write尽量写出待写队列，并释放已写完的块
+	 * @return 队列是否已经清空
+	 */
+	private boolean writePending() throws IOException {
+		var arr = gather;
+		if (arr == null) gather = arr = new ByteBuffer[MAX_GATHER];
+
+		int count = 0;
+		for (Object o : pending) {
+			if (count == arr.length) break;
+			arr[count++] = ((Chunk) o).nio;
+		}
+
+		try {
+			pendingBytes -= sc.write(arr, 0, count);
+		} finally {
+			Arrays.fill(arr, 0, count, null);
+		}
+
+		while (!pending.isEmpty()) {
+			var chunk = (Chunk) pending.peekFirst();
+			if (chunk.nio.hasRemaining()) return false;
+			pending.pollFirst();
+			chunk.release();
+		}
+		return true;
+	}
+
+	private void releasePending() {
+		Chunk chunk;
+		while ((chunk = (Chunk) pending.pollFirst()) != null) chunk.release();
+		pendingBytes = 0;
+	}
+
 	private void write0(DynByteBuf buf) throws IOException {
 		var nioBuffer = syncNioWrite(buf);
 		sc.write(nioBuffer);
@@ -0,0 +1,151 @@
+package roj.net;
+
+/**
+ * 单线程的分层时间轮，SelectorLoop的事件驱动模式用它来只唤醒到期的通道
+ * 精度1ms，每层64格，共4层(约4.6小时)，更远的节点放在最高层最后一格，轮到时重新计算
+ * @author Roj234
+ * @since 2026/10/18 12:40
+ */
+final class TickWheel {
+	static class Node {
+		long deadline;
+		Node prev, next;
+
+		final boolean isScheduled() {return prev != null;}
+	}
+
+	private static final int BITS = 6, SIZE = 1 << BITS, MASK = SIZE - 1, LEVELS = 4;
+
+	private final Node[] buckets = new Node[LEVELS << BITS];
+	// 下一个要处理的毫秒，比它早的格子都已处理完毕
+	private long now;
+	private int size;
+
+	TickWheel(long now) {
+		this.now = now;
+		for (int i = 0; i < buckets.length; i++) {
+			var head = new Node();
+			head.prev = head.next = head;
+			buckets[i] = head;
+		}
+	}
+
+	public long now() {return now;}
+	public int size() {return size;}
+
+	/**
+	 * 在deadline或更早的时候到期，如果节点已经在更早的时间到期，那么什么都不做
+	 */
+	public void add(Node n, long deadline) {
+		if (n.prev != null) {
+			if (n.deadline <= deadline) return;
+			unlink(n);
+		}
+		if (deadline < now) deadline = now;
+		n.deadline = deadline;
+		link(n);
+	}
+
+	public void remove(Node n) {
+		if (n.prev != null) unlink(n);
+	}
+
+	/**
+	 * 推进到time(含)并取出一个到期的节点
+	 * @return 没有更多到期节点时返回null
+	 */
+	public Node poll(long time) {
+		if (size == 0) {
+			if (time > now) now = time;
+			return null;
+		}
+
+		for (;;) {
+			var head = buckets[(int) (now & MASK)];
+			var n = head.next;
+			if (n != head) {
+				unlink(n);
+				return n;
+			}
+
+			if (now >= time) return null;
+			if ((++now & MASK) == 0) cascade();
+		}
+	}
+
+	/**
+	 * 下一次需要推进的时间，它可能比实际最早的deadline早(高层格子的降级时间)
+	 * @return 时间轮为空时返回-1
+	 */
+	public long nextWakeup() {
+		if (size == 0) return -1;
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < SIZE; i++) {
+			var head = buckets[(int) ((now + i) & MASK)];
+			if (head.next != head) {
+				best = now + i;
+				break;
+			}
+		}
+
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = BITS * level;
+			long cur = now >>> shift;
+			for (int i = 1; i < SIZE; i++) {
+				var head = buckets[level << BITS | (int) ((cur + i) & MASK)];
+				if (head.next != head) {
+					best = Math.min(best, (cur + i) << shift);
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void cascade() {
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = BITS * level;
+			if ((now & ((1L << shift) - 1)) != 0) break;
+
+			var head = buckets[level << BITS | (int) ((now >>> shift) & MASK)];
+			var n = head.next;
+			head.prev = head.next = head;
+
+			while (n != head) {
+				var next = n.next;
+				n.prev = n.next = null;
+				size--;
+				link(n);
+				n = next;
+			}
+		}
+	}
+
+	private void link(Node n) {
+		long d = n.deadline, c = now;
+		int level = 0;
+		while (d - c >= SIZE && level < LEVELS-1) {
+			d >>>= BITS;
+			c >>>= BITS;
+			level++;
+		}
+
+		// 超出范围：放在最后一格，降级时重新计算
+		int slot = (int) ((d - c >= SIZE ? c - 1 : d) & MASK);
+		var head = buckets[level << BITS | slot];
+
+		n.prev = head.prev;
+		n.next = head;
+		head.prev.next = n;
+		head.prev = n;
+		size++;
+	}
+
+	private void unlink(Node n) {
+		n.prev.next = n.next;
+		n.next.prev = n.prev;
+		n.prev = n.next = null;
+		size--;
+	}
+}
@@ -55,6 +55,11 @@ public class Timeout implements ChannelHandler {
 				closeChannel(ctx);
 			lastWrite = time;
 		}
+
+		long next = Long.MAX_VALUE;
+		if (readTimeout > 0) next = lastRead + readTimeout;
+		if (writeTimeout > 0 && pending > 0) next = Math.min(next, lastWrite + writeTimeout);
+		if (next != Long.MAX_VALUE) ctx.channel().scheduleTick((int) Math.max(1, Math.min(next - time + 1, Integer.MAX_VALUE)));
 	}
 
 	protected void closeChannel(ChannelCtx ctx) throws IOException { ctx.close(); }
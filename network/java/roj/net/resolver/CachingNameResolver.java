@@ -0,0 +1,54 @@
+package roj.net.resolver;
+
+import org.jetbrains.annotations.Nullable;
+import roj.collect.TinyLFUCache;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * 缓存上级解析器的结果，解析失败也会缓存较短的时间
+ *
+ * @author Roj234
+ * @since 2026/10/18 19:00
+ */
+public class CachingNameResolver extends FilteringNameResolver {
+	private record Entry(List<InetAddress> addresses, long expireAt) {}
+
+	private final TinyLFUCache<String, Entry> cache;
+	private final int ttl, negativeTtl;
+
+	/**
+	 * @param ttl 成功结果的缓存时间(毫秒)
+	 * @param negativeTtl 失败结果的缓存时间(毫秒)
+	 */
+	public CachingNameResolver(NameResolver parent, int maxSize, int ttl, int negativeTtl) {
+		super(parent);
+		this.cache = new TinyLFUCache<>(maxSize);
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @return 缓存中是否有还没过期的结果，此时{@link #lookup}不会阻塞
+	 */
+	public boolean isCached(String hostname) {
+		var entry = cache.get(hostname);
+		return entry != null && System.currentTimeMillis() < entry.expireAt;
+	}
+
+	@Override
+	protected @Nullable List<InetAddress> find(String hostname) {
+		var entry = cache.get(hostname);
+		if (entry != null && System.currentTimeMillis() < entry.expireAt) return entry.addresses;
+
+		var addresses = parent.lookup(hostname);
+		cache.put(hostname, new Entry(addresses, System.currentTimeMillis() + (addresses == null ? negativeTtl : ttl)));
+		return addresses;
+	}
+
+	@Override
+	public List<InetAddress> lookup(String hostname) {return find(hostname);}
+
+	public void clear() {cache.clear();}
+}
@@ -18,12 +18,15 @@ import roj.asmx.mapper.Mapper;
 import roj.ci.annotation.IndirectReference;
 import roj.ci.plugin.Plugin;
 import roj.collect.*;
+import roj.concurrent.TaskGroup;
+import roj.concurrent.TaskPool;
 import roj.gui.Profiler;
 import roj.io.IOUtil;
 import roj.util.ByteList;
 import roj.util.DynByteBuf;
 import roj.util.Helpers;
 import roj.util.TypedKey;
+import roj.util.function.ExceptionalConsumer;
 import roj.util.function.ExceptionalSupplier;
 import roj.util.function.Flow;
 
@@ -613,27 +616,51 @@ public final class BuildContext {
 		private final ConstantPoolHooks hooks = new ConstantPoolHooks();
 		private final Mapper mapper = new Mapper();
 
+		/**
+		 * Below this many classes the stages run on the calling thread; above it each stage is split
+		 * into chunks of this size and run on {@link TaskPool#cpu()}.
+		 */
+		private static final int PARALLEL_THRESHOLD = 256;
+
 		void runTransformers(List<Context> classes) throws TransformException {
+			// Every stage only touches the Context it is given, so chunks can run in any order
+			// while the list itself (and thus the output jar) keeps its original order
+			List<List<Context>> tasks = classes.size() > PARALLEL_THRESHOLD ? TaskGroup.split(classes, PARALLEL_THRESHOLD) : null;
+
 			if (!weaver.registry().isEmpty()) {
-				for (int i = 0; i < classes.size(); i++) {
-					Context context = classes.get(i);
-					weaver.transform(context.getClassName(), context);
-				}
+				Profiler.startSection("weaver");
+				runStage(classes, tasks, context -> weaver.transform(context.getClassName(), context));
+				Profiler.endSection();
 			}
 			if (hooks.isNotEmpty()) {
-				for (int i = 0; i < classes.size(); i++) {
-					Context context = classes.get(i);
-					hooks.transform(context.getClassName(), context);
-				}
+				Profiler.startSection("hooks");
+				runStage(classes, tasks, context -> hooks.transform(context.getClassName(), context));
+				Profiler.endSection();
 			}
 			if (!mapper.getClassMap().isEmpty()) {
+				Profiler.startSection("mapper");
 				mapper.setupHierarchy(0);
 				// 说真的，我不喜欢后处理
-				for (int i = 0; i < classes.size(); i++) {
-					Context context = classes.get(i);
+				runStage(classes, tasks, context -> {
 					mapper.S5_mapClassName(context);
 					mapper.S5_1_resetDebugInfo(context);
-				}
+				});
+				Profiler.endSection();
+			}
+		}
+
+		private static void runStage(List<Context> classes, @Nullable List<List<Context>> tasks, ExceptionalConsumer<Context, TransformException> stage) throws TransformException {
+			if (tasks == null) {
+				for (int i = 0; i < classes.size(); i++) stage.accept(classes.get(i));
+				return;
+			}
+
+			try {
+				TaskPool.cpu().newGroup().executeAll(tasks, stage::accept).await();
+			} catch (RuntimeException e) {
+				// TaskGroup wraps checked exceptions as RuntimeException(context.toString(), cause)
+				if (e.getCause() instanceof TransformException te) throw te;
+				throw e;
 			}
 		}
 
@@ -6,6 +6,7 @@ import roj.archive.zip.ZipEditor;
 import roj.archive.zip.ZipEntry;
 import roj.archive.zip.ZipPacker;
 import roj.archive.zip.ZipUpdate;
+import roj.concurrent.Executor;
 import roj.io.IOUtil;
 import roj.util.ByteList;
 import roj.util.DynByteBuf;
@@ -26,6 +27,8 @@ public final class ZipOutput implements AutoCloseable {
 	private ZipPacker writer;
 	private boolean incremental, isOpen;
 	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private Executor executor;
+	private long memoryLimit;
 
 	public ZipOutput(File file) {this.file = file;}
 
@@ -33,6 +36,15 @@ public final class ZipOutput implements AutoCloseable {
 		this.compressionLevel = compressionLevel;
 	}
 
+	/**
+	 * 并行压缩，输出和顺序压缩相同
+	 * @see ZipPacker#setParallel(Executor, long)
+	 */
+	public void setParallel(@Nullable Executor executor, long memoryLimit) {
+		this.executor = executor;
+		this.memoryLimit = memoryLimit;
+	}
+
 	public ZipPacker getWriter() {return writer;}
 
 	public void begin(boolean incremental) throws IOException {
@@ -44,6 +56,7 @@ public final class ZipOutput implements AutoCloseable {
 		} else {
 			writer = new ZipPacker(file);
 			writer.setCompressionLevel(compressionLevel);
+			writer.setParallel(executor, memoryLimit);
 			if (archive != null) {
 				archive.close();
 				archive = null;
@@ -108,7 +121,7 @@ public final class ZipOutput implements AutoCloseable {
 		try {
 			if (incremental && archive != null) {
 				archive.ensureOpen();
-				archive.save(compressionLevel);
+				archive.save(compressionLevel, executor, memoryLimit);
 			}
 		} finally {
 			IOUtil.closeSilently(archive);